@@ -0,0 +1,603 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Content-addressed storage of the logs and jars of the builds in a builds directory, "cloudbuilds/" or
+ * "localbuilds/". When a build is done its logs and jar are moved from the build directory into
+ * <b>{@code .store/}</b> of the builds directory and the build directory keeps a manifest, <b>{@code .artifacts}</b>,
+ * that lists them by their SHA-256 hashes. A log is stored once, gzipped, however many builds wrote it. A jar is
+ * stored as its entries, each compressed with DEFLATE on its own, so the classes that did not change between two
+ * builds are stored once. The jar is put together again when it is downloaded: the stored entries are already in
+ * the form a jar holds them in, so they are copied into the response with {@link FileChannel#transferTo} between
+ * zip headers written from the manifest.
+ *
+ * The directories of the DD2480_ARTIFACT_KEEP_BUILDS newest builds and of the newest passing build of every branch
+ * are kept, {@link #collectGarbage(List)} empties the other build directories and deletes the stored files no
+ * manifest refers to any more. Build directories written before the store existed are left as they are.
+ */
+public class ArtifactStore {
+
+    public final static String KEEP_BUILDS_KEY = "DD2480_ARTIFACT_KEEP_BUILDS";
+
+    public final static String MANIFEST = ".artifacts";
+    public final static String STORE_DIRECTORY = ".store";
+
+    // files younger than this may belong to a build that is being stored, they are never collected
+    private final static long GRACE_MILLIS = 60 * 60 * 1000;
+    // the zip format without its 64-bit extension
+    private final static long MAX_ZIP_SIZE = 0xFFFFFFFFL;
+    private final static int MAX_ZIP_ENTRIES = 0xFFFF;
+
+    private static final Map<String, ArtifactStore> stores = new ConcurrentHashMap<>();
+
+    private final File root;
+    private final File logs;
+    private final File entries;
+
+    // metrics
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong collectedFiles = new AtomicLong();
+    private final AtomicLong expiredBuilds = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+
+    /**
+     * @param root the builds directory, e.g. "cloudbuilds/", holding a directory per build and the store
+     */
+    public ArtifactStore(File root) {
+        this.root = root;
+        this.logs = new File(new File(root, STORE_DIRECTORY), "logs");
+        this.entries = new File(new File(root, STORE_DIRECTORY), "entries");
+    }
+
+    /**
+     * @param buildDirectory a build directory, e.g. "cloudbuilds/45a1d97-12"
+     * @return the store of the builds directory the build directory is in
+     */
+    public static ArtifactStore of(File buildDirectory) {
+        File root = buildDirectory.getAbsoluteFile().getParentFile();
+        return stores.computeIfAbsent(root.getPath(), k -> new ArtifactStore(root));
+    }
+
+    /**
+     * @param b a build with a build directory
+     * @return the directory that holds the build's jar, its build directory. A build that reused the results of
+     * another before build directories were kept per build reads the logs of that build and has its jar in the
+     * directory of its commit.
+     */
+    public static File artifactDirectory(Build b) {
+        File directory = new File(b.getLogDirectory()).getAbsoluteFile();
+        if (b.getCachedFrom() == null || directory.getName().equals(Integrator.buildDirectoryName(b.getCommitHash(), b.getBuildID()))) {
+            return directory;
+        }
+        return new File(directory.getParentFile(), b.getCommitHash());
+    }
+
+    //--------------Storing ------------------
+
+    /**
+     * Moves the logs (*.log) and jars (*.jar) of a build directory into the store and lists them in the
+     * manifest of the directory, replacing what the manifest listed under the same names. Runs under the lock
+     * of {@link #collectGarbage}, so that a stored file that is found and used again is not deleted before the
+     * manifest lists it.
+     * @param buildDirectory the build directory of a build that is done
+     */
+    public synchronized void store(File buildDirectory) throws IOException {
+        File[] files = buildDirectory.listFiles((dir, name) -> name.endsWith(".log") || name.endsWith(".jar"));
+        if (files == null || files.length == 0) {
+            return;
+        }
+        Map<String, List<String>> manifest = readManifest(buildDirectory);
+        for (File file : files) {
+            manifest.put(file.getName(), file.getName().endsWith(".jar") ? storeJar(file) : List.of(storeLog(file)));
+        }
+        writeManifest(buildDirectory, manifest);
+        for (File file : files) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    /**
+     * @return the manifest line of a log, "log name sha size"
+     */
+    private String storeLog(File file) throws IOException {
+        String sha = sha256(file.toPath());
+        long size = Files.size(file.toPath());
+        writeBlob(blob(logs, sha), out -> {
+            try (OutputStream gzip = new GZIPOutputStream(out)) {
+                Files.copy(file.toPath(), gzip);
+            }
+        }, size);
+        return "log " + file.getName() + " " + sha + " " + size;
+    }
+
+    /**
+     * @return the manifest lines of a jar, "jar name" followed by an "entry sha crc size compressedSize dosTime name"
+     * line for every entry, in the order of the jar. Directories have no data and "-" as hash.
+     */
+    private List<String> storeJar(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("jar " + file.getName());
+        try (ZipFile jar = new ZipFile(file)) {
+            Enumeration<? extends ZipEntry> all = jar.entries();
+            while (all.hasMoreElements()) {
+                ZipEntry entry = all.nextElement();
+                byte[] data;
+                try (InputStream in = jar.getInputStream(entry)) {
+                    data = in.readAllBytes();
+                }
+                String sha = "-";
+                long compressed = 0;
+                if (data.length > 0) {
+                    sha = sha256(data);
+                    ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+                    // raw DEFLATE without a zlib header, the form of a compressed zip entry
+                    try (DeflaterOutputStream out = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+                        out.write(data);
+                    }
+                    // an entry that is stored already keeps its bytes, which another zlib may have compressed differently
+                    compressed = writeBlob(blob(entries, sha), deflated::writeTo, data.length);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                lines.add("entry " + sha + " " + crc.getValue() + " " + data.length + " " + compressed + " "
+                        + dosTime(entry.getTime()) + " " + entry.getName());
+            }
+        }
+        if (lines.size() - 1 > MAX_ZIP_ENTRIES) {
+            throw new IOException(file + " has too many entries to be stored");
+        }
+        return lines;
+    }
+
+    private interface BlobWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a blob unless it is stored already. The blob is written to a temporary file first and moved into
+     * place, so that a blob that exists is complete.
+     * @param size bytes the blob stands for, counted in the metrics
+     * @return the length of the stored blob, of the one that was stored before if there is one
+     */
+    private long writeBlob(File blob, BlobWriter writer, long size) throws IOException {
+        writtenBytes.addAndGet(size);
+        if (blob.exists()) {
+            deduplicated.incrementAndGet();
+            // a blob that is used again is not old, see collectGarbage
+            blob.setLastModified(System.currentTimeMillis());
+            return blob.length();
+        }
+        blob.getParentFile().mkdirs();
+        File temp = new File(blob.getParentFile(), blob.getName() + "." + UUID.randomUUID() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            writer.write(out);
+        }
+        try {
+            Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException | AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        storedBytes.addAndGet(blob.length());
+        return blob.length();
+    }
+
+    /**
+     * Lists a log or the jar of one build directory in the manifest of another, without storing it again. Used
+     * when a build reuses the results of an earlier build.
+     * @param from the build directory of the earlier build
+     * @param fromName name of the log or jar there
+     * @param to the build directory of the new build
+     * @param toName name of the log or jar there
+     * @return true if it was listed, false if the earlier build has none in the store
+     */
+    public boolean link(File from, String fromName, File to, String toName) throws IOException {
+        List<String> lines = readManifest(from).get(fromName);
+        if (lines == null) {
+            return false;
+        }
+        ArtifactStore target = of(to);
+        // the copied files and the manifest that lists them are written under the lock of the target's collectGarbage
+        synchronized (target) {
+            if (lines.get(0).startsWith("log ")) {
+                String[] fields = lines.get(0).split(" ");
+                if (target != this) {
+                    File blob = target.blob(target.logs, fields[2]);
+                    if (!blob.exists()) {
+                        blob.getParentFile().mkdirs();
+                        Files.copy(blob(logs, fields[2]).toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                lines = List.of("log " + toName + " " + fields[2] + " " + fields[3]);
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                String sha = line.split(" ")[1];
+                if (target != this && !sha.equals("-")) {
+                    // another builds directory has a store of its own
+                    File blob = target.blob(target.entries, sha);
+                    if (!blob.exists()) {
+                        blob.getParentFile().mkdirs();
+                        Files.copy(blob(entries, sha).toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+            List<String> renamed = new ArrayList<>(lines);
+            if (renamed.get(0).startsWith("jar ")) {
+                renamed.set(0, "jar " + toName);
+            }
+            to.mkdirs();
+            Map<String, List<String>> manifest = target.readManifest(to);
+            manifest.put(toName, renamed);
+            target.writeManifest(to, manifest);
+        }
+        return true;
+    }
+
+    //--------------Reading ------------------
+
+    /**
+     * @param buildDirectory a build directory
+     * @param name name of a log, e.g. ".mvn_test.log"
+     * @return the size of the log before it was compressed, -1 if the store does not have it
+     */
+    public long logSize(File buildDirectory, String name) {
+        List<String> lines = readManifest(buildDirectory).get(name);
+        return lines == null ? -1 : Long.parseLong(lines.get(0).split(" ")[3]);
+    }
+
+    /**
+     * @param buildDirectory a build directory
+     * @param name name of a log, e.g. ".mvn_test.log"
+     * @return the log, decompressed while it is read, null if the store does not have it
+     */
+    public InputStream openLog(File buildDirectory, String name) throws IOException {
+        List<String> lines = readManifest(buildDirectory).get(name);
+        if (lines == null || !lines.get(0).startsWith("log ")) {
+            return null;
+        }
+        return new GZIPInputStream(Files.newInputStream(blob(logs, lines.get(0).split(" ")[2]).toPath()));
+    }
+
+    /**
+     * @param buildDirectory a build directory
+     * @param name name of a jar
+     * @return the size of the jar as it is sent by {@link #transferJar}, -1 if the store does not have it
+     */
+    public long jarSize(File buildDirectory, String name) {
+        List<String> lines = readManifest(buildDirectory).get(name);
+        if (lines == null || !lines.get(0).startsWith("jar ")) {
+            return -1;
+        }
+        long size = 22;
+        for (String line : lines.subList(1, lines.size())) {
+            Entry entry = Entry.parse(line);
+            size += 30 + 46 + 2L * entry.name.length + entry.compressed;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a stored jar. The entries are copied from the store with {@link FileChannel#transferTo}, which
+     * does not copy them through the heap, the zip headers around them are written from the manifest.
+     * @param buildDirectory a build directory
+     * @param name name of the jar
+     * @param out where the jar is written, {@link #jarSize} bytes
+     * @return false if the store does not have the jar
+     */
+    public boolean transferJar(File buildDirectory, String name, WritableByteChannel out) throws IOException {
+        List<String> lines = readManifest(buildDirectory).get(name);
+        if (lines == null || !lines.get(0).startsWith("jar ")) {
+            return false;
+        }
+        List<Entry> all = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            all.add(Entry.parse(line));
+        }
+        if (jarSize(buildDirectory, name) > MAX_ZIP_SIZE) {
+            throw new IOException(name + " is too large for a zip without its 64-bit extension");
+        }
+        downloads.incrementAndGet();
+        long offset = 0;
+        List<Long> offsets = new ArrayList<>();
+        for (Entry entry : all) {
+            offsets.add(offset);
+            writeFully(out, entry.header(false, 0));
+            if (entry.compressed > 0) {
+                try (FileChannel blob = FileChannel.open(blob(entries, entry.sha).toPath(), StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < entry.compressed) {
+                        long sent = blob.transferTo(position, entry.compressed - position, out);
+                        if (sent == 0) {
+                            // the stored entry is shorter than the manifest says, the jar can not be put together
+                            throw new IOException("Entry " + entry.sha + " of " + name + " is shorter than its manifest says");
+                        }
+                        position += sent;
+                    }
+                }
+            }
+            offset += 30 + entry.name.length + entry.compressed;
+        }
+        long directoryStart = offset;
+        for (int i = 0; i < all.size(); i++) {
+            ByteBuffer header = all.get(i).header(true, offsets.get(i));
+            offset += header.remaining();
+            writeFully(out, header);
+        }
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) all.size()).putShort((short) all.size())
+                .putInt((int) (offset - directoryStart)).putInt((int) directoryStart).putShort((short) 0);
+        end.flip();
+        writeFully(out, end);
+        return true;
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * An entry of a stored jar, as listed in the manifest.
+     */
+    private static class Entry {
+        String sha;
+        long crc;
+        long size;
+        long compressed;
+        long dosTime;
+        byte[] name;
+
+        static Entry parse(String line) {
+            String[] fields = line.split(" ", 7);
+            Entry entry = new Entry();
+            entry.sha = fields[1];
+            entry.crc = Long.parseLong(fields[2]);
+            entry.size = Long.parseLong(fields[3]);
+            entry.compressed = Long.parseLong(fields[4]);
+            entry.dosTime = Long.parseLong(fields[5]);
+            entry.name = fields[6].getBytes(StandardCharsets.UTF_8);
+            return entry;
+        }
+
+        /**
+         * @param central true for the header in the central directory at the end of the jar, false for the one before the data
+         * @param offset where the header before the data starts, only used in the central directory
+         */
+        ByteBuffer header(boolean central, long offset) {
+            ByteBuffer header = ByteBuffer.allocate((central ? 46 : 30) + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(central ? 0x02014b50 : 0x04034b50);
+            if (central) {
+                header.putShort((short) 20);
+            }
+            // version 2.0, names in UTF-8, DEFLATE or no data
+            header.putShort((short) 20).putShort((short) 0x0800).putShort((short) (compressed > 0 ? 8 : 0))
+                    .putInt((int) dosTime).putInt((int) crc).putInt((int) compressed).putInt((int) size)
+                    .putShort((short) name.length).putShort((short) 0);
+            if (central) {
+                header.putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) offset);
+            }
+            header.put(name);
+            header.flip();
+            return header;
+        }
+    }
+
+    /**
+     * @return a time in the MS-DOS format of zip headers, date in the high and time in the low 16 bits
+     */
+    static long dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(Math.max(millis, 0)), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (time.getYear() - 1980) << 25) | ((long) time.getMonthValue() << 21) | ((long) time.getDayOfMonth() << 16)
+                | ((long) time.getHour() << 11) | ((long) time.getMinute() << 5) | (time.getSecond() >> 1);
+    }
+
+    //--------------Retention ------------------
+
+    /**
+     * Applies the retention policy to the build directories in the store of the builds: the directories of the
+     * DD2480_ARTIFACT_KEEP_BUILDS (100 by default) newest builds and of the newest passing build of every branch
+     * are kept, the others lose their manifest and files; with DD2480_ARTIFACT_KEEP_BUILDS set to 0 every build
+     * directory is kept. Then the stored logs and entries that no manifest
+     * lists are deleted. Files younger than an hour are never deleted, they may belong to a build that is being
+     * stored.
+     * @param builds the builds of the history, in the order they were added
+     * @return the build directories that were emptied
+     */
+    public List<File> collectGarbage(List<Build> builds) {
+        Set<String> keep = new HashSet<>();
+        int keepBuilds = Config.getInt(KEEP_BUILDS_KEY, 100);
+        Set<String> branchesWithPassingBuild = new HashSet<>();
+        for (int i = builds.size() - 1; i >= 0; i--) {
+            Build b = builds.get(i);
+            if (b.getLogDirectory() == null) {
+                continue;
+            }
+            boolean passed = Integrator.STATUS_SUCCESS.equals(b.getStatus()) || Integrator.STATUS_FLAKY.equals(b.getStatus());
+            if (keepBuilds <= 0 || builds.size() - i <= keepBuilds || (passed && b.getBranch() != null && branchesWithPassingBuild.add(b.getBranch()))) {
+                keep.add(new File(b.getLogDirectory()).getAbsolutePath());
+                keep.add(artifactDirectory(b).getAbsolutePath());
+            }
+        }
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+        List<File> expired = new ArrayList<>();
+        synchronized (this) {
+            Set<String> referenced = new HashSet<>();
+            File[] directories = root.listFiles(f -> new File(f, MANIFEST).exists());
+            for (File directory : directories == null ? new File[0] : directories) {
+                File manifest = new File(directory, MANIFEST);
+                if (keepBuilds > 0 && !keep.contains(directory.getAbsolutePath()) && manifest.lastModified() < cutoff) {
+                    // the history still lists the builds, their pages show that the logs are gone
+                    Pipeline.deleteRecursively(directory);
+                    expiredBuilds.incrementAndGet();
+                    expired.add(directory);
+                    continue;
+                }
+                for (List<String> lines : readManifest(directory).values()) {
+                    for (String line : lines) {
+                        String[] fields = line.split(" ");
+                        referenced.add(fields[0].equals("log") ? fields[2] : fields[1]);
+                    }
+                }
+            }
+            for (File blobs : List.of(logs, entries)) {
+                if (!blobs.exists()) {
+                    continue;
+                }
+                try (Stream<Path> paths = Files.walk(blobs.toPath())) {
+                    paths.filter(Files::isRegularFile)
+                            .filter(p -> !referenced.contains(p.getFileName().toString()))
+                            .filter(p -> p.toFile().lastModified() < cutoff)
+                            .forEach(p -> {
+                                long size = p.toFile().length();
+                                if (p.toFile().delete()) {
+                                    storedBytes.addAndGet(-size);
+                                    collectedFiles.incrementAndGet();
+                                }
+                            });
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return expired;
+    }
+
+    //--------------Manifests and blobs ------------------
+
+    /**
+     * @return the manifest of a build directory, its lines by the name of the log or jar they describe
+     */
+    private Map<String, List<String>> readManifest(File buildDirectory) {
+        Map<String, List<String>> manifest = new LinkedHashMap<>();
+        File file = new File(buildDirectory, MANIFEST);
+        if (!file.exists()) {
+            return manifest;
+        }
+        try {
+            List<String> current = null;
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("entry ") && current != null) {
+                    current.add(line);
+                } else if (line.startsWith("log ") || line.startsWith("jar ")) {
+                    current = new ArrayList<>();
+                    current.add(line);
+                    manifest.put(line.split(" ")[1], current);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read " + file);
+        }
+        return manifest;
+    }
+
+    private synchronized void writeManifest(File buildDirectory, Map<String, List<String>> manifest) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (List<String> artifact : manifest.values()) {
+            lines.addAll(artifact);
+        }
+        Path temp = new File(buildDirectory, MANIFEST + ".tmp").toPath();
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, new File(buildDirectory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File blob(File directory, String sha) {
+        return new File(new File(directory, sha.substring(0, 2)), sha);
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest = digest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return hex(digest.digest());
+    }
+
+    private static String sha256(byte[] data) {
+        return hex(digest().digest(data));
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Writes the metrics of the store as "name value" lines, e.g. "artifact_store_bytes_cloudbuilds". The bytes
+     * written are those of the logs and jar entries before they were deduplicated and compressed.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        String suffix = "_" + root.getName().replaceAll("[^A-Za-z0-9]", "");
+        sb.append("artifact_store_bytes").append(suffix).append(' ').append(storedBytes.get()).append('\n')
+                .append("artifact_written_bytes").append(suffix).append(' ').append(writtenBytes.get()).append('\n')
+                .append("artifact_deduplicated").append(suffix).append(' ').append(deduplicated.get()).append('\n')
+                .append("artifact_collected_files").append(suffix).append(' ').append(collectedFiles.get()).append('\n')
+                .append("artifact_expired_builds").append(suffix).append(' ').append(expiredBuilds.get()).append('\n')
+                .append("artifact_downloads").append(suffix).append(' ').append(downloads.get()).append('\n');
+    }
+
+    /**
+     * Writes the metrics of the stores that have been used since the server started.
+     * @param sb where the lines are appended
+     */
+    public static void appendAllMetrics(StringBuilder sb) {
+        for (ArtifactStore store : stores.values()) {
+            store.appendMetrics(sb);
+        }
+    }
+}
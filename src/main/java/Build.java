@@ -1,8 +1,4 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.List;
 import java.util.Objects;
 
 public class Build {
@@ -13,6 +9,25 @@ public class Build {
     private installResult installResult;
     private buildResult buildResult;
     private testResult testResult;
+    // directory holding the .mvn_*.log files of the build, null for builds that keep their logs inline
+    private String logDirectory;
+    // wall and CPU time of every pipeline stage, null for builds made before the pipeline recorded them
+    private List<stageTiming> stageTimings;
+    // the git tree hash of the commit and the toolchain it was built with, the key of the result cache
+    private String treeHash;
+    private String toolchain;
+    // id of the build whose results were reused instead of building, null if the commit was built
+    private Integer cachedFrom;
+    // CANCELLED for builds that were superseded by a newer push, null if the test result tells the outcome
+    private String status;
+    // which tests ran and why, null for builds that ran all tests without selecting them
+    private testSelection testSelection;
+    // predicted and actual wall time of the test stage, null for builds whose tests did not run
+    private testSchedule testSchedule;
+    // which classes were compiled again and which were restored from an earlier build, null without the compile cache
+    private incrementalCompile incrementalCompile;
+    // compiler errors, test failures, plugin timings and reactor summary read from the Maven output, null for builds made before they were read
+    private buildDiagnostics diagnostics;
 
     /**
      * Basic constructor setting all private variables.
@@ -35,9 +50,10 @@ public class Build {
     }
 
     /**
-     * Special constructor that creates a build object but initializes install/build/test logs by reading from
-     * the generated files from the bash script.
-     * Requeries the existance of .mvn_install.log, .mvn_compile.log mvn_test.log
+     * Special constructor that creates a build object from the statuses returned by the bash script.
+     * The install/build/test logs are not read, they stay in the directory of the build (.mvn_install.log,
+     * .mvn_compile.log, .mvn_test.log), see {@link Integrator#buildDirectory(boolean, String, int)}, and are
+     * loaded by {@link LogStore} when they are viewed.
      * @param buildID
      * @param commitHash
      * @param buildDate
@@ -48,25 +64,14 @@ public class Build {
      * @param savedLocally
      */
     public Build(int buildID, String commitHash, String buildDate, String branch, String installStatus, String buildStatus, String testStatus, boolean savedLocally){
-        String buildDir = (savedLocally) ? "localbuilds/" : "cloudbuilds/";
-        String installLog ="", buildLog="", testLog="";
-        try {
-            installLog = Files.readString(Path.of(buildDir + commitHash + "/.mvn_install.log"));
-            buildLog = Files.readString(Path.of(buildDir + commitHash + "/.mvn_compile.log"));
-            testLog = Files.readString(Path.of(buildDir + commitHash + "/.mvn_test.log"));
-        }catch(Exception e){
-            e.printStackTrace();
-        }
-        installResult installRes = new installResult(installStatus.equals(Integrator.STATUS_SUCCESS), installLog);
-        buildResult buildRes = new buildResult(buildStatus.equals(Integrator.STATUS_SUCCESS), buildLog);
-        testResult testRes = new testResult(testStatus.equals(Integrator.STATUS_SUCCESS), testLog);
         this.buildID = buildID;
         this.commitHash = commitHash;
         this.buildDate = buildDate;
         this.branch = branch;
-        this.installResult = installRes;
-        this.buildResult = buildRes;
-        this.testResult = testRes;
+        this.installResult = new installResult(Integrator.STATUS_SUCCESS.equals(installStatus), null);
+        this.buildResult = new buildResult(Integrator.STATUS_SUCCESS.equals(buildStatus), null);
+        this.testResult = new testResult(Integrator.STATUS_SUCCESS.equals(testStatus), null);
+        this.logDirectory = Integrator.buildDirectory(savedLocally, commitHash, buildID);
     }
 
 
@@ -127,6 +132,93 @@ public class Build {
         this.branch = branch;
     }
 
+    public String getLogDirectory() {
+        return logDirectory;
+    }
+
+    public void setLogDirectory(String logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    public List<stageTiming> getStageTimings() {
+        return stageTimings;
+    }
+
+    public void setStageTimings(List<stageTiming> stageTimings) {
+        this.stageTimings = stageTimings;
+    }
+
+    public String getTreeHash() {
+        return treeHash;
+    }
+
+    public void setTreeHash(String treeHash) {
+        this.treeHash = treeHash;
+    }
+
+    public String getToolchain() {
+        return toolchain;
+    }
+
+    public void setToolchain(String toolchain) {
+        this.toolchain = toolchain;
+    }
+
+    /**
+     * @return the outcome of the build: SUCCESS if the tests passed, FLAKY if they passed after failed tests
+     * were run again, FAILURE if a stage failed, or CANCELLED
+     */
+    public String getStatus() {
+        if (status != null) {
+            return status;
+        }
+        return (testResult != null && testResult.isTestSuccessfull()) ? Integrator.STATUS_SUCCESS : Integrator.STATUS_FAILURE;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public testSelection getTestSelection() {
+        return testSelection;
+    }
+
+    public void setTestSelection(testSelection testSelection) {
+        this.testSelection = testSelection;
+    }
+
+    public testSchedule getTestSchedule() {
+        return testSchedule;
+    }
+
+    public void setTestSchedule(testSchedule testSchedule) {
+        this.testSchedule = testSchedule;
+    }
+
+    public incrementalCompile getIncrementalCompile() {
+        return incrementalCompile;
+    }
+
+    public void setIncrementalCompile(incrementalCompile incrementalCompile) {
+        this.incrementalCompile = incrementalCompile;
+    }
+
+    public buildDiagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    public void setDiagnostics(buildDiagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    public Integer getCachedFrom() {
+        return cachedFrom;
+    }
+
+    public void setCachedFrom(Integer cachedFrom) {
+        this.cachedFrom = cachedFrom;
+    }
+
     /**
      * Compares an object O to this object to determine equality, does so by looking at all fields
      * @param o
@@ -137,7 +229,7 @@ public class Build {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Build build = (Build) o;
-        return buildID == build.buildID && commitHash.equals(build.commitHash) && buildDate.equals(build.buildDate) && branch.equals(build.branch) && installResult.equals(build.installResult) && buildResult.equals(build.buildResult) && testResult.equals(build.testResult);
+        return buildID == build.buildID && commitHash.equals(build.commitHash) && buildDate.equals(build.buildDate) && branch.equals(build.branch) && installResult.equals(build.installResult) && buildResult.equals(build.buildResult) && testResult.equals(build.testResult) && Objects.equals(logDirectory, build.logDirectory) && Objects.equals(stageTimings, build.stageTimings) && Objects.equals(treeHash, build.treeHash) && Objects.equals(toolchain, build.toolchain) && Objects.equals(cachedFrom, build.cachedFrom) && Objects.equals(status, build.status) && Objects.equals(testSelection, build.testSelection) && Objects.equals(testSchedule, build.testSchedule) && Objects.equals(incrementalCompile, build.incrementalCompile) && Objects.equals(diagnostics, build.diagnostics);
     }
 
     /**
@@ -146,7 +238,7 @@ public class Build {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(buildID, commitHash, buildDate, branch, installResult, buildResult, testResult);
+        return Objects.hash(buildID, commitHash, buildDate, branch, installResult, buildResult, testResult, logDirectory, stageTimings, treeHash, toolchain, cachedFrom, status, testSelection, testSchedule, incrementalCompile, diagnostics);
     }
 }
 
@@ -193,7 +285,7 @@ class buildResult{
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         buildResult that = (buildResult) o;
-        return buildSuccessfull == that.buildSuccessfull && buildLogs.equals(that.buildLogs);
+        return buildSuccessfull == that.buildSuccessfull && Objects.equals(buildLogs, that.buildLogs);
     }
 
     /**
@@ -209,6 +301,8 @@ class buildResult{
 class testResult{
     private boolean testSuccessfull;
     private String testLogs;
+    // every test case that ran, from the surefire reports, null if the reports were not read
+    private List<testCaseResult> testCases;
 
 
     /**
@@ -239,6 +333,14 @@ class testResult{
         this.testLogs = testLogs;
     }
 
+    public List<testCaseResult> getTestCases() {
+        return testCases;
+    }
+
+    public void setTestCases(List<testCaseResult> testCases) {
+        this.testCases = testCases;
+    }
+
     /**
      * Compares an object O to this object to determine equality, does so by looking at all fields
      * @param o
@@ -249,7 +351,7 @@ class testResult{
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         testResult that = (testResult) o;
-        return testSuccessfull == that.testSuccessfull && testLogs.equals(that.testLogs);
+        return testSuccessfull == that.testSuccessfull && Objects.equals(testLogs, that.testLogs) && Objects.equals(testCases, that.testCases);
     }
 
     /**
@@ -258,7 +360,7 @@ class testResult{
      */
     @Override
     public int hashCode() {
-        return Objects.hash(testSuccessfull, testLogs);
+        return Objects.hash(testSuccessfull, testLogs, testCases);
     }
 }
 
@@ -306,7 +408,7 @@ class installResult{
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         installResult that = (installResult) o;
-        return installSuccessfull == that.installSuccessfull && installLogs.equals(that.installLogs);
+        return installSuccessfull == that.installSuccessfull && Objects.equals(installLogs, that.installLogs);
     }
 
     /**
@@ -319,3 +421,911 @@ class installResult{
     }
 }
 
+
+class stageTiming{
+    private String stage;
+    private String status;
+    private long wallMillis;
+    private long cpuMillis;
+    // true if the stage was served from a cache, e.g. INSTALL when the dependencies were resolved before
+    private boolean cached;
+    // "warm" if its Maven commands ran in daemons, "cold" if in JVMs of their own, "mixed", null without Maven
+    private String maven;
+
+    /**
+     * Basic constructor setting private variables
+     * @param stage name of the pipeline stage
+     * @param status SUCCESS, FAILURE or SKIPPED
+     * @param wallMillis wall clock time of the stage
+     * @param cpuMillis CPU time of the stage, -1 if unknown
+     */
+    public stageTiming(String stage, String status, long wallMillis, long cpuMillis) {
+        this.stage = stage;
+        this.status = status;
+        this.wallMillis = wallMillis;
+        this.cpuMillis = cpuMillis;
+    }
+
+    /**
+     * Records the outcome of a stage that has run.
+     * @param stage the stage
+     */
+    public stageTiming(PipelineStage stage) {
+        this(stage.getName(), stage.getStatus(), stage.getWallMillis(), stage.getCpuMillis());
+        this.cached = stage.isCached();
+        this.maven = stage.getMaven();
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getStage() {
+        return stage;
+    }
+
+    public void setStage(String stage) {
+        this.stage = stage;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public void setWallMillis(long wallMillis) {
+        this.wallMillis = wallMillis;
+    }
+
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    public void setCpuMillis(long cpuMillis) {
+        this.cpuMillis = cpuMillis;
+    }
+
+    public boolean isCached() {
+        return cached;
+    }
+
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    public String getMaven() {
+        return maven;
+    }
+
+    public void setMaven(String maven) {
+        this.maven = maven;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        stageTiming that = (stageTiming) o;
+        return wallMillis == that.wallMillis && cpuMillis == that.cpuMillis && cached == that.cached && Objects.equals(stage, that.stage) && Objects.equals(status, that.status) && Objects.equals(maven, that.maven);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(stage, status, wallMillis, cpuMillis, cached, maven);
+    }
+}
+
+
+class testCaseResult{
+    public final static String PASSED = "PASSED";
+    public final static String FAILED = "FAILED";
+    public final static String ERROR = "ERROR";
+    public final static String SKIPPED = "SKIPPED";
+    public final static String FLAKY = "FLAKY"; // failed, then passed when it was run again
+
+    private String className;
+    private String name;
+    private long durationMillis;
+    private String status;
+    // first line of the failure or error message, null for passed tests
+    private String message;
+
+    /**
+     * Basic constructor setting private variables
+     * @param className the test class, e.g. "PipelineTest"
+     * @param name the test method, e.g. "skipsStagesAfterFailure"
+     * @param durationMillis time the test took
+     * @param status PASSED, FAILED, ERROR, SKIPPED or FLAKY
+     * @param message why the test failed, null if it passed
+     */
+    public testCaseResult(String className, String name, long durationMillis, String status, String message) {
+        this.className = className;
+        this.name = name;
+        this.durationMillis = durationMillis;
+        this.status = status;
+        this.message = message;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getClassName() {
+        return className;
+    }
+
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @return true if the test failed or ended with an error
+     */
+    public boolean isFailed() {
+        return FAILED.equals(status) || ERROR.equals(status);
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        testCaseResult that = (testCaseResult) o;
+        return durationMillis == that.durationMillis && Objects.equals(className, that.className) && Objects.equals(name, that.name) && Objects.equals(status, that.status) && Objects.equals(message, that.message);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(className, name, durationMillis, status, message);
+    }
+}
+
+
+class testSelection{
+    // the green build the commit was compared with, null for full runs that did not compare
+    private String baseCommit;
+    // simple names of the test classes that ran, null if all tests ran
+    private List<String> tests;
+    private String reason;
+    // estimated from the test times of an earlier build of the branch
+    private long savedMillis;
+
+    /**
+     * Basic constructor setting private variables
+     * @param baseCommit hash of the last green build of the branch, null if there is none
+     * @param tests the test classes that ran, null if all tests ran
+     * @param reason why these tests were chosen, e.g. "3 changed files"
+     * @param savedMillis time the tests that did not run took in an earlier build
+     */
+    public testSelection(String baseCommit, List<String> tests, String reason, long savedMillis) {
+        this.baseCommit = baseCommit;
+        this.tests = tests;
+        this.reason = reason;
+        this.savedMillis = savedMillis;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getBaseCommit() {
+        return baseCommit;
+    }
+
+    public void setBaseCommit(String baseCommit) {
+        this.baseCommit = baseCommit;
+    }
+
+    public List<String> getTests() {
+        return tests;
+    }
+
+    public void setTests(List<String> tests) {
+        this.tests = tests;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+    public long getSavedMillis() {
+        return savedMillis;
+    }
+
+    public void setSavedMillis(long savedMillis) {
+        this.savedMillis = savedMillis;
+    }
+
+    /**
+     * @return true if all tests ran
+     */
+    public boolean isFullRun() {
+        return tests == null;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        testSelection that = (testSelection) o;
+        return savedMillis == that.savedMillis && Objects.equals(baseCommit, that.baseCommit) && Objects.equals(tests, that.tests) && Objects.equals(reason, that.reason);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(baseCommit, tests, reason, savedMillis);
+    }
+}
+
+
+class testSchedule{
+    private int forks;
+    // true if the test classes were spread over the forks longest first, false if Surefire spread them
+    private boolean packed;
+    // null if none of the test classes had run before
+    private Long predictedMillis;
+    private long actualMillis;
+
+    /**
+     * Basic constructor setting private variables
+     * @param forks the number of JVMs the tests ran in
+     * @param packed true if the classes were spread over the forks by their durations in earlier builds
+     * @param predictedMillis the predicted wall time of the test stage, null if it could not be predicted
+     * @param actualMillis the wall time the test stage took
+     */
+    public testSchedule(int forks, boolean packed, Long predictedMillis, long actualMillis) {
+        this.forks = forks;
+        this.packed = packed;
+        this.predictedMillis = predictedMillis;
+        this.actualMillis = actualMillis;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public int getForks() {
+        return forks;
+    }
+
+    public void setForks(int forks) {
+        this.forks = forks;
+    }
+
+    public boolean isPacked() {
+        return packed;
+    }
+
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    public Long getPredictedMillis() {
+        return predictedMillis;
+    }
+
+    public void setPredictedMillis(Long predictedMillis) {
+        this.predictedMillis = predictedMillis;
+    }
+
+    public long getActualMillis() {
+        return actualMillis;
+    }
+
+    public void setActualMillis(long actualMillis) {
+        this.actualMillis = actualMillis;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        testSchedule that = (testSchedule) o;
+        return forks == that.forks && packed == that.packed && actualMillis == that.actualMillis && Objects.equals(predictedMillis, that.predictedMillis);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(forks, packed, predictedMillis, actualMillis);
+    }
+}
+
+
+class incrementalCompile{
+    // the commit whose classes were restored, null if everything was compiled
+    private String baseCommit;
+    private int sources;
+    private int recompiled;
+    private String reason;
+
+    /**
+     * Basic constructor setting private variables
+     * @param baseCommit hash of the commit whose classes were restored, null if none were restored
+     * @param sources the number of Java sources of the commit
+     * @param recompiled the number of sources that were compiled again, all of them if no classes were restored
+     * @param reason why the sources were compiled, e.g. "2 changed sources since 1a2b3c4"
+     */
+    public incrementalCompile(String baseCommit, int sources, int recompiled, String reason) {
+        this.baseCommit = baseCommit;
+        this.sources = sources;
+        this.recompiled = recompiled;
+        this.reason = reason;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getBaseCommit() {
+        return baseCommit;
+    }
+
+    public void setBaseCommit(String baseCommit) {
+        this.baseCommit = baseCommit;
+    }
+
+    public int getSources() {
+        return sources;
+    }
+
+    public void setSources(int sources) {
+        this.sources = sources;
+    }
+
+    public int getRecompiled() {
+        return recompiled;
+    }
+
+    public void setRecompiled(int recompiled) {
+        this.recompiled = recompiled;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+    /**
+     * @return true if the classes of an earlier build were restored
+     */
+    public boolean isRestored() {
+        return baseCommit != null;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        incrementalCompile that = (incrementalCompile) o;
+        return sources == that.sources && recompiled == that.recompiled && Objects.equals(baseCommit, that.baseCommit) && Objects.equals(reason, that.reason);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(baseCommit, sources, recompiled, reason);
+    }
+}
+
+
+class buildDiagnostics{
+    // the kinds of errors a build can have, a build can have several
+    public final static String COMPILATION = "COMPILATION";
+    public final static String TEST_FAILURE = "TEST_FAILURE";
+    public final static String TEST_ERROR = "TEST_ERROR";
+    public final static String DEPENDENCY = "DEPENDENCY";
+    public final static String PLUGIN = "PLUGIN";
+
+    private List<compilerError> compilerErrors;
+    private List<testFailure> testFailures;
+    // tests run, failed, with errors and skipped, as Maven summed them up after the tests
+    private int testsRun;
+    private int testsFailed;
+    private int testsWithErrors;
+    private int testsSkipped;
+    private List<pluginTiming> pluginTimings;
+    // the result of every module of every Maven run, in the order Maven built them
+    private List<moduleResult> reactor;
+    // the first "Failed to execute goal" error, null if no goal failed
+    private String failedGoal;
+    private List<String> errorTypes;
+
+    /**
+     * Basic constructor setting private variables
+     * @param compilerErrors the errors of the compiler, each once
+     * @param testFailures the tests that failed or had errors
+     * @param testsRun the number of tests that ran
+     * @param testsFailed the number of tests that failed
+     * @param testsWithErrors the number of tests that had errors
+     * @param testsSkipped the number of tests that were skipped
+     * @param pluginTimings wall time of every plugin goal, per module
+     * @param reactor the result of every module
+     * @param failedGoal the first goal that failed, e.g. "Failed to execute goal ... on project ci: There are test failures."
+     * @param errorTypes COMPILATION, TEST_FAILURE, TEST_ERROR, DEPENDENCY or PLUGIN, empty if the build had no errors
+     */
+    public buildDiagnostics(List<compilerError> compilerErrors, List<testFailure> testFailures, int testsRun, int testsFailed, int testsWithErrors,
+                            int testsSkipped, List<pluginTiming> pluginTimings, List<moduleResult> reactor, String failedGoal, List<String> errorTypes) {
+        this.compilerErrors = compilerErrors;
+        this.testFailures = testFailures;
+        this.testsRun = testsRun;
+        this.testsFailed = testsFailed;
+        this.testsWithErrors = testsWithErrors;
+        this.testsSkipped = testsSkipped;
+        this.pluginTimings = pluginTimings;
+        this.reactor = reactor;
+        this.failedGoal = failedGoal;
+        this.errorTypes = errorTypes;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public List<compilerError> getCompilerErrors() {
+        return compilerErrors;
+    }
+
+    public void setCompilerErrors(List<compilerError> compilerErrors) {
+        this.compilerErrors = compilerErrors;
+    }
+
+    public List<testFailure> getTestFailures() {
+        return testFailures;
+    }
+
+    public void setTestFailures(List<testFailure> testFailures) {
+        this.testFailures = testFailures;
+    }
+
+    public int getTestsRun() {
+        return testsRun;
+    }
+
+    public int getTestsFailed() {
+        return testsFailed;
+    }
+
+    public int getTestsWithErrors() {
+        return testsWithErrors;
+    }
+
+    public int getTestsSkipped() {
+        return testsSkipped;
+    }
+
+    public List<pluginTiming> getPluginTimings() {
+        return pluginTimings;
+    }
+
+    public void setPluginTimings(List<pluginTiming> pluginTimings) {
+        this.pluginTimings = pluginTimings;
+    }
+
+    public List<moduleResult> getReactor() {
+        return reactor;
+    }
+
+    public void setReactor(List<moduleResult> reactor) {
+        this.reactor = reactor;
+    }
+
+    public String getFailedGoal() {
+        return failedGoal;
+    }
+
+    public void setFailedGoal(String failedGoal) {
+        this.failedGoal = failedGoal;
+    }
+
+    public List<String> getErrorTypes() {
+        return errorTypes;
+    }
+
+    public void setErrorTypes(List<String> errorTypes) {
+        this.errorTypes = errorTypes;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        buildDiagnostics that = (buildDiagnostics) o;
+        return testsRun == that.testsRun && testsFailed == that.testsFailed && testsWithErrors == that.testsWithErrors && testsSkipped == that.testsSkipped && Objects.equals(compilerErrors, that.compilerErrors) && Objects.equals(testFailures, that.testFailures) && Objects.equals(pluginTimings, that.pluginTimings) && Objects.equals(reactor, that.reactor) && Objects.equals(failedGoal, that.failedGoal) && Objects.equals(errorTypes, that.errorTypes);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(compilerErrors, testFailures, testsRun, testsFailed, testsWithErrors, testsSkipped, pluginTimings, reactor, failedGoal, errorTypes);
+    }
+}
+
+
+class compilerError{
+    private String file;
+    private int line;
+    private int column;
+    private String message;
+
+    /**
+     * Basic constructor setting private variables
+     * @param file the source file, relative to the repository, e.g. "src/main/java/Pipeline.java"
+     * @param line the line of the error
+     * @param column the column of the error
+     * @param message what the compiler said, e.g. "cannot find symbol (symbol: class Foo, location: class Pipeline)"
+     */
+    public compilerError(String file, int line, int column, String message) {
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public void setLine(int line) {
+        this.line = line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public void setColumn(int column) {
+        this.column = column;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        compilerError that = (compilerError) o;
+        return line == that.line && column == that.column && Objects.equals(file, that.file) && Objects.equals(message, that.message);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(file, line, column, message);
+    }
+}
+
+
+class testFailure{
+    private String className;
+    private String name;
+    // testCaseResult.FAILED for failed assertions, testCaseResult.ERROR for exceptions
+    private String kind;
+    private String message;
+
+    /**
+     * Basic constructor setting private variables
+     * @param className the test class, e.g. "PipelineTest"
+     * @param name the test method, e.g. "skipsStagesAfterFailure"
+     * @param kind FAILED or ERROR
+     * @param message the first line of the failure, e.g. "org.opentest4j.AssertionFailedError: expected: <2> but was: <1>"
+     */
+    public testFailure(String className, String name, String kind, String message) {
+        this.className = className;
+        this.name = name;
+        this.kind = kind;
+        this.message = message;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getClassName() {
+        return className;
+    }
+
+    public void setClassName(String className) {
+        this.className = className;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public void setKind(String kind) {
+        this.kind = kind;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        testFailure that = (testFailure) o;
+        return Objects.equals(className, that.className) && Objects.equals(name, that.name) && Objects.equals(kind, that.kind) && Objects.equals(message, that.message);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(className, name, kind, message);
+    }
+}
+
+
+class pluginTiming{
+    private String goal;
+    private String module;
+    private long wallMillis;
+    // how often the goal ran in the module, e.g. once per stage
+    private int executions;
+
+    /**
+     * Basic constructor setting private variables
+     * @param goal the plugin goal, e.g. "compiler:compile"
+     * @param module the module it ran in
+     * @param wallMillis the wall time of all its executions
+     * @param executions how often it ran
+     */
+    public pluginTiming(String goal, String module, long wallMillis, int executions) {
+        this.goal = goal;
+        this.module = module;
+        this.wallMillis = wallMillis;
+        this.executions = executions;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getGoal() {
+        return goal;
+    }
+
+    public void setGoal(String goal) {
+        this.goal = goal;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    public void setModule(String module) {
+        this.module = module;
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public void setWallMillis(long wallMillis) {
+        this.wallMillis = wallMillis;
+    }
+
+    public int getExecutions() {
+        return executions;
+    }
+
+    public void setExecutions(int executions) {
+        this.executions = executions;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        pluginTiming that = (pluginTiming) o;
+        return wallMillis == that.wallMillis && executions == that.executions && Objects.equals(goal, that.goal) && Objects.equals(module, that.module);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(goal, module, wallMillis, executions);
+    }
+}
+
+
+class moduleResult{
+    private String module;
+    // SUCCESS, FAILURE or SKIPPED, as in Maven's reactor summary
+    private String status;
+    // -1 for skipped modules
+    private long wallMillis;
+
+    /**
+     * Basic constructor setting private variables
+     * @param module the name of the module
+     * @param status SUCCESS, FAILURE or SKIPPED
+     * @param wallMillis the time Maven took for the module, -1 if it was skipped
+     */
+    public moduleResult(String module, String status, long wallMillis) {
+        this.module = module;
+        this.status = status;
+        this.wallMillis = wallMillis;
+    }
+
+    //--------------Getters and Setters ------------------
+
+    public String getModule() {
+        return module;
+    }
+
+    public void setModule(String module) {
+        this.module = module;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public void setWallMillis(long wallMillis) {
+        this.wallMillis = wallMillis;
+    }
+
+    /**
+     * Compares an object O to this object to determine equality, does so by looking at all fields
+     * @param o
+     * @return true if o is equal to this, false otherwise
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        moduleResult that = (moduleResult) o;
+        return wallMillis == that.wallMillis && Objects.equals(module, that.module) && Objects.equals(status, that.status);
+    }
+
+    /**
+     * Hash of data in object.
+     * @return object hash
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(module, status, wallMillis);
+    }
+}
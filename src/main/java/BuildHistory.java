@@ -1,29 +1,85 @@
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The build history of the server. The list of builds is what gets stored in the json database,
+ * next to it the history keeps indexes by build id, commit hash and branch that are rebuilt after
+ * the list is loaded. Writes are serialized on the history object, lookups by id and
+ * {@link #getSnapshot()} do not take any lock.
+ */
 public class BuildHistory {
     private ArrayList<Build> buildHistory;
 
+    // indexes, not stored in the json database
+    private transient Map<Integer, Build> buildsByID;
+    private transient Map<String, List<Build>> buildsByCommit;
+    private transient Map<String, List<Build>> buildsByBranch;
+    private transient Map<String, Build> buildsByResultKey;
+    private transient AtomicInteger lastBuildID;
+    private transient volatile List<Build> snapshot;
+    private transient AtomicLong version;
+    private transient volatile long lastModified;
+
     /**
      * Create build history object given arraylist<build>
      * @param buildHistory
      */
     public BuildHistory(ArrayList<Build> buildHistory) {
         this.buildHistory = buildHistory;
+        rebuildIndexes();
     }
 
     /**
      * Default constructor, init empty arraylist
       */
     public BuildHistory(){
-        buildHistory = new ArrayList<Build>();
+        this(new ArrayList<Build>());
     }
 
     /**
-     * Looks at the last build added and creates a new build id that is 1 larger.
+     * Rebuilds the indexes from the list of builds. Needed after the list has been set from the outside,
+     * e.g. when Gson has loaded the database.
+     */
+    public synchronized void rebuildIndexes(){
+        if (buildHistory == null) {
+            buildHistory = new ArrayList<Build>();
+        }
+        buildsByID = new ConcurrentHashMap<>();
+        buildsByCommit = new ConcurrentHashMap<>();
+        buildsByBranch = new ConcurrentHashMap<>();
+        buildsByResultKey = new ConcurrentHashMap<>();
+        lastBuildID = new AtomicInteger();
+        snapshot = null;
+        if (version == null) {
+            version = new AtomicLong();
+        }
+        version.incrementAndGet();
+        lastModified = System.currentTimeMillis();
+        for (Build b : buildHistory) {
+            index(b);
+        }
+    }
+
+    /**
+     * Looks at the highest build id so far and returns the id that is 1 larger, without reserving it.
+     * Use {@link #allocateBuildID()} when the id is going to be used for a new build.
      * @return The first available ID of builds.
      */
     public int getNextBuildID(){
-        return buildHistory.get(buildHistory.size()-1).getBuildID()+1;
+        return lastBuildID.get()+1;
+    }
+
+    /**
+     * Reserves a new build id, concurrent callers always get different ids.
+     * @return a build id that is not used by any build in the history
+     */
+    public int allocateBuildID(){
+        return lastBuildID.incrementAndGet();
     }
 
     /**
@@ -32,37 +88,122 @@ public class BuildHistory {
      * @return build
      */
     public Build findBuild(int buildID){
-        for (int i = 0; i < buildHistory.size(); i++) {
-            if(buildHistory.get(i).getBuildID() == buildID){
-                return buildHistory.get(i);
-            }
-        }
-        return null;
+        return buildsByID.get(buildID);
+    }
+
+    /**
+     * Finds all builds of a commit, oldest first.
+     * @param commitHash the (7 character) hash of the commit
+     * @return the builds, an empty list if the commit has not been built
+     */
+    public List<Build> findBuildsByCommit(String commitHash){
+        return copyOf(buildsByCommit.get(commitHash));
+    }
+
+    /**
+     * Finds all builds of a branch, oldest first.
+     * @param branch name of the branch
+     * @return the builds, an empty list if the branch has not been built
+     */
+    public List<Build> findBuildsByBranch(String branch){
+        return copyOf(buildsByBranch.get(branch));
+    }
+
+    /**
+     * Finds the latest build that really built a tree with a toolchain, builds that reused the
+     * results of another build are not returned.
+     * @param treeHash the git tree hash of the commit
+     * @param toolchain fingerprint of the toolchain, see {@link ResultCache#toolchainFingerprint()}
+     * @return the build, null if the tree has not been built with the toolchain
+     */
+    public Build findBuildByTree(String treeHash, String toolchain){
+        return buildsByResultKey.get(treeHash + ":" + toolchain);
     }
 
     /**
      * Adds a build to the build history if the build id is not already in the db.
      * @param b build to be added to db
      */
-    public void addBuildToDB(Build b){
-        for (int i = 0; i < buildHistory.size(); i++) {
-            if(b.getBuildID() == buildHistory.get(i).getBuildID()){
-                System.err.println("A build with this build id is already present in database");
-                return;
-            }
+    public synchronized void addBuildToDB(Build b){
+        if(buildsByID.containsKey(b.getBuildID())){
+            System.err.println("A build with this build id is already present in database");
+            return;
         }
         //build id is unique
         buildHistory.add(b);
+        index(b);
+        snapshot = null;
+        lastModified = System.currentTimeMillis();
+        version.incrementAndGet();
+    }
+
+    /**
+     * The version is increased every time a build is added, pages rendered from the history
+     * can compare versions to know if they are still up to date.
+     * @return the version of the history
+     */
+    public long getVersion(){
+        return version.get();
+    }
+
+    /**
+     * @return the time in milliseconds when a build was last added, or when the history was loaded
+     */
+    public long getLastModified(){
+        return lastModified;
+    }
+
+    /**
+     * Returns an unmodifiable view of the history in the order the builds were added.
+     * The view is shared between readers until the next build is added, so reading it is lock-free.
+     * @return the builds in the history
+     */
+    public List<Build> getSnapshot(){
+        List<Build> current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableList(new ArrayList<Build>(buildHistory));
+                }
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    private void index(Build b){
+        buildsByID.put(b.getBuildID(), b);
+        if (b.getCommitHash() != null) {
+            buildsByCommit.computeIfAbsent(b.getCommitHash(), k -> new ArrayList<Build>()).add(b);
+        }
+        if (b.getBranch() != null) {
+            buildsByBranch.computeIfAbsent(b.getBranch(), k -> new ArrayList<Build>()).add(b);
+        }
+        if (b.getTreeHash() != null && b.getToolchain() != null && b.getCachedFrom() == null) {
+            buildsByResultKey.put(b.getTreeHash() + ":" + b.getToolchain(), b);
+        }
+        lastBuildID.accumulateAndGet(b.getBuildID(), Math::max);
+    }
+
+    private synchronized List<Build> copyOf(List<Build> builds){
+        return builds == null ? new ArrayList<Build>() : new ArrayList<Build>(builds);
     }
 
 
     //--------------Getters and Setters ------------------
+
+    /**
+     * Returns the list backing the history, only safe to use while no builds are being added.
+     * Prefer {@link #getSnapshot()}.
+     * @return the list of builds
+     */
     public ArrayList<Build> getBuildHistory() {
         return buildHistory;
     }
 
-    public void setBuildHistory(ArrayList<Build> buildHistory) {
+    public synchronized void setBuildHistory(ArrayList<Build> buildHistory) {
         this.buildHistory = buildHistory;
+        rebuildIndexes();
     }
 
 
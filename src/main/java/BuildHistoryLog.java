@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of builds that have not yet been written to the json database.
+ * Every record is stored as {@code [length][crc32][json]}, so a record that was only partly
+ * written when the server crashed is detected and cut off when the log is replayed.
+ *
+ * Appending and syncing are separate steps so that builds that finish at the same time can
+ * share one fsync (group commit): the first thread that calls {@link #sync(long)} flushes
+ * everything written so far, threads arriving meanwhile wait for that flush or start the next one.
+ */
+public class BuildHistoryLog {
+
+    private final static int HEADER_SIZE = 8;
+
+    private final Path path;
+    private final long groupCommitMillis;
+    private FileChannel channel;
+
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private long writtenSeq = 0;
+    private long syncedSeq = 0;
+    private boolean syncing = false;
+    private int recordCount = 0;
+
+    // metrics
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * Creates a log, the file is created on the first append.
+     * @param path path of the log file
+     * @param groupCommitMillis how long a sync waits for more records before flushing, 0 to flush at once
+     */
+    public BuildHistoryLog(String path, long groupCommitMillis) {
+        this.path = Path.of(path);
+        this.groupCommitMillis = groupCommitMillis;
+    }
+
+    /**
+     * Reads all intact records of the log. A torn or corrupt record ends the log and is truncated
+     * away together with everything after it.
+     * @return the payloads of the records in the order they were appended
+     * @throws IOException if the log can not be read
+     */
+    public List<String> replay() throws IOException {
+        List<String> records = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return records;
+        }
+        synchronized (writeLock) {
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                long position = 0;
+                long size = in.size();
+                while (position + HEADER_SIZE <= size) {
+                    header.clear();
+                    in.read(header, position);
+                    header.flip();
+                    int length = header.getInt();
+                    long checksum = header.getInt() & 0xffffffffL;
+                    if (length < 0 || position + HEADER_SIZE + length > size) {
+                        break;
+                    }
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    in.read(payload, position + HEADER_SIZE);
+                    if (crc(payload.array()) != checksum) {
+                        break;
+                    }
+                    records.add(new String(payload.array(), StandardCharsets.UTF_8));
+                    position += HEADER_SIZE + length;
+                }
+                if (position < size) {
+                    System.err.println("Build history log " + path + " has a damaged tail, dropping " + (size - position) + " bytes");
+                    in.truncate(position);
+                    in.force(true);
+                }
+            }
+            recordCount = records.size();
+        }
+        return records;
+    }
+
+    /**
+     * Writes a record to the end of the log without waiting for it to reach the disk.
+     * @param payload the record
+     * @return sequence number of the record, to be passed to {@link #sync(long)}
+     * @throws IOException if the record could not be written
+     */
+    public long append(String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+        record.putInt(bytes.length).putInt((int) crc(bytes)).put(bytes).flip();
+        synchronized (writeLock) {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            recordCount++;
+            appends.incrementAndGet();
+            return ++writtenSeq;
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and all records before it, are on disk.
+     * @param seq sequence number returned by {@link #append(String)}
+     * @throws IOException if flushing the log failed
+     */
+    public void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            while (syncedSeq < seq) {
+                if (syncing) {
+                    // another thread is flushing, it may cover this record too
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the build history log", e);
+                    }
+                    continue;
+                }
+                syncing = true;
+                try {
+                    if (groupCommitMillis > 0) {
+                        // give builds finishing at the same time a chance to join this flush
+                        syncLock.wait(groupCommitMillis);
+                    }
+                    FileChannel toFlush;
+                    long target;
+                    synchronized (writeLock) {
+                        toFlush = channel;
+                        target = writtenSeq;
+                    }
+                    // only the sync monitor is held here, so other builds can keep appending
+                    if (toFlush != null) {
+                        toFlush.force(false);
+                    }
+                    syncedSeq = Math.max(syncedSeq, target);
+                    syncs.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the build history log", e);
+                } finally {
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Compacts the log: under the append lock the given snapshot writer stores the complete history,
+     * after which the log is emptied. Records appended by other threads wait until this is done.
+     * @param snapshotWriter writes a snapshot that contains every record appended so far
+     * @throws IOException if the snapshot or the truncation failed, the log is then left untouched
+     */
+    public void compact(SnapshotWriter snapshotWriter) throws IOException {
+        long covered;
+        synchronized (writeLock) {
+            snapshotWriter.write();
+            if (channel != null) {
+                channel.truncate(0);
+                channel.force(true);
+            }
+            recordCount = 0;
+            covered = writtenSeq;
+        }
+        synchronized (syncLock) {
+            // everything appended so far is part of the snapshot, which is already on disk
+            syncedSeq = Math.max(syncedSeq, covered);
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the log file.
+     */
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes a full snapshot of the build history, used when the log is compacted.
+     */
+    public interface SnapshotWriter {
+        void write() throws IOException;
+    }
+
+    //--------------Getters ------------------
+    public int getRecordCount() {
+        synchronized (writeLock) {
+            return recordCount;
+        }
+    }
+
+    public long getAppendCount() {
+        return appends.get();
+    }
+
+    public long getSyncCount() {
+        return syncs.get();
+    }
+}
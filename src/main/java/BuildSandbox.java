@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resource limits of a build, so that a runaway test can not starve the builds that run at the same time.
+ * Every command of the build is started through bash, which applies the limits before it runs the command,
+ * so the limits also hold for the JVMs that Maven forks.
+ *
+ * With DD2480_CGROUP_PARENT set to a cgroup v2 directory the server may write to, every build gets a cgroup of
+ * its own below it: DD2480_BUILD_MEMORY_MB limits the memory of all processes of the build together and
+ * DD2480_BUILD_CPUS the CPU time they get per period. Without a usable cgroup, the limits are passed to every
+ * JVM of the build instead, as the memory and the number of CPUs the JVM sizes its heap and threads for.
+ * DD2480_BUILD_CPU_SECONDS limits the CPU time of every process of the build with ulimit, in both cases.
+ * The wall time of the build is limited by the timeouts of its stages.
+ */
+public class BuildSandbox {
+
+    // used as keys for the settings of the limits
+    public final static String MEMORY_KEY = "DD2480_BUILD_MEMORY_MB";
+    public final static String CPUS_KEY = "DD2480_BUILD_CPUS";
+    public final static String CPU_SECONDS_KEY = "DD2480_BUILD_CPU_SECONDS";
+    public final static String CGROUP_KEY = "DD2480_CGROUP_PARENT";
+
+    // the cgroup v2 period of the CPU limit, in microseconds
+    private final static long CPU_PERIOD = 100000;
+
+    private final long memoryMegabytes;
+    private final double cpus;
+    private final long cpuSeconds;
+    // the cgroup of the build, null if the limits are passed to the JVMs
+    private File cgroup;
+
+    /**
+     * @param memoryMegabytes memory of the build, 0 for no limit
+     * @param cpus CPUs of the build, e.g. 1.5, 0 for no limit
+     * @param cpuSeconds CPU time of every process of the build, 0 for no limit
+     */
+    public BuildSandbox(long memoryMegabytes, double cpus, long cpuSeconds) {
+        this.memoryMegabytes = memoryMegabytes;
+        this.cpus = cpus;
+        this.cpuSeconds = cpuSeconds;
+    }
+
+    /**
+     * Creates the limits of a build from DD2480_BUILD_MEMORY_MB, DD2480_BUILD_CPUS and DD2480_BUILD_CPU_SECONDS,
+     * in a cgroup below DD2480_CGROUP_PARENT if it is set and usable.
+     * @param name name of the build, e.g. "build-42", used as the name of its cgroup
+     * @return the limits, call {@link #close()} when the build is done
+     */
+    public static BuildSandbox create(String name) {
+        BuildSandbox sandbox = configured();
+        String parent = Config.getString(CGROUP_KEY, "");
+        if (!parent.isEmpty() && (sandbox.memoryMegabytes > 0 || sandbox.cpus > 0)) {
+            try {
+                sandbox.createCgroup(new File(parent, name));
+            } catch (IOException e) {
+                System.err.println("Can not use the cgroup " + parent + ", limiting the JVMs of " + name + " instead: " + e.getMessage());
+                sandbox.close();
+            }
+        }
+        return sandbox;
+    }
+
+    /**
+     * @return the limits of DD2480_BUILD_MEMORY_MB, DD2480_BUILD_CPUS and DD2480_BUILD_CPU_SECONDS, without a cgroup
+     */
+    public static BuildSandbox configured() {
+        double cpus;
+        try {
+            cpus = Double.parseDouble(Config.getString(CPUS_KEY, "0"));
+        } catch (NumberFormatException e) {
+            System.err.println("Malformed " + CPUS_KEY + ": " + Config.getString(CPUS_KEY, "0"));
+            cpus = 0;
+        }
+        return new BuildSandbox(Config.getLong(MEMORY_KEY, 0), cpus, Config.getLong(CPU_SECONDS_KEY, 0));
+    }
+
+    /**
+     * @return true if the settings give the commands of the builds limits per process, a CPU time or a cgroup,
+     * which would not hold for a JVM that was started before the build, e.g. a Maven daemon
+     */
+    public boolean limitsProcesses() {
+        return cpuSeconds > 0 || cgroup != null
+                || (!Config.getString(CGROUP_KEY, "").isEmpty() && (memoryMegabytes > 0 || cpus > 0));
+    }
+
+    private void createCgroup(File directory) throws IOException {
+        File parent = directory.getParentFile();
+        if (!new File(parent, "cgroup.controllers").exists()) {
+            throw new IOException(parent + " is not a cgroup v2 directory");
+        }
+        // the controllers have to be enabled for the children of the parent, this fails if they are not delegated
+        Files.writeString(new File(parent, "cgroup.subtree_control").toPath(),
+                (memoryMegabytes > 0 ? "+memory " : "") + (cpus > 0 ? "+cpu" : ""));
+        if (!directory.mkdir() && !directory.isDirectory()) {
+            throw new IOException("Can not create " + directory);
+        }
+        cgroup = directory;
+        if (memoryMegabytes > 0) {
+            Files.writeString(new File(directory, "memory.max").toPath(), String.valueOf(memoryMegabytes * 1024 * 1024));
+        }
+        if (cpus > 0) {
+            Files.writeString(new File(directory, "cpu.max").toPath(), Math.round(cpus * CPU_PERIOD) + " " + CPU_PERIOD);
+        }
+    }
+
+    /**
+     * @return bash commands that apply the limits to the shell that runs a command, e.g. "ulimit -t 600 && ",
+     * empty if there are no limits to apply
+     */
+    public String shellPrefix() {
+        StringBuilder prefix = new StringBuilder();
+        if (cpuSeconds > 0) {
+            prefix.append("ulimit -t ").append(cpuSeconds).append(" && ");
+        }
+        if (cgroup != null) {
+            // the shell joins the cgroup before it starts the command, so every process of the command is in it
+            prefix.append("echo $$ > '").append(new File(cgroup, "cgroup.procs").getAbsolutePath()).append("' && ");
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * @return environment variables that limit every JVM of the build when there is no cgroup, empty otherwise
+     */
+    public Map<String, String> environment() {
+        Map<String, String> environment = new HashMap<>();
+        if (cgroup != null) {
+            return environment;
+        }
+        StringBuilder options = new StringBuilder();
+        if (memoryMegabytes > 0) {
+            options.append("-XX:MaxRAM=").append(memoryMegabytes).append('m');
+        }
+        if (cpus > 0) {
+            options.append(options.length() > 0 ? " " : "").append("-XX:ActiveProcessorCount=").append((int) Math.ceil(cpus));
+        }
+        if (options.length() > 0) {
+            // read by every JVM, also by the test JVMs forked by Surefire
+            String inherited = System.getenv("JAVA_TOOL_OPTIONS");
+            environment.put("JAVA_TOOL_OPTIONS", (inherited == null ? "" : inherited + " ") + options);
+        }
+        return environment;
+    }
+
+    /**
+     * @return the limits, e.g. "2048 MB memory, 2.0 CPUs in the cgroup /sys/fs/cgroup/ci/build-42", null if there
+     * are none. Without a cgroup nothing enforces the memory and CPUs, the JVMs only size themselves for them,
+     * e.g. "600 s CPU time per process; JVMs sized for 2048 MB memory and 2 CPUs, not enforced"
+     */
+    public String describe() {
+        if (memoryMegabytes <= 0 && cpus <= 0 && cpuSeconds <= 0) {
+            return null;
+        }
+        List<String> limits = new ArrayList<>();
+        List<String> sizes = new ArrayList<>();
+        if (memoryMegabytes > 0) {
+            (cgroup == null ? sizes : limits).add(memoryMegabytes + " MB memory");
+        }
+        if (cpus > 0) {
+            // the JVMs are told a whole number of CPUs, see environment()
+            (cgroup == null ? sizes : limits).add(cgroup == null ? (int) Math.ceil(cpus) + " CPUs" : cpus + " CPUs");
+        }
+        if (cpuSeconds > 0) {
+            limits.add(cpuSeconds + " s CPU time per process");
+        }
+        StringBuilder description = new StringBuilder(String.join(", ", limits));
+        if (cgroup != null) {
+            description.append(" in the cgroup ").append(cgroup);
+        }
+        if (!sizes.isEmpty()) {
+            description.append(limits.isEmpty() ? "" : "; ").append("JVMs sized for ").append(String.join(" and ", sizes))
+                    .append(", not enforced");
+        }
+        return description.toString();
+    }
+
+    /**
+     * Kills what is left of the build in its cgroup and removes the cgroup.
+     */
+    public void close() {
+        if (cgroup == null) {
+            return;
+        }
+        File kill = new File(cgroup, "cgroup.kill");
+        try {
+            if (kill.exists()) {
+                Files.writeString(kill.toPath(), "1");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // a cgroup is removed with rmdir, its files go with it, once the killed processes have left it
+        for (int attempt = 0; attempt < 10 && !cgroup.delete(); attempt++) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (cgroup.exists()) {
+            System.err.println("Could not remove the cgroup " + cgroup);
+        }
+        cgroup = null;
+    }
+}
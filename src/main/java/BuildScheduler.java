@@ -0,0 +1,414 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs builds on a fixed number of worker threads instead of one thread per webhook.
+ * Jobs wait in a bounded queue, and every queued job is also written to {@code jobqueue/}
+ * so that it can be picked up again after a restart of the server. When the queue is full, or the job
+ * can not be written to disk, {@link #submit(String)} returns false and the caller is expected to answer with 503.
+ *
+ * Jobs for the same branch are coalesced: a new push replaces the queued job of its branch, which is
+ * reported to {@link JobRunner#superseded(String)} instead of being run. With DD2480_CANCEL_RUNNING=true
+ * the running job of the branch is cancelled as well.
+ */
+public class BuildScheduler {
+
+    // used as keys for the settings of the scheduler
+    public final static String WORKERS_KEY = "DD2480_WORKERS";
+    public final static String QUEUE_CAPACITY_KEY = "DD2480_QUEUE_CAPACITY";
+    public final static String CANCEL_RUNNING_KEY = "DD2480_CANCEL_RUNNING";
+
+    public final static String QUEUE_DIRECTORY = "jobqueue/"; // gitignored
+
+    /**
+     * The work that is done for a job once a worker picks it up.
+     */
+    public interface JobRunner {
+        void run(String payload);
+
+        /**
+         * Runs a job that can be cancelled while it runs, by default the job is run to the end.
+         * @param payload the payload of the job
+         * @param cancellation cancelled when a newer job of the same branch supersedes this one
+         */
+        default void run(String payload, Cancellation cancellation) {
+            run(payload);
+        }
+
+        /**
+         * Called instead of {@link #run(String)} for a queued job that a newer job of the same branch replaced.
+         * @param payload the payload of the job
+         */
+        default void superseded(String payload) {
+        }
+    }
+
+    /**
+     * Tells which jobs belong together, e.g. the pushes to one branch.
+     */
+    public interface KeyFunction {
+        /**
+         * @param payload the payload of a job
+         * @return the key of the job, null if it should not be coalesced with other jobs
+         */
+        String keyOf(String payload);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final File queueDirectory;
+    private final JobRunner runner;
+    private final KeyFunction keys;
+    private final boolean cancelRunning;
+    private final AtomicInteger sequence = new AtomicInteger();
+    // the newest job of every key that is queued or running
+    private final Map<String, Job> latest = new HashMap<>();
+    // set when running builds are interrupted by shutdown, their jobs are kept on disk
+    private volatile boolean interrupted = false;
+
+    // metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * Creates a scheduler configured from DD2480_WORKERS, DD2480_QUEUE_CAPACITY and DD2480_CANCEL_RUNNING that
+     * runs each payload through a {@link RequestHandler}, coalesces pushes to the same branch and persists its
+     * queue in {@code jobqueue/}.
+     */
+    public BuildScheduler() {
+        this(Config.getInt(WORKERS_KEY, 2), Config.getInt(QUEUE_CAPACITY_KEY, 16), QUEUE_DIRECTORY, new JobRunner() {
+            @Override
+            public void run(String payload) {
+                run(payload, new Cancellation());
+            }
+
+            @Override
+            public void run(String payload, Cancellation cancellation) {
+                RequestHandler handler = new RequestHandler();
+                handler.data = payload;
+                handler.cancellation = cancellation;
+                handler.run();
+            }
+
+            @Override
+            public void superseded(String payload) {
+                RequestHandler.recordSuperseded(payload);
+            }
+        }, RequestHandler::branchKey, Config.getBoolean(CANCEL_RUNNING_KEY, false));
+    }
+
+    /**
+     * Creates a scheduler.
+     * @param workers number of builds that may run at the same time
+     * @param capacity number of jobs that may wait for a worker
+     * @param queueDirectory directory where waiting jobs are persisted
+     * @param runner what to do with the payload of a job
+     */
+    public BuildScheduler(int workers, int capacity, String queueDirectory, JobRunner runner) {
+        this(workers, capacity, queueDirectory, runner, null, false);
+    }
+
+    /**
+     * Creates a scheduler that coalesces jobs with the same key.
+     * @param workers number of builds that may run at the same time
+     * @param capacity number of jobs that may wait for a worker
+     * @param queueDirectory directory where waiting jobs are persisted
+     * @param runner what to do with the payload of a job
+     * @param keys gives the key of a job, a new job replaces the queued job with the same key, null to not coalesce jobs
+     * @param cancelRunning true to also cancel the running job with the same key
+     */
+    public BuildScheduler(int workers, int capacity, String queueDirectory, JobRunner runner, KeyFunction keys, boolean cancelRunning) {
+        this.queueDirectory = new File(queueDirectory);
+        this.queueDirectory.mkdirs();
+        this.runner = runner;
+        this.keys = keys;
+        this.cancelRunning = cancelRunning;
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(capacity), r -> {
+                    Thread t = new Thread(r, "build-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+        // let idle workers die so that an unused scheduler does not keep threads around
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Persists a payload and queues it for building.
+     * @param payload the raw GitHub push payload
+     * @return true if the job was queued, false if the queue is full
+     */
+    public boolean submit(String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return submit(bytes, bytes.length);
+    }
+
+    /**
+     * Persists a payload and queues it for building, the payload is written to disk as it was received.
+     * @param payload the raw GitHub push payload, UTF-8 encoded, it may be reused once this returns
+     * @param length number of bytes of the payload
+     * @return true if the job was queued, false if the queue is full or the job could not be persisted
+     */
+    public boolean submit(byte[] payload, int length) {
+        return submit(payload, length, keys == null ? null : keyOf(new String(payload, 0, length, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Persists a payload and queues it for building, for a caller that has parsed the payload already and
+     * computed its key the way the {@link KeyFunction} of the scheduler would. The payload is decoded by
+     * the worker that runs it.
+     * @param payload the raw GitHub push payload, UTF-8 encoded, it may be reused once this returns
+     * @param length number of bytes of the payload
+     * @param key the key of the job, ignored if the scheduler does not coalesce jobs
+     * @return true if the job was queued, false if the queue is full or the job could not be persisted, a job
+     * that is not on disk would be lost on a restart while GitHub takes it as delivered
+     */
+    public boolean submit(byte[] payload, int length, String key) {
+        File jobFile = new File(queueDirectory, String.format("%013d-%06d.json",
+                System.currentTimeMillis(), sequence.incrementAndGet() % 1000000));
+        try {
+            writeDurably(jobFile, payload, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            rejected.incrementAndGet();
+            jobFile.delete();
+            return false;
+        }
+        if (enqueue(new Job(Arrays.copyOf(payload, length), jobFile, keys == null ? null : key))) {
+            submitted.incrementAndGet();
+            return true;
+        }
+        rejected.incrementAndGet();
+        jobFile.delete();
+        return false;
+    }
+
+    /**
+     * Queues the jobs that were persisted but never finished, e.g. because the server was stopped.
+     * Jobs that do not fit in the queue are left on disk for the next restart.
+     * @return the number of jobs that were queued again
+     */
+    public int recover() {
+        File[] files = queueDirectory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+        int recovered = 0;
+        for (File file : files) {
+            try {
+                byte[] payload = Files.readAllBytes(file.toPath());
+                String key = keys == null ? null : keyOf(new String(payload, StandardCharsets.UTF_8));
+                if (!enqueue(new Job(payload, file, key))) {
+                    System.err.println("Build queue is full, " + (files.length - recovered) + " persisted jobs are left for the next restart");
+                    break;
+                }
+                recovered++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return recovered;
+    }
+
+    private String keyOf(String payload) {
+        try {
+            return keys.keyOf(payload);
+        } catch (RuntimeException e) {
+            // a payload that can not be read is built on its own
+            return null;
+        }
+    }
+
+    /**
+     * Queues a job. The queued job with the same key is taken out of the queue first, so that it does not
+     * take up room, and is reported as superseded once the new job is queued.
+     */
+    private boolean enqueue(Job job) {
+        Job older = null;
+        boolean queued;
+        synchronized (this) {
+            Job previous = job.key == null ? null : latest.get(job.key);
+            boolean removed = previous != null && executor.remove(previous);
+            try {
+                executor.execute(job);
+                queued = true;
+            } catch (RejectedExecutionException e) {
+                queued = false;
+            }
+            if (!queued) {
+                if (removed) {
+                    // can only happen when the scheduler is shut down, keep the old job on disk
+                    previous.file = null;
+                }
+                return false;
+            }
+            if (job.key != null) {
+                latest.put(job.key, job);
+            }
+            if (removed) {
+                older = previous;
+            } else if (previous != null && cancelRunning) {
+                previous.cancellation.cancel("superseded by a newer push");
+                cancelled.incrementAndGet();
+            }
+        }
+        if (older != null) {
+            superseded.incrementAndGet();
+            try {
+                runner.superseded(older.payload());
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                older.deleteFile();
+            }
+        }
+        return true;
+    }
+
+    private static void writeDurably(File file, byte[] payload, int length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(payload, 0, length);
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Stops accepting jobs and waits for the running ones to finish. Queued jobs are not started and stay on disk.
+     * Builds that still run after the timeout are interrupted, their jobs stay on disk too and are built again
+     * after a restart.
+     * @param timeoutMillis how long to wait for running builds
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        synchronized (this) {
+            executor.shutdown();
+            executor.getQueue().clear();
+        }
+        if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            interrupted = true;
+            executor.shutdownNow();
+            executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //--------------Metrics ------------------
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getRunningCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getAverageWaitMillis() {
+        long picked = started.get();
+        return picked == 0 ? 0 : totalWaitMillis.get() / picked;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    public long getSupersededCount() {
+        return superseded.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * Writes the metrics of the scheduler as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        sb.append("queue_depth ").append(getQueueDepth()).append('\n')
+                .append("builds_running ").append(getRunningCount()).append('\n')
+                .append("builds_submitted ").append(getSubmittedCount()).append('\n')
+                .append("builds_rejected ").append(getRejectedCount()).append('\n')
+                .append("builds_completed ").append(getCompletedCount()).append('\n')
+                .append("queue_wait_avg_ms ").append(getAverageWaitMillis()).append('\n')
+                .append("queue_wait_max_ms ").append(getMaxWaitMillis()).append('\n')
+                .append("builds_superseded ").append(superseded.get()).append('\n')
+                .append("builds_cancelled ").append(cancelled.get()).append('\n');
+    }
+
+    /**
+     * A queued build, removes its persisted file once the build has been handled.
+     */
+    private class Job implements Runnable {
+        private final byte[] payload;
+        private File file;
+        private final String key;
+        private final Cancellation cancellation = new Cancellation();
+        private final long enqueuedAt = System.currentTimeMillis();
+
+        Job(byte[] payload, File file, String key) {
+            this.payload = payload;
+            this.file = file;
+            this.key = key;
+        }
+
+        String payload() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        void deleteFile() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        @Override
+        public void run() {
+            long waited = System.currentTimeMillis() - enqueuedAt;
+            started.incrementAndGet();
+            totalWaitMillis.addAndGet(waited);
+            maxWaitMillis.accumulateAndGet(waited, Math::max);
+            try {
+                runner.run(payload(), cancellation);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                completed.incrementAndGet();
+                if (key != null) {
+                    synchronized (BuildScheduler.this) {
+                        latest.remove(key, this);
+                    }
+                }
+                if (!interrupted) {
+                    deleteFile();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets the scheduler stop a build that is no longer needed, e.g. because a newer push to the same branch
+ * has arrived. Whatever the build is waiting on, such as the process of the running stage, registers
+ * itself with {@link #onCancel(Runnable)} so that it is stopped right away.
+ */
+public class Cancellation {
+
+    private boolean cancelled = false;
+    private String reason;
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * Cancels the build and runs the registered actions, only the first call has an effect.
+     * @param reason why the build is cancelled, shown in its log
+     */
+    public void cancel(String reason) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            this.reason = reason;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Registers an action to run when the build is cancelled, it runs right away if the build is cancelled already.
+     * @param listener the action, e.g. killing a process
+     */
+    public void onCancel(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Unregisters an action, e.g. because the process it would kill has exited.
+     * @param listener the action passed to {@link #onCancel(Runnable)}
+     */
+    public synchronized void remove(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized String getReason() {
+        return reason;
+    }
+}
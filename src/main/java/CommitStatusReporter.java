@@ -0,0 +1,326 @@
+import org.eclipse.egit.github.core.CommitStatus;
+import org.eclipse.egit.github.core.RepositoryId;
+import org.eclipse.egit.github.core.client.GitHubClient;
+import org.eclipse.egit.github.core.client.RequestException;
+import org.eclipse.egit.github.core.service.CommitService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends commit statuses to GitHub from a background thread, so that a build never waits for GitHub.
+ * One client is shared by all builds and repositories are addressed by owner and name, without looking
+ * them up first. A status that is still waiting to be sent is replaced by a newer status of the same commit,
+ * e.g. "pending" by "success", so only the newest state is sent.
+ *
+ * Failed requests are retried with exponential backoff, up to DD2480_STATUS_ATTEMPTS times. When GitHub
+ * reports that the rate limit is used up, nothing is sent until the limit is reset. Requests that GitHub
+ * rejects, e.g. for an unknown repository, are not retried.
+ */
+public class CommitStatusReporter {
+
+    public final static String API_KEY = "DD2480_GITHUB_API";
+    public final static String ATTEMPTS_KEY = "DD2480_STATUS_ATTEMPTS";
+    public final static String BACKOFF_KEY = "DD2480_STATUS_BACKOFF_MS";
+
+    // waited for when the rate limit is used up and GitHub does not say until when
+    private final static long RATE_LIMIT_PAUSE_MILLIS = 60000;
+
+    private static CommitStatusReporter shared;
+
+    private final GitHubClient client;
+    private final CommitService commits;
+    private final int attempts;
+    private final long backoffMillis;
+    private final Map<String, RepositoryId> repositories = new ConcurrentHashMap<>();
+
+    // statuses waiting to be sent by commit, oldest first
+    private final LinkedHashMap<String, Update> pending = new LinkedHashMap<>();
+    private int inFlight = 0;
+    private long pausedUntil = 0;
+    // set from the response headers of the last request, only used by the sender thread
+    private volatile long retryAt = 0;
+
+    // metrics
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * @return the reporter of the server, configured from DD2480_GITHUB_API, DD2480_TOKEN,
+     * DD2480_STATUS_ATTEMPTS and DD2480_STATUS_BACKOFF_MS
+     */
+    public static synchronized CommitStatusReporter shared() {
+        if (shared == null) {
+            shared = new CommitStatusReporter(Config.getString(API_KEY, null), Config.getString("DD2480_TOKEN", null),
+                    Config.getInt(ATTEMPTS_KEY, 5), Config.getLong(BACKOFF_KEY, 1000));
+        }
+        return shared;
+    }
+
+    /**
+     * Creates a reporter and starts its sender thread.
+     * @param apiUrl url of the GitHub API, e.g. "http://localhost:8081" for a stub, null for api.github.com
+     * @param token OAuth token used to authenticate, null to send anonymous requests
+     * @param attempts how often a status is sent before it is given up
+     * @param backoffMillis time waited before the first retry, doubled for every further retry
+     */
+    public CommitStatusReporter(String apiUrl, String token, int attempts, long backoffMillis) {
+        this.client = createClient(apiUrl);
+        if (token != null) {
+            client.setOAuth2Token(token);
+        }
+        this.commits = new CommitService(client);
+        this.attempts = Math.max(1, attempts);
+        this.backoffMillis = backoffMillis;
+        Thread sender = new Thread(this::sendLoop, "commit-status");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private GitHubClient createClient(String apiUrl) {
+        if (apiUrl == null) {
+            return new RateLimitAwareClient();
+        }
+        try {
+            URL url = new URL(apiUrl);
+            return new RateLimitAwareClient(url.getHost(), url.getPort(), url.getProtocol());
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Malformed " + API_KEY + ": " + apiUrl, e);
+        }
+    }
+
+    /**
+     * Queues a status for a commit, replacing a status of the same commit that has not been sent yet.
+     * @param push the push of the commit
+     * @param state e.g. {@link CommitStatus#STATE_PENDING}
+     * @param description shown next to the status on GitHub
+     */
+    public void report(PushEvent push, String state, String description) {
+        Update update = new Update(push.getOwnerName(), push.getRepositoryName(), push.getAfter(), state, description);
+        synchronized (this) {
+            if (pending.put(update.key(), update) != null) {
+                coalesced.incrementAndGet();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Sends a status right away, on the calling thread and without retries.
+     * @param push the push of the commit
+     * @param state e.g. {@link CommitStatus#STATE_PENDING}
+     * @param description shown next to the status on GitHub
+     * @throws IOException if GitHub could not be reached or rejected the status
+     */
+    public void send(PushEvent push, String state, String description) throws IOException {
+        send(new Update(push.getOwnerName(), push.getRepositoryName(), push.getAfter(), state, description));
+    }
+
+    /**
+     * @param push the push of the commit
+     * @return the statuses of the commit, newest first
+     * @throws IOException if GitHub could not be reached
+     */
+    public List<CommitStatus> getStatuses(PushEvent push) throws IOException {
+        return commits.getStatuses(repository(push.getOwnerName(), push.getRepositoryName()), push.getAfter());
+    }
+
+    /**
+     * Waits until every queued status has been sent or given up, e.g. before the server stops.
+     * @param timeoutMillis how long to wait at most
+     * @return true if nothing is left to send
+     */
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty() || inFlight > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    private RepositoryId repository(String owner, String name) {
+        return repositories.computeIfAbsent(owner + "/" + name, key -> RepositoryId.create(owner, name));
+    }
+
+    private void send(Update update) throws IOException {
+        commits.createStatus(repository(update.owner, update.name), update.sha,
+                new CommitStatus().setState(update.state).setDescription(update.description));
+    }
+
+    private void sendLoop() {
+        while (true) {
+            Update update;
+            try {
+                update = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long retryIn = -1;
+            try {
+                retryAt = 0;
+                send(update);
+                sent.incrementAndGet();
+                if (client.getRemainingRequests() == 0 && retryAt > 0) {
+                    // that was the last request GitHub allows, wait for the reset before sending more
+                    synchronized (this) {
+                        pausedUntil = Math.max(pausedUntil, retryAt);
+                    }
+                }
+            } catch (RequestException e) {
+                if (isRateLimited(e)) {
+                    // does not count as an attempt, the status is sent once the limit is reset
+                    rateLimited.incrementAndGet();
+                    long until = retryAt > 0 ? retryAt : System.currentTimeMillis() + RATE_LIMIT_PAUSE_MILLIS;
+                    synchronized (this) {
+                        pausedUntil = Math.max(pausedUntil, until);
+                    }
+                    retryIn = 0;
+                } else if (e.getStatus() >= 500) {
+                    retryIn = backoff(update);
+                } else {
+                    System.err.println("GitHub rejected status " + update.state + " of " + update.sha + ": " + e.getMessage());
+                }
+            } catch (IOException e) {
+                retryIn = backoff(update);
+            }
+            synchronized (this) {
+                // a newer status of the commit replaces the one that failed
+                if (retryIn >= 0 && !pending.containsKey(update.key())) {
+                    update.notBefore = System.currentTimeMillis() + retryIn;
+                    pending.put(update.key(), update);
+                }
+                inFlight--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the time to wait before the next attempt, -1 if the status is given up
+     */
+    private long backoff(Update update) {
+        update.attempt++;
+        if (update.attempt >= attempts) {
+            dropped.incrementAndGet();
+            System.err.println("Giving up status " + update.state + " of " + update.sha + " after " + attempts + " attempts");
+            return -1;
+        }
+        retried.incrementAndGet();
+        return backoffMillis << Math.min(update.attempt - 1, 16);
+    }
+
+    private boolean isRateLimited(RequestException e) {
+        return e.getStatus() == 429 || (e.getStatus() == 403 && (client.getRemainingRequests() == 0 || retryAt > 0));
+    }
+
+    /**
+     * Takes the oldest status that is due, waiting while nothing is due or the rate limit is used up.
+     */
+    private synchronized Update next() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wakeUp = pausedUntil;
+            if (now >= pausedUntil) {
+                wakeUp = 0;
+                Iterator<Update> updates = pending.values().iterator();
+                while (updates.hasNext()) {
+                    Update update = updates.next();
+                    if (update.notBefore <= now) {
+                        updates.remove();
+                        inFlight++;
+                        return update;
+                    }
+                    wakeUp = wakeUp == 0 ? update.notBefore : Math.min(wakeUp, update.notBefore);
+                }
+            }
+            wait(wakeUp == 0 ? 0 : Math.max(1, wakeUp - now));
+        }
+    }
+
+    /**
+     * Writes the metrics of the reporter as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        int queued;
+        synchronized (this) {
+            queued = pending.size();
+        }
+        sb.append("commit_status_queued ").append(queued).append('\n')
+                .append("commit_status_sent ").append(sent.get()).append('\n')
+                .append("commit_status_retried ").append(retried.get()).append('\n')
+                .append("commit_status_dropped ").append(dropped.get()).append('\n')
+                .append("commit_status_coalesced ").append(coalesced.get()).append('\n')
+                .append("commit_status_rate_limited ").append(rateLimited.get()).append('\n');
+    }
+
+    /**
+     * A client that remembers until when GitHub asks it to wait, from the Retry-After header or,
+     * when the rate limit is used up, from the X-RateLimit-Reset header.
+     */
+    private class RateLimitAwareClient extends GitHubClient {
+
+        RateLimitAwareClient() {
+            super();
+        }
+
+        RateLimitAwareClient(String host, int port, String scheme) {
+            super(host, port, scheme);
+        }
+
+        @Override
+        protected InputStream getStream(HttpURLConnection request) throws IOException {
+            String retryAfter = request.getHeaderField("Retry-After");
+            String remaining = request.getHeaderField("X-RateLimit-Remaining");
+            String reset = request.getHeaderField("X-RateLimit-Reset");
+            try {
+                if (retryAfter != null) {
+                    retryAt = System.currentTimeMillis() + Long.parseLong(retryAfter.trim()) * 1000;
+                } else if ("0".equals(remaining) && reset != null) {
+                    retryAt = Long.parseLong(reset.trim()) * 1000;
+                }
+            } catch (NumberFormatException e) {
+                // keep the default pause
+            }
+            return super.getStream(request);
+        }
+    }
+
+    private static class Update {
+        final String owner;
+        final String name;
+        final String sha;
+        final String state;
+        final String description;
+        int attempt = 0;
+        long notBefore = 0;
+
+        Update(String owner, String name, String sha, String state, String description) {
+            this.owner = owner;
+            this.name = name;
+            this.sha = sha;
+            this.state = state;
+            this.description = description;
+        }
+
+        String key() {
+            return owner + "/" + name + "@" + sha;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The classes of the last build of every branch whose compile and test stages passed, so that the next build
+ * of the branch only compiles the sources that changed and the sources that depend on them, see
+ * {@link SourceIndex}. The classes of the other sources are restored into the new workspace, and Maven is told
+ * to compile only the sources without an up to date class file.
+ *
+ * Next to the classes, a manifest keeps the SHA-256 hash of every source and of every class. The classes are
+ * only restored if the pom files and the toolchain are the same, and every restored class is checked against
+ * its hash, so a damaged cache entry is thrown away instead of being compiled against. The changed sources
+ * are found by their hashes as well, not by file times.
+ */
+public class CompileCache {
+
+    // used as keys for the settings of the cache
+    public final static String ENABLED_KEY = "DD2480_COMPILE_CACHE";
+    public final static String DIRECTORY_KEY = "DD2480_COMPILE_CACHE_DIRECTORY";
+    public final static String ENTRIES_KEY = "DD2480_COMPILE_CACHE_ENTRIES";
+    // with restored classes, the compiler plugin compiles only the sources whose class is missing or older,
+    // instead of all sources as soon as one of them changed
+    public final static String STALE_SOURCES_OPTION = "-Dmaven.compiler.useIncrementalCompilation=false";
+
+    // the source directories and the directories their classes are compiled to
+    private final static String[][] OUTPUTS = {{"src/main/java/", "target/classes/"}, {"src/test/java/", "target/test-classes/"}};
+    private final static String MANIFEST = "manifest.txt";
+
+    private static CompileCache shared;
+
+    private final File root;
+    private final int maxEntries;
+    private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    // metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong restoredCompiles = new AtomicLong();
+    private final AtomicLong restoredCompileMillis = new AtomicLong();
+    private final AtomicLong cleanCompiles = new AtomicLong();
+    private final AtomicLong cleanCompileMillis = new AtomicLong();
+
+    /**
+     * @param root directory holding the classes of the branches
+     * @param maxEntries number of branches whose classes are kept, the least recently used ones are deleted
+     */
+    public CompileCache(File root, int maxEntries) {
+        this.root = root;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cache used by the builds, in DD2480_COMPILE_CACHE_DIRECTORY ("compilecache/" by default)
+     * keeping the classes of DD2480_COMPILE_CACHE_ENTRIES (16 by default) branches
+     */
+    public static synchronized CompileCache shared() {
+        if (shared == null) {
+            shared = new CompileCache(new File(Config.getString(DIRECTORY_KEY, "compilecache/")), Config.getInt(ENTRIES_KEY, 16));
+        }
+        return shared;
+    }
+
+    /**
+     * @return true unless DD2480_COMPILE_CACHE is false
+     */
+    public static boolean isEnabled() {
+        return Config.getBoolean(ENABLED_KEY, true);
+    }
+
+    /**
+     * Restores the classes of the last passing build of a branch into a checked out commit, except the classes
+     * of the sources that changed since and of the sources that depend on them, which are compiled again.
+     * @param branch the branch of the commit
+     * @param repository the checked out commit, nothing has been compiled in it yet
+     * @param log receives what the cache does
+     * @return which sources are compiled, and the commit whose classes were restored if any
+     */
+    public incrementalCompile restore(String branch, File repository, Pipeline.LineSink log) throws IOException {
+        Map<String, String> sources = new TreeMap<>();
+        for (String path : sourceFiles(repository)) {
+            sources.put(path, sha256(repository.toPath().resolve(path)));
+        }
+        File entry = entry(branch);
+        Manifest manifest;
+        ReentrantLock lock = locks.computeIfAbsent(entry.getName(), k -> new ReentrantLock());
+        lock.lock();
+        try {
+            manifest = Manifest.read(new File(entry, MANIFEST));
+            if (manifest == null) {
+                misses.incrementAndGet();
+                return new incrementalCompile(null, sources.size(), sources.size(), "No classes of " + branch + " to restore");
+            }
+            if (!manifest.fingerprint.equals(fingerprint(repository))) {
+                misses.incrementAndGet();
+                return new incrementalCompile(null, sources.size(), sources.size(),
+                        "The pom files or the toolchain changed since " + manifest.commit);
+            }
+            log.accept("Restoring " + manifest.classes.size() + " classes of " + manifest.commit + " from " + entry);
+            for (Map.Entry<String, String> c : manifest.classes.entrySet()) {
+                Path from = entry.toPath().resolve(c.getKey());
+                Path to = repository.toPath().resolve(c.getKey());
+                Files.createDirectories(to.getParent());
+                // newer than the checked out sources, so that the compiler takes the classes as up to date
+                Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+                if (!c.getValue().equals(sha256(to))) {
+                    rejected.incrementAndGet();
+                    log.accept(c.getKey() + " does not match its hash, the classes of " + branch + " are thrown away");
+                    deleteOutputs(repository);
+                    Pipeline.deleteRecursively(entry);
+                    return new incrementalCompile(null, sources.size(), sources.size(), "The cached classes were damaged");
+                }
+            }
+            Files.setLastModifiedTime(new File(entry, MANIFEST).toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // whatever was restored is not used
+            deleteOutputs(repository);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+
+        // the sources that were added, changed or deleted, and the types they declare or declared
+        Set<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            if (!source.getValue().equals(manifest.sources.get(source.getKey()))) {
+                changed.add(source.getKey());
+            }
+        }
+        for (String path : manifest.sources.keySet()) {
+            if (!sources.containsKey(path)) {
+                changed.add(path);
+            }
+        }
+        SourceIndex index = SourceIndex.of(repository);
+        Set<String> types = new HashSet<>();
+        for (String path : changed) {
+            types.addAll(manifest.types.getOrDefault(path, Set.of()));
+            if (sources.containsKey(path)) {
+                types.addAll(index.getDeclaredTypes(path));
+            }
+        }
+        Set<String> recompiled = new TreeSet<>(index.dependents(types));
+        recompiled.retainAll(sources.keySet());
+
+        // a source without its classes is compiled again, the classes of deleted sources must not be packaged
+        Set<String> stale = new TreeSet<>(recompiled);
+        stale.addAll(changed);
+        for (String path : stale) {
+            Set<String> declared = new HashSet<>(manifest.types.getOrDefault(path, Set.of()));
+            if (sources.containsKey(path)) {
+                declared.addAll(index.getDeclaredTypes(path));
+            }
+            deleteClasses(repository, path, declared);
+        }
+        hits.incrementAndGet();
+        log.accept(changed.size() + " sources changed since " + manifest.commit + ", compiling " + recompiled.size()
+                + " of " + sources.size() + " sources" + (recompiled.isEmpty() ? "" : ": " + String.join(", ", recompiled)));
+        return new incrementalCompile(manifest.commit, sources.size(), recompiled.size(),
+                changed.size() + " changed sources since " + manifest.commit);
+    }
+
+    /**
+     * Keeps the classes of a commit whose compile and test stages passed as the classes of its branch.
+     * @param branch the branch of the commit
+     * @param commit the hash of the commit
+     * @param repository the checked out and compiled commit
+     */
+    public void save(String branch, String commit, File repository) throws IOException {
+        File entry = entry(branch);
+        File tmp = new File(root, entry.getName() + ".tmp-" + UUID.randomUUID().toString().substring(0, 8));
+        try {
+            StringBuilder manifest = new StringBuilder()
+                    .append("commit ").append(commit).append('\n')
+                    .append("fingerprint ").append(fingerprint(repository)).append('\n');
+            for (String path : sourceFiles(repository)) {
+                Path file = repository.toPath().resolve(path);
+                Set<String> types = new TreeSet<>(SourceIndex.declaredTypes(path, Files.readString(file, StandardCharsets.UTF_8)));
+                manifest.append("source ").append(path).append(' ').append(sha256(file)).append(' ')
+                        .append(String.join(",", types)).append('\n');
+            }
+            for (String path : classFiles(repository)) {
+                Path to = tmp.toPath().resolve(path);
+                Files.createDirectories(to.getParent());
+                Files.copy(repository.toPath().resolve(path), to);
+                manifest.append("class ").append(path).append(' ').append(sha256(to)).append('\n');
+            }
+            writeDurably(new File(tmp, MANIFEST), manifest.toString());
+
+            ReentrantLock lock = locks.computeIfAbsent(entry.getName(), k -> new ReentrantLock());
+            lock.lock();
+            try {
+                Pipeline.deleteRecursively(entry);
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                lock.unlock();
+            }
+            saves.incrementAndGet();
+        } finally {
+            Pipeline.deleteRecursively(tmp);
+        }
+        evict();
+    }
+
+    /**
+     * Adds the time of a compile stage to the average compile times with and without restored classes.
+     * @param compile how the sources were compiled
+     * @param millis wall time of the compile stage
+     */
+    public void recordCompile(incrementalCompile compile, long millis) {
+        if (compile.isRestored()) {
+            restoredCompiles.incrementAndGet();
+            restoredCompileMillis.addAndGet(millis);
+        } else {
+            cleanCompiles.incrementAndGet();
+            cleanCompileMillis.addAndGet(millis);
+        }
+    }
+
+    /**
+     * @param restored true for the compile stages with restored classes, false for those that compiled everything
+     * @return the average wall time of these compile stages since the server started, null if there was none
+     */
+    public Long averageCompileMillis(boolean restored) {
+        long count = (restored ? restoredCompiles : cleanCompiles).get();
+        return count == 0 ? null : (restored ? restoredCompileMillis : cleanCompileMillis).get() / count;
+    }
+
+    /**
+     * Deletes the classes of the compiled commit, e.g. because they were restored from a damaged entry.
+     * @param repository the checked out commit
+     */
+    public static void deleteOutputs(File repository) {
+        for (String[] output : OUTPUTS) {
+            Pipeline.deleteRecursively(new File(repository, output[1]));
+        }
+    }
+
+    /**
+     * @param branch a branch
+     * @return the directory of the classes of the branch, unique for the branch
+     */
+    private File entry(String branch) {
+        return new File(root, branch.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(branch.hashCode()));
+    }
+
+    /**
+     * Deletes the classes of the types of a source, including their nested classes.
+     */
+    private static void deleteClasses(File repository, String source, Set<String> types) {
+        for (String[] output : OUTPUTS) {
+            if (!source.startsWith(output[0])) {
+                continue;
+            }
+            String relative = source.substring(output[0].length());
+            File directory = new File(repository, output[1] + relative.substring(0, relative.lastIndexOf('/') + 1));
+            File[] classes = directory.listFiles((dir, name) -> name.endsWith(".class")
+                    && types.contains(name.substring(0, name.length() - ".class".length()).split("\\$")[0]));
+            if (classes != null) {
+                for (File c : classes) {
+                    c.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the paths of the Java sources that are compiled, relative to the repository
+     */
+    private static List<String> sourceFiles(File repository) throws IOException {
+        return files(repository, 0, ".java");
+    }
+
+    /**
+     * @return the paths of the compiled classes, relative to the repository
+     */
+    private static List<String> classFiles(File repository) throws IOException {
+        return files(repository, 1, ".class");
+    }
+
+    private static List<String> files(File repository, int column, String suffix) throws IOException {
+        List<String> files = new ArrayList<>();
+        Path base = repository.toPath();
+        for (String[] output : OUTPUTS) {
+            Path directory = base.resolve(output[column]);
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            try (Stream<Path> paths = Files.walk(directory)) {
+                files.addAll(paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(suffix))
+                        .map(p -> base.relativize(p).toString().replace(File.separatorChar, '/'))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return what the classes depend on besides the sources: the pom files and the toolchain
+     */
+    private static String fingerprint(File repository) throws IOException {
+        return DependencyCache.fingerprint(repository) + "-" + ResultCache.toolchainFingerprint();
+    }
+
+    /**
+     * Deletes the classes of the least recently used branches beyond the limit.
+     */
+    private synchronized void evict() {
+        File[] entries = root.listFiles(f -> new File(f, MANIFEST).exists());
+        if (entries == null || entries.length <= maxEntries) {
+            return;
+        }
+        List<File> newestFirst = new ArrayList<>(List.of(entries));
+        newestFirst.sort(Comparator.comparingLong((File f) -> new File(f, MANIFEST).lastModified()).reversed());
+        for (File entry : newestFirst.subList(maxEntries, newestFirst.size())) {
+            ReentrantLock lock = locks.computeIfAbsent(entry.getName(), k -> new ReentrantLock());
+            if (lock.tryLock()) {
+                try {
+                    Pipeline.deleteRecursively(entry);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static void writeDurably(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.write(content);
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes the metrics of the cache as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        Long restored = averageCompileMillis(true);
+        Long clean = averageCompileMillis(false);
+        sb.append("compile_cache_hits ").append(hits.get()).append('\n')
+                .append("compile_cache_misses ").append(misses.get()).append('\n')
+                .append("compile_cache_rejected ").append(rejected.get()).append('\n')
+                .append("compile_cache_saves ").append(saves.get()).append('\n')
+                .append("compile_stage_ms_restored ").append(restored == null ? 0 : restored).append('\n')
+                .append("compile_stage_ms_clean ").append(clean == null ? 0 : clean).append('\n');
+    }
+
+    /**
+     * The manifest of the classes of a branch, one "commit hash", one "fingerprint pomsAndToolchain", one
+     * "source path sha256 Type,Type" line per source and one "class path sha256" line per class.
+     */
+    private static class Manifest {
+        String commit;
+        String fingerprint;
+        final Map<String, String> sources = new HashMap<>();
+        final Map<String, Set<String>> types = new HashMap<>();
+        final Map<String, String> classes = new TreeMap<>();
+
+        /**
+         * @return the manifest, null if there is none or it can not be read
+         */
+        static Manifest read(File file) {
+            if (!file.exists()) {
+                return null;
+            }
+            Manifest manifest = new Manifest();
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    String[] parts = line.split(" ");
+                    if (parts[0].equals("commit") && parts.length == 2) {
+                        manifest.commit = parts[1];
+                    } else if (parts[0].equals("fingerprint") && parts.length == 2) {
+                        manifest.fingerprint = parts[1];
+                    } else if (parts[0].equals("source") && parts.length == 4) {
+                        manifest.sources.put(parts[1], parts[2]);
+                        manifest.types.put(parts[1], Set.of(parts[3].split(",")));
+                    } else if (parts[0].equals("class") && parts.length == 3) {
+                        manifest.classes.put(parts[1], parts[2]);
+                    } else {
+                        System.err.println("Malformed compile cache manifest " + file + ": " + line);
+                        return null;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            return manifest.commit == null || manifest.fingerprint == null ? null : manifest;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Small helper for reading the server's tunable settings. A setting is looked up as a
+ * JVM system property first (e.g. {@code -DDD2480_WORKERS=4}) and then as an environment
+ * variable with the same name, falling back to the given default.
+ */
+public class Config {
+
+    private Config() {
+    }
+
+    /**
+     * Reads a String setting.
+     * @param key name of the system property/environment variable
+     * @param defaultValue value used when the setting is missing
+     * @return the configured value or defaultValue
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isEmpty()) {
+            value = System.getenv(key);
+        }
+        return (value == null || value.isEmpty()) ? defaultValue : value;
+    }
+
+    /**
+     * Reads an integer setting, a malformed value is reported and replaced by the default.
+     * @param key name of the system property/environment variable
+     * @param defaultValue value used when the setting is missing or malformed
+     * @return the configured value or defaultValue
+     */
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    /**
+     * Reads a long setting, a malformed value is reported and replaced by the default.
+     * @param key name of the system property/environment variable
+     * @param defaultValue value used when the setting is missing or malformed
+     * @return the configured value or defaultValue
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value '" + value + "' for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a boolean setting ("true"/"false").
+     * @param key name of the system property/environment variable
+     * @param defaultValue value used when the setting is missing
+     * @return the configured value or defaultValue
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -2,8 +2,24 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
 
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.eclipse.jetty.server.Server;
@@ -18,14 +34,45 @@ public class ContinuousIntegrationServer extends AbstractHandler {
 
     public static BuildHistory db;
     public static jsonHandler json;
+    public static BuildScheduler scheduler;
+    public static LogStore logs;
+    public static ResultCache results;
+    public static DeliveryIndex deliveries;
+    public static TestDurationHistory durations;
+    public static FlakyTestIndex flakyTests;
+    public static LogIndex logIndex;
+    private static final LatencyStats buildPageTtfb = new LatencyStats("build_page_ttfb");
+    private static final LatencyStats webhookAck = new LatencyStats("webhook_ack");
+    private static final LatencyStats logSearch = new LatencyStats("log_search");
+    private static PageCache historyPages;
+    // number of tests listed as slowest on the build page
+    private final static int SLOWEST_TESTS = 10;
+    // number of plugin goals listed as slowest on the build page
+    private final static int SLOWEST_GOALS = 10;
+    // tests listed at /flaky
+    private final static int FLAKY_TESTS = 100;
+    // builds listed at /search
+    private final static int SEARCH_RESULTS = 50;
+    // how long a stopping server waits for its running builds
+    public final static String SHUTDOWN_TIMEOUT_KEY = "DD2480_SHUTDOWN_TIMEOUT_SECONDS";
+    // how long a stopping server waits for the statuses of its builds to be sent, at least
+    private final static long STATUS_FLUSH_MILLIS = 10000;
 
     /**
-     * Initializes the database of builds and the jsonHandler so that
+     * Initializes the database of builds, the jsonHandler, the build scheduler, the log store, the result cache, the delivery index, the test durations, the flaky test index and the log index so that
      * they are usable in the other classes and tests.
      */
     public ContinuousIntegrationServer() {
         json = new jsonHandler();
         db = json.readBuildHistory();
+        scheduler = new BuildScheduler();
+        logs = new LogStore();
+        results = new ResultCache();
+        deliveries = new DeliveryIndex();
+        durations = new TestDurationHistory();
+        flakyTests = new FlakyTestIndex();
+        logIndex = new LogIndex();
+        historyPages = new PageCache(256);
     }
 
 
@@ -34,6 +81,12 @@ public class ContinuousIntegrationServer extends AbstractHandler {
      *      * "/": this is where the server receives the GitHub push-event and handles that
      *      * "/allBuilds": here, the build history is shown, including easy-to-read results
      *      * "/build/{buildID}": here, detailed results from the build with ID {buildID} are shown, including raw logs
+     *      * "/build/{buildID}/live": the output of a running build, streamed while the build runs
+     *      * "/build/{buildID}/artifact": the jar of the build
+     *      * "/build/{buildID}/diagnostics": the compiler errors, failed tests and plugin timings of the build as JSON
+     *      * "/metrics": plain text metrics of the server, e.g. the depth of the build queue
+     *      * "/flaky": the tests that failed and then passed when they were run again, the most often flaky first
+     *      * "/search?q=": the builds whose logs contain the words of q, the newest first
      *
      * @param target: the endpoint the request is trying to reach
      * @param baseRequest: containing the HTTP request in a jetty request object
@@ -47,6 +100,7 @@ public class ContinuousIntegrationServer extends AbstractHandler {
                        HttpServletRequest request,
                        HttpServletResponse response)
             throws IOException, ServletException {
+        long startNanos = System.nanoTime();
         response.setContentType("text/html;charset=utf-8");
         response.setStatus(HttpServletResponse.SC_OK);
         baseRequest.setHandled(true);
@@ -79,11 +133,28 @@ public class ContinuousIntegrationServer extends AbstractHandler {
                 // splitting on "/" gives an empty string as first element since first character of target is a "/"
                 switch (targetParams[1]) {
                     case "build":
-                        search(targetParams[2], baseRequest, request, response);
+                        if (targetParams.length > 3 && targetParams[3].equals("live")) {
+                            live(targetParams[2], request, response);
+                        } else if (targetParams.length > 3 && targetParams[3].equals("artifact")) {
+                            artifact(targetParams[2], response);
+                        } else if (targetParams.length > 3 && targetParams[3].equals("diagnostics")) {
+                            diagnostics(targetParams[2], response);
+                        } else {
+                            search(targetParams[2], baseRequest, request, response, startNanos);
+                        }
                         break;
                     case "allBuilds":
                         history(baseRequest, request, response);
                         break;
+                    case "metrics":
+                        metrics(response);
+                        break;
+                    case "flaky":
+                        flaky(response);
+                        break;
+                    case "search":
+                        searchLogs(request, response, startNanos);
+                        break;
                     default:
                         fourOFour(response);
                         break;
@@ -94,97 +165,580 @@ public class ContinuousIntegrationServer extends AbstractHandler {
 
 
     /**
-     * Here we handle the build (clone repo, run tests, store results etc. a.k.a bash magic)
+     * Here we handle the build (clone repo, run tests, store results etc. a.k.a bash magic).
+     * The build itself is queued in the scheduler, if the queue is full or the push can not be persisted it is answered
+     * with 503 so that GitHub shows the delivery as failed and it can be redelivered later.
+     * The push is acknowledged as soon as its payload is on disk. The payload is parsed here once, for the keys
+     * that deduplicate the delivery and coalesce the pushes to its branch; the worker that builds the push reads
+     * the job as it was persisted and parses it again for the rest of its fields.
      *
      * @param baseRequest: the base HTTP request
      * @param request: HTTP request as per Servlet's implementation
      * @param response: Where to send the result
      */
     private void build(Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
-        response.getWriter().println("POST received");
+        long start = System.nanoTime();
+        if (!"ping".equals(baseRequest.getHeader("X-Github-Event"))) {
+            // the payload is persisted as it was received, only its keys are read on this thread
+            PayloadBuffer payload = PayloadBuffer.acquire();
+            try {
+                if (!payload.readFrom(baseRequest.getInputStream(), PayloadBuffer.MAX_PAYLOAD_BYTES)) {
+                    response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    response.getWriter().println("Payload is too large");
+                    flushResponseWriter(response);
+                    return;
+                }
+                // GitHub retries deliveries, a delivery or commit that is already queued is not built again
+                String deliveryId = baseRequest.getHeader("X-GitHub-Delivery");
+                PushEvent push = parse(payload);
+                String commitKey = push == null ? null : DeliveryIndex.commitKey(push);
+                if (!deliveries.claim(deliveryId, commitKey)) {
+                    response.setStatus(200);
+                    response.getWriter().println("Duplicate delivery, ignored");
+                    flushResponseWriter(response);
+                    webhookAck.recordSince(start);
+                    return;
+                }
+                // the key the scheduler coalesces the pushes to a branch by, so that it need not parse the payload again
+                String branchKey = push == null ? null : RequestHandler.branchKey(push);
+                if (!scheduler.submit(payload.array(), payload.length(), branchKey)) {
+                    deliveries.release(deliveryId, commitKey);
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    response.setHeader("Retry-After", "60");
+                    response.getWriter().println("Build could not be queued, try again later");
+                    flushResponseWriter(response);
+                    return;
+                }
+            } finally {
+                payload.release();
+            }
+        }
         response.setStatus(200);
+        response.getWriter().println("POST received");
         flushResponseWriter(response);
-        if (!baseRequest.getHeader("X-Github-Event").equals("ping")) {
-            String data = baseRequest.getReader().lines().collect(Collectors.joining());
-            RequestHandler a = new RequestHandler();
-            a.data = data;
-            a.start();
+        webhookAck.recordSince(start);
+    }
+
+    /**
+     * Parses a push payload once on the request thread, for the keys that deduplicate and coalesce it.
+     * @param payload a push payload
+     * @return the push, null if the payload can not be read
+     */
+    private static PushEvent parse(PayloadBuffer payload) {
+        try {
+            return PushEvent.parse(new InputStreamReader(
+                    new ByteArrayInputStream(payload.array(), 0, payload.length()), StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            return null;
         }
     }
 
     /**
-     * Converts a raw log String into a String with html line breaks
-     * so that they can be printed more prettily in the browser.
-     * @param logs The raw log as a String, as produced by the build script.
-     * @return The same log but with newline characters replaced by the html br-tag.
+     * Copies a raw log to the response in small chunks, escaping html characters and replacing
+     * newline characters by the html br-tag so that it can be printed more prettily in the browser.
+     * The log is never held in memory as a whole.
+     * @param log The raw log, as produced by the build script.
+     * @param out Where the html is written.
+     * @throws IOException If the log can not be read or the response can not be written.
      */
-    private String prettyPrint(String logs) {
-        StringBuilder sb = new StringBuilder();
-        String[] lines = logs.split("\n");
-        for (String line: lines) {
-            sb.append(line).append("<br>");
+    private static void streamLog(Reader log, Writer out) throws IOException {
+        char[] buffer = new char[8192];
+        StringBuilder chunk = new StringBuilder(buffer.length + 256);
+        try (Reader in = log) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                chunk.setLength(0);
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    switch (c) {
+                        case '\n': chunk.append("<br>"); break;
+                        case '\r': break;
+                        case '<': chunk.append("&lt;"); break;
+                        case '>': chunk.append("&gt;"); break;
+                        case '&': chunk.append("&amp;"); break;
+                        default: chunk.append(c);
+                    }
+                }
+                out.append(chunk);
+            }
         }
-        return sb.toString();
     }
 
     /**
-     * Fetches information about the build with id "buildID"
+     * Fetches information about the build with id "buildID". The page is streamed: the header is
+     * flushed first, after which the logs are copied from disk in chunks.
      *
      * @param buildID: the id of the build to fetch
      * @param baseRequest: the base HTTP request
      * @param request: HTTP request as per Servlet's implementation
      * @param response: Where to send the result
+     * @param startNanos: System.nanoTime() when the request arrived, used to measure the time to first byte
      */
-    private void search(String buildID, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+    private void search(String buildID, Request baseRequest, HttpServletRequest request, HttpServletResponse response, long startNanos) throws IOException {
         /*
          * Fetch the correct build information file
          * Serve information if it exists, otherwise show some 404-page
          */
         // 404 if build doesn't exist, serve it otherwise
-        Build b = db.findBuild(Integer.parseInt(buildID));
+        Build b;
+        try {
+            b = db.findBuild(Integer.parseInt(buildID));
+        } catch (NumberFormatException e) {
+            b = null;
+        }
         boolean found = b != null;
         if (!found) {
             //some inline HTML as a 404-page if buildID is invalid
             fourOFour(response);
+            return;
+        }
+        long jarSize = artifactSize(b);
+        PrintWriter out = response.getWriter();
+        out.write(
+            "<html>" +
+                "<head>" +
+                    "<title>Build " + b.getBuildID() + "</title>" +
+                "</head>" +
+                "<body>" +
+                    "<div style=\"text-align: center; width: 100%;\">" +
+                        "<h1>Commit " + b.getCommitHash() + " on branch " + b.getBranch() + " built at " + b.getBuildDate() + " with id " + b.getBuildID() + "</h1>" +
+                    "</div>" +
+                    (b.getCachedFrom() != null ? "<p style=\"text-align: center;\">Not built, the same tree was built by <a href=\"/build/" +
+                            b.getCachedFrom() + "\">build " + b.getCachedFrom() + "</a></p>" : "") +
+                    (jarSize >= 0 ? "<p style=\"text-align: center;\"><a href=\"/build/" + b.getBuildID() + "/artifact\">Download "
+                            + b.getCommitHash() + ".jar</a> (" + (jarSize + 1023) / 1024 + " KB)</p>" : "") +
+                    stageTimings(b) +
+                    diagnostics(b) +
+                    incrementalCompile(b) +
+                    testSchedule(b) +
+                    testSelection(b) +
+                    testCases(b) +
+                    "<div>");
+        flushResponseWriter(response);
+        buildPageTtfb.recordSince(startNanos);
+
+        String[][] sections = {
+                {"Install results", LogStore.INSTALL_LOG},
+                {"Build results", LogStore.COMPILE_LOG},
+                {"Test results", LogStore.TEST_LOG}};
+        for (String[] section : sections) {
+            out.write("<h2>" + section[0] + "</h2>" +
+                    "<div style=\"width: 100%; border: 2px solid\">" +
+                        "<p>");
+            streamLog(logs.openLog(b, section[1]), out);
+            out.write("</p>" +
+                    "</div>");
+            flushResponseWriter(response);
+        }
+        out.write(
+                    "</div>" +
+                "</body>" +
+            "</html>");
+        flushResponseWriter(response);
+    }
+
+    /**
+     * @param b a build
+     * @return a table with the status, wall time and CPU time of every stage of the build and whether its Maven
+     * commands ran in warm JVMs, empty for older builds
+     */
+    private String stageTimings(Build b) {
+        if (b.getStageTimings() == null || b.getStageTimings().isEmpty()) {
+            return "";
+        }
+        StringBuilder table = new StringBuilder("<table style=\"margin: auto;\">" +
+                "<tr><th>Stage</th><th>Status</th><th>Wall time</th><th>CPU time</th><th>Maven JVM</th></tr>");
+        MavenDaemonPool daemons = MavenDaemonPool.shared();
+        for (stageTiming t : b.getStageTimings()) {
+            table.append("<tr><td>").append(t.getStage()).append("</td><td>").append(t.getStatus()).append(t.isCached() ? " (cached)" : "").append("</td><td>")
+                    .append(t.getWallMillis()).append(" ms</td><td>")
+                    .append(t.getCpuMillis() < 0 ? "-" : t.getCpuMillis() + " ms").append("</td><td>")
+                    .append(t.getMaven() == null ? "-" : t.getMaven());
+            Long warm = daemons.averageStageMillis(t.getStage(), true);
+            Long cold = daemons.averageStageMillis(t.getStage(), false);
+            if (warm != null && cold != null) {
+                table.append(" (").append(warm).append(" ms warm, ").append(cold).append(" ms cold on average)");
+            }
+            table.append("</td></tr>");
+        }
+        return table.append("</table>").toString();
+    }
+
+    /**
+     * @param b a build
+     * @return the errors read from the Maven output of the build, the result of every module and its slowest
+     * plugin goals, empty for builds from before the output was read
+     */
+    private String diagnostics(Build b) {
+        buildDiagnostics d = b.getDiagnostics();
+        if (d == null) {
+            return "";
+        }
+        StringBuilder html = new StringBuilder();
+        if (!d.getErrorTypes().isEmpty()) {
+            html.append("<p style=\"text-align: center;\">Failed because of ").append(String.join(", ", d.getErrorTypes()).toLowerCase().replace('_', ' '));
+            if (d.getFailedGoal() != null) {
+                html.append("<br>").append(escape(d.getFailedGoal()));
+            }
+            html.append("</p>");
+        }
+        if (!d.getCompilerErrors().isEmpty()) {
+            html.append("<h2>Compiler errors</h2><table style=\"margin: auto;\"><tr><th>File</th><th>Line</th><th>Message</th></tr>");
+            for (compilerError e : d.getCompilerErrors()) {
+                html.append("<tr><td>").append(escape(e.getFile())).append("</td><td>").append(e.getLine()).append(":").append(e.getColumn())
+                        .append("</td><td>").append(escape(e.getMessage())).append("</td></tr>");
+            }
+            html.append("</table>");
+        }
+        // builds with test reports list their failed tests from the reports
+        List<testCaseResult> cases = b.getTestResult() == null ? null : b.getTestResult().getTestCases();
+        if (!d.getTestFailures().isEmpty() && (cases == null || cases.isEmpty())) {
+            html.append("<h2>Failed tests</h2><table style=\"margin: auto;\"><tr><th>Test</th><th>Status</th><th>Message</th></tr>");
+            for (testFailure f : d.getTestFailures()) {
+                html.append("<tr><td>").append(escape(f.getClassName() + "." + f.getName())).append("</td><td>").append(f.getKind())
+                        .append("</td><td>").append(escape(f.getMessage() == null ? "" : f.getMessage())).append("</td></tr>");
+            }
+            html.append("</table>");
+        }
+        if (d.getReactor().size() > 1) {
+            html.append("<h2>Modules</h2><table style=\"margin: auto;\"><tr><th>Module</th><th>Result</th><th>Wall time</th></tr>");
+            for (moduleResult r : d.getReactor()) {
+                html.append("<tr><td>").append(escape(r.getModule())).append("</td><td>").append(r.getStatus()).append("</td><td>")
+                        .append(r.getWallMillis() < 0 ? "-" : r.getWallMillis() + " ms").append("</td></tr>");
+            }
+            html.append("</table>");
+        }
+        if (!d.getPluginTimings().isEmpty()) {
+            html.append("<h2>Slowest plugin goals</h2><table style=\"margin: auto;\"><tr><th>Goal</th><th>Module</th><th>Wall time</th><th>Runs</th></tr>");
+            List<pluginTiming> slowest = new ArrayList<>(d.getPluginTimings());
+            slowest.sort((x, y) -> Long.compare(y.getWallMillis(), x.getWallMillis()));
+            for (pluginTiming t : slowest.subList(0, Math.min(SLOWEST_GOALS, slowest.size()))) {
+                html.append("<tr><td>").append(escape(t.getGoal())).append("</td><td>").append(escape(t.getModule())).append("</td><td>")
+                        .append(t.getWallMillis()).append(" ms</td><td>").append(t.getExecutions()).append("</td></tr>");
+            }
+            html.append("</table>");
+        }
+        return html.toString();
+    }
+
+    /**
+     * @param b a build
+     * @return the number of tests, the failed, flaky and slowest tests of the build, empty if its test reports were not read
+     */
+    private String testCases(Build b) {
+        List<testCaseResult> cases = b.getTestResult() == null ? null : b.getTestResult().getTestCases();
+        if (cases == null || cases.isEmpty()) {
+            return "";
+        }
+        long failed = cases.stream().filter(testCaseResult::isFailed).count();
+        long skipped = cases.stream().filter(c -> testCaseResult.SKIPPED.equals(c.getStatus())).count();
+        long flaky = cases.stream().filter(c -> testCaseResult.FLAKY.equals(c.getStatus())).count();
+        StringBuilder html = new StringBuilder("<p style=\"text-align: center;\">")
+                .append(cases.size()).append(" tests, ").append(failed).append(" failed, ")
+                .append(flaky > 0 ? flaky + " flaky, " : "").append(skipped).append(" skipped</p>");
+        if (failed > 0) {
+            html.append("<h2>Failed tests</h2><table style=\"margin: auto;\"><tr><th>Test</th><th>Status</th><th>Message</th></tr>");
+            for (testCaseResult c : cases) {
+                if (c.isFailed()) {
+                    html.append("<tr><td>").append(escape(c.getClassName() + "." + c.getName())).append("</td><td>").append(c.getStatus())
+                            .append("</td><td>").append(escape(c.getMessage() == null ? "" : c.getMessage())).append("</td></tr>");
+                }
+            }
+            html.append("</table>");
+        }
+        if (flaky > 0) {
+            html.append("<h2>Flaky tests</h2><table style=\"margin: auto;\"><tr><th>Test</th><th>First failure</th><th>Flaky in all builds</th></tr>");
+            for (testCaseResult c : cases) {
+                if (testCaseResult.FLAKY.equals(c.getStatus())) {
+                    FlakyTestIndex.Entry entry = flakyTests == null ? null : flakyTests.get(FlakyTestIndex.key(c));
+                    html.append("<tr><td>").append(escape(c.getClassName() + "." + c.getName())).append("</td><td>")
+                            .append(escape(c.getMessage() == null ? "" : c.getMessage())).append("</td><td>")
+                            .append(entry == null ? "-" : entry.getFlakes() + " of " + entry.getRuns() + " runs").append("</td></tr>");
+                }
+            }
+            html.append("</table>");
+        }
+        html.append("<h2>Slowest tests</h2><table style=\"margin: auto;\"><tr><th>Test</th><th>Time</th></tr>");
+        for (testCaseResult c : SurefireReports.slowest(cases, SLOWEST_TESTS)) {
+            html.append("<tr><td>").append(escape(c.getClassName() + "." + c.getName())).append("</td><td>")
+                    .append(c.getDurationMillis()).append(" ms</td></tr>");
+        }
+        return html.append("</table>").toString();
+    }
+
+    /**
+     * @param b a build
+     * @return how many sources were compiled and how long that took compared with compiling everything,
+     * empty for builds without the compile cache
+     */
+    private String incrementalCompile(Build b) {
+        incrementalCompile compile = b.getIncrementalCompile();
+        if (compile == null) {
+            return "";
+        }
+        StringBuilder html = new StringBuilder("<p style=\"text-align: center;\">");
+        if (compile.isRestored()) {
+            html.append("Compiled ").append(compile.getRecompiled()).append(" of ").append(compile.getSources())
+                    .append(" sources with the classes of ").append(escape(compile.getBaseCommit())).append(", ")
+                    .append(escape(compile.getReason()));
         } else {
-            response.getWriter().write(
-                "<html>" +
-                    "<head>" +
-                        "<title>Build " + b.getBuildID() + "</title>" +
-                    "</head>" +
-                    "<body>" +
-                        "<div style=\"text-align: center; width: 100%;\">" +
-                            "<h1>Commit " + b.getCommitHash() + " on branch " + b.getBranch() + " built at " + b.getBuildDate() + " with id " + b.getBuildID() + "</h1>" +
-                        "</div>" +
-                        "<div>" +
-                            "<h2>Install results</h2>" +
-                            "<div style=\"width: 100%; border: 2px solid\">" +
-                                "<p>" + prettyPrint(b.getInstallResult().getInstallLogs()) + "</p>" +
-                            "</div>" +
-                            "<h2>Build results</h2>" +
-                            "<div style=\"width: 100%; border: 2px solid\">" +
-                                "<p>" + prettyPrint(b.getBuildResult().getBuildLogs()) + "</p>" +
-                            "</div>" +
-                            "<h2>Test results</h2>" +
-                            "<div style=\"width: 100%; border: 2px solid\">" +
-                                "<p>" + prettyPrint(b.getTestResult().getTestLogs()) + "</p>" +
-                            "</div>" +
-                        "</div>" +
-                    "</body>" +
-                "</html>");
+            html.append("Compiled all ").append(compile.getSources()).append(" sources: ").append(escape(compile.getReason()));
+        }
+        Long restored = CompileCache.shared().averageCompileMillis(true);
+        Long clean = CompileCache.shared().averageCompileMillis(false);
+        if (restored != null && clean != null) {
+            html.append("<br>Compiling takes ").append(restored).append(" ms with restored classes and ")
+                    .append(clean).append(" ms without on average");
+        }
+        return html.append("</p>").toString();
+    }
+
+    /**
+     * @param b a build
+     * @return the predicted and the actual wall time of the test stage, empty if no tests ran
+     */
+    private String testSchedule(Build b) {
+        testSchedule schedule = b.getTestSchedule();
+        if (schedule == null) {
+            return "";
+        }
+        return "<p style=\"text-align: center;\">Tests took " + schedule.getActualMillis() + " ms"
+                + (schedule.getPredictedMillis() == null ? "" : ", predicted " + schedule.getPredictedMillis() + " ms")
+                + " in " + schedule.getForks() + (schedule.getForks() == 1 ? " fork" : " forks")
+                + (schedule.isPacked() ? ", longest classes first" : "") + "</p>";
+    }
+
+    /**
+     * @param b a build
+     * @return which tests ran and the time that was saved, empty if all tests ran without choosing them
+     */
+    private String testSelection(Build b) {
+        testSelection selection = b.getTestSelection();
+        if (selection == null) {
+            return "";
+        }
+        StringBuilder html = new StringBuilder("<p style=\"text-align: center;\">");
+        if (selection.isFullRun()) {
+            html.append("All tests ran: ").append(escape(selection.getReason()));
+        } else {
+            html.append(selection.getTests().size()).append(" test classes ran, affected by ").append(escape(selection.getReason()))
+                    .append(", about ").append(selection.getSavedMillis()).append(" ms saved");
+            if (!selection.getTests().isEmpty()) {
+                html.append("<br>").append(escape(String.join(", ", selection.getTests())));
+            }
+        }
+        return html.append("</p>").toString();
+    }
+
+    /**
+     * @param text text to show in a page
+     * @return the text with html characters escaped
+     */
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Sends what was read from the Maven output of a build as JSON: its compiler errors, failed tests, the result
+     * of every module, the wall time of every plugin goal and the types of errors it failed with.
+     *
+     * @param buildID: the id of the build
+     * @param response: Where to send the result
+     */
+    private void diagnostics(String buildID, HttpServletResponse response) throws IOException {
+        Build b;
+        try {
+            b = db.findBuild(Integer.parseInt(buildID));
+        } catch (NumberFormatException e) {
+            b = null;
         }
+        if (b == null || b.getDiagnostics() == null) {
+            fourOFour(response);
+            return;
+        }
+        response.setContentType("application/json;charset=utf-8");
+        response.getWriter().write(new Gson().toJson(b.getDiagnostics()));
         flushResponseWriter(response);
     }
 
     /**
-     * Fetches information about all builds that have been processed
+     * Sends the jar of a build. A jar in the artifact store is put together from its stored entries while it
+     * is sent, a jar of a build directory from before the store is sent as it is. Both are copied to the
+     * response with FileChannel.transferTo, without going through the heap.
+     *
+     * @param buildID: the id of the build
+     * @param response: Where to send the jar
+     */
+    private void artifact(String buildID, HttpServletResponse response) throws IOException {
+        Build b;
+        try {
+            b = db.findBuild(Integer.parseInt(buildID));
+        } catch (NumberFormatException e) {
+            b = null;
+        }
+        if (b == null || b.getLogDirectory() == null) {
+            fourOFour(response);
+            return;
+        }
+        File directory = ArtifactStore.artifactDirectory(b);
+        String name = b.getCommitHash() + ".jar";
+        File jar = new File(directory, name);
+        ArtifactStore store = ArtifactStore.of(directory);
+        long size = artifactSize(b);
+        if (size < 0) {
+            fourOFour(response);
+            return;
+        }
+        response.setContentType("application/java-archive");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+        response.setHeader("Content-Length", String.valueOf(size));
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        if (jar.isFile()) {
+            try (FileChannel in = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+        } else {
+            store.transferJar(directory, name, out);
+        }
+        response.flushBuffer();
+    }
+
+    /**
+     * @param b a build
+     * @return the size of the build's jar in bytes, -1 if it has none
+     */
+    private static long artifactSize(Build b) {
+        if (b.getLogDirectory() == null) {
+            return -1;
+        }
+        File directory = ArtifactStore.artifactDirectory(b);
+        File jar = new File(directory, b.getCommitHash() + ".jar");
+        return jar.isFile() ? jar.length() : ArtifactStore.of(directory).jarSize(directory, jar.getName());
+    }
+
+    /**
+     * Streams the output of a running build until it finishes. Clients asking for text/event-stream get
+     * Server-Sent Events with one event per line and a final "end" event, other clients get the lines as
+     * chunked plain text. A build that has already finished is redirected to its build page.
+     *
+     * @param buildID: the id of the running build
+     * @param request: HTTP request as per Servlet's implementation
+     * @param response: Where to send the result
+     */
+    private void live(String buildID, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int id;
+        try {
+            id = Integer.parseInt(buildID);
+        } catch (NumberFormatException e) {
+            fourOFour(response);
+            return;
+        }
+        LiveLog liveLog = LiveLog.of(id);
+        if (liveLog == null) {
+            if (db.findBuild(id) != null) {
+                response.sendRedirect("/build/" + id);
+            } else {
+                fourOFour(response);
+            }
+            return;
+        }
+        String accept = request.getHeader("Accept");
+        boolean sse = accept != null && accept.contains("text/event-stream");
+        response.setContentType(sse ? "text/event-stream;charset=utf-8" : "text/plain;charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        List<String> lines = new ArrayList<>();
+        long position = 0;
+        try {
+            while (!liveLog.isFinished(position)) {
+                lines.clear();
+                position = liveLog.read(position, lines, 15000);
+                for (String line : lines) {
+                    out.write(sse ? "data: " + line + "\n\n" : line + "\n");
+                }
+                if (lines.isEmpty() && sse && !liveLog.isFinished(position)) {
+                    // keeps proxies from closing an idle connection
+                    out.write(": keep-alive\n\n");
+                }
+                flushResponseWriter(response);
+                if (out.checkError()) {
+                    // the viewer went away
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sse) {
+            out.write("event: end\ndata: /build/" + id + "\n\n");
+        }
+        flushResponseWriter(response);
+    }
+
+    /**
+     * Fetches information about the builds that have been processed, newest first, one page at a time.
+     * Query parameters:
+     *      * "page": the page to show, starting at 1
+     *      * "size": number of builds per page, 50 by default and at most 500
+     *      * "branch": only show builds of this branch
+     *      * "status": "success" or "failure", only show builds whose tests succeeded/failed
+     *      * "error": e.g. "compilation" or "test_failure", only show builds that failed with that type of error
+     * Rendered pages are cached until a build is added. The page carries an ETag and Last-Modified
+     * header, so a client that polls the page gets 304 Not Modified until there is a new build.
      *
      * @param baseRequest: the base HTTP request
      * @param request: HTTP request as per Servlet's implementation
      * @param response: Where to send the result
      */
     private void history(Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
-        // Fetch the full commit-history and write it to the response
+        int page = Math.max(1, intParameter(request, "page", 1));
+        int size = Math.max(1, Math.min(500, intParameter(request, "size", 50)));
+        String branch = request.getParameter("branch");
+        String status = request.getParameter("status");
+        String error = request.getParameter("error");
+        String key = page + "|" + size + "|" + branch + "|" + status + "|" + error;
+
+        long version = db.getVersion();
+        long lastModified = db.getLastModified();
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + version + "-" + Integer.toHexString(key.hashCode()) + "\"";
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", "no-cache");
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        long ifModifiedSince = ifNoneMatch == null ? request.getDateHeader("If-Modified-Since") : -1;
+        // Last-Modified is sent with second precision
+        if (etag.equals(ifNoneMatch) || (ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        String html = historyPages.get(key, version);
+        if (html == null) {
+            html = renderHistory(page, size, branch, status, error);
+            historyPages.put(key, version, html);
+        }
+        response.getWriter().write(html);
+        flushResponseWriter(response);
+    }
+
+    /**
+     * Renders one page of the build history.
+     * @param page the page to show, starting at 1
+     * @param size number of builds per page
+     * @param branch only show builds of this branch, null for all branches
+     * @param status "success", "failure" or "cancelled" to only show builds with that outcome, null for all
+     * @param error a type of error of buildDiagnostics to only show builds that failed with it, null for all
+     * @return the html of the page
+     */
+    private String renderHistory(int page, int size, String branch, String status, String error) {
+        // the branch index gives the builds of a branch without looking at the others
+        List<Build> builds = (branch == null || branch.isEmpty()) ? db.getSnapshot() : db.findBuildsByBranch(branch);
+        String wanted = (status == null || status.isEmpty()) ? null : status.toUpperCase();
+        String wantedError = (error == null || error.isEmpty()) ? null : error.toUpperCase();
+
         StringBuilder html = new StringBuilder(
             "<html>" +
                 "<head>" +
@@ -201,10 +755,28 @@ public class ContinuousIntegrationServer extends AbstractHandler {
                                 "<th>Install result</th>" +
                                 "<th>Build result</th>" +
                                 "<th>Test result</th>" +
+                                "<th>Errors</th>" +
                             "</tr>");
-        ArrayList<Build> builds = db.getBuildHistory();
+        int skip = (page - 1) * size;
+        int shown = 0;
+        boolean more = false;
         for (int i = builds.size()-1; i >= 0; i--) {
             Build b = builds.get(i);
+            if (wanted != null && !wanted.equals(b.getStatus())) {
+                continue;
+            }
+            if (wantedError != null && (b.getDiagnostics() == null || !b.getDiagnostics().getErrorTypes().contains(wantedError))) {
+                continue;
+            }
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (shown == size) {
+                more = true;
+                break;
+            }
+            shown++;
             html.append("<tr><td>").append(b.getBuildID()).append("</td>")
                     .append("<td>")
                     .append("<a href=/build/").append(b.getBuildID()).append(">").append(b.getCommitHash()).append("</a></td>")
@@ -212,14 +784,131 @@ public class ContinuousIntegrationServer extends AbstractHandler {
                     .append("<td>").append(b.getBuildDate()).append("</td>")
                     .append("<td>").append(b.getInstallResult().isInstallSuccessfull() ? "Success" : "Failure").append("</td>")
                     .append("<td>").append(b.getBuildResult().isBuildSuccessfull() ? "Success" : "Failure").append("</td>")
-                    .append("<td>").append(b.getTestResult().isTestSuccessfull() ? "Success" : "Failure").append("</td>")
+                    .append("<td>").append(Integrator.STATUS_CANCELLED.equals(b.getStatus()) ? "Cancelled"
+                            : Integrator.STATUS_FLAKY.equals(b.getStatus()) ? "Passed with flakes"
+                            : b.getTestResult().isTestSuccessfull() ? "Success" : "Failure").append("</td>")
+                    .append("<td>").append(b.getDiagnostics() == null ? "" : String.join(", ", b.getDiagnostics().getErrorTypes()).toLowerCase()).append("</td>")
                     .append("</tr>");
         }
+        html.append("</table>");
+        String filters = "&size=" + size
+                + (branch == null ? "" : "&branch=" + URLEncoder.encode(branch, StandardCharsets.UTF_8))
+                + (status == null ? "" : "&status=" + URLEncoder.encode(status, StandardCharsets.UTF_8))
+                + (error == null ? "" : "&error=" + URLEncoder.encode(error, StandardCharsets.UTF_8));
+        if (page > 1) {
+            html.append("<a href=\"/allBuilds?page=").append(page - 1).append(filters).append("\">Newer</a> ");
+        }
+        if (more) {
+            html.append("<a href=\"/allBuilds?page=").append(page + 1).append(filters).append("\">Older</a>");
+        }
         html.append(
-                            "</table>" +
                         "</div>" +
                     "</body>" +
                 "</html>");
+        return html.toString();
+    }
+
+    /**
+     * @param request: HTTP request as per Servlet's implementation
+     * @param name: name of the query parameter
+     * @param defaultValue: used if the parameter is missing or not a number
+     * @return the value of the query parameter
+     */
+    private static int intParameter(HttpServletRequest request, String name, int defaultValue) {
+        try {
+            String value = request.getParameter(name);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Writes the metrics of the server as plain text, one "name value" pair per line.
+     *
+     * @param response: Where to send the result
+     */
+    private void metrics(HttpServletResponse response) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        scheduler.appendMetrics(sb);
+        json.appendMetrics(sb);
+        logs.appendMetrics(sb);
+        Integrator.mirror().appendMetrics(sb);
+        DependencyCache.shared().appendMetrics(sb);
+        CompileCache.shared().appendMetrics(sb);
+        WorkspacePool.shared().appendMetrics(sb);
+        MavenDaemonPool.shared().appendMetrics(sb);
+        ArtifactStore.appendAllMetrics(sb);
+        results.appendMetrics(sb);
+        deliveries.appendMetrics(sb);
+        durations.appendMetrics(sb);
+        flakyTests.appendMetrics(sb);
+        CommitStatusReporter.shared().appendMetrics(sb);
+        buildPageTtfb.appendMetrics(sb);
+        webhookAck.appendMetrics(sb);
+        logSearch.appendMetrics(sb);
+        logIndex.appendMetrics(sb);
+        historyPages.appendMetrics("history_page", sb);
+        response.setContentType("text/plain;charset=utf-8");
+        response.getWriter().write(sb.toString());
+        flushResponseWriter(response);
+    }
+
+    /**
+     * Lists the tests that have been flaky, with how often they ran and were flaky and the last build they were flaky in.
+     * @param response the servlet response the page is written to
+     * @throws IOException if the response can not be written
+     */
+    private void flaky(HttpServletResponse response) throws IOException {
+        StringBuilder html = new StringBuilder("<html><head><title>Flaky tests</title></head><body>" +
+                "<h1>Flaky tests</h1><table><tr><th>Test</th><th>Flaky</th><th>Runs</th><th>Last flaky in</th></tr>");
+        for (FlakyTestIndex.Entry entry : flakyTests.flakiest(FLAKY_TESTS)) {
+            html.append("<tr><td>").append(escape(entry.getTest())).append("</td><td>").append(entry.getFlakes())
+                    .append("</td><td>").append(entry.getRuns()).append("</td><td><a href=\"/build/").append(entry.getLastFlakyBuild())
+                    .append("\">build ").append(entry.getLastFlakyBuild()).append("</a></td></tr>");
+        }
+        html.append("</table></body></html>");
+        response.getWriter().write(html.toString());
+        flushResponseWriter(response);
+    }
+
+    /**
+     * Shows the builds whose logs contain all words of the query parameter q, the newest first, with the
+     * numbers of the lines that contain them. The builds are found in the log index, the logs are not read.
+     * Clients asking for application/json get the results as JSON.
+     *
+     * @param request: HTTP request as per Servlet's implementation
+     * @param response: Where to send the result
+     * @param startNanos: System.nanoTime() when the request arrived, used to measure the time of the search
+     */
+    private void searchLogs(HttpServletRequest request, HttpServletResponse response, long startNanos) throws IOException {
+        String query = request.getParameter("q") == null ? "" : request.getParameter("q");
+        LogIndex.Results results = logIndex.search(query, SEARCH_RESULTS);
+        logSearch.recordSince(startNanos);
+        String accept = request.getHeader("Accept");
+        if (accept != null && accept.contains("application/json")) {
+            response.setContentType("application/json;charset=utf-8");
+            response.getWriter().write(new Gson().toJson(results));
+            flushResponseWriter(response);
+            return;
+        }
+        StringBuilder html = new StringBuilder("<html><head><title>Search the logs</title></head><body>" +
+                "<h1>Search the logs</h1><form action=\"/search\"><input name=\"q\" size=\"60\" value=\"")
+                .append(escape(query)).append("\"><input type=\"submit\" value=\"Search\"></form>");
+        if (!query.isBlank()) {
+            html.append("<p>").append(results.getTotal()).append(" builds")
+                    .append(results.getTotal() > results.getMatches().size() ? ", the newest " + results.getMatches().size() + " are listed" : "")
+                    .append("</p><table><tr><th>Build</th><th>Lines</th></tr>");
+            for (LogIndex.Match match : results.getMatches()) {
+                html.append("<tr><td><a href=\"/build/").append(match.getBuildID()).append("\">build ").append(match.getBuildID()).append("</a></td><td>");
+                for (Map.Entry<String, List<Integer>> log : match.getLines().entrySet()) {
+                    html.append(escape(log.getKey())).append(": ").append(log.getValue().stream().map(String::valueOf).collect(Collectors.joining(", "))).append("<br>");
+                }
+                html.append("</td></tr>");
+            }
+            html.append("</table>");
+        }
+        html.append("</body></html>");
         response.getWriter().write(html.toString());
         flushResponseWriter(response);
     }
@@ -263,8 +952,39 @@ public class ContinuousIntegrationServer extends AbstractHandler {
 
         Server server = new Server(8080);
         server.setHandler(new ContinuousIntegrationServer());
+        int recovered = scheduler.recover();
+        if (recovered > 0) {
+            System.out.println("Recovered " + recovered + " queued builds from " + BuildScheduler.QUEUE_DIRECTORY);
+        }
+        Integrator.prewarmMaven();
+        // builds saved before the log index existed are indexed in the background
+        Thread indexer = new Thread(() -> logIndex.indexAll(ContinuousIntegrationServer.db.getSnapshot(), logs), "log-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        // the workers and the status sender are daemon threads, on SIGTERM they are drained here before the JVM exits
+        long timeoutMillis = Config.getLong(SHUTDOWN_TIMEOUT_KEY, 120) * 1000;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(server, timeoutMillis), "shutdown"));
         server.start();
         server.join();
     }
 
+    /**
+     * Stops the server: no more webhooks are taken, the running builds are given time to finish and their
+     * statuses are sent to GitHub. Queued builds, and builds that do not finish in time, are built after a restart.
+     * @param server the server
+     * @param timeoutMillis how long to wait for the running builds
+     */
+    static void stop(Server server, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            server.stop();
+            scheduler.shutdown(timeoutMillis);
+            if (!CommitStatusReporter.shared().flush(Math.max(STATUS_FLUSH_MILLIS, deadline - System.currentTimeMillis()))) {
+                System.err.println("Some commit statuses could not be sent before the server stopped");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -0,0 +1,227 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the webhook deliveries that were queued, by their X-GitHub-Delivery id and by the pushed
+ * repository, commit and branch, so that a delivery GitHub retries or sends twice is acknowledged without
+ * building the commit again. Entries expire after DD2480_DEDUP_TTL_SECONDS and at most
+ * DD2480_DEDUP_ENTRIES are kept, the oldest are dropped first.
+ *
+ * The index survives restarts: entries are appended to a {@link BuildHistoryLog} next to a snapshot file,
+ * and the log is folded into the snapshot once it holds twice as many records as the index has entries.
+ * Appends are not synced, a crash may forget the newest entries, which only lets their retries build again.
+ */
+public class DeliveryIndex {
+
+    public final static String TTL_KEY = "DD2480_DEDUP_TTL_SECONDS";
+    public final static String ENTRIES_KEY = "DD2480_DEDUP_ENTRIES";
+    public final static String DEFAULT_PATH = "deliveries.txt";
+
+    private final static String DELIVERY = "delivery:";
+    private final static String COMMIT = "commit:";
+
+    private final Path snapshot;
+    private final BuildHistoryLog log;
+    private final long ttlMillis;
+    private final int maxEntries;
+    // key to the time it was claimed, oldest first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+
+    // metrics
+    private final AtomicLong duplicateDeliveries = new AtomicLong();
+    private final AtomicLong duplicateCommits = new AtomicLong();
+
+    /**
+     * Creates the index of the server, stored in deliveries.txt and deliveries.wal, configured from
+     * DD2480_DEDUP_TTL_SECONDS (default one day) and DD2480_DEDUP_ENTRIES (default 10000).
+     */
+    public DeliveryIndex() {
+        this(DEFAULT_PATH, Config.getLong(TTL_KEY, 24 * 60 * 60) * 1000, Config.getInt(ENTRIES_KEY, 10000));
+    }
+
+    /**
+     * Creates an index and loads the entries that were stored before.
+     * @param path path of the snapshot file, the log is kept next to it with the extension .wal
+     * @param ttlMillis how long a delivery is remembered
+     * @param maxEntries how many entries are remembered at most
+     */
+    public DeliveryIndex(String path, long ttlMillis, int maxEntries) {
+        this.snapshot = Path.of(path);
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.log = new BuildHistoryLog((path.endsWith(".txt") ? path.substring(0, path.length() - 4) : path) + ".wal", 0);
+        load();
+    }
+
+    /**
+     * @param push the pushed commit
+     * @return the key that identifies the build of a push, null for deleted branches that are not built
+     */
+    public static String commitKey(PushEvent push) {
+        return push.isDeleted() ? null : push.getFullName() + ":" + push.getAfter() + ":" + push.getRef();
+    }
+
+    /**
+     * Claims a delivery for building, unless it or the same commit on the same branch was claimed before
+     * and has not expired yet.
+     * @param deliveryId the X-GitHub-Delivery header, null if there is none
+     * @param commitKey the key from {@link #commitKey(PushEvent)}, null if it is unknown
+     * @return true if the delivery should be built, false if it is a duplicate
+     */
+    public synchronized boolean claim(String deliveryId, String commitKey) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (deliveryId != null && entries.containsKey(DELIVERY + deliveryId)) {
+            duplicateDeliveries.incrementAndGet();
+            return false;
+        }
+        if (commitKey != null && entries.containsKey(COMMIT + commitKey)) {
+            duplicateCommits.incrementAndGet();
+            return false;
+        }
+        if (deliveryId != null) {
+            put(DELIVERY + deliveryId, now);
+        }
+        if (commitKey != null) {
+            put(COMMIT + commitKey, now);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a claim, e.g. because the delivery could not be queued and GitHub should be able to retry it.
+     * @param deliveryId the id passed to {@link #claim(String, String)}
+     * @param commitKey the key passed to {@link #claim(String, String)}
+     */
+    public synchronized void release(String deliveryId, String commitKey) {
+        if (deliveryId != null) {
+            put(DELIVERY + deliveryId, 0);
+        }
+        if (commitKey != null) {
+            put(COMMIT + commitKey, 0);
+        }
+    }
+
+    /**
+     * Adds an entry, or removes it if the time is 0, and records this in the log.
+     */
+    private void put(String key, long time) {
+        if (time == 0) {
+            entries.remove(key);
+        } else {
+            entries.put(key, time);
+            trim();
+        }
+        try {
+            log.append(time + " " + key);
+            if (log.getRecordCount() >= 2 * maxEntries) {
+                log.compact(this::writeSnapshot);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drops the oldest entries until no more than maxEntries are left.
+     */
+    private void trim() {
+        Iterator<String> oldest = entries.keySet().iterator();
+        while (entries.size() > maxEntries) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Long> times = entries.values().iterator();
+        while (times.hasNext() && times.next() <= now - ttlMillis) {
+            times.remove();
+        }
+    }
+
+    private void load() {
+        try {
+            if (Files.exists(snapshot)) {
+                for (String line : Files.readAllLines(snapshot, StandardCharsets.UTF_8)) {
+                    read(line);
+                }
+            }
+            for (String record : log.replay()) {
+                read(record);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        expire(System.currentTimeMillis());
+        trim();
+    }
+
+    private void read(String record) {
+        String[] parts = record.split(" ", 2);
+        if (parts.length < 2) {
+            return;
+        }
+        try {
+            long time = Long.parseLong(parts[0]);
+            entries.remove(parts[1]);
+            if (time != 0) {
+                entries.put(parts[1], time);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring malformed delivery record: " + record);
+        }
+    }
+
+    /**
+     * Writes the entries to a temporary file that replaces the snapshot once it is on disk.
+     */
+    private void writeSnapshot() throws IOException {
+        Path tmp = Path.of(snapshot + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of deliveries and commits that are remembered
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getDuplicateDeliveries() {
+        return duplicateDeliveries.get();
+    }
+
+    public long getDuplicateCommits() {
+        return duplicateCommits.get();
+    }
+
+    /**
+     * Writes the metrics of the index as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        sb.append("dedup_entries ").append(size()).append('\n')
+                .append("dedup_duplicate_deliveries ").append(duplicateDeliveries.get()).append('\n')
+                .append("dedup_duplicate_commits ").append(duplicateCommits.get()).append('\n');
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Local Maven repositories shared between builds, one per dependency fingerprint. The fingerprint is a
+ * SHA-256 hash of the pom files of the project, so commits that do not change a pom use the same local
+ * repository and do not need to resolve their dependencies again.
+ *
+ * The first build of a fingerprint resolves the dependencies and the plugins while holding the lock of the
+ * fingerprint, builds of the same fingerprint that start meanwhile wait for it and then use the result. A new local
+ * repository is warmed up with a copy of the most recently used one, so that only the dependencies that
+ * changed are downloaded. Local repositories that are in use are never evicted.
+ */
+public class DependencyCache {
+
+    // used as keys for the settings of the cache
+    public final static String DIRECTORY_KEY = "DD2480_DEPENDENCY_CACHE_DIRECTORY";
+    public final static String ENTRIES_KEY = "DD2480_DEPENDENCY_CACHE_ENTRIES";
+
+    private final static String RESOLVED_MARKER = ".resolved";
+
+    private static DependencyCache shared;
+
+    private final File root;
+    private final int maxEntries;
+    private final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> users = new ConcurrentHashMap<>();
+
+    // metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param root directory holding the local repositories
+     * @param maxEntries number of local repositories kept, the least recently used ones are deleted
+     */
+    public DependencyCache(File root, int maxEntries) {
+        this.root = root;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cache used by the builds, in DD2480_DEPENDENCY_CACHE_DIRECTORY ("m2cache/" by default)
+     * keeping DD2480_DEPENDENCY_CACHE_ENTRIES (8 by default) local repositories
+     */
+    public static synchronized DependencyCache shared() {
+        if (shared == null) {
+            shared = new DependencyCache(new File(Config.getString(DIRECTORY_KEY, "m2cache/")), Config.getInt(ENTRIES_KEY, 8));
+        }
+        return shared;
+    }
+
+    /**
+     * Computes the dependency fingerprint of a checked out project: the paths and contents of all its pom
+     * files and of the Maven configuration in .mvn/.
+     * @param repository the checked out project
+     * @return the fingerprint as hex string
+     */
+    public static String fingerprint(File repository) throws IOException {
+        Path base = repository.toPath();
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(base)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(p -> !p.startsWith(base.resolve(".git")) && !p.toString().contains(File.separator + "target" + File.separator))
+                    .filter(p -> p.getFileName().toString().equals("pom.xml") || base.relativize(p).startsWith(".mvn"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (Path file : files) {
+                sha.update(base.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                sha.update((byte) 0);
+                sha.update(Files.readAllBytes(file));
+                sha.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : sha.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Makes sure the dependencies of a fingerprint are in its local repository. The local repository stays
+     * in use, and is not evicted, until {@link #release(String)} is called.
+     * @param fingerprint the dependency fingerprint of the project
+     * @param resolver resolves the dependencies into the given local repository, returns true on success
+     * @param log receives what the cache does
+     * @return true on a cache hit, false if the dependencies were resolved now
+     * @throws IOException if the dependencies could not be resolved
+     */
+    public boolean prepare(String fingerprint, Resolver resolver, Pipeline.LineSink log) throws IOException {
+        users.computeIfAbsent(fingerprint, k -> new AtomicInteger()).incrementAndGet();
+        ReentrantLock lock = locks.computeIfAbsent(fingerprint, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            File marker = new File(entry(fingerprint), RESOLVED_MARKER);
+            if (marker.exists()) {
+                hits.incrementAndGet();
+                Files.setLastModifiedTime(marker.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+                log.accept("Dependencies of pom fingerprint " + fingerprint + " are cached in " + getLocalRepository(fingerprint));
+                return true;
+            }
+            misses.incrementAndGet();
+            File localRepository = getLocalRepository(fingerprint);
+            if (!localRepository.exists()) {
+                warmUp(localRepository, log);
+            }
+            log.accept("Resolving dependencies of pom fingerprint " + fingerprint + " into " + localRepository);
+            if (!resolver.resolve(localRepository)) {
+                throw new IOException("Resolving the dependencies failed");
+            }
+            Files.createFile(marker.toPath());
+        } finally {
+            lock.unlock();
+        }
+        evict();
+        return false;
+    }
+
+    /**
+     * Marks the local repository of a fingerprint as no longer used by a build.
+     * @param fingerprint the dependency fingerprint
+     */
+    public void release(String fingerprint) {
+        AtomicInteger count = users.get(fingerprint);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param fingerprint a dependency fingerprint
+     * @return the local Maven repository of the fingerprint
+     */
+    public File getLocalRepository(String fingerprint) {
+        return new File(entry(fingerprint), "repository").getAbsoluteFile();
+    }
+
+    private File entry(String fingerprint) {
+        return new File(root, fingerprint);
+    }
+
+    /**
+     * Seeds a new local repository with the most recently used resolved one, so that Maven only downloads
+     * what changed. The files are copied and not linked because Maven rewrites some of them in place.
+     */
+    private void warmUp(File localRepository, Pipeline.LineSink log) throws IOException {
+        File newest = resolvedEntries().stream().findFirst().orElse(null);
+        if (newest == null) {
+            return;
+        }
+        Path from = new File(newest, "repository").toPath();
+        Path to = localRepository.toPath();
+        log.accept("Warming up " + localRepository + " from " + from);
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                Path target = to.resolve(from.relativize(p).toString());
+                if (Files.isDirectory(p)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (IOException e) {
+            // a partial copy is fine, Maven downloads what is missing
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes the least recently used local repositories beyond the limit that no build is using.
+     */
+    private synchronized void evict() {
+        List<File> entries = resolvedEntries();
+        for (int i = maxEntries; i < entries.size(); i++) {
+            String fingerprint = entries.get(i).getName();
+            ReentrantLock lock = locks.computeIfAbsent(fingerprint, k -> new ReentrantLock());
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                AtomicInteger count = users.get(fingerprint);
+                if (count == null || count.get() <= 0) {
+                    Pipeline.deleteRecursively(entries.get(i));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the entries that have been resolved, most recently used first
+     */
+    private List<File> resolvedEntries() {
+        File[] entries = root.listFiles(f -> new File(f, RESOLVED_MARKER).exists());
+        List<File> resolved = new ArrayList<>();
+        if (entries != null) {
+            resolved.addAll(List.of(entries));
+        }
+        resolved.sort(Comparator.comparingLong((File f) -> new File(f, RESOLVED_MARKER).lastModified()).reversed());
+        return resolved;
+    }
+
+    /**
+     * Writes the metrics of the cache as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        long h = hits.get();
+        long m = misses.get();
+        sb.append("dependency_cache_hits ").append(h).append('\n')
+                .append("dependency_cache_misses ").append(m).append('\n')
+                .append("dependency_cache_hit_ratio ").append(h + m == 0 ? 0 : (double) h / (h + m)).append('\n');
+    }
+
+    /**
+     * Resolves the dependencies of a project.
+     */
+    public interface Resolver {
+        /**
+         * @param localRepository the local Maven repository to resolve into
+         * @return true on success
+         */
+        boolean resolve(File localRepository) throws IOException;
+    }
+}
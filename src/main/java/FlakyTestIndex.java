@@ -0,0 +1,209 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts, per test, how often it ran and how often it was flaky, i.e. failed and then passed when it was
+ * run again in the same build, across all builds. The index is kept in src/main/resources/FlakyTests.txt,
+ * next to the build history, and is shown at /flaky.
+ */
+public class FlakyTestIndex {
+
+    public final static String DEFAULT_PATH = "src/main/resources/FlakyTests.txt";
+
+    private final Path path;
+    // "class#method" to its counts, sorted so that the file is stable
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Creates the index of the server, stored in src/main/resources/FlakyTests.txt.
+     */
+    public FlakyTestIndex() {
+        this(DEFAULT_PATH);
+    }
+
+    /**
+     * Creates an index and loads the counts that were stored before.
+     * @param path path of the file the index is stored in
+     */
+    public FlakyTestIndex(String path) {
+        this.path = Path.of(path);
+        load();
+    }
+
+    /**
+     * @param c a test case
+     * @return the key of the test in the index, "class#method"
+     */
+    public static String key(testCaseResult c) {
+        return c.getClassName() + "#" + c.getName();
+    }
+
+    /**
+     * Counts the tests of a build and stores the index.
+     * @param buildID the build the tests ran in
+     * @param cases the test cases of the build, skipped tests are not counted
+     */
+    public synchronized void record(int buildID, List<testCaseResult> cases) {
+        if (cases == null || cases.isEmpty()) {
+            return;
+        }
+        for (testCaseResult c : cases) {
+            if (testCaseResult.SKIPPED.equals(c.getStatus())) {
+                continue;
+            }
+            Entry entry = entries.computeIfAbsent(key(c), k -> new Entry(k));
+            entry.runs++;
+            if (testCaseResult.FLAKY.equals(c.getStatus())) {
+                entry.flakes++;
+                entry.lastFlakyBuild = buildID;
+            }
+        }
+        try {
+            store();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param test the key of a test, see {@link #key(testCaseResult)}
+     * @return the counts of the test, null if it never ran
+     */
+    public synchronized Entry get(String test) {
+        Entry entry = entries.get(test);
+        return entry == null ? null : entry.copy();
+    }
+
+    /**
+     * @param limit how many tests are returned at most
+     * @return the tests that were flaky at least once, the most often flaky first
+     */
+    public synchronized List<Entry> flakiest(int limit) {
+        List<Entry> flaky = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.flakes > 0) {
+                flaky.add(entry.copy());
+            }
+        }
+        flaky.sort(Comparator.comparingDouble(Entry::getRate).reversed().thenComparing(Entry::getTest));
+        return flaky.size() > limit ? flaky.subList(0, limit) : flaky;
+    }
+
+    private void load() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length < 4) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry(parts[0]);
+                    entry.runs = Integer.parseInt(parts[1]);
+                    entry.flakes = Integer.parseInt(parts[2]);
+                    entry.lastFlakyBuild = Integer.parseInt(parts[3]);
+                    entries.put(entry.test, entry);
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring malformed flaky test record: " + line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file that replaces the stored index once it is on disk,
+     * one "test runs flakes lastFlakyBuild" line per test.
+     */
+    private void store() throws IOException {
+        Path tmp = Path.of(path + ".tmp");
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.test + " " + entry.runs + " " + entry.flakes + " " + entry.lastFlakyBuild + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the metrics of the index as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        long flaky;
+        long flakes;
+        synchronized (this) {
+            flaky = entries.values().stream().filter(e -> e.flakes > 0).count();
+            flakes = entries.values().stream().mapToLong(e -> e.flakes).sum();
+        }
+        sb.append("flaky_tests ").append(flaky).append('\n')
+                .append("flaky_test_reruns_passed ").append(flakes).append('\n');
+    }
+
+    /**
+     * The counts of one test.
+     */
+    public static class Entry {
+        private final String test;
+        private int runs;
+        private int flakes;
+        // 0 if the test was never flaky
+        private int lastFlakyBuild;
+
+        Entry(String test) {
+            this.test = test;
+        }
+
+        Entry copy() {
+            Entry copy = new Entry(test);
+            copy.runs = runs;
+            copy.flakes = flakes;
+            copy.lastFlakyBuild = lastFlakyBuild;
+            return copy;
+        }
+
+        public String getTest() {
+            return test;
+        }
+
+        public int getRuns() {
+            return runs;
+        }
+
+        public int getFlakes() {
+            return flakes;
+        }
+
+        public int getLastFlakyBuild() {
+            return lastFlakyBuild;
+        }
+
+        /**
+         * @return the share of the runs in which the test was flaky
+         */
+        public double getRate() {
+            return runs == 0 ? 0 : (double) flakes / runs;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bare mirror of a remote repository that is kept on disk between builds. A build does not clone the
+ * remote, it checks out the commit it builds into a worktree of the mirror, and the mirror is only fetched
+ * from the remote when it does not have the commit yet. Fetches and worktree changes of a mirror are
+ * serialized, so builds that start at the same time share one fetch.
+ */
+public class GitMirror {
+
+    // used as keys for the settings of the mirrors
+    public final static String REMOTE_URL_KEY = "DD2480_REMOTE_URL";
+    public final static String DIRECTORY_KEY = "DD2480_MIRROR_DIRECTORY";
+    public final static String TIMEOUT_KEY = "DD2480_GIT_TIMEOUT_SECONDS";
+
+    // the mirrors in use, by remote url
+    private final static Map<String, GitMirror> mirrors = new ConcurrentHashMap<>();
+
+    private final String remoteUrl;
+    private final File directory;
+    private final long timeoutMillis;
+
+    // metrics, read without waiting for a running fetch
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong checkouts = new AtomicLong();
+
+    /**
+     * Creates a mirror, nothing is cloned until the first checkout.
+     * @param remoteUrl url or path of the remote repository
+     * @param directory where the bare mirror is kept
+     */
+    public GitMirror(String remoteUrl, File directory) {
+        this.remoteUrl = remoteUrl;
+        this.directory = directory;
+        this.timeoutMillis = Config.getLong(TIMEOUT_KEY, 600) * 1000;
+    }
+
+    /**
+     * Returns the shared mirror of a remote, kept in DD2480_MIRROR_DIRECTORY ("mirrors/" by default).
+     * @param remoteUrl url or path of the remote repository
+     * @return the mirror
+     */
+    public static GitMirror of(String remoteUrl) {
+        return mirrors.computeIfAbsent(remoteUrl,
+                url -> new GitMirror(url, new File(Config.getString(DIRECTORY_KEY, "mirrors/"), directoryName(url))));
+    }
+
+    /**
+     * @param remoteUrl url or path of a repository, e.g. "https://github.com/owner/name.git"
+     * @return a directory name that is unique for the url, e.g. "name-1a2b3c4d.git"
+     */
+    static String directoryName(String remoteUrl) {
+        String name = remoteUrl.replaceAll("/+$", "").replaceAll("\\.git$", "");
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf(':')) + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+        return name + "-" + Integer.toHexString(remoteUrl.hashCode()) + ".git";
+    }
+
+    /**
+     * Checks out a commit into a new worktree of the mirror, the mirror is created or fetched first
+     * if it does not have the commit.
+     * @param revision the commit to check out, a full or abbreviated hash
+     * @param worktree directory of the worktree, must not exist yet
+     * @param out receives the output of git
+     * @return true if the commit was checked out
+     */
+    public synchronized boolean checkout(String revision, File worktree, Pipeline.LineSink out) throws IOException {
+        checkouts.incrementAndGet();
+        if (!hasCommit(revision)) {
+            update(out);
+        }
+        return git(out, "worktree", "add", "--detach", worktree.getAbsolutePath(), revision + "^{commit}") == 0;
+    }
+
+    /**
+     * Checks out a commit into a worktree of the mirror that an earlier build used, only the files that differ
+     * are written. Whatever the earlier build left in the worktree, e.g. its target directory, is deleted.
+     * @param revision the commit to check out, a full or abbreviated hash
+     * @param worktree an existing worktree of the mirror
+     * @param out receives the output of git
+     * @return true if the commit was checked out, false if the worktree can not be used
+     */
+    public synchronized boolean switchWorktree(String revision, File worktree, Pipeline.LineSink out) throws IOException {
+        checkouts.incrementAndGet();
+        if (!hasCommit(revision)) {
+            update(out);
+        }
+        return run(out, worktree, List.of("git", "checkout", "--quiet", "--force", "--detach", revision + "^{commit}")) == 0
+                && run(out, worktree, List.of("git", "clean", "-ffdxq")) == 0;
+    }
+
+    /**
+     * Moves a worktree of the mirror, e.g. into the workspace of a build.
+     * @param worktree an existing worktree of the mirror
+     * @param to the new directory of the worktree, must not exist yet
+     * @param out receives the output of git
+     * @return true if the worktree was moved
+     */
+    public synchronized boolean moveWorktree(File worktree, File to, Pipeline.LineSink out) throws IOException {
+        return git(out, "worktree", "move", worktree.getAbsolutePath(), to.getAbsolutePath()) == 0;
+    }
+
+    /**
+     * Looks up the tree of a commit, the hash of its content. The mirror is fetched first if it does
+     * not have the commit.
+     * @param revision the commit, a full or abbreviated hash
+     * @param out receives the output of git
+     * @return the hash of the tree, null if the commit can not be found
+     */
+    public synchronized String treeOf(String revision, Pipeline.LineSink out) throws IOException {
+        if (!hasCommit(revision)) {
+            update(out);
+        }
+        StringBuilder tree = new StringBuilder();
+        int exit = git(tree::append, "rev-parse", "--verify", "--quiet", revision + "^{tree}");
+        return exit == 0 ? tree.toString().trim() : null;
+    }
+
+    /**
+     * Lists the files that differ between two commits. The mirror is fetched first if it does not have
+     * the newer commit.
+     * @param base the older commit, a full or abbreviated hash
+     * @param revision the newer commit
+     * @param out receives the output of git
+     * @return the paths of the added, changed and deleted files relative to the repository root,
+     * null if the commits can not be compared, e.g. because the base was removed by a force push
+     */
+    public synchronized List<String> changedFiles(String base, String revision, Pipeline.LineSink out) throws IOException {
+        if (!hasCommit(revision)) {
+            update(out);
+        }
+        List<String> files = new ArrayList<>();
+        int exit = git(line -> {
+            if (!line.isBlank()) {
+                files.add(line.trim());
+            }
+        }, "diff", "--name-only", "--no-renames", base, revision, "--");
+        return exit == 0 ? files : null;
+    }
+
+    /**
+     * Forgets the worktrees whose directories have been deleted.
+     */
+    public synchronized void prune() {
+        try {
+            git(line -> {}, "worktree", "prune");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Brings the mirror up to date with the remote. A mirror that can not be fetched is kept, the remote may be
+     * down for a moment and the worktrees of other builds point into the mirror, it is only cloned again when
+     * the repository itself is broken.
+     * @param out receives the output of git
+     * @return true if the mirror is up to date
+     */
+    public synchronized boolean update(Pipeline.LineSink out) throws IOException {
+        fetches.incrementAndGet();
+        if (directory.exists()) {
+            if (git(out, "fetch", "--prune", "origin") == 0) {
+                return true;
+            }
+            if (isUsable()) {
+                out.accept("Fetching the mirror failed, it is kept as it is");
+                return false;
+            }
+            out.accept("The mirror is broken, cloning it again");
+            Pipeline.deleteRecursively(directory);
+        }
+        directory.getParentFile().mkdirs();
+        return run(out, directory.getParentFile(), List.of("git", "clone", "--mirror", remoteUrl, directory.getName())) == 0;
+    }
+
+    /**
+     * @return true if the mirror is a git repository whose objects are all there
+     */
+    private boolean isUsable() throws IOException {
+        return git(line -> {}, "rev-parse", "--git-dir") == 0 && git(line -> {}, "fsck", "--connectivity-only", "--no-progress") == 0;
+    }
+
+    private boolean hasCommit(String revision) throws IOException {
+        return directory.exists() && git(line -> {}, "cat-file", "-e", revision + "^{commit}") == 0;
+    }
+
+    private int git(Pipeline.LineSink out, String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of("git", "--git-dir=" + directory.getAbsolutePath()));
+        command.addAll(List.of(args));
+        return run(out, directory.getParentFile(), command);
+    }
+
+    private int run(Pipeline.LineSink out, File dir, List<String> command) throws IOException {
+        return Pipeline.execute(command, dir, Map.of(), timeoutMillis, null, out);
+    }
+
+    public String getRemoteUrl() {
+        return remoteUrl;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes the metrics of the mirror as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        sb.append("git_mirror_checkouts ").append(checkouts.get()).append('\n')
+                .append("git_mirror_fetches ").append(fetches.get()).append('\n');
+    }
+}
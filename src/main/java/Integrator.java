@@ -1,12 +1,11 @@
-import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
-
-;
+import java.util.UUID;
 
 public class Integrator {
 
@@ -17,10 +16,36 @@ public class Integrator {
     // used as constant values for the resulting statuses, the V in K,V
     public final static String STATUS_SUCCESS = "SUCCESS";
     public final static String STATUS_FAILURE = "FAILURE";
+    public final static String STATUS_SKIPPED = "SKIPPED"; // an earlier stage failed
+    public final static String STATUS_CANCELLED = "CANCELLED"; // a newer push to the branch superseded the build
+    public final static String STATUS_FLAKY = "FLAKY"; // the tests passed, some only when they were run again
+    // names of the pipeline stages that have no status key of their own
+    public final static String STAGE_CHECKOUT = "CHECKOUT";
+    public final static String STAGE_PACKAGE = "PACKAGE";
+    public final static String STAGE_MAVEN = "MAVEN";
+    public final static String STAGE_SELECT = "SELECT";
+    public final static String STAGE_RESTORE = "RESTORE";
 
     // used based on boolean parameter "saveLocally"
     public final static String DIRECTORY_LOCAL = "localbuilds/"; // gitignored
-    public final static String DIRECTORY_CLOUD = "cloudbuilds/"; // not gitignored
+    public final static String DIRECTORY_CLOUD = "cloudbuilds/"; // not gitignored, except for the artifact store in it
+    public final static String WORKSPACE_DIRECTORY = "tmp_build/";
+
+    // used as keys for the settings of the test stage
+    public final static String TEST_MODE_KEY = "DD2480_TEST_MODE";
+    public final static String TEST_FORKS_KEY = "DD2480_TEST_FORKS";
+    public final static String TEST_MODE_SERIAL = "serial";
+    public final static String TEST_MODE_PARALLEL = "parallel";
+    public final static String TEST_RERUNS_KEY = "DD2480_TEST_RERUNS";
+
+    // more failed tests than this are a broken build, not flaky tests, and are not run again
+    private final static int MAX_RERUN_TESTS = 20;
+    // make Maven lock the artifacts it writes to the local repository, so that concurrent builds can share it
+    private final static List<String> SHARED_REPOSITORY_OPTIONS = List.of(
+            "-Daether.syncContext.named.factory=file-lock", "-Daether.syncContext.named.nameMapper=file-gav");
+
+    public final static String REPOSITORY_URL = "https://github.com/DD2480-group18/dd2480-g18-Continuous-Integration.git";
+    public final static String REPOSITORY_NAME = "dd2480-g18-Continuous-Integration";
 
     public static void main(String[] args){
         // example code to show usage without changing main file
@@ -48,6 +73,7 @@ public class Integrator {
      * logged to <b>{@code .mvn_compile.log}</b>, Maven runs the project's unit tests and the result is logged to
      * <b>{@code .mvn_test.log}</b>, and a directory is created for the commit hash under the <b>{@code BUILDS/}</b> directory, found
      * in the project root. Finally, the logs as well as the built .jar-file are all copied to <b>{@code BUILDS/<commitHash>/}</b> where
+     * the stages stop at the first one that fails, the stages after it are SKIPPED.
      *
      * @param commitBranch The branch that is pushed to the repository and that will be built.
      * @param commitHash The 7-character hash for the latest commit on <i>commitBranch</i>, <i>commitHash</i>.jar will be the build.
@@ -55,48 +81,546 @@ public class Integrator {
      * @return A String:String mapping where the statuses of "INSTALL", "COMPILE", and "TEST" are saved.
      */
     public static Map<String,String> integrateBuild(String commitBranch, String commitHash, boolean saveLocally){
-        Stack<String> outputStack = new Stack<String>();
-        String branchKey = "DD2480_BUILD_BRANCH";
-        String commitKey = "DD2480_BUILD_COMMIT";
-        String jarDirectoryKey = "DD2480_SAVE_DIRECTORY_NAME";
-
-        // set up script environment
-        ProcessBuilder pb = new ProcessBuilder();
-        Map<String, String> env = pb.environment();
-        env.put(branchKey, commitBranch);
-        env.put(commitKey, commitHash);
-        env.put(jarDirectoryKey, (saveLocally) ? DIRECTORY_LOCAL : DIRECTORY_CLOUD);
-
-        // store statuses to be returned
-        Map<String, String> statuses = new HashMap<>();
-
-        // runs at root of project
-        pb.command("./build.sh");
+        return integrateBuild(commitBranch, commitHash, saveLocally, null);
+    }
+
+    /**
+     * Same as {@link #integrateBuild(String, String, boolean)}, but every line of output of the build is also
+     * appended to a live log while the build is running.
+     *
+     * @param commitBranch The branch that is pushed to the repository and that will be built.
+     * @param commitHash The 7-character hash for the latest commit on <i>commitBranch</i>.
+     * @param saveLocally True to save to "localbuilds/" (.gitignored), false to save to "cloudbuilds/".
+     * @param liveLog Where the output is streamed to viewers, null if nobody can watch the build.
+     * @return A String:String mapping where the statuses of "INSTALL", "COMPILE", and "TEST" are saved.
+     */
+    public static Map<String,String> integrateBuild(String commitBranch, String commitHash, boolean saveLocally, LiveLog liveLog){
+        return createPipeline(commitBranch, commitHash, saveLocally, liveLog).run();
+    }
+
+    /**
+     * Same as {@link #createPipeline(String, String, String, boolean, LiveLog)}, checking out the commit by its short hash.
+     */
+    public static Pipeline createPipeline(String commitBranch, String commitHash, boolean saveLocally, LiveLog liveLog){
+        return createPipeline(commitBranch, commitHash, commitHash, saveLocally, liveLog);
+    }
+
+    /**
+     * Creates the pipeline that builds a commit: the commit is checked out from a mirror of the remote
+     * (DD2480_REMOTE_URL) into a worktree under <b>{@code tmp_build/}</b> that only this build uses, recycled from
+     * an earlier build when possible (see {@link WorkspacePool}), then the dependencies are installed, the project is compiled and tested and the jar is packaged, each stage
+     * logging to its own file in the build directory. With DD2480_PIPELINE_MODE=collapsed the Maven stages are run
+     * as a single Maven invocation. With DD2480_TEST_SELECTION=affected a SELECT stage after INSTALL chooses the
+     * tests that are run. Unless DD2480_COMPILE_CACHE=false a RESTORE stage before COMPILE restores the classes of the
+     * last passing build of the branch, so that only the changed sources and their dependents are compiled.
+     * Every command runs with the resource limits of the build, see {@link BuildSandbox}, the Maven commands in
+     * warm JVMs when the limits allow it, see {@link MavenDaemonPool}.
+     *
+     * @param commitBranch The branch that is pushed to the repository and that will be built.
+     * @param commitHash The 7-character hash for the latest commit on <i>commitBranch</i>.
+     * @param revision The full hash of the commit, the exact commit that is checked out.
+     * @param saveLocally True to save to "localbuilds/" (.gitignored), false to save to "cloudbuilds/".
+     * @param liveLog Where the output is streamed to viewers, null if nobody can watch the build.
+     * @return the pipeline, not run yet
+     */
+    public static Pipeline createPipeline(String commitBranch, String commitHash, String revision, boolean saveLocally, LiveLog liveLog){
+        // without a build id, the workspace and build directory are told apart from those of other builds of the commit by a random suffix
+        String name = commitHash + "-" + UUID.randomUUID().toString().substring(0, 8);
+        return createPipeline(commitBranch, commitHash, revision, saveLocally, liveLog, name,
+                new File(((saveLocally) ? DIRECTORY_LOCAL : DIRECTORY_CLOUD) + name));
+    }
+
+    /**
+     * Same as {@link #createPipeline(String, String, String, boolean, LiveLog)}, in the workspace <b>{@code tmp_build/build-<id>}</b>
+     * and the build directory {@link #buildDirectory(boolean, String, int)} of a build in the history.
+     * @param buildID the id of the build
+     */
+    public static Pipeline createPipeline(String commitBranch, String commitHash, String revision, boolean saveLocally, LiveLog liveLog, int buildID){
+        return createPipeline(commitBranch, commitHash, revision, saveLocally, liveLog, "build-" + buildID,
+                new File(buildDirectory(saveLocally, commitHash, buildID)));
+    }
+
+    /**
+     * @param saveLocally True for "localbuilds/", false for "cloudbuilds/".
+     * @param commitHash The 7-character hash of the commit that is built.
+     * @param buildID the id of the build
+     * @return the directory that keeps the logs and the jar of the build, <b>{@code cloudbuilds/<commitHash>-<id>/}</b>.
+     * Every build has its own, so builds of the same commit do not overwrite each other's logs.
+     */
+    public static String buildDirectory(boolean saveLocally, String commitHash, int buildID){
+        return ((saveLocally) ? DIRECTORY_LOCAL : DIRECTORY_CLOUD) + buildDirectoryName(commitHash, buildID) + "/";
+    }
+
+    /**
+     * @return the name of the directory of a build in "localbuilds/" or "cloudbuilds/", "<commitHash>-<id>"
+     */
+    public static String buildDirectoryName(String commitHash, int buildID){
+        return commitHash + "-" + buildID;
+    }
+
+    private static Pipeline createPipeline(String commitBranch, String commitHash, String revision, boolean saveLocally, LiveLog liveLog, String workspaceName, File saveDirectory){
+        // builds of the same commit can run at the same time, so every build gets its own workspace and build directory
+        WorkspacePool workspaces = WorkspacePool.shared();
+        File workspace = workspaces.workspace(workspaceName);
+        File repository = new File(workspace, REPOSITORY_NAME);
+        GitMirror mirror = mirror();
+        List<String> testOptions = testOptions();
+        BuildSandbox sandbox = BuildSandbox.create(workspaceName);
+
+        Pipeline pipeline = new Pipeline(workspace, repository, saveDirectory, liveLog);
+        pipeline.setSandbox(sandbox);
+        MavenDaemonPool daemons = MavenDaemonPool.shared();
+        if (daemons.isEnabled()) {
+            pipeline.setMavenDaemons(daemons);
+        }
+        pipeline.addStage(new PipelineStage(STAGE_CHECKOUT, ".git_checkout.log", stageTimeout(STAGE_CHECKOUT),
+                (stage, log) -> {
+                    log.accept("Checking out " + revision + " of " + commitBranch + " into " + workspace);
+                    if (sandbox.describe() != null) {
+                        log.accept("Limits: " + sandbox.describe());
+                    }
+                    workspace.mkdirs();
+                    return workspaces.checkout(mirror, revision, repository, log);
+                }));
+        pipeline.onFinish(sandbox::close);
+        pipeline.onFinish(mirror::prune);
+        pipeline.addStage(new PipelineStage(STATUS_INSTALL, LogStore.INSTALL_LOG, stageTimeout(STATUS_INSTALL),
+                (stage, log) -> installDependencies(pipeline, stage, log)), "dependency:");
+        if (TestSelector.isEnabled()) {
+            pipeline.addStage(new PipelineStage(STAGE_SELECT, ".test_selection.log", stageTimeout(STAGE_SELECT),
+                    (stage, log) -> selectTests(pipeline, commitBranch, revision, mirror, log)));
+        }
+        PipelineStage compile = new PipelineStage(STATUS_COMPILE, LogStore.COMPILE_LOG, stageTimeout(STATUS_COMPILE),
+                "mvn", "-B", "compile");
+        if (CompileCache.isEnabled()) {
+            pipeline.addStage(new PipelineStage(STAGE_RESTORE, ".compile_cache.log", stageTimeout(STAGE_RESTORE),
+                    (stage, log) -> restoreClasses(pipeline, commitBranch, stage, log)));
+            compile.setRetry((stage, log) -> compileEverything(pipeline, stage, log));
+        }
+        pipeline.addStage(compile, "resources:resources", "compiler:compile");
+        boolean parallel = TEST_MODE_PARALLEL.equals(Config.getString(TEST_MODE_KEY, TEST_MODE_SERIAL));
+        int forks = parallel ? testForks() : 1;
+        PipelineStage test = parallel
+                ? new PipelineStage(STATUS_TEST, LogStore.TEST_LOG, stageTimeout(STATUS_TEST),
+                        (stage, log) -> runTests(pipeline, stage, testOptions, forks, log))
+                : new PipelineStage(STATUS_TEST, LogStore.TEST_LOG, stageTimeout(STATUS_TEST), true,
+                        maven(testOptions, "test"));
+        int reruns = Config.getInt(TEST_RERUNS_KEY, 2);
+        if (reruns > 0) {
+            test.setRetry((stage, log) -> rerunFailedTests(pipeline, stage, reruns, log));
+        }
+        pipeline.addStage(test, "resources:testResources", "compiler:testCompile", "surefire:");
+        pipeline.addStage(new PipelineStage(STAGE_PACKAGE, ".mvn_jar.log", stageTimeout(STAGE_PACKAGE),
+                "mvn", "-B", "jar:jar"), "jar:");
+        if (Pipeline.MODE_COLLAPSED.equals(Config.getString(Pipeline.MODE_KEY, Pipeline.MODE_STAGED))) {
+            // one JVM start instead of three, the output is split into the logs of the stages afterwards.
+            // INSTALL stays on its own so that it can be skipped when the dependencies are cached
+            pipeline.collapse(STAGE_MAVEN, List.of(STATUS_COMPILE, STATUS_TEST, STAGE_PACKAGE),
+                    maven(testOptions, "test", "jar:jar"));
+        }
+        pipeline.setArtifactName(commitHash + ".jar");
+        // the reports are in the workspace, which is deleted when the pipeline is done
+        pipeline.afterStages(() -> {
+            // the reruns of failed tests have set the test cases already
+            if (pipeline.getTestCases() == null) {
+                pipeline.setTestCases(SurefireReports.parse(new File(repository, SurefireReports.REPORTS_DIRECTORY)));
+            }
+        });
+        pipeline.afterStages(() -> pipeline.setTestSchedule(testSchedule(pipeline, forks)));
+        if (CompileCache.isEnabled()) {
+            pipeline.afterStages(() -> saveClasses(pipeline, commitBranch, commitHash));
+        }
+        // last, the collectors before it read the workspace
+        pipeline.afterStages(() -> workspaces.release(mirror, repository));
+        return pipeline;
+    }
+
+    /**
+     * Starts the Maven daemons ahead of the first build, unless the builds have limits per process and run
+     * Maven in processes of their own, see {@link MavenDaemonPool}.
+     */
+    public static void prewarmMaven(){
+        BuildSandbox limits = BuildSandbox.configured();
+        if (!limits.limitsProcesses()) {
+            MavenDaemonPool.shared().prewarm(limits.environment());
+        }
+    }
+
+    /**
+     * The INSTALL stage: makes sure the dependencies and plugins of the checked out project are in the local repository of
+     * its pom fingerprint, and lets the following Maven stages use that local repository. Nothing is resolved
+     * when another build with the same pom files has done it already.
+     * @param pipeline the pipeline of the build
+     * @param stage the INSTALL stage, marked as cached on a cache hit
+     * @param log receives the output of the stage
+     * @return true if the dependencies are available
+     */
+    private static boolean installDependencies(Pipeline pipeline, PipelineStage stage, Pipeline.LineSink log) throws IOException {
+        DependencyCache cache = DependencyCache.shared();
+        String fingerprint = DependencyCache.fingerprint(pipeline.getRepository());
+        pipeline.onFinish(() -> cache.release(fingerprint));
+        File localRepository = cache.getLocalRepository(fingerprint);
+        // MAVEN_OPTS is read by every mvn command, so the stages after this one use the same local repository.
+        // Whatever they still download, e.g. the test framework provider of surefire, is written under Maven's
+        // file locks, since builds of the same fingerprint share the local repository
+        String opts = System.getenv("MAVEN_OPTS");
+        pipeline.getEnvironment().put("MAVEN_OPTS", (opts == null ? "" : opts + " ") + "-Dmaven.repo.local=" + localRepository
+                + " " + String.join(" ", SHARED_REPOSITORY_OPTIONS));
+        try {
+            // go-offline resolves the plugins and their dependencies too, not only those of the project
+            stage.setCached(cache.prepare(fingerprint, into -> {
+                List<String> command = new ArrayList<>(List.of("mvn", "-B", "-Dmaven.repo.local=" + into));
+                command.addAll(SHARED_REPOSITORY_OPTIONS);
+                command.add("dependency:go-offline");
+                return pipeline.execute(command, stage.getTimeoutMillis(), log) == 0;
+            }, log));
+            return true;
+        } catch (IOException e) {
+            log.accept(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * The SELECT stage: chooses the tests that are affected by the changes since the last green build of the
+     * branch, see {@link TestSelector}, and lets the following Maven stages run only those.
+     * @param pipeline the pipeline of the build
+     * @param branch the branch of the commit
+     * @param revision the commit that is built
+     * @param mirror the mirror the commit was checked out from
+     * @param log receives the output of the stage
+     * @return true, all tests run when the affected tests can not be found
+     */
+    private static boolean selectTests(Pipeline pipeline, String branch, String revision, GitMirror mirror, Pipeline.LineSink log) throws IOException {
+        testSelection selection;
+        try {
+            selection = TestSelector.select(ContinuousIntegrationServer.db, branch, revision, pipeline.getRepository(), mirror, log);
+        } catch (IOException e) {
+            log.accept(e.getMessage());
+            selection = new testSelection(null, null, "Could not read the sources", 0);
+        }
+        pipeline.setTestSelection(selection);
+        log.accept(selection.getReason());
+        log.accept(selection.isFullRun() ? "Running all tests" : "Running " + selection.getTests().size() + " test classes: "
+                + String.join(", ", selection.getTests()));
+        addMavenOptions(pipeline, TestSelector.mavenOptions(selection));
+        return true;
+    }
+
+    /**
+     * The RESTORE stage: restores the classes of the last passing build of the branch, so that the following
+     * Maven stages only compile the sources that changed since and the sources that depend on them, see
+     * {@link CompileCache}.
+     * @param pipeline the pipeline of the build
+     * @param branch the branch of the commit
+     * @param stage the RESTORE stage, marked as cached when classes were restored
+     * @param log receives the output of the stage
+     * @return true, everything is compiled when no classes can be restored
+     */
+    private static boolean restoreClasses(Pipeline pipeline, String branch, PipelineStage stage, Pipeline.LineSink log) throws IOException {
+        incrementalCompile compile;
+        try {
+            compile = CompileCache.shared().restore(branch, pipeline.getRepository(), log);
+        } catch (IOException e) {
+            log.accept(e.getMessage());
+            compile = null;
+        }
+        if (compile == null || !compile.isRestored()) {
+            log.accept(compile == null ? "Could not restore the classes" : compile.getReason());
+            log.accept("Compiling everything");
+        } else {
+            stage.setCached(true);
+            addMavenOptions(pipeline, List.of(CompileCache.STALE_SOURCES_OPTION));
+        }
+        pipeline.setIncrementalCompile(compile);
+        return true;
+    }
+
+    /**
+     * Retries a COMPILE stage that failed with restored classes once without them, so that a failure is never
+     * caused by the classes of an earlier build.
+     * @param pipeline the pipeline of the build
+     * @param stage the COMPILE stage
+     * @param log receives the output of the compile
+     * @return true if everything compiled
+     */
+    private static boolean compileEverything(Pipeline pipeline, PipelineStage stage, Pipeline.LineSink log) throws IOException {
+        incrementalCompile compile = pipeline.getIncrementalCompile();
+        if (compile == null || !compile.isRestored()) {
+            return false;
+        }
+        log.accept("Compiling failed with the classes of " + compile.getBaseCommit() + ", compiling everything");
+        CompileCache.deleteOutputs(pipeline.getRepository());
+        pipeline.setIncrementalCompile(new incrementalCompile(null, compile.getSources(), compile.getSources(),
+                "Compiling with the classes of " + compile.getBaseCommit() + " failed"));
+        return pipeline.execute(stage.getCommand(), stage.getTimeoutMillis(), log) == 0;
+    }
+
+    /**
+     * Keeps the classes of a build whose compile and test stages passed for the next build of the branch.
+     * @param pipeline the pipeline of the build, its stages have run
+     * @param branch the branch of the commit
+     * @param commitHash the hash of the commit
+     */
+    private static void saveClasses(Pipeline pipeline, String branch, String commitHash) {
+        Map<String, String> statuses = pipeline.getStatuses();
+        if (pipeline.getCancellation().isCancelled() || !STATUS_SUCCESS.equals(statuses.get(STATUS_COMPILE))
+                || !STATUS_SUCCESS.equals(statuses.get(STATUS_TEST))) {
+            return;
+        }
         try {
-            Process p = pb.start();
-            // save script output to a stack of strings
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(p.getInputStream()))) {
-                String line;
-                while((line = reader.readLine()) != null){
-                    outputStack.push(line);
+            CompileCache.shared().save(branch, commitHash, pipeline.getRepository());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds options to MAVEN_OPTS, which is read by every mvn command of the pipeline, including the collapsed one.
+     * @param pipeline the pipeline of the build
+     * @param options the options, e.g. "-DskipTests"
+     */
+    private static void addMavenOptions(Pipeline pipeline, List<String> options) {
+        if (options.isEmpty()) {
+            return;
+        }
+        String opts = pipeline.getEnvironment().getOrDefault("MAVEN_OPTS", System.getenv("MAVEN_OPTS"));
+        pipeline.getEnvironment().put("MAVEN_OPTS", (opts == null ? "" : opts + " ") + String.join(" ", options));
+    }
+
+    /**
+     * The TEST stage in parallel mode. When the durations of the test classes are known from earlier builds,
+     * the classes are spread over the forks longest first, see {@link TestDurationHistory#pack(Map, int)}, and
+     * every fork is a Surefire run of its own classes, unless the tests take less time than starting Maven.
+     * Otherwise Surefire spreads the classes over its forks.
+     * @param pipeline the pipeline of the build
+     * @param stage the TEST stage
+     * @param testOptions the options of the Maven command that runs the tests
+     * @param forks the number of forks
+     * @param out receives the output of the stage
+     * @return true if the tests passed
+     */
+    private static boolean runTests(Pipeline pipeline, PipelineStage stage, List<String> testOptions, int forks, Pipeline.LineSink out) throws IOException {
+        // the forks write to the log at the same time, their lines are prefixed so that the diagnostics can tell them apart
+        Pipeline.LineSink log = line -> {
+            synchronized (out) {
+                out.accept(line);
+            }
+        };
+        long deadline = System.currentTimeMillis() + stage.getTimeoutMillis();
+        TestDurationHistory history = ContinuousIntegrationServer.durations;
+        testSelection selection = pipeline.getTestSelection();
+        List<String> classes = (selection == null || selection.isFullRun())
+                ? TestSelector.testClasses(pipeline.getRepository()) : selection.getTests();
+        Map<String, Long> estimates = (history == null || forks < 2 || classes.size() < 2) ? Map.of() : history.estimates(classes);
+        if (estimates.isEmpty()) {
+            return pipeline.execute(maven(testOptions, "test"), stage.getTimeoutMillis(), log) == 0;
+        }
+
+        List<List<String>> bins = TestDurationHistory.pack(estimates, forks);
+        long longestFork = TestDurationHistory.makespan(bins, estimates);
+        if (longestFork < history.getOverheadMillis()) {
+            // a Maven run per fork costs more than it saves when the tests are shorter than starting Maven
+            log.accept("The tests take about " + longestFork + " ms per fork, Surefire spreads them over the forks");
+            return pipeline.execute(maven(testOptions, "test"), stage.getTimeoutMillis(), log) == 0;
+        }
+        pipeline.setTestSchedule(new testSchedule(bins.size(), true, history.predict(classes, forks), 0));
+        if (pipeline.execute(maven(List.of(), "test-compile"), stage.getTimeoutMillis(), log) != 0) {
+            return false;
+        }
+        int[] exits = new int[bins.size()];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < bins.size(); i++) {
+            int fork = i;
+            log.accept("Fork " + fork + " runs " + String.join(", ", bins.get(fork))
+                    + " (about " + TestDurationHistory.makespan(List.of(bins.get(fork)), estimates) + " ms)");
+            List<String> command = maven(List.of(argLine(), "-Dtest=" + String.join(",", bins.get(fork)),
+                    "-Dsurefire.failIfNoSpecifiedTests=false", "-DforkCount=1"), "surefire:test");
+            Thread thread = new Thread(() -> {
+                try {
+                    exits[fork] = pipeline.execute(command, Math.max(1, deadline - System.currentTimeMillis()),
+                            line -> log.accept(MavenLogParser.forkPrefix(fork) + line));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    exits[fork] = -1;
+                }
+            }, "test-fork-" + fork);
+            thread.start();
+            threads.add(thread);
+        }
+        boolean passed = true;
+        for (int i = 0; i < threads.size(); i++) {
+            try {
+                threads.get(i).join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            passed &= exits[i] == 0;
+        }
+        return passed;
+    }
+
+    /**
+     * Runs the tests that failed in the TEST stage again, one Surefire run per attempt with only the tests that
+     * are still failing. A test that passes on a rerun is marked FLAKY. Nothing is rerun when the stage failed
+     * without failed tests, e.g. because the tests did not compile, or when too many tests failed.
+     * @param pipeline the pipeline of the build, receives the test cases with the flaky tests marked
+     * @param stage the TEST stage
+     * @param reruns how often a failed test is run again at most
+     * @param log receives the output of the reruns
+     * @return true if every failed test passed on a rerun
+     */
+    private static boolean rerunFailedTests(Pipeline pipeline, PipelineStage stage, int reruns, Pipeline.LineSink log) throws IOException {
+        File reports = new File(pipeline.getRepository(), SurefireReports.REPORTS_DIRECTORY);
+        List<testCaseResult> cases = SurefireReports.parse(reports);
+        List<testCaseResult> failing = new ArrayList<>();
+        for (testCaseResult c : cases) {
+            if (c.isFailed()) {
+                failing.add(c);
+            }
+        }
+        if (failing.isEmpty() || failing.size() > MAX_RERUN_TESTS) {
+            log.accept(failing.isEmpty() ? "No failed tests to run again" : failing.size() + " tests failed, not running them again");
+            return false;
+        }
+        for (int attempt = 1; attempt <= reruns && !failing.isEmpty(); attempt++) {
+            log.accept("Running " + failing.size() + " failed tests again, attempt " + attempt + " of " + reruns);
+            // a rerun writes the reports of its tests only, the cases of the first run are kept in memory
+            Pipeline.deleteRecursively(reports);
+            int exit = pipeline.execute(maven(List.of(argLine(), "-Dtest=" + rerunFilter(failing),
+                    "-Dsurefire.failIfNoSpecifiedTests=false", "-DforkCount=1"), "surefire:test"), stage.getTimeoutMillis(), log);
+            if (exit == Pipeline.TIMED_OUT || exit == Pipeline.CANCELLED) {
+                break;
+            }
+            List<String> passed = new ArrayList<>();
+            for (testCaseResult rerun : SurefireReports.parse(reports)) {
+                if (testCaseResult.PASSED.equals(rerun.getStatus())) {
+                    passed.add(FlakyTestIndex.key(rerun));
+                }
+            }
+            for (Iterator<testCaseResult> it = failing.iterator(); it.hasNext(); ) {
+                testCaseResult c = it.next();
+                if (passed.contains(FlakyTestIndex.key(c))) {
+                    log.accept(c.getClassName() + "." + c.getName() + " passed on attempt " + attempt + ", it is flaky");
+                    c.setStatus(testCaseResult.FLAKY);
+                    it.remove();
                 }
             }
-            int ret = p.waitFor();
-            if(ret != 0){
-                // TODO: use ret to determine other actions or assume script success?
-                throw new Exception("Integration script process returned with non-zero error code.");
+        }
+        pipeline.setTestCases(cases);
+        return failing.isEmpty();
+    }
+
+    /**
+     * @param tests failed test cases
+     * @return the Surefire filter that runs only these test methods, e.g. "ATest#one+two,BTest#three"
+     */
+    static String rerunFilter(List<testCaseResult> tests) {
+        Map<String, List<String>> methods = new LinkedHashMap<>();
+        for (testCaseResult c : tests) {
+            String className = c.getClassName().substring(c.getClassName().lastIndexOf('.') + 1);
+            // parameterized tests are reported as e.g. "add(int)[1]", the filter takes the method name
+            String method = c.getName().split("[(\\[]")[0];
+            List<String> names = methods.computeIfAbsent(className, k -> new ArrayList<>());
+            if (!names.contains(method)) {
+                names.add(method);
+            }
+        }
+        List<String> filters = new ArrayList<>();
+        for (Map.Entry<String, List<String>> c : methods.entrySet()) {
+            filters.add(c.getKey() + "#" + String.join("+", c.getValue()));
+        }
+        return String.join(",", filters);
+    }
+
+    /**
+     * Compares the predicted wall time of the test stage with the time it took, after the stages have run.
+     * @param pipeline the pipeline of the build
+     * @param forks the number of forks the tests ran in
+     * @return the schedule of the tests, null if no tests ran
+     */
+    private static testSchedule testSchedule(Pipeline pipeline, int forks) {
+        PipelineStage test = null;
+        for (PipelineStage stage : pipeline.getAllStages()) {
+            if (stage.getName().equals(STATUS_TEST)) {
+                test = stage;
             }
+        }
+        Map<String, Long> classes = TestDurationHistory.classDurations(pipeline.getTestCases());
+        if (test == null || classes.isEmpty()) {
+            return null;
+        }
+        testSchedule schedule = pipeline.getTestSchedule();
+        if (schedule == null) {
+            TestDurationHistory history = ContinuousIntegrationServer.durations;
+            schedule = new testSchedule(forks, false, history == null ? null : history.predict(classes.keySet(), forks), 0);
+        }
+        schedule.setActualMillis(test.getWallMillis());
+        return schedule;
+    }
 
-            // save the result statuses of the maven commands
-            statuses.put(STATUS_TEST, outputStack.pop().split(" ")[2]);
-            statuses.put(STATUS_COMPILE, outputStack.pop().split(" ")[2]);
-            statuses.put(STATUS_INSTALL, outputStack.pop().split(" ")[2]);
+    /**
+     * The options of the Maven command that runs the tests. The token is passed to the forked test JVM.
+     * With DD2480_TEST_MODE=parallel the test classes are spread over DD2480_TEST_FORKS JVMs and JUnit 5
+     * runs the classes and methods within a JVM concurrently.
+     * @return the options, e.g. "-DargLine=-DDD2480_TOKEN=..."
+     */
+    static List<String> testOptions(){
+        String argLine = argLine();
+        if (!TEST_MODE_PARALLEL.equals(Config.getString(TEST_MODE_KEY, TEST_MODE_SERIAL))) {
+            return List.of(argLine);
+        }
+        return List.of(argLine
+                        + " -Djunit.jupiter.execution.parallel.enabled=true"
+                        + " -Djunit.jupiter.execution.parallel.mode.default=concurrent"
+                        + " -Djunit.jupiter.execution.parallel.mode.classes.default=concurrent",
+                "-DforkCount=" + Config.getString(TEST_FORKS_KEY, "1C"), "-DreuseForks=true");
+    }
 
-        }catch(Exception e){
-            e.printStackTrace();
+    /**
+     * @return the number of JVMs the tests run in in parallel mode, DD2480_TEST_FORKS as a number or as
+     * a multiple of the CPU cores, e.g. "1C"
+     */
+    static int testForks(){
+        String forks = Config.getString(TEST_FORKS_KEY, "1C").trim();
+        try {
+            if (forks.endsWith("C")) {
+                double perCore = Double.parseDouble(forks.substring(0, forks.length() - 1));
+                return Math.max(1, (int) Math.round(perCore * Runtime.getRuntime().availableProcessors()));
+            }
+            return Math.max(1, Integer.parseInt(forks));
+        } catch (NumberFormatException e) {
+            System.err.println("Malformed " + TEST_FORKS_KEY + ": " + forks);
+            return 1;
         }
-        return statuses;
+    }
+
+    private static String argLine(){
+        return "-DargLine=-DDD2480_TOKEN=" + Config.getString("DD2480_TOKEN", "");
+    }
+
+    private static List<String> maven(List<String> options, String... goals){
+        List<String> command = new ArrayList<>(List.of("mvn", "-B"));
+        command.addAll(options);
+        command.addAll(List.of(goals));
+        return command;
+    }
+
+    /**
+     * @return the mirror of the repository that is built, DD2480_REMOTE_URL or else REPOSITORY_URL
+     */
+    public static GitMirror mirror(){
+        return GitMirror.of(Config.getString(GitMirror.REMOTE_URL_KEY, REPOSITORY_URL));
+    }
+
+    /**
+     * @param stage name of a stage
+     * @return the timeout of the stage, DD2480_STAGE_TIMEOUT_SECONDS_<stage> or else DD2480_STAGE_TIMEOUT_SECONDS
+     */
+    private static long stageTimeout(String stage){
+        long seconds = Config.getLong(Pipeline.TIMEOUT_KEY, 600);
+        return Config.getLong(Pipeline.TIMEOUT_KEY + "_" + stage, seconds) * 1000;
     }
 
 }
@@ -0,0 +1,80 @@
+import java.util.Arrays;
+
+/**
+ * Keeps track of a latency, e.g. the time to first byte of a page. Besides the count, mean and max
+ * over all samples it keeps the most recent samples so that percentiles can be reported.
+ */
+public class LatencyStats {
+
+    private final static int WINDOW = 1024;
+
+    private final String name;
+    private final long[] recent = new long[WINDOW];
+    private long count = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    /**
+     * @param name prefix of the metric lines, e.g. "build_page_ttfb"
+     */
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records one sample.
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        recent[(int) (count % WINDOW)] = nanos;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * Records the time passed since a start time.
+     * @param startNanos the start time from System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a percentile of the most recent samples.
+     * @param percentile between 0 and 100
+     * @return the latency in nanoseconds, 0 if nothing has been recorded
+     */
+    public synchronized long percentile(double percentile) {
+        int n = (int) Math.min(count, WINDOW);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(recent, n);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, index))];
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes count, mean, p50, p99 and max (in microseconds) as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        long n, total, max;
+        synchronized (this) {
+            n = count;
+            total = totalNanos;
+            max = maxNanos;
+        }
+        sb.append(name).append("_count ").append(n).append('\n')
+                .append(name).append("_mean_us ").append(n == 0 ? 0 : total / n / 1000).append('\n')
+                .append(name).append("_p50_us ").append(percentile(50) / 1000).append('\n')
+                .append(name).append("_p99_us ").append(percentile(99) / 1000).append('\n')
+                .append(name).append("_max_us ").append(max / 1000).append('\n');
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Output of a build that is still running. The lines are kept in a ring buffer that is shared by
+ * all viewers of the build, every viewer only keeps its own position in the buffer. A viewer that
+ * falls so far behind that its lines have been overwritten skips ahead to the oldest line left.
+ */
+public class LiveLog {
+
+    public final static String CAPACITY_KEY = "DD2480_LIVE_LOG_LINES";
+
+    // the builds that are running right now, by build id
+    private final static Map<Integer, LiveLog> running = new ConcurrentHashMap<>();
+
+    private final String[] lines;
+    private long written = 0; // sequence number of the next line
+    private boolean closed = false;
+
+    /**
+     * Creates a live log that keeps the last DD2480_LIVE_LOG_LINES lines, 10000 by default.
+     */
+    public LiveLog() {
+        this(Config.getInt(CAPACITY_KEY, 10000));
+    }
+
+    /**
+     * Creates a live log.
+     * @param capacity number of lines kept for viewers
+     */
+    public LiveLog(int capacity) {
+        lines = new String[capacity];
+    }
+
+    /**
+     * Creates the live log of a build that is starting.
+     * @param buildID id of the build
+     * @return the live log that the output of the build should be appended to
+     */
+    public static LiveLog start(int buildID) {
+        LiveLog log = new LiveLog();
+        running.put(buildID, log);
+        return log;
+    }
+
+    /**
+     * Closes the live log of a finished build and stops serving it.
+     * @param buildID id of the build
+     */
+    public static void finish(int buildID) {
+        LiveLog log = running.remove(buildID);
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * @param buildID id of a build
+     * @return the live log of the build, null if it is not running
+     */
+    public static LiveLog of(int buildID) {
+        return running.get(buildID);
+    }
+
+    /**
+     * Adds a line of output and wakes up the viewers.
+     * @param line the line, without line break
+     */
+    public synchronized void append(String line) {
+        lines[(int) (written % lines.length)] = line;
+        written++;
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the output.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Copies the lines from a position onwards, waiting for new lines if there are none yet.
+     * @param from position of the viewer, 0 for a new viewer
+     * @param out where the lines are added
+     * @param timeoutMillis the longest time to wait for new lines
+     * @return the new position of the viewer
+     * @throws InterruptedException if the viewer is interrupted while waiting
+     */
+    public synchronized long read(long from, List<String> out, long timeoutMillis) throws InterruptedException {
+        if (from >= written && !closed) {
+            wait(timeoutMillis);
+        }
+        long oldest = Math.max(0, written - lines.length);
+        if (from < oldest) {
+            out.add("[" + (oldest - from) + " lines skipped]");
+            from = oldest;
+        }
+        for (; from < written; from++) {
+            out.add(lines[(int) (from % lines.length)]);
+        }
+        return from;
+    }
+
+    /**
+     * @param position position of a viewer
+     * @return true if the log is closed and the viewer has read everything
+     */
+    public synchronized boolean isFinished(long position) {
+        return closed && position >= written;
+    }
+}
@@ -0,0 +1,961 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An inverted index of the install/compile/test logs of all builds, so that the builds whose logs contain some
+ * words are found without reading the logs. The index is kept in DD2480_LOG_INDEX_DIRECTORY ("logindex/" by
+ * default) as segments that are never changed once they are written: a build that is saved is indexed in a small
+ * segment of its own, and every time there are ten segments of the same size they are merged into one ten times
+ * larger, so a search reads a few dozen segments however many builds there are.
+ *
+ * A segment lists the words of its logs in sorted order, each with its postings: the builds and logs the word is
+ * in and the numbers of the first 100 lines it is on. Words are runs of letters, digits and underscores, compared
+ * in lower case; numbers and single characters are not indexed. The postings are stored as differences to the
+ * previous build and line, in as few bytes as they need, and the words of a segment share their prefixes with the
+ * previous word, so the index is a fraction of the size of the logs. Only every 32nd word of a segment is kept in
+ * memory, a search reads the 32 words around the word it looks for and then its postings.
+ */
+public class LogIndex {
+
+    public final static String DIRECTORY_KEY = "DD2480_LOG_INDEX_DIRECTORY";
+
+    // the logs that are indexed, their position is the number of the log in the postings
+    public final static String[] LOGS = {LogStore.INSTALL_LOG, LogStore.COMPILE_LOG, LogStore.TEST_LOG};
+
+    private final static String SEGMENTS = "segments";
+    private final static int MAGIC = 0x4C495831; // "LIX1"
+    // lines kept per word, build and log, the number of lines the word is on is kept in full
+    private final static int MAX_LINES = 100;
+    private final static int MAX_WORD_LENGTH = 64;
+    private final static int BLOCK_WORDS = 32;
+    private final static int MERGE_FACTOR = 10;
+    // builds indexed together in one segment when the builds of the history are indexed
+    private final static int BATCH_BUILDS = 100;
+    // lines listed per build and log in the results of a search
+    private final static int RESULT_LINES = 20;
+
+    private final File directory;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // the segments that are searched, replaced under the write lock
+    private List<Segment> segments = new ArrayList<>();
+    // builds in the segments, only changed by the methods that write segments, while they hold the monitor of the index
+    private final Set<Integer> indexed = new HashSet<>();
+    private long generation = 0;
+
+    // metrics
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+
+    /**
+     * Opens the index of the server, in DD2480_LOG_INDEX_DIRECTORY ("logindex/" by default).
+     */
+    public LogIndex() {
+        this(new File(Config.getString(DIRECTORY_KEY, "logindex/")));
+    }
+
+    /**
+     * Opens an index and the segments that were written before. Files of segments that were not done when the
+     * server stopped are deleted.
+     * @param directory where the segments are kept
+     */
+    public LogIndex(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+        File list = new File(directory, SEGMENTS);
+        Set<String> names = new HashSet<>();
+        try {
+            if (list.exists()) {
+                names.addAll(Files.readAllLines(list.toPath(), StandardCharsets.UTF_8));
+            }
+            for (String name : names) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+                Segment segment = Segment.open(new File(directory, name));
+                segments.add(segment);
+                for (int build : segment.builds) {
+                    indexed.add(build);
+                }
+                generation = Math.max(generation, Long.parseLong(name.substring(0, name.indexOf('.'))) + 1);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read the log index in " + directory + ", the logs are indexed again");
+            e.printStackTrace();
+            close(segments);
+            segments = new ArrayList<>();
+            indexed.clear();
+            names.clear();
+        }
+        File[] files = directory.listFiles((dir, name) -> !name.equals(SEGMENTS) && !names.contains(name));
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+    }
+
+    //--------------Indexing ------------------
+
+    /**
+     * Indexes the logs of a build, unless it is indexed already.
+     * @param b a build that is done
+     * @param logs where the logs are read from
+     */
+    public synchronized void index(Build b, LogStore logs) {
+        indexAll(List.of(b), logs);
+    }
+
+    /**
+     * Indexes the logs of the builds that are not indexed yet, e.g. of the build history when the index is new.
+     * @param builds builds that are done
+     * @param logs where the logs are read from
+     */
+    public void indexAll(List<Build> builds, LogStore logs) {
+        Iterator<Build> remaining = builds.iterator();
+        while (remaining.hasNext()) {
+            // the lock is taken per batch, so that a build that is saved meanwhile is not held up by the whole history
+            synchronized (this) {
+                List<Build> batch = new ArrayList<>();
+                while (remaining.hasNext() && batch.size() < BATCH_BUILDS) {
+                    Build b = remaining.next();
+                    if (!indexed.contains(b.getBuildID())) {
+                        batch.add(b);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    write(batch, logs);
+                }
+            }
+        }
+    }
+
+    private void write(List<Build> builds, LogStore logs) {
+        TreeMap<String, List<Posting>> words = new TreeMap<>();
+        int[] ids = new int[builds.size()];
+        for (int i = 0; i < builds.size(); i++) {
+            Build b = builds.get(i);
+            ids[i] = b.getBuildID();
+            for (int log = 0; log < LOGS.length; log++) {
+                try (BufferedReader reader = new BufferedReader(logs.openLog(b, LOGS[log]))) {
+                    read(b.getBuildID(), log, reader, words);
+                } catch (IOException e) {
+                    System.err.println("Could not index " + LOGS[log] + " of build " + b.getBuildID());
+                }
+            }
+        }
+        Arrays.sort(ids);
+        try {
+            Segment segment = Segment.write(newFile(), 0, ids, new SortedPostings(words));
+            add(segment, List.of());
+            for (int id : ids) {
+                indexed.add(id);
+            }
+            merge();
+        } catch (IOException e) {
+            System.err.println("Could not write the log index in " + directory);
+            e.printStackTrace();
+        }
+    }
+
+    private static void read(int buildID, int log, BufferedReader reader, Map<String, List<Posting>> words) throws IOException {
+        Map<String, Posting> postings = new HashMap<>();
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            for (String word : words(line)) {
+                Posting posting = postings.computeIfAbsent(word, w -> new Posting(buildID, log));
+                posting.addLine(number);
+            }
+        }
+        for (Map.Entry<String, Posting> entry : postings.entrySet()) {
+            words.computeIfAbsent(entry.getKey(), w -> new ArrayList<>()).add(entry.getValue());
+        }
+    }
+
+    /**
+     * @param text a line of a log or a search
+     * @return the words of the text that are indexed, in lower case, in the order they appear
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            boolean part = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            if (part && start < 0) {
+                start = i;
+            } else if (!part && start >= 0) {
+                String word = text.substring(start, i);
+                if (word.length() > 1 && word.length() <= MAX_WORD_LENGTH && !word.chars().allMatch(Character::isDigit)) {
+                    words.add(word.toLowerCase());
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Merges segments of the same size while there are ten of them.
+     */
+    private void merge() throws IOException {
+        while (true) {
+            Map<Integer, List<Segment>> levels = new TreeMap<>();
+            for (Segment segment : segments) {
+                levels.computeIfAbsent(segment.level, l -> new ArrayList<>()).add(segment);
+            }
+            List<Segment> merged = null;
+            for (List<Segment> level : levels.values()) {
+                if (level.size() >= MERGE_FACTOR) {
+                    merged = level;
+                    break;
+                }
+            }
+            if (merged == null) {
+                return;
+            }
+            Set<Integer> builds = new TreeSet<>();
+            for (Segment segment : merged) {
+                for (int build : segment.builds) {
+                    builds.add(build);
+                }
+            }
+            Segment segment = Segment.write(newFile(), merged.get(0).level + 1,
+                    builds.stream().mapToInt(Integer::intValue).toArray(), new MergedPostings(merged));
+            add(segment, merged);
+            merges.incrementAndGet();
+        }
+    }
+
+    private File newFile() {
+        return new File(directory, String.format("%012d.seg", generation++));
+    }
+
+    /**
+     * Makes a segment searchable instead of the segments it was merged from, and lists the segments on disk.
+     */
+    private void add(Segment segment, List<Segment> replaced) throws IOException {
+        List<Segment> next = new ArrayList<>(segments);
+        next.removeAll(replaced);
+        next.add(segment);
+        List<String> names = new ArrayList<>();
+        for (Segment s : next) {
+            names.add(s.file.getName());
+        }
+        File temp = new File(directory, SEGMENTS + ".tmp");
+        Files.write(temp.toPath(), names, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), new File(directory, SEGMENTS).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lock.writeLock().lock();
+        try {
+            segments = next;
+            close(replaced);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Segment s : replaced) {
+            s.file.delete();
+        }
+    }
+
+    private static void close(List<Segment> segments) {
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //--------------Searching ------------------
+
+    /**
+     * Finds the builds whose logs contain all words of a search. A word of the search that is made of several
+     * indexed words, e.g. "java.lang.NullPointerException", is looked for on a single line.
+     * @param query the search, e.g. "NullPointerException jsonHandlerTest"
+     * @param limit the most builds that are returned
+     * @return the newest builds that match, with the lines of their logs that contain words of the search
+     */
+    public Results search(String query, int limit) {
+        searches.incrementAndGet();
+        List<List<String>> terms = new ArrayList<>();
+        Set<String> all = new TreeSet<>();
+        for (String term : query.trim().split("\\s+")) {
+            List<String> words = words(term);
+            if (!words.isEmpty()) {
+                terms.add(words);
+                all.addAll(words);
+            }
+        }
+        if (all.isEmpty()) {
+            return new Results(0, List.of());
+        }
+        // the postings of every word, in all segments
+        Map<String, List<Posting>> postings = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String word : all) {
+                List<Posting> list = new ArrayList<>();
+                for (Segment segment : segments) {
+                    list.addAll(segment.find(word));
+                }
+                postings.put(word, list);
+                if (list.isEmpty()) {
+                    return new Results(0, List.of());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not search the log index in " + directory);
+            e.printStackTrace();
+            return new Results(0, List.of());
+        } finally {
+            lock.readLock().unlock();
+        }
+        // the builds of the rarest word that have all other words too
+        List<String> rarestFirst = new ArrayList<>(all);
+        rarestFirst.sort(Comparator.comparingInt(w -> postings.get(w).size()));
+        Set<Integer> found = new HashSet<>();
+        for (Posting posting : postings.get(rarestFirst.get(0))) {
+            found.add(posting.build);
+        }
+        for (String word : rarestFirst.subList(1, rarestFirst.size())) {
+            Set<Integer> builds = new HashSet<>();
+            for (Posting posting : postings.get(word)) {
+                if (found.contains(posting.build)) {
+                    builds.add(posting.build);
+                }
+            }
+            found = builds;
+        }
+        List<Integer> builds = new ArrayList<>(found);
+        builds.sort(Comparator.reverseOrder());
+        // a build only matches if every term is on a line of it, which the words alone do not tell for terms made
+        // of several words, so the lines of all builds that have the words are read for those
+        boolean sameLine = terms.stream().anyMatch(term -> term.size() > 1);
+        if (!sameLine) {
+            builds = builds.subList(0, Math.min(limit, builds.size()));
+        }
+
+        // build -> log -> word -> posting
+        Map<Integer, Map<Integer, Map<String, Posting>>> candidates = new HashMap<>();
+        for (int build : builds) {
+            candidates.put(build, new HashMap<>());
+        }
+        for (Map.Entry<String, List<Posting>> word : postings.entrySet()) {
+            for (Posting posting : word.getValue()) {
+                Map<Integer, Map<String, Posting>> logs = candidates.get(posting.build);
+                if (logs != null) {
+                    logs.computeIfAbsent(posting.log, l -> new HashMap<>()).put(word.getKey(), posting);
+                }
+            }
+        }
+        List<Match> matches = new ArrayList<>();
+        int total = sameLine ? 0 : found.size();
+        for (int build : builds) {
+            Map<String, List<Integer>> lines = matchingLines(terms, candidates.get(build));
+            if (lines == null) {
+                continue;
+            }
+            if (sameLine) {
+                total++;
+            }
+            if (matches.size() < limit) {
+                matches.add(new Match(build, lines));
+            }
+        }
+        return new Results(total, matches);
+    }
+
+    /**
+     * @param terms the terms of a search, each the words that have to be on the same line
+     * @param postings the postings of the words in the logs of a build, log -> word -> posting
+     * @return the numbers of the lines that contain a term, by the name of the log, null if a term is on no line
+     */
+    private static Map<String, List<Integer>> matchingLines(List<List<String>> terms, Map<Integer, Map<String, Posting>> postings) {
+        Map<String, List<Integer>> lines = new LinkedHashMap<>();
+        boolean[] termFound = new boolean[terms.size()];
+        for (int log = 0; log < LOGS.length; log++) {
+            Map<String, Posting> logPostings = postings.get(log);
+            if (logPostings == null) {
+                continue;
+            }
+            TreeSet<Integer> matching = new TreeSet<>();
+            for (int t = 0; t < terms.size(); t++) {
+                Set<Integer> onLine = null;
+                for (String word : terms.get(t)) {
+                    Posting posting = logPostings.get(word);
+                    Set<Integer> wordLines = new HashSet<>();
+                    if (posting != null) {
+                        for (int line : posting.lines()) {
+                            wordLines.add(line);
+                        }
+                    }
+                    if (onLine == null) {
+                        onLine = wordLines;
+                    } else {
+                        onLine.retainAll(wordLines);
+                    }
+                }
+                termFound[t] |= !onLine.isEmpty();
+                matching.addAll(onLine);
+            }
+            if (!matching.isEmpty()) {
+                lines.put(LOGS[log], new ArrayList<>(matching).subList(0, Math.min(RESULT_LINES, matching.size())));
+            }
+        }
+        for (boolean f : termFound) {
+            if (!f) {
+                return null;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The builds found by a search, the newest first.
+     */
+    public static class Results {
+        private final int total;
+        private final List<Match> matches;
+
+        /**
+         * Basic constructor setting private variables
+         * @param total number of builds that match
+         * @param matches the newest of the builds that match
+         */
+        public Results(int total, List<Match> matches) {
+            this.total = total;
+            this.matches = matches;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public List<Match> getMatches() {
+            return matches;
+        }
+    }
+
+    /**
+     * A build found by a search.
+     */
+    public static class Match {
+        private final int buildID;
+        private final Map<String, List<Integer>> lines;
+
+        /**
+         * Basic constructor setting private variables
+         * @param buildID id of the build
+         * @param lines numbers of the lines, starting at 1, that contain words of the search, by the name of the log
+         */
+        public Match(int buildID, Map<String, List<Integer>> lines) {
+            this.buildID = buildID;
+            this.lines = lines;
+        }
+
+        public int getBuildID() {
+            return buildID;
+        }
+
+        public Map<String, List<Integer>> getLines() {
+            return lines;
+        }
+    }
+
+    //--------------Segments ------------------
+
+    /**
+     * The builds and lines of one word in one log.
+     */
+    private static class Posting {
+        final int build;
+        final int log;
+        // number of lines the word is on, the first MAX_LINES of them are in lines
+        int count;
+        int lineCount;
+        private int[] lines;
+        private int lastLine;
+        // the lines as they are stored in a segment, only read when they are needed
+        private ByteBuffer stored;
+        private int storedAt;
+        private int storedLength;
+
+        Posting(int build, int log) {
+            this.build = build;
+            this.log = log;
+        }
+
+        void addLine(int line) {
+            if (line == lastLine) {
+                return;
+            }
+            lastLine = line;
+            count++;
+            if (lineCount < MAX_LINES) {
+                if (lines == null || lineCount == lines.length) {
+                    lines = Arrays.copyOf(lines == null ? new int[0] : lines, Math.min(Math.max(4, lineCount * 2), MAX_LINES));
+                }
+                lines[lineCount++] = line;
+            }
+        }
+
+        int[] lines() {
+            if (lines == null) {
+                lines = new int[lineCount];
+                ByteBuffer in = stored.duplicate();
+                in.position(storedAt);
+                int line = 0;
+                for (int i = 0; i < lineCount; i++) {
+                    line += readVarint(in);
+                    lines[i] = line;
+                }
+            }
+            return lines;
+        }
+
+        /**
+         * @return the lines as they are stored, differences to the previous line, each in as few bytes as it needs
+         */
+        byte[] storedLines() {
+            if (stored != null) {
+                byte[] bytes = new byte[storedLength];
+                stored.duplicate().position(storedAt).get(bytes);
+                return bytes;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(lineCount * 2);
+            int line = 0;
+            for (int i = 0; i < lineCount; i++) {
+                int difference = lines[i] - line;
+                while ((difference & ~0x7F) != 0) {
+                    bytes.write((difference & 0x7F) | 0x80);
+                    difference >>>= 7;
+                }
+                bytes.write(difference);
+                line = lines[i];
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private final static Comparator<Posting> POSTING_ORDER = Comparator.<Posting>comparingInt(p -> p.build).thenComparingInt(p -> p.log);
+
+    /**
+     * The words to write to a segment, in sorted order, each with its postings.
+     */
+    private interface PostingSource {
+        /**
+         * @return the next word, null when there are no more
+         */
+        String next() throws IOException;
+
+        /**
+         * @return the postings of the word returned by {@link #next()}
+         */
+        List<Posting> postings() throws IOException;
+    }
+
+    private static class SortedPostings implements PostingSource {
+        private final Iterator<Map.Entry<String, List<Posting>>> words;
+        private List<Posting> postings;
+
+        SortedPostings(TreeMap<String, List<Posting>> words) {
+            this.words = words.entrySet().iterator();
+        }
+
+        public String next() {
+            if (!words.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, List<Posting>> entry = words.next();
+            postings = entry.getValue();
+            return entry.getKey();
+        }
+
+        public List<Posting> postings() {
+            return postings;
+        }
+    }
+
+    /**
+     * The words of several segments in sorted order, with the postings of all of them.
+     */
+    private static class MergedPostings implements PostingSource {
+        private final PriorityQueue<Segment.Cursor> cursors = new PriorityQueue<>(Comparator.comparing(c -> c.word));
+        private final List<Segment.Cursor> current = new ArrayList<>();
+
+        MergedPostings(List<Segment> segments) throws IOException {
+            for (Segment segment : segments) {
+                Segment.Cursor cursor = segment.cursor();
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+        }
+
+        public String next() throws IOException {
+            for (Segment.Cursor cursor : current) {
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                }
+            }
+            current.clear();
+            if (cursors.isEmpty()) {
+                return null;
+            }
+            String word = cursors.peek().word;
+            while (!cursors.isEmpty() && cursors.peek().word.equals(word)) {
+                current.add(cursors.poll());
+            }
+            return word;
+        }
+
+        public List<Posting> postings() throws IOException {
+            List<Posting> postings = new ArrayList<>();
+            for (Segment.Cursor cursor : current) {
+                postings.addAll(cursor.postings());
+            }
+            return postings;
+        }
+    }
+
+    /**
+     * A file of the index. It holds the postings of its words, then its words in blocks of 32, then the first word
+     * and position of every block and the builds of the segment, and ends with the positions of the words and of
+     * the blocks list.
+     */
+    private static class Segment {
+        final File file;
+        final FileChannel channel;
+        final int level;
+        final int[] builds;
+        // the first word and the position of every block of words
+        final String[] blockWords;
+        final long[] blockPositions;
+        final long wordsEnd;
+
+        private Segment(File file, FileChannel channel, int level, int[] builds, String[] blockWords, long[] blockPositions, long wordsEnd) {
+            this.file = file;
+            this.channel = channel;
+            this.level = level;
+            this.builds = builds;
+            this.blockWords = blockWords;
+            this.blockPositions = blockPositions;
+            this.wordsEnd = wordsEnd;
+        }
+
+        static Segment write(File file, int level, int[] builds, PostingSource source) throws IOException {
+            File temp = new File(file.getPath() + ".tmp");
+            List<String> blockWords = new ArrayList<>();
+            List<Long> blockPositions = new ArrayList<>();
+            try (Output out = new Output(Files.newOutputStream(temp.toPath()))) {
+                out.writeInt(MAGIC);
+                // the postings are written while the words are collected, the words follow them
+                List<String> words = new ArrayList<>();
+                List<long[]> positions = new ArrayList<>();
+                String word;
+                while ((word = source.next()) != null) {
+                    List<Posting> list = source.postings();
+                    list.sort(POSTING_ORDER);
+                    long start = out.position;
+                    out.writeVarint(list.size());
+                    int build = 0;
+                    for (Posting posting : list) {
+                        out.writeVarint(posting.build - build);
+                        build = posting.build;
+                        out.writeVarint(posting.log);
+                        out.writeVarint(posting.count);
+                        out.writeVarint(posting.lineCount);
+                        byte[] lines = posting.storedLines();
+                        out.writeVarint(lines.length);
+                        out.write(lines);
+                    }
+                    words.add(word);
+                    positions.add(new long[]{start, out.position - start});
+                }
+                long wordsStart = out.position;
+                String last = "";
+                for (int i = 0; i < words.size(); i++) {
+                    String w = words.get(i);
+                    if (i % BLOCK_WORDS == 0) {
+                        blockWords.add(w);
+                        blockPositions.add(out.position);
+                        last = "";
+                    }
+                    int shared = 0;
+                    while (shared < Math.min(last.length(), w.length()) && last.charAt(shared) == w.charAt(shared)) {
+                        shared++;
+                    }
+                    byte[] suffix = w.substring(shared).getBytes(StandardCharsets.US_ASCII);
+                    out.writeVarint(shared);
+                    out.writeVarint(suffix.length);
+                    out.write(suffix);
+                    out.writeVarint(positions.get(i)[0]);
+                    out.writeVarint(positions.get(i)[1]);
+                    last = w;
+                }
+                long blocksStart = out.position;
+                out.writeVarint(blockWords.size());
+                for (int i = 0; i < blockWords.size(); i++) {
+                    byte[] w = blockWords.get(i).getBytes(StandardCharsets.US_ASCII);
+                    out.writeVarint(w.length);
+                    out.write(w);
+                    out.writeVarint(blockPositions.get(i) - wordsStart);
+                }
+                out.writeVarint(level);
+                out.writeVarint(builds.length);
+                int previous = 0;
+                for (int build : builds) {
+                    out.writeVarint(build - previous);
+                    previous = build;
+                }
+                out.writeLong(wordsStart);
+                out.writeLong(blocksStart);
+                out.writeInt(MAGIC);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return open(file);
+        }
+
+        static Segment open(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                ByteBuffer footer = read(channel, size - 20, 20);
+                long wordsStart = footer.getLong();
+                long blocksStart = footer.getLong();
+                if (footer.getInt() != MAGIC) {
+                    throw new IOException(file + " is not a segment of the log index");
+                }
+                if (read(channel, 0, 4).getInt() != MAGIC) {
+                    throw new IOException(file + " is not a segment of the log index");
+                }
+                ByteBuffer blocks = read(channel, blocksStart, (int) (size - 20 - blocksStart));
+                String[] blockWords = new String[readVarint(blocks)];
+                long[] blockPositions = new long[blockWords.length];
+                for (int i = 0; i < blockWords.length; i++) {
+                    byte[] w = new byte[readVarint(blocks)];
+                    blocks.get(w);
+                    blockWords[i] = new String(w, StandardCharsets.US_ASCII);
+                    blockPositions[i] = wordsStart + readVarintLong(blocks);
+                }
+                int level = readVarint(blocks);
+                int[] builds = new int[readVarint(blocks)];
+                int build = 0;
+                for (int i = 0; i < builds.length; i++) {
+                    build += readVarint(blocks);
+                    builds[i] = build;
+                }
+                return new Segment(file, channel, level, builds, blockWords, blockPositions, blocksStart);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the postings of a word, empty if the segment does not have it
+         */
+        List<Posting> find(String word) throws IOException {
+            int block = Arrays.binarySearch(blockWords, word);
+            if (block < 0) {
+                block = -block - 2;
+            }
+            if (block < 0) {
+                return List.of();
+            }
+            long end = block + 1 < blockPositions.length ? blockPositions[block + 1] : wordsEnd;
+            ByteBuffer words = read(channel, blockPositions[block], (int) (end - blockPositions[block]));
+            String last = "";
+            while (words.hasRemaining()) {
+                last = readWord(words, last);
+                long position = readVarintLong(words);
+                int length = readVarint(words);
+                int order = last.compareTo(word);
+                if (order == 0) {
+                    return readPostings(channel, position, length);
+                } else if (order > 0) {
+                    break;
+                }
+            }
+            return List.of();
+        }
+
+        /**
+         * @return a cursor over the words of the segment in sorted order
+         */
+        Cursor cursor() throws IOException {
+            return new Cursor(read(channel, blockPositions.length == 0 ? wordsEnd : blockPositions[0],
+                    (int) (wordsEnd - (blockPositions.length == 0 ? wordsEnd : blockPositions[0]))));
+        }
+
+        class Cursor {
+            private final ByteBuffer words;
+            private int index = 0;
+            String word = "";
+            private long position;
+            private int length;
+
+            Cursor(ByteBuffer words) {
+                this.words = words;
+            }
+
+            boolean advance() {
+                if (!words.hasRemaining()) {
+                    return false;
+                }
+                word = readWord(words, index % BLOCK_WORDS == 0 ? "" : word);
+                position = readVarintLong(words);
+                length = readVarint(words);
+                index++;
+                return true;
+            }
+
+            List<Posting> postings() throws IOException {
+                return readPostings(channel, position, length);
+            }
+        }
+
+        private static String readWord(ByteBuffer words, String previous) {
+            int shared = readVarint(words);
+            byte[] suffix = new byte[readVarint(words)];
+            words.get(suffix);
+            return previous.substring(0, shared) + new String(suffix, StandardCharsets.US_ASCII);
+        }
+
+        private static List<Posting> readPostings(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer in = read(channel, position, length);
+            List<Posting> postings = new ArrayList<>();
+            int count = readVarint(in);
+            int build = 0;
+            for (int i = 0; i < count; i++) {
+                build += readVarint(in);
+                Posting posting = new Posting(build, readVarint(in));
+                posting.count = readVarint(in);
+                posting.lineCount = readVarint(in);
+                posting.storedLength = readVarint(in);
+                posting.stored = in;
+                posting.storedAt = in.position();
+                in.position(in.position() + posting.storedLength);
+                postings.add(posting);
+            }
+            return postings;
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of a segment of the log index");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarintLong(in);
+    }
+
+    private static long readVarintLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * A buffered output that knows its position and writes numbers in 7 bit groups, as few as they need.
+     */
+    private static class Output implements AutoCloseable {
+        private final OutputStream out;
+        long position = 0;
+
+        Output(OutputStream out) {
+            this.out = new BufferedOutputStream(out, 1 << 16);
+        }
+
+        void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+                position++;
+            }
+            out.write((int) value);
+            position++;
+        }
+
+        void writeInt(int value) throws IOException {
+            write(ByteBuffer.allocate(4).putInt(value).array());
+        }
+
+        void writeLong(long value) throws IOException {
+            write(ByteBuffer.allocate(8).putLong(value).array());
+        }
+
+        void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    //--------------Metrics ------------------
+
+    /**
+     * Writes the metrics of the index as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        List<Segment> current;
+        lock.readLock().lock();
+        try {
+            current = segments;
+        } finally {
+            lock.readLock().unlock();
+        }
+        long bytes = 0;
+        int builds = 0;
+        for (Segment segment : current) {
+            bytes += segment.file.length();
+            builds += segment.builds.length;
+        }
+        sb.append("log_index_builds ").append(builds).append('\n')
+                .append("log_index_segments ").append(current.size()).append('\n')
+                .append("log_index_bytes ").append(bytes).append('\n')
+                .append("log_index_merges ").append(merges.get()).append('\n')
+                .append("log_index_searches ").append(searches.get()).append('\n');
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads the install/compile/test logs of a build when they are viewed. The logs stay on disk in the
+ * build directory, or in the {@link ArtifactStore} once the build is done, recently viewed logs are kept in an LRU cache that holds at most
+ * DD2480_LOG_CACHE_BYTES bytes of logs. Logs larger than an eighth of the cache are never cached,
+ * {@link #openLog(Build, String)} streams those straight from disk.
+ */
+public class LogStore {
+
+    // names of the log files in a build directory
+    public final static String INSTALL_LOG = ".mvn_install.log";
+    public final static String COMPILE_LOG = ".mvn_compile.log";
+    public final static String TEST_LOG = ".mvn_test.log";
+
+    public final static String CACHE_BYTES_KEY = "DD2480_LOG_CACHE_BYTES";
+
+    private final long maxBytes;
+    private long cachedBytes = 0;
+    // access ordered, so the first entry is the least recently viewed log
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    // metrics
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a log store with the cache size from DD2480_LOG_CACHE_BYTES, 16 MB by default.
+     */
+    public LogStore() {
+        this(Config.getLong(CACHE_BYTES_KEY, 16 * 1024 * 1024));
+    }
+
+    /**
+     * Creates a log store.
+     * @param maxBytes the most bytes of logs that are kept in memory
+     */
+    public LogStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns one of the logs of a build. Builds stored before the logs were kept on disk
+     * still have their logs in the build history, those are returned as they are.
+     * @param b the build
+     * @param logName INSTALL_LOG, COMPILE_LOG or TEST_LOG
+     * @return the log, or an empty String if it can not be found
+     */
+    public String getLog(Build b, String logName) {
+        String inline = inlineLog(b, logName);
+        if (inline != null || b.getLogDirectory() == null) {
+            return inline == null ? "" : inline;
+        }
+        byte[] bytes = load(Path.of(b.getLogDirectory(), logName));
+        return bytes == null ? "" : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens one of the logs of a build for streaming. Cached and small logs are served from memory,
+     * large logs are read from disk while they are streamed so they are never held in memory as a whole.
+     * @param b the build
+     * @param logName INSTALL_LOG, COMPILE_LOG or TEST_LOG
+     * @return a reader over the log, empty if it can not be found
+     */
+    public Reader openLog(Build b, String logName) {
+        String inline = inlineLog(b, logName);
+        if (inline != null || b.getLogDirectory() == null) {
+            return new StringReader(inline == null ? "" : inline);
+        }
+        Path path = Path.of(b.getLogDirectory(), logName);
+        try {
+            if (!isCached(path) && size(path) > maxBytes / 8) {
+                synchronized (this) {
+                    misses++;
+                }
+                InputStream stored = Files.exists(path) ? null
+                        : ArtifactStore.of(path.getParent().toFile()).openLog(path.getParent().toFile(), logName);
+                return stored == null ? Files.newBufferedReader(path, StandardCharsets.UTF_8)
+                        : new InputStreamReader(stored, StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read log " + path);
+            return new StringReader("");
+        }
+        byte[] bytes = load(path);
+        return bytes == null ? new StringReader("")
+                : new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the size of a log file, or of the log in the artifact store if the file was moved there
+     */
+    private static long size(Path path) throws IOException {
+        if (Files.exists(path)) {
+            return Files.size(path);
+        }
+        long stored = ArtifactStore.of(path.getParent().toFile()).logSize(path.getParent().toFile(), path.getFileName().toString());
+        if (stored < 0) {
+            throw new IOException(path + " does not exist");
+        }
+        return stored;
+    }
+
+    private synchronized boolean isCached(Path path) {
+        return cache.containsKey(path.toString());
+    }
+
+    private static String inlineLog(Build b, String logName) {
+        switch (logName) {
+            case INSTALL_LOG:
+                return b.getInstallResult() == null ? null : b.getInstallResult().getInstallLogs();
+            case COMPILE_LOG:
+                return b.getBuildResult() == null ? null : b.getBuildResult().getBuildLogs();
+            case TEST_LOG:
+                return b.getTestResult() == null ? null : b.getTestResult().getTestLogs();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads a log file through the cache.
+     * @param path the log file
+     * @return the contents, or null if the file can not be read
+     */
+    private byte[] load(Path path) {
+        String key = path.toString();
+        synchronized (this) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        byte[] bytes;
+        try {
+            if (Files.exists(path)) {
+                bytes = Files.readAllBytes(path);
+            } else {
+                // the logs of a build that is done are in the artifact store
+                try (InputStream stored = ArtifactStore.of(path.getParent().toFile())
+                        .openLog(path.getParent().toFile(), path.getFileName().toString())) {
+                    if (stored == null) {
+                        throw new IOException(path + " does not exist");
+                    }
+                    bytes = stored.readAllBytes();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read log " + path);
+            return null;
+        }
+        if (bytes.length <= maxBytes / 8) {
+            put(key, bytes);
+        }
+        return bytes;
+    }
+
+    private synchronized void put(String key, byte[] bytes) {
+        byte[] previous = cache.put(key, bytes);
+        if (previous != null) {
+            cachedBytes -= previous.length;
+        }
+        cachedBytes += bytes.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = cache.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drops all cached logs of a build directory, e.g. when the directory is emptied because the build expired.
+     * @param logDirectory the build directory
+     */
+    public synchronized void invalidate(String logDirectory) {
+        Path directory = Path.of(logDirectory).toAbsolutePath().normalize();
+        Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, byte[]> entry = it.next();
+            if (Path.of(entry.getKey()).toAbsolutePath().normalize().getParent().equals(directory)) {
+                cachedBytes -= entry.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    //--------------Metrics ------------------
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Writes the metrics of the log cache as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public synchronized void appendMetrics(StringBuilder sb) {
+        sb.append("log_cache_bytes ").append(cachedBytes).append('\n')
+                .append("log_cache_entries ").append(cache.size()).append('\n')
+                .append("log_cache_hits ").append(hits).append('\n')
+                .append("log_cache_misses ").append(misses).append('\n');
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A long-lived JVM that runs Maven builds in-process, one at a time, for {@link MavenDaemonPool}. It is started
+ * with Maven's libraries on the class path, so Maven's classes are loaded and compiled by the JIT once and not
+ * for every build. Maven is called through reflection so that the server does not depend on Maven's libraries.
+ *
+ * The daemon reads requests from stdin and writes the output of Maven to stdout, the lines it answers with
+ * start with the token it was started with, which the output of a build does not contain:
+ * <pre>
+ * ping                          -> TOKEN pong USED_HEAP MAX_HEAP
+ * gc                            -> the same after collecting the garbage
+ * dir /path, arg -B, arg test,  -> the output of Maven, then TOKEN exit CODE
+ * then run
+ * </pre>
+ * The system properties are restored after every build, so the -D options of one build do not leak into the next.
+ */
+public class MavenDaemon {
+
+    public static void main(String[] args) throws Exception {
+        String token = args[0];
+        Class<?> cli = Class.forName("org.apache.maven.cli.MavenCli");
+        Method doMain = cli.getMethod("doMain", String[].class, String.class, PrintStream.class, PrintStream.class);
+        PrintStream out = System.out;
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        out.println(token + " ready");
+        out.flush();
+
+        String directory = null;
+        List<String> arguments = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals("ping") || line.equals("gc")) {
+                if (line.equals("gc")) {
+                    System.gc();
+                }
+                Runtime runtime = Runtime.getRuntime();
+                out.println(token + " pong " + (runtime.totalMemory() - runtime.freeMemory()) + " " + runtime.maxMemory());
+            } else if (line.startsWith("dir ")) {
+                directory = line.substring(4);
+            } else if (line.startsWith("arg ")) {
+                arguments.add(line.substring(4));
+            } else if (line.equals("run")) {
+                int exit = run(cli, doMain, directory, arguments, out);
+                System.err.flush();
+                out.println(token + " exit " + exit);
+                directory = null;
+                arguments.clear();
+            }
+            out.flush();
+        }
+        // stdin is closed when the server is gone, threads that Maven left behind must not keep the daemon alive
+        System.exit(0);
+    }
+
+    private static int run(Class<?> cli, Method doMain, String directory, List<String> arguments, PrintStream out) {
+        Properties properties = (Properties) System.getProperties().clone();
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            // as the mvn script does: the nearest directory with a .mvn directory, else the directory itself
+            System.setProperty("maven.multiModuleProjectDirectory", projectDirectory(new File(directory)).getAbsolutePath());
+            Object maven = cli.getConstructor().newInstance();
+            return (Integer) doMain.invoke(maven, arguments.toArray(new String[0]), directory, out, System.err);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 1;
+        } finally {
+            System.setProperties(properties);
+            Thread.currentThread().setContextClassLoader(loader);
+        }
+    }
+
+    private static File projectDirectory(File directory) {
+        for (File d = directory.getAbsoluteFile(); d != null; d = d.getParentFile()) {
+            if (new File(d, ".mvn").isDirectory()) {
+                return d;
+            }
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,606 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warm JVMs that run the Maven commands of the pipelines, so that a stage does not pay for starting a JVM and
+ * loading Maven, which takes longer than compiling a small project. Every daemon is a {@link MavenDaemon} started
+ * with the libraries of the Maven installation that mvn runs. A daemon runs one Maven command at a time and
+ * belongs to the build that runs it until the command is done, so builds that run at the same time never share
+ * a daemon. The system properties of a daemon are restored after every command and the environment it was
+ * started with is part of its key: a command only runs in a daemon started with the same environment and JVM
+ * options (the options in MAVEN_OPTS that are not -D options), the -D options are passed to Maven.
+ *
+ * Before a daemon is used it has to answer a ping. A daemon is replaced after DD2480_MAVEN_DAEMON_MAX_BUILDS
+ * Maven commands, when its heap stays more than three quarters full, when a command left processes running, or
+ * when a command timed out or was cancelled, which kills the daemon. At most DD2480_MAVEN_DAEMONS daemons run,
+ * when all are busy a command runs in a JVM of its own as before.
+ */
+public class MavenDaemonPool {
+
+    // used as keys for the settings of the pool
+    public final static String SIZE_KEY = "DD2480_MAVEN_DAEMONS";
+    public final static String MAX_BUILDS_KEY = "DD2480_MAVEN_DAEMON_MAX_BUILDS";
+
+    // returned when no daemon could run the command, it is then run as a process of its own
+    public final static int UNAVAILABLE = -4;
+
+    // a daemon whose heap is fuller than this after a collection is replaced
+    private final static double MAX_HEAP_USE = 0.75;
+    private final static long START_TIMEOUT_MILLIS = 60000;
+    private final static long PING_TIMEOUT_MILLIS = 10000;
+    // how long the processes a command started may take to exit after it is done
+    private final static long EXIT_GRACE_MILLIS = 2000;
+    // stands for the end of the output of a daemon in its queue of lines
+    private final static String EOF = new String("EOF");
+
+    private static MavenDaemonPool shared;
+
+    private final File mavenHome;
+    private final int size;
+    private final int maxBuilds;
+    private final Deque<Daemon> idle = new ArrayDeque<>();
+    private int running = 0;
+
+    // metrics
+    private final AtomicLong starts = new AtomicLong();
+    private final AtomicLong warmRuns = new AtomicLong();
+    private final AtomicLong coldRuns = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong unhealthy = new AtomicLong();
+    // wall time of the stages by "STAGE warm" and "STAGE cold", as {count, total millis}
+    private final Map<String, long[]> stageMillis = new ConcurrentHashMap<>();
+
+    /**
+     * @param mavenHome the Maven installation the daemons load, null to run every command in a JVM of its own
+     * @param size number of daemons that run at most
+     * @param maxBuilds number of Maven commands a daemon runs before it is replaced
+     */
+    public MavenDaemonPool(File mavenHome, int size, int maxBuilds) {
+        this.mavenHome = mavenHome;
+        this.size = size;
+        this.maxBuilds = maxBuilds;
+    }
+
+    /**
+     * @return the pool of the builds, with DD2480_MAVEN_DAEMONS (by default as many as there are build workers,
+     * DD2480_WORKERS) daemons that run DD2480_MAVEN_DAEMON_MAX_BUILDS (50 by default) commands each
+     */
+    public static synchronized MavenDaemonPool shared() {
+        if (shared == null) {
+            int size = Config.getInt(SIZE_KEY, Config.getInt(BuildScheduler.WORKERS_KEY, 2));
+            shared = new MavenDaemonPool(size > 0 ? findMavenHome() : null, size, Config.getInt(MAX_BUILDS_KEY, 50));
+        }
+        return shared;
+    }
+
+    /**
+     * @return true if Maven commands are run in daemons
+     */
+    public boolean isEnabled() {
+        return mavenHome != null && size > 0;
+    }
+
+    /**
+     * @return the installation of the mvn command on the PATH, or of MAVEN_HOME, null if there is none with
+     * the libraries a daemon needs
+     */
+    static File findMavenHome() {
+        List<File> candidates = new ArrayList<>();
+        String home = System.getenv("MAVEN_HOME");
+        if (home != null) {
+            candidates.add(new File(home));
+        }
+        String path = System.getenv("PATH");
+        for (String directory : path == null ? new String[0] : path.split(File.pathSeparator)) {
+            File mvn = new File(directory, "mvn");
+            if (mvn.canExecute()) {
+                try {
+                    // e.g. /usr/bin/mvn -> /usr/share/maven/bin/mvn
+                    candidates.add(mvn.toPath().toRealPath().getParent().getParent().toFile());
+                } catch (IOException e) {
+                    // a broken link, try the next one
+                }
+                break;
+            }
+        }
+        for (File candidate : candidates) {
+            File[] embedder = new File(candidate, "lib").listFiles((dir, name) -> name.startsWith("maven-embedder-"));
+            if (embedder != null && embedder.length > 0 && new File(candidate, "boot").isDirectory()) {
+                return candidate;
+            }
+        }
+        System.err.println("No Maven installation with lib/maven-embedder found, Maven commands are run without daemons");
+        return null;
+    }
+
+    /**
+     * Starts the daemons in the background, so that the first builds find them warm.
+     * @param environment the environment the Maven commands of the builds run with, in addition to the server's
+     */
+    public void prewarm(Map<String, String> environment) {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = key(environment);
+        synchronized (this) {
+            int missing = size - running - idle.size();
+            running += missing;
+            for (int i = 0; i < missing; i++) {
+                startInBackground(key, environment);
+            }
+        }
+    }
+
+    /**
+     * @param command a command of a pipeline
+     * @return true if it is a Maven command that a daemon can run
+     */
+    public boolean accepts(List<String> command) {
+        return isEnabled() && !command.isEmpty() && command.get(0).equals("mvn")
+                && command.stream().noneMatch(arg -> arg.contains("\n"));
+    }
+
+    /**
+     * Runs a Maven command in a daemon, passing its output to a sink line by line.
+     * @param command the command, starting with "mvn"
+     * @param directory the working directory
+     * @param environment variables added to the environment of the server, MAVEN_OPTS included
+     * @param timeoutMillis the daemon is killed if the command takes longer
+     * @param cancellation the daemon is killed when it is cancelled, may be null
+     * @param sink receives the output
+     * @return the exit code, TIMED_OUT or CANCELLED, or UNAVAILABLE if all daemons are busy
+     */
+    public int execute(List<String> command, File directory, Map<String, String> environment, long timeoutMillis,
+                       Cancellation cancellation, Pipeline.LineSink sink) throws IOException {
+        // the time it takes to start a daemon counts, as starting a JVM counts without daemons
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Daemon daemon = lease(environment);
+        if (daemon == null) {
+            coldRuns.incrementAndGet();
+            return UNAVAILABLE;
+        }
+        warmRuns.incrementAndGet();
+        Runnable kill = daemon::kill;
+        if (cancellation != null) {
+            cancellation.onCancel(kill);
+        }
+        int exit;
+        try {
+            exit = daemon.run(directory, mavenArguments(command, environment), deadline, sink);
+        } finally {
+            if (cancellation != null) {
+                cancellation.remove(kill);
+            }
+            giveBack(daemon);
+        }
+        if (exit != 0 && cancellation != null && cancellation.isCancelled()) {
+            exit = Pipeline.CANCELLED;
+        }
+        return exit;
+    }
+
+    /**
+     * @return an idle daemon with the environment that answers a ping, a new one if there is room, null if all
+     * are busy or a daemon can not be started
+     */
+    private Daemon lease(Map<String, String> environment) {
+        String key = key(environment);
+        while (true) {
+            Daemon daemon = null;
+            synchronized (this) {
+                for (Daemon d : idle) {
+                    if (d.key.equals(key)) {
+                        daemon = d;
+                        break;
+                    }
+                }
+                if (daemon != null) {
+                    idle.remove(daemon);
+                } else {
+                    if (running + idle.size() >= size && !idle.isEmpty()) {
+                        // the environment of the builds has changed, e.g. their limits, an idle daemon makes room
+                        idle.pollLast().kill();
+                    }
+                    if (running + idle.size() >= size) {
+                        return null;
+                    }
+                }
+                running++;
+            }
+            if (daemon == null) {
+                try {
+                    return start(key, environment);
+                } catch (IOException e) {
+                    System.err.println("Could not start a Maven daemon: " + e.getMessage());
+                    synchronized (this) {
+                        running--;
+                    }
+                    return null;
+                }
+            }
+            if (daemon.ping(false) != null) {
+                return daemon;
+            }
+            unhealthy.incrementAndGet();
+            daemon.kill();
+            synchronized (this) {
+                running--;
+            }
+        }
+    }
+
+    /**
+     * Makes a daemon that has run a command available again, or replaces it if it has run enough commands,
+     * uses too much memory or left processes running.
+     */
+    private void giveBack(Daemon daemon) {
+        daemon.builds++;
+        String reason = null;
+        if (!daemon.isAlive()) {
+            reason = "it exited";
+        } else if (daemon.hasStrayProcesses()) {
+            reason = "processes of the last command are still running";
+        } else if (daemon.builds >= maxBuilds) {
+            reason = "it ran " + daemon.builds + " builds";
+        } else {
+            long[] heap = daemon.ping(true);
+            if (heap == null) {
+                reason = "it does not answer";
+                unhealthy.incrementAndGet();
+            } else if (heap[0] > heap[1] * MAX_HEAP_USE) {
+                reason = "its heap is " + heap[0] * 100 / heap[1] + "% full";
+            }
+        }
+        synchronized (this) {
+            if (reason == null) {
+                running--;
+                idle.push(daemon);
+                return;
+            }
+        }
+        daemon.kill();
+        recycled.incrementAndGet();
+        System.err.println("Replacing a Maven daemon, " + reason);
+        // the replacement keeps the slot of the daemon, it is started before the next build needs it
+        startInBackground(daemon.key, daemon.environment);
+    }
+
+    /**
+     * Starts a daemon on its own thread, the caller has counted it as running already.
+     */
+    private void startInBackground(String key, Map<String, String> environment) {
+        Thread thread = new Thread(() -> {
+            Daemon daemon = null;
+            try {
+                daemon = start(key, environment);
+            } catch (IOException e) {
+                System.err.println("Could not start a Maven daemon: " + e.getMessage());
+            }
+            synchronized (this) {
+                running--;
+                if (daemon != null) {
+                    idle.push(daemon);
+                }
+            }
+        }, "maven-daemon-start");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Daemon start(String key, Map<String, String> environment) throws IOException {
+        String javaHome = System.getenv("JAVA_HOME");
+        List<String> command = new ArrayList<>(List.of(javaHome == null ? "java" : new File(javaHome, "bin/java").getPath()));
+        command.addAll(jvmOptions(environment));
+        command.add("-Dmaven.home=" + mavenHome.getAbsolutePath());
+        command.add("-Dmaven.conf=" + new File(mavenHome, "conf").getAbsolutePath());
+        command.add("-Dlibrary.jansi.path=" + new File(mavenHome, "lib/jansi-native").getAbsolutePath());
+        command.add("-cp");
+        command.add(String.join(File.pathSeparator, new File(mavenHome, "boot/*").getPath(),
+                new File(mavenHome, "lib/ext/*").getPath(), new File(mavenHome, "lib/*").getPath(),
+                new File(mavenHome, "conf/logging").getPath(), daemonClassPath()));
+        String token = UUID.randomUUID().toString();
+        command.add(MavenDaemon.class.getName());
+        command.add(token);
+
+        ProcessBuilder pb = new ProcessBuilder(command).redirectErrorStream(true);
+        pb.environment().putAll(environment);
+        // the options are part of the command line of the daemon and the -D options are passed to every command
+        pb.environment().remove("MAVEN_OPTS");
+        Daemon daemon = new Daemon(pb.start(), token, key, environment);
+        starts.incrementAndGet();
+        String line = daemon.next(System.currentTimeMillis() + START_TIMEOUT_MILLIS);
+        List<String> output = new ArrayList<>();
+        while (line != null && line != EOF && !line.equals(token + " ready")) {
+            output.add(line);
+            line = daemon.next(System.currentTimeMillis() + START_TIMEOUT_MILLIS);
+        }
+        if (line == null || line == EOF) {
+            daemon.kill();
+            throw new IOException("The Maven daemon did not start: " + String.join("\n", output));
+        }
+        return daemon;
+    }
+
+    /**
+     * @return the class path entry that holds MavenDaemon, the directory or jar of the server
+     */
+    private static String daemonClassPath() throws IOException {
+        try {
+            return new File(MavenDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (URISyntaxException | RuntimeException e) {
+            throw new IOException("Can not find the classes of the Maven daemon", e);
+        }
+    }
+
+    /**
+     * @return what a daemon has to be started with to run the commands of an environment: the environment
+     * without MAVEN_OPTS and the JVM options in MAVEN_OPTS
+     */
+    static String key(Map<String, String> environment) {
+        Map<String, String> sorted = new TreeMap<>(environment);
+        sorted.remove("MAVEN_OPTS");
+        return sorted + " " + jvmOptions(environment);
+    }
+
+    /**
+     * @return the options in MAVEN_OPTS that are options of the JVM, e.g. "-Xmx1g"
+     */
+    static List<String> jvmOptions(Map<String, String> environment) {
+        List<String> options = new ArrayList<>();
+        for (String option : mavenOptions(environment)) {
+            if (!option.startsWith("-D")) {
+                options.add(option);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return the arguments of Maven for a command, the -D options of MAVEN_OPTS followed by the arguments of the command
+     */
+    static List<String> mavenArguments(List<String> command, Map<String, String> environment) {
+        List<String> arguments = new ArrayList<>();
+        for (String option : mavenOptions(environment)) {
+            if (option.startsWith("-D")) {
+                arguments.add(option);
+            }
+        }
+        arguments.addAll(command.subList(1, command.size()));
+        return arguments;
+    }
+
+    private static List<String> mavenOptions(Map<String, String> environment) {
+        String opts = environment.getOrDefault("MAVEN_OPTS", System.getenv("MAVEN_OPTS"));
+        List<String> options = new ArrayList<>();
+        // the mvn script splits MAVEN_OPTS at whitespace too
+        for (String option : opts == null ? new String[0] : opts.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                options.add(option);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Adds the wall time of the stages of a build whose Maven commands all ran in daemons, or all in JVMs of
+     * their own, to the averages of the stage.
+     * @param stages the stages of the build, after it has run
+     */
+    public void recordStages(List<PipelineStage> stages) {
+        for (PipelineStage stage : stages) {
+            String maven = stage.getMaven();
+            if (Integrator.STATUS_SUCCESS.equals(stage.getStatus())
+                    && (PipelineStage.MAVEN_WARM.equals(maven) || PipelineStage.MAVEN_COLD.equals(maven))) {
+                long[] total = stageMillis.computeIfAbsent(stage.getName() + " " + maven, k -> new long[2]);
+                synchronized (total) {
+                    total[0]++;
+                    total[1] += stage.getWallMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param stage name of a stage
+     * @param warm true for the stages whose Maven commands ran in daemons, false for those that started their own JVMs
+     * @return the average wall time of these stages since the server started, null if there was none
+     */
+    public Long averageStageMillis(String stage, boolean warm) {
+        long[] total = stageMillis.get(stage + " " + (warm ? PipelineStage.MAVEN_WARM : PipelineStage.MAVEN_COLD));
+        if (total == null) {
+            return null;
+        }
+        synchronized (total) {
+            return total[1] / total[0];
+        }
+    }
+
+    /**
+     * Writes the metrics of the pool as "name value" lines, with the average wall time of every stage in
+     * daemons and in JVMs of their own, e.g. "maven_stage_ms_warm_compile".
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        int idleDaemons;
+        int busy;
+        synchronized (this) {
+            idleDaemons = idle.size();
+            busy = running;
+        }
+        sb.append("maven_daemons_idle ").append(idleDaemons).append('\n')
+                .append("maven_daemons_busy ").append(busy).append('\n')
+                .append("maven_daemon_starts ").append(starts.get()).append('\n')
+                .append("maven_daemon_recycled ").append(recycled.get()).append('\n')
+                .append("maven_daemon_unhealthy ").append(unhealthy.get()).append('\n')
+                .append("maven_runs_warm ").append(warmRuns.get()).append('\n')
+                .append("maven_runs_cold ").append(coldRuns.get()).append('\n');
+        for (String stageAndMode : new TreeMap<>(stageMillis).keySet()) {
+            String[] parts = stageAndMode.split(" ");
+            sb.append("maven_stage_ms_").append(parts[1]).append('_').append(parts[0].toLowerCase()).append(' ')
+                    .append(averageStageMillis(parts[0], PipelineStage.MAVEN_WARM.equals(parts[1]))).append('\n');
+        }
+    }
+
+    /**
+     * A running daemon. Its output is read on its own thread into a queue, so that waiting for it can time out.
+     */
+    private static class Daemon {
+        private final Process process;
+        private final Writer in;
+        private final String token;
+        private final String key;
+        private final Map<String, String> environment;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private int builds = 0;
+        private volatile boolean killed = false;
+
+        Daemon(Process process, String token, String key, Map<String, String> environment) {
+            this.process = process;
+            this.in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.token = token;
+            this.key = key;
+            this.environment = Map.copyOf(environment);
+            Thread reader = new Thread(() -> {
+                try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = out.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    // the stream is closed when the daemon is killed
+                } finally {
+                    lines.add(EOF);
+                }
+            }, "maven-daemon-output");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * @return the next line of output, EOF if the daemon exited, null if there was none before the deadline
+         */
+        String next(long deadline) {
+            try {
+                return lines.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        /**
+         * @return the exit code of Maven, TIMED_OUT if the deadline passed, then the daemon is killed
+         */
+        int run(File directory, List<String> arguments, long deadline, Pipeline.LineSink sink) throws IOException {
+            StringBuilder request = new StringBuilder("dir ").append(directory.getAbsolutePath()).append('\n');
+            for (String argument : arguments) {
+                request.append("arg ").append(argument).append('\n');
+            }
+            try {
+                send(request.append("run").toString());
+            } catch (IOException e) {
+                sink.accept("The Maven daemon exited: " + e.getMessage());
+                return 1;
+            }
+            String exitLine = token + " exit ";
+            IOException sinkFailure = null;
+            while (true) {
+                String line = next(deadline);
+                if (line == null) {
+                    kill();
+                    return Pipeline.TIMED_OUT;
+                }
+                if (line == EOF) {
+                    sink.accept("The Maven daemon exited");
+                    return 1;
+                }
+                if (line.startsWith(exitLine)) {
+                    if (sinkFailure != null) {
+                        throw sinkFailure;
+                    }
+                    return Integer.parseInt(line.substring(exitLine.length()).trim());
+                }
+                if (sinkFailure == null) {
+                    try {
+                        sink.accept(line);
+                    } catch (IOException e) {
+                        // the output is read to the end so that the daemon can be used again
+                        sinkFailure = e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param collect true to collect the garbage first, so that the heap in use is what the daemon keeps
+         * @return the heap in use and the maximum heap, null if the daemon does not answer
+         */
+        long[] ping(boolean collect) {
+            try {
+                send(collect ? "gc" : "ping");
+            } catch (IOException e) {
+                return null;
+            }
+            long deadline = System.currentTimeMillis() + PING_TIMEOUT_MILLIS;
+            String pong = token + " pong ";
+            for (String line = next(deadline); line != null && line != EOF; line = next(deadline)) {
+                if (line.startsWith(pong)) {
+                    String[] heap = line.substring(pong.length()).trim().split(" ");
+                    return new long[]{Long.parseLong(heap[0]), Long.parseLong(heap[1])};
+                }
+            }
+            return null;
+        }
+
+        private void send(String request) throws IOException {
+            in.write(request);
+            in.write('\n');
+            in.flush();
+        }
+
+        boolean isAlive() {
+            return !killed && process.isAlive();
+        }
+
+        /**
+         * @return true if processes started by the last command, e.g. test JVMs, are still running a while after it
+         */
+        boolean hasStrayProcesses() {
+            long deadline = System.currentTimeMillis() + EXIT_GRACE_MILLIS;
+            for (ProcessHandle child : process.descendants().toArray(ProcessHandle[]::new)) {
+                try {
+                    child.onExit().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    if (child.isAlive()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void kill() {
+            killed = true;
+            Pipeline.killTree(process);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the output of the Maven runs of a build line by line, while it is written, and keeps what the build page
+ * and the API show about the build instead of its logs: the errors of the compiler, the tests that failed, the wall
+ * time of every plugin goal and the result of every module. Every line is looked at once and only what was found
+ * is kept, so the parser does not hold the output.
+ *
+ * The time of a plugin goal is the time between the line that starts it and the next line that starts another goal,
+ * another module or the summary of the run, so it is only known while the output is read as it is written.
+ * Maven runs whose output is interleaved, such as the test forks of a build, prefix their lines with
+ * {@link #forkPrefix(int)}; each of them is read by a parser of its own and their results are added up.
+ */
+public class MavenLogParser implements Pipeline.LineSink {
+
+    // kept per build, so that a build with thousands of errors does not grow the build history
+    private final static int MAX_ERRORS = 100;
+    private final static int MAX_MESSAGE = 500;
+
+    // "/repo/src/main/java/Pipeline.java:[12,8] cannot find symbol"
+    private final static Pattern COMPILER_ERROR = Pattern.compile("^(.+\\.java):\\[(\\d+),(\\d+)\\] (.*)$");
+    // "fails  Time elapsed: 0.02 s  <<< FAILURE!", "fails(ATest)  Time..." or "ATest.fails -- Time..." (Surefire 3)
+    private final static Pattern TEST_FAILURE = Pattern.compile("^(\\S+?)(?:\\((\\S+)\\))?\\s+(?:-- )?Time elapsed: .*<<< (FAILURE|ERROR)!$");
+    // "Tests run: 3, Failures: 1, Errors: 1, Skipped: 0", the summary after the tests, without a time
+    private final static Pattern TEST_SUMMARY = Pattern.compile("^Tests run: (\\d+), Failures: (\\d+), Errors: (\\d+), Skipped: (\\d+)$");
+    // "Tests run: 3, ..., Time elapsed: 0.2 s <<< FAILURE! - in ATest"
+    private final static Pattern TEST_CLASS = Pattern.compile("^(?:Running (\\S+)|Tests run: .* - in (\\S+))$");
+    // "a .................................................. FAILURE [  7.484 s]"
+    private final static Pattern REACTOR_MODULE = Pattern.compile("^(.+?) \\.+ ?(SUCCESS|FAILURE|SKIPPED)(?: \\[\\s*(.+)\\])?$");
+    // "Building a 1.0                                    [2/3]"
+    private final static Pattern BUILDING = Pattern.compile("^Building (\\S+) \\S+(?:\\s+\\[\\d+/\\d+\\])?$");
+    // "--------------------< x:a >---------------------", the start of a module
+    private final static Pattern MODULE = Pattern.compile("^-+< \\S+ >-+$");
+    private final static Pattern ANSI = Pattern.compile("\u001B\\[[;\\d]*m");
+    private final static String FORK = "[fork ";
+
+    private final String repository;
+    private final LongSupplier clock;
+
+    private final List<compilerError> compilerErrors = new ArrayList<>();
+    private final Set<String> seenCompilerErrors = new HashSet<>();
+    private final List<testFailure> testFailures = new ArrayList<>();
+    private int testsRun, testsFailed, testsWithErrors, testsSkipped;
+    // "goal @ module" -> its timing, in the order the goals first ran
+    private final Map<String, pluginTiming> pluginTimings = new LinkedHashMap<>();
+    private final List<moduleResult> reactor = new ArrayList<>();
+    private String failedGoal;
+    private boolean dependencyError;
+
+    // state of the current line
+    private compilerError lastCompilerError;
+    private testFailure lastTestFailure;
+    private String testClass;
+    private String runningGoal;
+    private long goalStart;
+    private boolean inReactorSummary;
+    // the module of a Maven run without a reactor summary, its result is read from BUILD SUCCESS/FAILURE
+    private String building;
+    private boolean reactorInRun;
+    private String runOutcome;
+
+    // the parsers of the runs whose lines are interleaved with the others, by their prefix
+    private final Map<String, MavenLogParser> forks = new LinkedHashMap<>();
+
+    /**
+     * Creates a parser that times the plugin goals with System.nanoTime.
+     * @param repository path of the repository the builds run in, removed from the paths of the compiler errors
+     */
+    public MavenLogParser(String repository) {
+        this(repository, System::nanoTime);
+    }
+
+    /**
+     * Creates a parser.
+     * @param repository path of the repository the builds run in, removed from the paths of the compiler errors
+     * @param clock the time in nanoseconds when a line is read
+     */
+    public MavenLogParser(String repository, LongSupplier clock) {
+        this.repository = repository.endsWith("/") ? repository : repository + "/";
+        this.clock = clock;
+    }
+
+    /**
+     * @param fork the number of a Maven run that runs at the same time as others of the build
+     * @return the prefix of the lines of the run, e.g. "[fork 1] "
+     */
+    public static String forkPrefix(int fork) {
+        return FORK + fork + "] ";
+    }
+
+    /**
+     * Reads a line of Maven output. Lines of several builds must not be mixed, lines of runs of the same build may
+     * be if they have a {@link #forkPrefix(int)}.
+     * @param raw the line, with or without colors
+     */
+    public synchronized void accept(String raw) {
+        if (raw.startsWith(FORK)) {
+            int end = raw.indexOf("] ");
+            if (end > 0) {
+                forks.computeIfAbsent(raw.substring(0, end + 2), f -> new MavenLogParser(repository, clock)).accept(raw.substring(end + 2));
+                return;
+            }
+        }
+        String line = raw.indexOf('\u001B') >= 0 ? ANSI.matcher(raw).replaceAll("") : raw;
+        String text = line;
+        boolean error = false;
+        if (line.startsWith("[")) {
+            int end = line.indexOf("] ");
+            if (end > 0) {
+                error = line.startsWith("[ERROR]");
+                text = line.substring(end + 2);
+            } else if (line.endsWith("]")) {
+                text = "";
+            }
+        }
+
+        // a line that follows a compiler error or a test failure may belong to it
+        if (lastCompilerError != null) {
+            String trimmed = text.trim();
+            if (trimmed.startsWith("symbol:") || trimmed.startsWith("location:")) {
+                String message = lastCompilerError.getMessage();
+                String detail = trimmed.replaceAll("\\s+", " ");
+                lastCompilerError.setMessage(truncate(message.endsWith(")") ? message.substring(0, message.length() - 1) + ", " + detail + ")"
+                        : message + " (" + detail + ")"));
+                return;
+            }
+            lastCompilerError = null;
+        }
+        if (lastTestFailure != null) {
+            if (!line.startsWith("[") && !line.isBlank()) {
+                lastTestFailure.setMessage(truncate(line.trim()));
+            }
+            lastTestFailure = null;
+        }
+
+        String goal = Pipeline.runningGoal(text);
+        if (goal != null) {
+            endGoal();
+            runningGoal = goal + " @ " + text.substring(text.indexOf(" @ ") + 3, text.length() - 4).trim();
+            goalStart = clock.getAsLong();
+            return;
+        }
+        if (MODULE.matcher(text).matches() || text.startsWith("Scanning for projects") || text.startsWith("BUILD ")
+                || text.startsWith("Reactor Summary")) {
+            endGoal();
+        }
+
+        Matcher m;
+        if (error && (m = COMPILER_ERROR.matcher(text)).matches()) {
+            compilerError(m);
+        } else if ((m = TEST_FAILURE.matcher(text)).matches()) {
+            testFailure(m);
+        } else if ((m = TEST_CLASS.matcher(text)).matches()) {
+            testClass = m.group(1) != null ? m.group(1) : m.group(2);
+        } else if ((m = TEST_SUMMARY.matcher(text)).matches()) {
+            testsRun += Integer.parseInt(m.group(1));
+            testsFailed += Integer.parseInt(m.group(2));
+            testsWithErrors += Integer.parseInt(m.group(3));
+            testsSkipped += Integer.parseInt(m.group(4));
+        } else if (text.startsWith("Reactor Summary")) {
+            inReactorSummary = true;
+            reactorInRun = true;
+        } else if (inReactorSummary && (m = REACTOR_MODULE.matcher(text)).matches()) {
+            reactor.add(new moduleResult(m.group(1).trim(), m.group(2), m.group(3) == null ? -1 : millis(m.group(3))));
+        } else if ((m = BUILDING.matcher(text)).matches()) {
+            building = m.group(1);
+        } else if (text.equals("BUILD SUCCESS") || text.equals("BUILD FAILURE")) {
+            inReactorSummary = false;
+            runOutcome = text.substring("BUILD ".length());
+        } else if (text.startsWith("Total time:")) {
+            if (!reactorInRun && building != null && runOutcome != null) {
+                reactor.add(new moduleResult(building, runOutcome, millis(text.substring("Total time:".length()).trim())));
+            }
+            building = null;
+            reactorInRun = false;
+            runOutcome = null;
+        } else if (error && text.startsWith("Failed to execute goal ")) {
+            if (failedGoal == null) {
+                failedGoal = truncate(text);
+            }
+            if (isDependencyError(text)) {
+                dependencyError = true;
+            }
+        } else if (error && isDependencyError(text)) {
+            dependencyError = true;
+        }
+    }
+
+    private void compilerError(Matcher m) {
+        String file = m.group(1);
+        if (file.startsWith(repository)) {
+            file = file.substring(repository.length());
+        }
+        // Maven lists the errors twice, after compiling and when the goal fails
+        String key = file + ":" + m.group(2) + ":" + m.group(3) + ":" + m.group(4);
+        if (!seenCompilerErrors.add(key) || compilerErrors.size() == MAX_ERRORS) {
+            return;
+        }
+        lastCompilerError = new compilerError(file, Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)), truncate(m.group(4).trim()));
+        compilerErrors.add(lastCompilerError);
+    }
+
+    private void testFailure(Matcher m) {
+        String name = m.group(1);
+        String className = m.group(2);
+        if (className == null && testClass != null && !name.startsWith(testClass + ".")) {
+            className = testClass;
+        } else if (className == null && name.lastIndexOf('.') > 0) {
+            className = name.substring(0, name.lastIndexOf('.'));
+            name = name.substring(name.lastIndexOf('.') + 1);
+        }
+        if (name.endsWith("()")) {
+            name = name.substring(0, name.length() - 2);
+        }
+        if (testFailures.size() == MAX_ERRORS) {
+            return;
+        }
+        lastTestFailure = new testFailure(className, name, m.group(3).equals("FAILURE") ? testCaseResult.FAILED : testCaseResult.ERROR, null);
+        testFailures.add(lastTestFailure);
+    }
+
+    private static boolean isDependencyError(String text) {
+        return text.contains("Could not resolve dependencies") || text.contains("Could not transfer artifact")
+                || text.contains("Non-resolvable") || text.contains("could not be resolved");
+    }
+
+    private void endGoal() {
+        if (runningGoal == null) {
+            return;
+        }
+        long millis = (clock.getAsLong() - goalStart) / 1000000;
+        int at = runningGoal.indexOf(" @ ");
+        pluginTiming timing = pluginTimings.computeIfAbsent(runningGoal,
+                k -> new pluginTiming(k.substring(0, at), k.substring(at + 3), 0, 0));
+        timing.setWallMillis(timing.getWallMillis() + millis);
+        timing.setExecutions(timing.getExecutions() + 1);
+        runningGoal = null;
+    }
+
+    /**
+     * @param time a time as Maven writes it, e.g. "7.484 s", "01:02 min" or "01:02 h"
+     * @return the time in milliseconds, -1 if it can not be read
+     */
+    static long millis(String time) {
+        String[] parts = time.trim().split("\\s+");
+        try {
+            if (parts.length == 2 && parts[1].equals("s")) {
+                return Math.round(Double.parseDouble(parts[0]) * 1000);
+            }
+            if (parts.length == 2 && (parts[1].equals("min") || parts[1].equals("h"))) {
+                String[] clock = parts[0].split(":");
+                long unit = parts[1].equals("min") ? 60000 : 3600000;
+                return Long.parseLong(clock[0]) * unit + Math.round(Double.parseDouble(clock[1]) * unit / 60);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // not a time Maven writes
+        }
+        return -1;
+    }
+
+    private static String truncate(String message) {
+        return message.length() <= MAX_MESSAGE ? message : message.substring(0, MAX_MESSAGE) + "...";
+    }
+
+    /**
+     * Ends the goal that was running when the output ended, e.g. because its stage was killed.
+     */
+    public synchronized void finish() {
+        endGoal();
+        lastCompilerError = null;
+        lastTestFailure = null;
+        for (MavenLogParser fork : forks.values()) {
+            fork.finish();
+        }
+    }
+
+    /**
+     * @param cases the test cases of the build, tests that are FLAKY there passed when they were run again and
+     * are not counted as failures; null if they are not known
+     * @return what was read so far
+     */
+    public synchronized buildDiagnostics getDiagnostics(List<testCaseResult> cases) {
+        Set<String> flaky = new HashSet<>();
+        if (cases != null) {
+            for (testCaseResult c : cases) {
+                if (testCaseResult.FLAKY.equals(c.getStatus())) {
+                    flaky.add(c.getClassName() + "#" + c.getName());
+                }
+            }
+        }
+        List<MavenLogParser> runs = new ArrayList<>();
+        runs.add(this);
+        runs.addAll(forks.values());
+        List<compilerError> errors = new ArrayList<>();
+        List<testFailure> failures = new ArrayList<>();
+        int run = 0, failed = 0, withErrors = 0, skipped = 0;
+        Map<String, pluginTiming> timings = new LinkedHashMap<>();
+        List<moduleResult> modules = new ArrayList<>();
+        String goal = null;
+        boolean dependency = false;
+        for (MavenLogParser parser : runs) {
+            for (compilerError error : parser.compilerErrors) {
+                if (!errors.contains(error) && errors.size() < MAX_ERRORS) {
+                    errors.add(error);
+                }
+            }
+            for (testFailure failure : parser.testFailures) {
+                if (!flaky.contains(failure.getClassName() + "#" + failure.getName()) && failures.size() < MAX_ERRORS) {
+                    failures.add(failure);
+                }
+            }
+            run += parser.testsRun;
+            failed += parser.testsFailed;
+            withErrors += parser.testsWithErrors;
+            skipped += parser.testsSkipped;
+            for (Map.Entry<String, pluginTiming> entry : parser.pluginTimings.entrySet()) {
+                pluginTiming t = entry.getValue();
+                pluginTiming sum = timings.computeIfAbsent(entry.getKey(), k -> new pluginTiming(t.getGoal(), t.getModule(), 0, 0));
+                sum.setWallMillis(sum.getWallMillis() + t.getWallMillis());
+                sum.setExecutions(sum.getExecutions() + t.getExecutions());
+            }
+            modules.addAll(parser.reactor);
+            goal = goal == null ? parser.failedGoal : goal;
+            dependency |= parser.dependencyError;
+        }
+        List<String> errorTypes = new ArrayList<>();
+        if (!errors.isEmpty()) {
+            errorTypes.add(buildDiagnostics.COMPILATION);
+        }
+        if (failures.stream().anyMatch(f -> testCaseResult.FAILED.equals(f.getKind()))) {
+            errorTypes.add(buildDiagnostics.TEST_FAILURE);
+        }
+        if (failures.stream().anyMatch(f -> testCaseResult.ERROR.equals(f.getKind()))) {
+            errorTypes.add(buildDiagnostics.TEST_ERROR);
+        }
+        if (dependency) {
+            errorTypes.add(buildDiagnostics.DEPENDENCY);
+        }
+        if (goal != null && errorTypes.isEmpty()) {
+            errorTypes.add(buildDiagnostics.PLUGIN);
+        }
+        return new buildDiagnostics(errors, failures, run, failed, withErrors, skipped,
+                new ArrayList<>(timings.values()), modules, goal, errorTypes);
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of rendered pages that depend on the build history. Every page remembers the version of the
+ * history it was rendered from, so adding a build invalidates all pages without notifying the cache.
+ */
+public class PageCache {
+
+    private final int maxPages;
+    private final Map<String, Page> pages = new ConcurrentHashMap<>();
+
+    // metrics
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxPages number of pages kept, the cache is emptied when it grows beyond this
+     */
+    public PageCache(int maxPages) {
+        this.maxPages = maxPages;
+    }
+
+    /**
+     * @param key identifies the page, e.g. its query string
+     * @param version the current version of the build history
+     * @return the page, null if it is not cached or was rendered from an older history
+     */
+    public String get(String key, long version) {
+        Page page = pages.get(key);
+        boolean hit = page != null && page.version == version;
+        synchronized (this) {
+            if (hit) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        return hit ? page.html : null;
+    }
+
+    /**
+     * @param key identifies the page, e.g. its query string
+     * @param version the version of the build history the page was rendered from
+     * @param html the rendered page
+     */
+    public void put(String key, long version, String html) {
+        if (pages.size() >= maxPages) {
+            pages.clear();
+        }
+        pages.put(key, new Page(version, html));
+    }
+
+    /**
+     * Writes the metrics of the cache as "name value" lines.
+     * @param name prefix of the lines
+     * @param sb where the lines are appended
+     */
+    public synchronized void appendMetrics(String name, StringBuilder sb) {
+        sb.append(name).append("_cache_hits ").append(hits).append('\n')
+                .append(name).append("_cache_misses ").append(misses).append('\n');
+    }
+
+    private static class Page {
+        final long version;
+        final String html;
+
+        Page(long version, String html) {
+            this.version = version;
+            this.html = html;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A growable byte array that webhook payloads are read into. Buffers are kept in a small pool and reused
+ * by later requests, so that receiving a push does not allocate and copy the payload several times.
+ */
+public class PayloadBuffer {
+
+    // GitHub does not send payloads larger than 25 MB
+    public final static int MAX_PAYLOAD_BYTES = 25 * 1024 * 1024;
+
+    private final static int INITIAL_BYTES = 16 * 1024;
+    // larger buffers are left to the garbage collector instead of being pooled
+    private final static int MAX_POOLED_BYTES = 1024 * 1024;
+    private final static BlockingQueue<PayloadBuffer> pool = new ArrayBlockingQueue<>(32);
+
+    private byte[] bytes = new byte[INITIAL_BYTES];
+    private int length = 0;
+
+    private PayloadBuffer() {
+    }
+
+    /**
+     * @return an empty buffer from the pool, or a new one if the pool is empty
+     */
+    public static PayloadBuffer acquire() {
+        PayloadBuffer buffer = pool.poll();
+        return buffer == null ? new PayloadBuffer() : buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool, it may not be used afterwards.
+     */
+    public void release() {
+        length = 0;
+        if (bytes.length <= MAX_POOLED_BYTES) {
+            pool.offer(this);
+        }
+    }
+
+    /**
+     * Reads a stream to its end into the buffer.
+     * @param in the stream, e.g. the body of a request
+     * @param maxBytes the most bytes that are read
+     * @return false if the stream has more than maxBytes bytes
+     * @throws IOException if the stream can not be read
+     */
+    public boolean readFrom(InputStream in, int maxBytes) throws IOException {
+        length = 0;
+        while (true) {
+            if (length == bytes.length) {
+                if (length >= maxBytes) {
+                    // the buffer is full, anything more is too much
+                    return in.read() == -1;
+                }
+                byte[] larger = new byte[(int) Math.min((long) bytes.length * 2, maxBytes)];
+                System.arraycopy(bytes, 0, larger, 0, length);
+                bytes = larger;
+            }
+            int n = in.read(bytes, length, bytes.length - length);
+            if (n == -1) {
+                return true;
+            }
+            length += n;
+        }
+    }
+
+    /**
+     * @return the bytes of the buffer, only the first {@link #length()} are read
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int length() {
+        return length;
+    }
+}
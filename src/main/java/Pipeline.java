@@ -0,0 +1,855 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Runs the stages of a build (checkout, install, compile, test, package) one after the other.
+ * Every stage writes its own log file to the build directory and has its own timeout, and the
+ * wall and CPU time of every stage is recorded. When a stage fails the stages after it are skipped.
+ *
+ * A stage can be collapsed from several Maven stages (see {@link #collapse(String, List, List)}), so that
+ * Maven is started once instead of once per stage. The output of the single Maven run is then split into
+ * the logs of the original stages by looking at which plugin goal is running, e.g. "compiler:compile".
+ * Maven commands run in warm JVMs when the pipeline has them, see {@link #setMavenDaemons(MavenDaemonPool)}.
+ */
+public class Pipeline {
+
+    // used as keys for the settings of the pipeline
+    public final static String MODE_KEY = "DD2480_PIPELINE_MODE";
+    public final static String TIMEOUT_KEY = "DD2480_STAGE_TIMEOUT_SECONDS";
+    public final static String MODE_STAGED = "staged";
+    public final static String MODE_COLLAPSED = "collapsed";
+
+    private final List<PipelineStage> stages = new ArrayList<>();
+    // the Maven stages a collapsed stage stands for, by name of the collapsed stage
+    private final Map<String, List<PipelineStage>> collapsedParts = new HashMap<>();
+    // the plugin goals that belong to a stage, e.g. "compiler:compile" for COMPILE
+    private final Map<String, List<String>> goals = new HashMap<>();
+    private final File workspace;
+    private final File repository;
+    private final File saveDirectory;
+    private final Map<String, String> environment = new HashMap<>();
+    private final List<Runnable> cleanups = new ArrayList<>();
+    private final List<Runnable> collectors = new ArrayList<>();
+    private volatile Cancellation cancellation = new Cancellation();
+    private final LiveLog liveLog;
+    private final MavenLogParser diagnostics;
+    private String artifactName;
+    private List<testCaseResult> testCases;
+    private testSelection testSelection;
+    private testSchedule testSchedule;
+    private incrementalCompile incrementalCompile;
+    private BuildSandbox sandbox;
+    private MavenDaemonPool daemons;
+    // the stage that is running, its Maven commands are recorded as warm or cold
+    private volatile PipelineStage running;
+    private long wallMillis = 0;
+
+    /**
+     * Creates an empty pipeline.
+     * @param workspace directory the build runs in, it is deleted when the pipeline is done
+     * @param repository the checked out repository inside the workspace
+     * @param saveDirectory the build directory where logs and the jar are kept
+     * @param liveLog where the output is streamed while the build runs, may be null
+     */
+    public Pipeline(File workspace, File repository, File saveDirectory, LiveLog liveLog) {
+        this.workspace = workspace;
+        this.repository = repository;
+        this.saveDirectory = saveDirectory;
+        this.liveLog = liveLog;
+        this.diagnostics = new MavenLogParser(repository.getAbsolutePath());
+    }
+
+    /**
+     * Adds a stage at the end of the pipeline.
+     * @param stage the stage
+     * @param stageGoals the Maven plugin goals that belong to this stage, used when it is collapsed
+     * @return this pipeline
+     */
+    public Pipeline addStage(PipelineStage stage, String... stageGoals) {
+        stages.add(stage);
+        goals.put(stage.getName(), List.of(stageGoals));
+        return this;
+    }
+
+    /**
+     * Replaces Maven stages of the pipeline by a single stage that runs one Maven command.
+     * @param name name of the collapsed stage
+     * @param parts names of the stages it replaces, in the order they were added
+     * @param command the Maven command that does the work of all the stages
+     * @return this pipeline
+     */
+    public Pipeline collapse(String name, List<String> parts, List<String> command) {
+        List<PipelineStage> replaced = new ArrayList<>();
+        int at = -1;
+        for (String part : parts) {
+            for (int i = 0; i < stages.size(); i++) {
+                if (stages.get(i).getName().equals(part)) {
+                    at = (at == -1) ? i : Math.min(at, i);
+                    replaced.add(stages.remove(i));
+                    break;
+                }
+            }
+        }
+        if (replaced.isEmpty()) {
+            return this;
+        }
+        long timeout = replaced.stream().mapToLong(PipelineStage::getTimeoutMillis).sum();
+        stages.add(at, new PipelineStage(name, ".mvn.log", timeout, true, command));
+        collapsedParts.put(name, replaced);
+        return this;
+    }
+
+    /**
+     * Copies the jar built in the repository's target directory to the build directory when the pipeline is done.
+     * @param artifactName file name of the jar in the build directory
+     */
+    public void setArtifactName(String artifactName) {
+        this.artifactName = artifactName;
+    }
+
+    /**
+     * Adds something to do after the last stage, while the workspace still exists, e.g. reading test reports.
+     * @param collector the action
+     */
+    public void afterStages(Runnable collector) {
+        collectors.add(collector);
+    }
+
+    /**
+     * Adds something to do after the workspace has been deleted, e.g. forgetting a git worktree.
+     * @param cleanup the action
+     */
+    public void onFinish(Runnable cleanup) {
+        cleanups.add(cleanup);
+    }
+
+    /**
+     * @return the test cases that ran, null if no test reports were read
+     */
+    public List<testCaseResult> getTestCases() {
+        return testCases;
+    }
+
+    public void setTestCases(List<testCaseResult> testCases) {
+        this.testCases = testCases;
+    }
+
+    /**
+     * @return what was read from the Maven output of the stages that ran, failures of flaky tests are left out
+     */
+    public buildDiagnostics getDiagnostics() {
+        diagnostics.finish();
+        return diagnostics.getDiagnostics(testCases);
+    }
+
+    /**
+     * @return the tests that were chosen to run, null if all tests ran without choosing them
+     */
+    public testSelection getTestSelection() {
+        return testSelection;
+    }
+
+    public void setTestSelection(testSelection testSelection) {
+        this.testSelection = testSelection;
+    }
+
+    /**
+     * @return how the tests were spread over forks and how long they took, null if no tests ran
+     */
+    public testSchedule getTestSchedule() {
+        return testSchedule;
+    }
+
+    public void setTestSchedule(testSchedule testSchedule) {
+        this.testSchedule = testSchedule;
+    }
+
+    /**
+     * @return which sources were compiled and which classes were restored from an earlier build, null without the compile cache
+     */
+    public incrementalCompile getIncrementalCompile() {
+        return incrementalCompile;
+    }
+
+    public void setIncrementalCompile(incrementalCompile incrementalCompile) {
+        this.incrementalCompile = incrementalCompile;
+    }
+
+    /**
+     * @return the checked out repository the stages run in
+     */
+    public File getRepository() {
+        return repository;
+    }
+
+    /**
+     * @param cancellation stops the running stage and cancels the stages after it when it is cancelled
+     */
+    public void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    public Cancellation getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * @param sandbox the resource limits every command of the stages runs with
+     */
+    public void setSandbox(BuildSandbox sandbox) {
+        this.sandbox = sandbox;
+        environment.putAll(sandbox.environment());
+    }
+
+    /**
+     * @param daemons the warm JVMs the Maven commands of the stages run in, unless the limits of the build are
+     * per process, see {@link BuildSandbox#shellPrefix()}
+     */
+    public void setMavenDaemons(MavenDaemonPool daemons) {
+        this.daemons = daemons;
+    }
+
+    /**
+     * @return the environment variables the stages are run with, in addition to the server's
+     */
+    public Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * Runs all stages and keeps the jar, then deletes the workspace.
+     * @return a mapping from stage name to SUCCESS, FAILURE, SKIPPED or CANCELLED, for every stage including collapsed ones
+     */
+    public Map<String, String> run() {
+        long start = System.nanoTime();
+        String failed = null;
+        try {
+            saveDirectory.mkdirs();
+            workspace.mkdirs();
+            for (PipelineStage stage : stages) {
+                List<PipelineStage> parts = collapsedParts.get(stage.getName());
+                if (failed != null || cancellation.isCancelled()) {
+                    // a stage that was killed by the cancellation fails too, the stages after it are cancelled, not skipped
+                    boolean cancelled = cancellation.isCancelled();
+                    String status = cancelled ? Integrator.STATUS_CANCELLED : Integrator.STATUS_SKIPPED;
+                    String message = cancelled ? "Cancelled, " + cancellation.getReason() : "Skipped, " + failed + " failed";
+                    skip(stage, status, message);
+                    if (parts != null) {
+                        for (PipelineStage part : parts) {
+                            skip(part, status, message);
+                        }
+                    }
+                    continue;
+                }
+                if (parts == null) {
+                    runStage(stage);
+                } else {
+                    runCollapsed(stage, parts);
+                }
+                if (!Integrator.STATUS_SUCCESS.equals(stage.getStatus())) {
+                    failed = stage.getName();
+                }
+            }
+            keepArtifact();
+            for (Runnable collector : collectors) {
+                try {
+                    collector.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            deleteRecursively(workspace);
+            for (Runnable cleanup : cleanups) {
+                cleanup.run();
+            }
+            wallMillis = (System.nanoTime() - start) / 1000000;
+        }
+        return getStatuses();
+    }
+
+    /**
+     * @return a mapping from stage name to SUCCESS, FAILURE or SKIPPED, for every stage including collapsed ones
+     */
+    public Map<String, String> getStatuses() {
+        Map<String, String> statuses = new LinkedHashMap<>();
+        for (PipelineStage stage : getAllStages()) {
+            if (stage.getStatus() != null) {
+                statuses.put(stage.getName(), stage.getStatus());
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * @return the stages in the order they run, with collapsed stages followed by the stages they stand for
+     */
+    public List<PipelineStage> getAllStages() {
+        List<PipelineStage> all = new ArrayList<>();
+        for (PipelineStage stage : stages) {
+            all.add(stage);
+            all.addAll(collapsedParts.getOrDefault(stage.getName(), List.of()));
+        }
+        return all;
+    }
+
+    /**
+     * @return the wall clock time of the whole pipeline
+     */
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    private void runStage(PipelineStage stage) {
+        announce(stage);
+        File dir = stage.isInRepository() ? repository : workspace;
+        try (Writer log = openLog(stage.getLogName())) {
+            long start = System.nanoTime();
+            long[] cpu = {-1};
+            LineSink toLog = line -> {
+                log.write(line);
+                log.write('\n');
+            };
+            int exit;
+            if (stage.getTask() != null) {
+                exit = runTask(stage, stage.getTask(), observed(toLog));
+            } else {
+                exit = execute(stage.getCommand(), dir, stage.getTimeoutMillis(), cpu, toLog);
+            }
+            if (retries(stage, exit) && runTask(stage, stage.getRetry(), observed(toLog)) == 0) {
+                exit = 0;
+            }
+            long wall = (System.nanoTime() - start) / 1000000;
+            if (exit == TIMED_OUT) {
+                log.write("Stage " + stage.getName() + " timed out after " + stage.getTimeoutMillis() / 1000 + " s\n");
+            } else if (exit == CANCELLED) {
+                log.write("Stage " + stage.getName() + " was cancelled, " + cancellation.getReason() + "\n");
+            }
+            stage.finish(statusOf(exit), exit, wall, cpu[0]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            stage.finish(Integrator.STATUS_FAILURE, -1, 0, -1);
+        }
+    }
+
+    /**
+     * Runs a collapsed stage and splits its output into the logs of the stages it stands for. A part
+     * starts when Maven starts one of its goals, lines before the first goal go to the first part.
+     */
+    private void runCollapsed(PipelineStage stage, List<PipelineStage> parts) {
+        announce(stage);
+        List<Writer> logs = new ArrayList<>();
+        long[] partStart = new long[parts.size()];
+        long[] partEnd = new long[parts.size()];
+        int[] current = {0};
+        String[] failedGoal = {null};
+        try (Writer combined = openLog(stage.getLogName())) {
+            for (PipelineStage part : parts) {
+                logs.add(openLog(part.getLogName()));
+            }
+            long start = System.nanoTime();
+            partStart[0] = start;
+            long[] cpu = {-1};
+            int exit = execute(stage.getCommand(), repository, stage.getTimeoutMillis(), cpu, line -> {
+                String goal = runningGoal(line);
+                if (goal != null) {
+                    int part = partOfGoal(parts, goal);
+                    if (part > current[0]) {
+                        long now = System.nanoTime();
+                        for (int i = current[0]; i < part; i++) {
+                            partEnd[i] = now;
+                        }
+                        for (int i = current[0] + 1; i <= part; i++) {
+                            partStart[i] = now;
+                        }
+                        current[0] = part;
+                    }
+                }
+                if (line.contains("Failed to execute goal ")) {
+                    failedGoal[0] = failedGoal(line);
+                }
+                combined.write(line);
+                combined.write('\n');
+                logs.get(current[0]).write(line);
+                logs.get(current[0]).write('\n');
+            });
+            long end = System.nanoTime();
+            stage.finish(statusOf(exit), exit, (end - start) / 1000000, cpu[0]);
+            if (exit == CANCELLED) {
+                // the parts that had finished before the cancellation succeeded
+                for (int i = 0; i < parts.size(); i++) {
+                    long partWall = ((partEnd[i] != 0 ? partEnd[i] : end) - (partStart[i] != 0 ? partStart[i] : end)) / 1000000;
+                    parts.get(i).finish(i < current[0] ? Integrator.STATUS_SUCCESS : Integrator.STATUS_CANCELLED, exit, partWall, -1);
+                }
+                return;
+            }
+
+            // the part that failed is the one owning the failed goal, or the last one that started
+            int failedPart = -1;
+            if (exit != 0) {
+                failedPart = failedGoal[0] == null ? current[0] : Math.max(partOfGoal(parts, failedGoal[0]), 0);
+            }
+            for (int i = 0; i < parts.size(); i++) {
+                PipelineStage part = parts.get(i);
+                if (failedPart != -1 && i > failedPart) {
+                    part.finish(Integrator.STATUS_SKIPPED, -1, 0, -1);
+                    continue;
+                }
+                long partWall = ((partEnd[i] != 0 ? partEnd[i] : end) - (partStart[i] != 0 ? partStart[i] : end)) / 1000000;
+                // the CPU time of a single Maven run can not be split between the stages
+                part.finish(i == failedPart ? Integrator.STATUS_FAILURE : Integrator.STATUS_SUCCESS, exit, partWall, -1);
+            }
+            if (failedPart != -1 && !(retries(parts.get(failedPart), exit) && recoverCollapsed(stage, parts, failedPart, logs, combined, start))) {
+                for (int i = failedPart + 1; i < parts.size(); i++) {
+                    logs.get(i).write("Skipped, " + parts.get(failedPart).getName() + " failed\n");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            stage.finish(Integrator.STATUS_FAILURE, -1, 0, -1);
+            parts.forEach(part -> part.finish(Integrator.STATUS_FAILURE, -1, 0, -1));
+        } finally {
+            for (Writer log : logs) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the task of a stage, or its retry, within the timeout of the stage. When the timeout is up, the commands
+     * the task runs through {@link #execute(List, long, LineSink)} are killed and the thread running it is
+     * interrupted, e.g. while it waits for a lock or a git command.
+     * @return 0 if the task succeeded, 1 if it failed, TIMED_OUT or CANCELLED
+     */
+    private int runTask(PipelineStage stage, PipelineStage.Task task, LineSink sink) throws IOException {
+        Cancellation build = cancellation;
+        Cancellation stageCancellation = new Cancellation();
+        Runnable forward = () -> stageCancellation.cancel(build.getReason());
+        build.onCancel(forward);
+        Thread runner = Thread.currentThread();
+        // set by whichever comes first, the end of the task or the timeout
+        AtomicBoolean over = new AtomicBoolean(false);
+        AtomicBoolean expired = new AtomicBoolean(false);
+        Thread watchdog = new Thread(() -> {
+            try {
+                Thread.sleep(stage.getTimeoutMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!over.compareAndSet(false, true)) {
+                return;
+            }
+            expired.set(true);
+            stageCancellation.cancel("timed out");
+            runner.interrupt();
+        }, "stage-timeout");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        boolean succeeded = false;
+        IOException failure = null;
+        cancellation = stageCancellation;
+        try {
+            succeeded = task.run(stage, sink);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            cancellation = build;
+            build.remove(forward);
+            if (over.compareAndSet(false, true)) {
+                watchdog.interrupt();
+            }
+            boolean interrupted = false;
+            while (watchdog.isAlive()) {
+                try {
+                    watchdog.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            // the interrupt of the watchdog is cleared, any other one is kept
+            if (expired.get()) {
+                Thread.interrupted();
+            } else if (interrupted) {
+                runner.interrupt();
+            }
+        }
+        if (expired.get()) {
+            return TIMED_OUT;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (!succeeded && build.isCancelled()) {
+            return CANCELLED;
+        }
+        return succeeded ? 0 : 1;
+    }
+
+    /**
+     * @return true if the stage failed in a way its retry may fix, i.e. it has a retry and did not time out and was not cancelled
+     */
+    private boolean retries(PipelineStage stage, int exit) {
+        return exit != 0 && exit != TIMED_OUT && exit != CANCELLED && stage.getRetry() != null && !cancellation.isCancelled();
+    }
+
+    /**
+     * Runs the retry of the part of a collapsed stage that failed. If it succeeds, the parts after it, which Maven
+     * did not get to, are run one by one and the collapsed stage succeeds if they do.
+     * @return true if the retry succeeded
+     */
+    private boolean recoverCollapsed(PipelineStage stage, List<PipelineStage> parts, int failedPart, List<Writer> logs,
+                                  Writer combined, long start) throws IOException {
+        PipelineStage failed = parts.get(failedPart);
+        long retryStart = System.nanoTime();
+        Writer failedLog = logs.get(failedPart);
+        running = failed;
+        if (runTask(failed, failed.getRetry(), observed(line -> {
+            combined.write(line + "\n");
+            failedLog.write(line + "\n");
+        })) != 0) {
+            return false;
+        }
+        failed.finish(Integrator.STATUS_SUCCESS, 0, failed.getWallMillis() + (System.nanoTime() - retryStart) / 1000000, -1);
+        int exit = 0;
+        for (int i = failedPart + 1; i < parts.size(); i++) {
+            PipelineStage part = parts.get(i);
+            Writer partLog = logs.get(i);
+            LineSink toLog = line -> {
+                combined.write(line + "\n");
+                partLog.write(line + "\n");
+            };
+            if (exit != 0) {
+                part.finish(exit == CANCELLED ? Integrator.STATUS_CANCELLED : Integrator.STATUS_SKIPPED, -1, 0, -1);
+                continue;
+            }
+            announce(part);
+            long partStart = System.nanoTime();
+            long[] cpu = {-1};
+            if (part.getTask() != null) {
+                exit = runTask(part, part.getTask(), observed(toLog));
+            } else {
+                exit = execute(part.getCommand(), repository, part.getTimeoutMillis(), cpu, toLog);
+            }
+            part.finish(statusOf(exit), exit, (System.nanoTime() - partStart) / 1000000, cpu[0]);
+        }
+        stage.finish(statusOf(exit), exit, (System.nanoTime() - start) / 1000000, stage.getCpuMillis());
+        return true;
+    }
+
+    /**
+     * @param line a line of Maven output
+     * @return the goal Maven starts on this line, e.g. "compiler:compile", null if it does not start one
+     */
+    static String runningGoal(String line) {
+        // e.g. "[INFO] --- compiler:3.8.0:compile (default-compile) @ ci ---"
+        // or   "[INFO] --- maven-compiler-plugin:3.8.0:compile (default-compile) @ ci ---"
+        int start = line.indexOf("--- ");
+        if (start == -1 || !line.endsWith(" ---") || !line.contains(" @ ")) {
+            return null;
+        }
+        String[] mojo = line.substring(start + 4).split(" ")[0].split(":");
+        return mojo.length < 3 ? null : pluginPrefix(mojo[0]) + ":" + mojo[mojo.length - 1];
+    }
+
+    /**
+     * @param line a Maven line like "[ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.8.0:compile (default-compile) on project ci"
+     * @return the goal that failed, e.g. "compiler:compile", null if it can not be found
+     */
+    static String failedGoal(String line) {
+        String rest = line.substring(line.indexOf("Failed to execute goal ") + "Failed to execute goal ".length());
+        String[] mojo = rest.split(" ")[0].split(":");
+        return mojo.length < 4 ? null : pluginPrefix(mojo[1]) + ":" + mojo[3];
+    }
+
+    private static String pluginPrefix(String artifactId) {
+        String prefix = artifactId;
+        if (prefix.startsWith("maven-")) {
+            prefix = prefix.substring("maven-".length());
+        }
+        if (prefix.endsWith("-maven-plugin")) {
+            prefix = prefix.substring(0, prefix.length() - "-maven-plugin".length());
+        } else if (prefix.endsWith("-plugin")) {
+            prefix = prefix.substring(0, prefix.length() - "-plugin".length());
+        }
+        return prefix;
+    }
+
+    private int partOfGoal(List<PipelineStage> parts, String goal) {
+        String plugin = goal.substring(0, goal.indexOf(':') + 1);
+        for (int i = 0; i < parts.size(); i++) {
+            List<String> stageGoals = goals.getOrDefault(parts.get(i).getName(), List.of());
+            // a stage can claim a single goal, e.g. "compiler:compile", or a whole plugin, e.g. "surefire:"
+            if (stageGoals.contains(goal) || stageGoals.contains(plugin)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String statusOf(int exit) {
+        switch (exit) {
+            case 0: return Integrator.STATUS_SUCCESS;
+            case CANCELLED: return Integrator.STATUS_CANCELLED;
+            default: return Integrator.STATUS_FAILURE;
+        }
+    }
+
+    private void skip(PipelineStage stage, String status, String message) {
+        stage.finish(status, -1, 0, -1);
+        try (Writer log = openLog(stage.getLogName())) {
+            log.write(message + "\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void announce(PipelineStage stage) {
+        running = stage;
+        if (liveLog != null) {
+            liveLog.append("=== " + stage.getName() + " ===");
+        }
+    }
+
+    private Writer openLog(String logName) throws IOException {
+        return new BufferedWriter(new FileWriter(new File(saveDirectory, logName), StandardCharsets.UTF_8));
+    }
+
+    private void keepArtifact() {
+        if (artifactName == null) {
+            return;
+        }
+        File[] jars = new File(repository, "target").listFiles((dir, name) -> name.endsWith(".jar"));
+        if (jars != null && jars.length > 0) {
+            try {
+                Files.copy(jars[0].toPath(), new File(saveDirectory, artifactName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //--------------Running commands ------------------
+
+    final static int TIMED_OUT = -2;
+    final static int CANCELLED = -3;
+
+    /**
+     * Receives the output of a command line by line.
+     */
+    public interface LineSink {
+        void accept(String line) throws IOException;
+    }
+
+    /**
+     * Runs a command, passing its output (stdout and stderr) to the live log and a sink line by line.
+     * The command is run through bash so that the CPU time of it and all its children,
+     * e.g. the JVMs forked by Maven, can be read with the "times" builtin afterwards.
+     * @param command the command
+     * @param directory the working directory
+     * @param timeoutMillis the command and its children are killed after this long
+     * @param cpuMillis the user + system CPU time is stored in cpuMillis[0], -1 if unknown
+     * @param sink receives the output
+     * @return the exit code, or TIMED_OUT
+     */
+    private int execute(List<String> command, File directory, long timeoutMillis, long[] cpuMillis, LineSink sink) throws IOException {
+        int warm = executeInDaemon(command, directory, timeoutMillis, observed(sink));
+        if (warm != MavenDaemonPool.UNAVAILABLE) {
+            // the CPU time of a daemon can not be told apart from that of the commands it ran before
+            cpuMillis[0] = -1;
+            return warm;
+        }
+        File times = File.createTempFile(".times", ".txt", workspace);
+        String limits = sandbox == null ? "" : sandbox.shellPrefix();
+        List<String> wrapped = new ArrayList<>(List.of("bash", "-c", limits + "\"$@\"; rc=$?; times > \"$0\"; exit $rc", times.getAbsolutePath()));
+        wrapped.addAll(command);
+        int exit = execute(wrapped, directory, environment, timeoutMillis, cancellation, observed(sink));
+        cpuMillis[0] = readChildrenCpu(times);
+        times.delete();
+        return exit;
+    }
+
+    /**
+     * Runs a command of a task stage in the repository, with the environment, the cancellation and the resource
+     * limits of the pipeline.
+     * @param command the command
+     * @param timeoutMillis the command and its children are killed after this long
+     * @param sink receives the output
+     * @return the exit code, TIMED_OUT or CANCELLED
+     */
+    public int execute(List<String> command, long timeoutMillis, LineSink sink) throws IOException {
+        int warm = executeInDaemon(command, repository, timeoutMillis, sink);
+        if (warm != MavenDaemonPool.UNAVAILABLE) {
+            return warm;
+        }
+        String limits = sandbox == null ? "" : sandbox.shellPrefix();
+        List<String> wrapped = new ArrayList<>();
+        if (!limits.isEmpty()) {
+            wrapped.addAll(List.of("bash", "-c", limits + "exec \"$@\"", "bash"));
+        }
+        wrapped.addAll(command);
+        return execute(wrapped, repository, environment, timeoutMillis, cancellation, sink);
+    }
+
+    /**
+     * Runs a Maven command in a daemon, if the pipeline has daemons and the limits of the build are not per
+     * process, which would not hold for the commands of a daemon. Records on the running stage whether a Maven
+     * command ran warm or cold.
+     * @return the exit code, TIMED_OUT or CANCELLED, or MavenDaemonPool.UNAVAILABLE if the command is to be run
+     * in a process of its own
+     */
+    private int executeInDaemon(List<String> command, File directory, long timeoutMillis, LineSink sink) throws IOException {
+        if (command.isEmpty() || !command.get(0).equals("mvn")) {
+            return MavenDaemonPool.UNAVAILABLE;
+        }
+        int exit = MavenDaemonPool.UNAVAILABLE;
+        if (daemons != null && daemons.accepts(command) && (sandbox == null || sandbox.shellPrefix().isEmpty())) {
+            exit = daemons.execute(command, directory, environment, timeoutMillis, cancellation, sink);
+        }
+        PipelineStage stage = running;
+        if (stage != null) {
+            stage.recordMavenRun(exit != MavenDaemonPool.UNAVAILABLE);
+        }
+        return exit;
+    }
+
+    /**
+     * Runs a command, passing its output (stdout and stderr) to a sink line by line.
+     * @param command the command
+     * @param directory the working directory
+     * @param environment variables added to the environment of the server
+     * @param timeoutMillis the command and its children are killed after this long
+     * @param cancellation the command and its children are killed when it is cancelled, may be null
+     * @param sink receives the output
+     * @return the exit code, TIMED_OUT or CANCELLED
+     */
+    static int execute(List<String> command, File directory, Map<String, String> environment, long timeoutMillis,
+                       Cancellation cancellation, LineSink sink) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command).directory(directory).redirectErrorStream(true);
+        pb.environment().putAll(environment);
+        Process p = pb.start();
+        Runnable kill = () -> killTree(p);
+        if (cancellation != null) {
+            cancellation.onCancel(kill);
+        }
+
+        // the output is read on its own thread so that a command that hangs without closing it can be killed
+        IOException[] sinkFailure = {null};
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (sinkFailure[0] == null) {
+                        try {
+                            sink.accept(line);
+                        } catch (IOException e) {
+                            sinkFailure[0] = e;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // the stream is closed when the process is killed
+            }
+        }, "pipeline-output");
+        reader.start();
+
+        int exit;
+        try {
+            if (p.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                exit = p.exitValue();
+            } else {
+                killTree(p);
+                exit = TIMED_OUT;
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            killTree(p);
+            Thread.currentThread().interrupt();
+            exit = TIMED_OUT;
+        }
+        if (cancellation != null) {
+            cancellation.remove(kill);
+            if (exit != 0 && cancellation.isCancelled()) {
+                exit = CANCELLED;
+            }
+        }
+        if (sinkFailure[0] != null) {
+            throw sinkFailure[0];
+        }
+        return exit;
+    }
+
+    // every line of a stage passes here once, it is streamed and read for the diagnostics of the build
+    private LineSink observed(LineSink sink) {
+        return line -> {
+            if (liveLog != null) {
+                liveLog.append(line);
+            }
+            diagnostics.accept(line);
+            sink.accept(line);
+        };
+    }
+
+    /**
+     * Kills a process and everything it started, e.g. the test JVMs forked by Maven.
+     */
+    static void killTree(Process p) {
+        p.descendants().forEach(ProcessHandle::destroyForcibly);
+        p.destroyForcibly();
+    }
+
+    /**
+     * Reads the output of the bash builtin "times", whose second line is the user and system time of the children,
+     * e.g. "0m5.120s 0m0.410s".
+     */
+    private static long readChildrenCpu(File times) {
+        try {
+            List<String> lines = Files.readAllLines(times.toPath());
+            if (lines.size() < 2) {
+                return -1;
+            }
+            long total = 0;
+            for (String value : lines.get(1).trim().split("\\s+")) {
+                int m = value.indexOf('m');
+                total += Long.parseLong(value.substring(0, m)) * 60000
+                        + Math.round(Double.parseDouble(value.substring(m + 1, value.length() - 1)) * 1000);
+            }
+            return total;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    static void deleteRecursively(File dir) {
+        if (!dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
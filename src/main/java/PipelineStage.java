@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One step of a {@link Pipeline}, e.g. compiling the project. A stage is a command that is run in the
+ * checked out repository, its output goes to its own log file in the build directory. After the
+ * pipeline has run, the stage holds its status and how much wall and CPU time it took.
+ */
+public class PipelineStage {
+
+    // how the Maven commands of a stage ran, see getMaven()
+    public final static String MAVEN_WARM = "warm";
+    public final static String MAVEN_COLD = "cold";
+    public final static String MAVEN_MIXED = "mixed";
+
+    private final String name;
+    private final String logName;
+    private final List<String> command;
+    private final long timeoutMillis;
+    private final boolean inRepository;
+    private final Task task;
+    // run when the stage fails, e.g. to rerun the tests that failed
+    private Task retry;
+
+    // results
+    private String status;
+    private int exitCode = -1;
+    private long wallMillis = 0;
+    private long cpuMillis = -1;
+    private boolean cached = false;
+    private String maven;
+
+    /**
+     * Creates a stage that runs in the checked out repository.
+     * @param name name of the stage, the Integrator status keys are used for install/compile/test
+     * @param logName name of the log file of the stage in the build directory
+     * @param timeoutMillis how long the stage may run before it is killed and fails
+     * @param command the command and its arguments
+     */
+    public PipelineStage(String name, String logName, long timeoutMillis, String... command) {
+        this(name, logName, timeoutMillis, true, Arrays.asList(command));
+    }
+
+    /**
+     * Creates a stage.
+     * @param name name of the stage, the Integrator status keys are used for install/compile/test
+     * @param logName name of the log file of the stage in the build directory
+     * @param timeoutMillis how long the stage may run before it is killed and fails
+     * @param inRepository true to run in the checked out repository, false to run in the workspace around it
+     * @param command the command and its arguments
+     */
+    public PipelineStage(String name, String logName, long timeoutMillis, boolean inRepository, List<String> command) {
+        this.name = name;
+        this.logName = logName;
+        this.timeoutMillis = timeoutMillis;
+        this.inRepository = inRepository;
+        this.command = new ArrayList<>(command);
+        this.task = null;
+    }
+
+    /**
+     * Creates a stage that runs Java code instead of a command, e.g. checking out the repository.
+     * @param name name of the stage
+     * @param logName name of the log file of the stage in the build directory
+     * @param timeoutMillis how long the stage may run before the commands of the task are killed and it fails
+     * @param task the code to run
+     */
+    public PipelineStage(String name, String logName, long timeoutMillis, Task task) {
+        this.name = name;
+        this.logName = logName;
+        this.timeoutMillis = timeoutMillis;
+        this.inRepository = false;
+        this.command = new ArrayList<>();
+        this.task = task;
+    }
+
+    /**
+     * The work of a stage that is done in Java.
+     */
+    public interface Task {
+        /**
+         * @param stage the stage that is running, e.g. to mark it as served from a cache
+         * @param log receives the output of the stage
+         * @return true if the stage succeeded
+         */
+        boolean run(PipelineStage stage, Pipeline.LineSink log) throws IOException;
+    }
+
+    /**
+     * Sets what is done when the stage fails, the stage succeeds if it returns true. It is not run when the
+     * stage timed out or was cancelled.
+     * @param retry e.g. rerunning the tests that failed, with the same log as the stage
+     */
+    public void setRetry(Task retry) {
+        this.retry = retry;
+    }
+
+    public Task getRetry() {
+        return retry;
+    }
+
+    /**
+     * Stores the outcome of running the stage.
+     * @param status SUCCESS, FAILURE or SKIPPED
+     * @param exitCode exit code of the command, -1 if it did not run or was killed
+     * @param wallMillis wall clock time of the stage
+     * @param cpuMillis user and system CPU time of the command and its children, -1 if unknown
+     */
+    void finish(String status, int exitCode, long wallMillis, long cpuMillis) {
+        this.status = status;
+        this.exitCode = exitCode;
+        this.wallMillis = wallMillis;
+        this.cpuMillis = cpuMillis;
+    }
+
+    //--------------Getters ------------------
+    public String getName() {
+        return name;
+    }
+
+    public String getLogName() {
+        return logName;
+    }
+
+    public List<String> getCommand() {
+        return command;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public boolean isInRepository() {
+        return inRepository;
+    }
+
+    public Task getTask() {
+        return task;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /**
+     * @return true if the work of the stage was taken from a cache instead of being done
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    public void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * @return "warm" if the Maven commands of the stage ran in daemons (see {@link MavenDaemonPool}), "cold" if they
+     * started JVMs of their own, "mixed" if both, null if the stage ran no Maven command
+     */
+    public synchronized String getMaven() {
+        return maven;
+    }
+
+    /**
+     * Records how a Maven command of the stage ran, the commands of a stage may run at the same time.
+     * @param warm true if the command ran in a daemon
+     */
+    synchronized void recordMavenRun(boolean warm) {
+        String mode = warm ? MAVEN_WARM : MAVEN_COLD;
+        maven = maven == null || maven.equals(mode) ? mode : MAVEN_MIXED;
+    }
+}
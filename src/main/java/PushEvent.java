@@ -0,0 +1,209 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * The fields of a GitHub push payload that the server uses. They are read with a streaming parser that
+ * skips everything else, so the commits, sender and organization objects of a payload are never turned
+ * into a tree of Json objects.
+ */
+public class PushEvent {
+
+    private String ref;
+    private String after;
+    private String ownerName;
+    private String repositoryName;
+    private String fullName;
+    private boolean forceRebuild = false;
+
+    private PushEvent() {
+    }
+
+    /**
+     * @param payload a GitHub push payload
+     * @return the fields of the payload
+     * @throws IllegalArgumentException if the payload is not a push payload
+     */
+    public static PushEvent parse(String payload) {
+        try {
+            return parse(new StringReader(payload));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed push payload", e);
+        }
+    }
+
+    /**
+     * @param payload a GitHub push payload
+     * @return the fields of the payload
+     * @throws IOException if the payload can not be read or is not Json
+     * @throws IllegalArgumentException if "ref" or "after" is missing
+     */
+    public static PushEvent parse(Reader payload) throws IOException {
+        PushEvent push = new PushEvent();
+        try (JsonReader reader = new JsonReader(payload)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "ref":
+                        push.ref = nextString(reader);
+                        break;
+                    case "after":
+                        push.after = nextString(reader);
+                        break;
+                    case "repository":
+                        push.readRepository(reader);
+                        break;
+                    case "head_commit":
+                        push.readCommit(reader);
+                        break;
+                    case "commits":
+                        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                push.readCommit(reader);
+                            }
+                            reader.endArray();
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // thrown by JsonReader when a value has an unexpected type
+            throw new IOException("Malformed push payload", e);
+        }
+        if (push.ref == null || push.after == null) {
+            throw new IllegalArgumentException("Push payload without ref or after");
+        }
+        return push;
+    }
+
+    private void readRepository(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    repositoryName = nextString(reader);
+                    break;
+                case "full_name":
+                    fullName = nextString(reader);
+                    break;
+                case "owner":
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        break;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals("name")) {
+                            ownerName = nextString(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readCommit(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("message")) {
+                String message = nextString(reader);
+                forceRebuild |= message != null && ResultCache.forceRebuild(message);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * @return the next value as String, null if it is not a string or number
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    /**
+     * @return the pushed ref, e.g. "refs/heads/master"
+     */
+    public String getRef() {
+        return ref;
+    }
+
+    /**
+     * @return the branch of the pushed ref, e.g. "master"
+     */
+    public String getBranch() {
+        return ref.split("/")[2];
+    }
+
+    /**
+     * @return full hash of the pushed commit
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * @return 7 character hash of the pushed commit
+     */
+    public String getCommit() {
+        return after.substring(0, 7);
+    }
+
+    /**
+     * @return true if the push deleted the branch
+     */
+    public boolean isDeleted() {
+        return after.startsWith("0000000");
+    }
+
+    public String getOwnerName() {
+        return ownerName;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    /**
+     * @return "owner/repository", empty if the payload has no repository
+     */
+    public String getFullName() {
+        return fullName == null ? "" : fullName;
+    }
+
+    /**
+     * @return true if the message of a pushed commit asks for a rebuild with "[force rebuild]"
+     */
+    public boolean isForceRebuild() {
+        return forceRebuild;
+    }
+}
@@ -1,61 +1,301 @@
 import com.google.gson.*;
 import org.eclipse.egit.github.core.CommitStatus;
-import org.eclipse.egit.github.core.Repository;
-import org.eclipse.egit.github.core.client.GitHubClient;
-import org.eclipse.egit.github.core.service.CommitService;
-import org.eclipse.egit.github.core.service.RepositoryService;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Map;
 
 public class RequestHandler extends Thread {
 	volatile String data;
+	// cancelled by the scheduler when a newer push to the same branch supersedes this build
+	volatile Cancellation cancellation = new Cancellation();
 
 	/**
 	 * Runs the integration/build script on the commit that's referenced
 	 * in the GitHub payload (stored in this.data). It also handles setting
-	 * the commit status of the remote commit.
+	 * the commit status of the remote commit. Whatever happens while the commit is built, the build ends up
+	 * in the history, its live log is closed and a final status is sent, "error" if the build could not be run.
 	 */
 	@Override
 	public void run() {
 
-		JsonObject jsonObject = new JsonParser().parse(data).getAsJsonObject();
-		boolean savedLocally = jsonHandler.local;
-		String branch = jsonObject.get("ref").getAsString().split("/")[2];
-		String commit = jsonObject.get("after").getAsString().substring(0,7);
+		// only the few fields that are used are read from the payload
+		PushEvent push = PushEvent.parse(data);
 
-		if(commit.equals("0000000")){
+		if(push.isDeleted()){
 			System.err.println("Push was just a branch that was deleted, server will not handle this, ignoring..");
 			return;
 		}
 
+		// statuses are sent in the background, a newer status of the commit replaces an unsent one
+		CommitStatusReporter reporter = CommitStatusReporter.shared();
+		reporter.report(push, CommitStatus.STATE_PENDING, "Build started");
+
+		// the id is reserved up front so that the output can be watched at /build/{id}/live
+		int buildID = ContinuousIntegrationServer.db.allocateBuildID();
+		LiveLog liveLog = LiveLog.start(buildID);
+		String buildDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime());
+		Build build = null;
 		try {
-			sendCommitStatus(jsonObject, CommitStatus.STATE_PENDING, "Build started");
-		}catch (Exception e){System.out.println("got an error at sending pending");}
+			build = build(push, buildID, buildDate, liveLog);
+			record(build);
+		} catch (RuntimeException e) {
+			System.err.println("Build " + buildID + " of " + push.getCommit() + " could not be run");
+			e.printStackTrace();
+			liveLog.append("The build could not be run: " + e);
+			build = null;
+		} finally {
+			if (build == null) {
+				recordError(push, buildID, buildDate);
+				reporter.report(push, CommitStatus.STATE_ERROR, "The build could not be run");
+			}
+			// the build is in the history now, so viewers of the live log can be sent to its page
+			LiveLog.finish(buildID);
+		}
+		maintain(build);
+		reportResult(push, build);
+	}
 
-		// perform the integration build with unit tests and save the resulting statuses
-		Map<String, String> statuses = Integrator.integrateBuild(branch, commit, savedLocally);
-		Build build = new Build(ContinuousIntegrationServer.db.getNextBuildID(), commit, new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime()),
+	/**
+	 * Builds the commit of a push, or takes the results of an earlier build of the same tree.
+	 * @param push the push
+	 * @param buildID the id of the build
+	 * @param buildDate when the build started
+	 * @param liveLog where the output of the build is streamed
+	 * @return the build, not added to the history yet
+	 */
+	private Build build(PushEvent push, int buildID, String buildDate, LiveLog liveLog) {
+		boolean savedLocally = jsonHandler.local;
+		String branch = push.getBranch();
+		String commit = push.getCommit();
+		if (cancellation.isCancelled()) {
+			return cancelledBuild(buildID, commit, buildDate, branch);
+		}
+		// a tree that has been built before with the same toolchain is not built again
+		String treeHash = null;
+		try {
+			treeHash = Integrator.mirror().treeOf(push.getAfter(), liveLog::append);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		ResultCache results = ContinuousIntegrationServer.results;
+		Build source = results.lookup(ContinuousIntegrationServer.db, treeHash, push.isForceRebuild());
+		if (source != null) {
+			liveLog.append("Tree " + treeHash + " was built by build " + source.getBuildID() + ", reusing its results");
+			return results.reuse(source, buildID, commit, buildDate, branch, savedLocally);
+		}
+		Pipeline pipeline = Integrator.createPipeline(branch, commit, push.getAfter(), savedLocally, liveLog, buildID);
+		pipeline.setCancellation(cancellation);
+		Map<String, String> statuses = pipeline.run();
+		Build build = new Build(buildID, commit, buildDate,
 				branch, statuses.get(Integrator.STATUS_INSTALL), statuses.get(Integrator.STATUS_COMPILE), statuses.get(Integrator.STATUS_TEST),
 				savedLocally);
-		ContinuousIntegrationServer.json.saveGithubLogs(jsonObject, commit);
+		List<stageTiming> timings = new ArrayList<>();
+		for (PipelineStage stage : pipeline.getAllStages()) {
+			timings.add(new stageTiming(stage));
+		}
+		build.setStageTimings(timings);
+		build.getTestResult().setTestCases(pipeline.getTestCases());
+		build.setTestSelection(pipeline.getTestSelection());
+		build.setTestSchedule(pipeline.getTestSchedule());
+		build.setIncrementalCompile(pipeline.getIncrementalCompile());
+		build.setDiagnostics(pipeline.getDiagnostics());
+		if (cancellation.isCancelled()) {
+			build.setStatus(Integrator.STATUS_CANCELLED);
+			return build;
+		}
+		recordStatistics(pipeline, build);
+		if (build.getTestResult().isTestSuccessfull() && flakyTests(build) > 0) {
+			build.setStatus(Integrator.STATUS_FLAKY);
+		}
+		if (treeHash != null && ResultCache.isReusable(pipeline)) {
+			build.setTreeHash(treeHash);
+			build.setToolchain(ResultCache.toolchainFingerprint());
+		}
+		return build;
+	}
+
+	/**
+	 * Adds what a pipeline that was not cancelled measured to the histories that later builds are planned with:
+	 * test durations, compile times, warm and cold Maven stages and flaky tests.
+	 */
+	private static void recordStatistics(Pipeline pipeline, Build build) {
+		testSchedule schedule = pipeline.getTestSchedule();
+		if (schedule != null && ContinuousIntegrationServer.durations != null) {
+			ContinuousIntegrationServer.durations.record(pipeline.getTestCases(), schedule.getForks(), schedule.getActualMillis());
+		}
+		recordCompile(pipeline);
+		MavenDaemonPool.shared().recordStages(pipeline.getAllStages());
+		if (ContinuousIntegrationServer.flakyTests != null) {
+			ContinuousIntegrationServer.flakyTests.record(build.getBuildID(), pipeline.getTestCases());
+		}
+	}
+
+	/**
+	 * Moves the logs and jar of a build into the artifact store, saves the payload next to them and adds the
+	 * build to the history.
+	 * @param build a build that is done
+	 */
+	private void record(Build build) {
+		if (build.getLogDirectory() != null) {
+			File buildDirectory = ArtifactStore.artifactDirectory(build);
+			ContinuousIntegrationServer.json.saveGithubLogs(data, buildDirectory);
+			try {
+				ArtifactStore.of(buildDirectory).store(buildDirectory);
+			} catch (IOException e) {
+				System.err.println("Could not store the artifacts of build " + build.getBuildID() + ", they stay in " + buildDirectory);
+				e.printStackTrace();
+			}
+		}
 		ContinuousIntegrationServer.db.addBuildToDB(build);
-		ContinuousIntegrationServer.json.saveBuildHistory(ContinuousIntegrationServer.db);
+		ContinuousIntegrationServer.json.recordBuild(ContinuousIntegrationServer.db, build);
+	}
+
+	/**
+	 * Adds a build that could not be run to the history, so that its id is not left without a build, unless the
+	 * build was added before it failed.
+	 */
+	private static void recordError(PushEvent push, int buildID, String buildDate) {
+		try {
+			if (ContinuousIntegrationServer.db.findBuild(buildID) != null) {
+				return;
+			}
+			Build build = new Build(buildID, push.getCommit(), buildDate, push.getBranch(), new installResult(false, "Error"),
+					new buildResult(false, "Error"), new testResult(false, "The build could not be run, see the server log"));
+			ContinuousIntegrationServer.db.addBuildToDB(build);
+			ContinuousIntegrationServer.json.recordBuild(ContinuousIntegrationServer.db, build);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Adds a build that is in the history to the log index and expires the artifacts of old builds. A failure
+	 * here does not change the outcome of the build.
+	 * @param build the build, null if it could not be run
+	 */
+	private static void maintain(Build build) {
+		if (build == null) {
+			return;
+		}
+		try {
+			if (ContinuousIntegrationServer.logIndex != null) {
+				ContinuousIntegrationServer.logIndex.index(build, ContinuousIntegrationServer.logs);
+			}
+			if (build.getLogDirectory() != null) {
+				List<File> expired = ArtifactStore.of(new File(build.getLogDirectory())).collectGarbage(ContinuousIntegrationServer.db.getSnapshot());
+				for (File directory : expired) {
+					ContinuousIntegrationServer.logs.invalidate(directory.getPath());
+				}
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends the final status of a build to GitHub.
+	 * @param push the push that was built
+	 * @param build the build, null if it could not be run, its status has been sent then
+	 */
+	private static void reportResult(PushEvent push, Build build) {
+		if (build == null) {
+			return;
+		}
+		CommitStatusReporter reporter = CommitStatusReporter.shared();
 		// if tests succeed, everything has succeeded
-		String testStatus = statuses.get(Integrator.STATUS_TEST);
-		if (testStatus.equals(Integrator.STATUS_SUCCESS)) { //successfull build
-			try {
-				sendCommitStatus(jsonObject, CommitStatus.STATE_SUCCESS, "All tests passed");
-			}catch (Exception e){System.out.println("got an error at success");}
+		String reused = (build.getCachedFrom() != null) ? " (results of build " + build.getCachedFrom() + ")" : "";
+		if (Integrator.STATUS_CANCELLED.equals(build.getStatus())) { //superseded build
+			sendCancelledStatus(push);
+		} else if (build.getTestResult().isTestSuccessfull()) { //successfull build
+			int flaky = flakyTests(build);
+			reporter.report(push, CommitStatus.STATE_SUCCESS, "All tests passed" + (flaky > 0 ? ", " + flaky + " flaky" : "") + reused);
 		}else{ //failed build
-			try {
-				sendCommitStatus(jsonObject, CommitStatus.STATE_FAILURE, "Build failed");
-			}catch (Exception e){System.out.println("got an error at fail");}
+			reporter.report(push, CommitStatus.STATE_FAILURE, "Build failed" + reused);
+		}
+	}
+
+	/**
+	 * Adds the time of the COMPILE stage to the compile times with or without restored classes.
+	 * @param pipeline a pipeline that has run
+	 */
+	private static void recordCompile(Pipeline pipeline) {
+		if (pipeline.getIncrementalCompile() == null) {
+			return;
+		}
+		for (PipelineStage stage : pipeline.getAllStages()) {
+			if (stage.getName().equals(Integrator.STATUS_COMPILE) && Integrator.STATUS_SUCCESS.equals(stage.getStatus())) {
+				CompileCache.shared().recordCompile(pipeline.getIncrementalCompile(), stage.getWallMillis());
+			}
+		}
+	}
+
+	/**
+	 * Records a push that was superseded by a newer push to the same branch before it was built,
+	 * as a cancelled build in the history.
+	 * @param payload the GitHub push payload
+	 */
+	public static void recordSuperseded(String payload) {
+		PushEvent push = PushEvent.parse(payload);
+		Build build = cancelledBuild(ContinuousIntegrationServer.db.allocateBuildID(), push.getCommit(),
+				new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(Calendar.getInstance().getTime()), push.getBranch());
+		ContinuousIntegrationServer.db.addBuildToDB(build);
+		ContinuousIntegrationServer.json.recordBuild(ContinuousIntegrationServer.db, build);
+		sendCancelledStatus(push);
+	}
+
+	/**
+	 * @param payload a GitHub push payload
+	 * @return "owner/repository:refs/heads/branch", the key pushes are coalesced by, null for deleted branches
+	 */
+	public static String branchKey(String payload) {
+		return branchKey(PushEvent.parse(payload));
+	}
+
+	/**
+	 * @param push a parsed push
+	 * @return the key the pushes to its branch are coalesced by, see {@link #branchKey(String)}
+	 */
+	public static String branchKey(PushEvent push) {
+		if (push.isDeleted()) {
+			return null;
+		}
+		return push.getFullName() + ":" + push.getRef();
+	}
+
+	/**
+	 * @return a build that did not run, with all its results failed and CANCELLED as status
+	 */
+	private static Build cancelledBuild(int buildID, String commit, String buildDate, String branch) {
+		Build build = new Build(buildID, commit, buildDate, branch, new installResult(false, "Cancelled"),
+				new buildResult(false, "Cancelled"), new testResult(false, "Superseded by a newer push to " + branch));
+		build.setStatus(Integrator.STATUS_CANCELLED);
+		return build;
+	}
+
+	/**
+	 * @return the number of tests of a build that failed and then passed when they were run again
+	 */
+	private static int flakyTests(Build build) {
+		List<testCaseResult> cases = build.getTestResult().getTestCases();
+		if (cases == null) {
+			return 0;
+		}
+		int flaky = 0;
+		for (testCaseResult c : cases) {
+			if (testCaseResult.FLAKY.equals(c.getStatus())) {
+				flaky++;
+			}
 		}
+		return flaky;
+	}
+
+	private static void sendCancelledStatus(PushEvent push) {
+		CommitStatusReporter.shared().report(push, CommitStatus.STATE_ERROR, "Superseded by a newer push");
 	}
 
 	/**
@@ -64,14 +304,16 @@ public class RequestHandler extends Thread {
 	 * @param commitStatus the state to be set
 	 */
 	public static void sendCommitStatus(JsonObject commit, String commitStatus, String description) throws IOException {
-		GitHubClient ghc = new GitHubClient(); // Create GitHub Client
-		ghc.setOAuth2Token(System.getProperty("DD2480_TOKEN")); // Authenticate.
-		RepositoryService rs = new RepositoryService(ghc); // get repo service
-		CommitService cs = new CommitService(ghc);
+		sendCommitStatus(PushEvent.parse(commit.toString()), commitStatus, description);
+	}
 
-		Repository repo = rs.getRepository(commit.getAsJsonObject("repository").getAsJsonObject("owner").get("name").getAsString(), commit.getAsJsonObject("repository").get("name").getAsString()); // get the repository
-		// Set commit status
-		cs.createStatus(repo, commit.get("after").getAsString(), new CommitStatus().setState(commitStatus).setDescription(description));
+	/**
+	 * sets the status of a commit eg  "pending", "success", "failure"
+	 * @param push the push of the commit to set the status of
+	 * @param commitStatus the state to be set
+	 */
+	public static void sendCommitStatus(PushEvent push, String commitStatus, String description) throws IOException {
+		CommitStatusReporter.shared().send(push, commitStatus, description);
 	}
 
 	/**
@@ -80,16 +322,9 @@ public class RequestHandler extends Thread {
 	 * @return the status of the commit eg. "pending", "success", "failure"
 	 */
 	public static String getCommitStatus(JsonObject commit){
-		GitHubClient ghc = new GitHubClient(); // Create GitHub Client
-		ghc.setOAuth2Token(System.getProperty("DD2480_TOKEN")); // Authenticate.
-		RepositoryService rs = new RepositoryService(ghc); // get repo service
-		CommitService cs = new CommitService(ghc); // get commit service
-
 		List<CommitStatus> statuses;
 		try {
-			Repository repo = rs.getRepository(commit.getAsJsonObject("repository").getAsJsonObject("owner").get("name").getAsString(), commit.getAsJsonObject("repository").get("name").getAsString()); // get the repository
-			statuses = cs.getStatuses(repo, commit.get("after").getAsString());
-
+			statuses = CommitStatusReporter.shared().getStatuses(PushEvent.parse(commit.toString()));
 		}catch (Exception e){System.out.println("couldn't get commit status");return "no";}
 
 		CommitStatus status = null;
@@ -102,4 +337,4 @@ public class RequestHandler extends Thread {
 		return status.getState();
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,199 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reuses the results of earlier builds for commits whose content has been built before, e.g. a re-push,
+ * a new branch from a built commit or a merge that changes nothing. The results are keyed by the git tree
+ * hash of the commit and a fingerprint of the toolchain (Maven, Java and OS), and are looked up in the
+ * build history, so a build that reuses results costs a "git rev-parse" instead of a Maven run.
+ *
+ * A push is always built when its commit message contains "[force rebuild]".
+ */
+public class ResultCache {
+
+    public final static String ENABLED_KEY = "DD2480_RESULT_CACHE";
+    public final static String FORCE_REBUILD = "[force rebuild]";
+
+    private static volatile String toolchain;
+
+    private final boolean enabled;
+
+    // metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong forced = new AtomicLong();
+
+    /**
+     * Creates a result cache that is enabled unless DD2480_RESULT_CACHE is false.
+     */
+    public ResultCache() {
+        this(Config.getBoolean(ENABLED_KEY, true));
+    }
+
+    /**
+     * @param enabled false to always build
+     */
+    public ResultCache(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Fingerprints the tools a build runs with, the output of "mvn -v" (Maven, Java and OS versions).
+     * It is computed once per server start.
+     * @return the fingerprint as hex string
+     */
+    public static String toolchainFingerprint() {
+        if (toolchain == null) {
+            StringBuilder version = new StringBuilder();
+            try {
+                List<String> lines = new ArrayList<>();
+                if (Pipeline.execute(List.of("mvn", "-v"), new File("."), Map.of(), 60000, null, lines::add) == 0) {
+                    // the "Maven home" line depends on where Maven is installed, not on what it does
+                    lines.stream().filter(line -> !line.startsWith("Maven home")).forEach(version::append);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (version.length() == 0) {
+                version.append("java ").append(System.getProperty("java.version"));
+            }
+            toolchain = sha256(version.toString()).substring(0, 16);
+        }
+        return toolchain;
+    }
+
+    /**
+     * @param message a commit message
+     * @return true if the message asks for a rebuild with "[force rebuild]", in any case
+     */
+    public static boolean forceRebuild(String message) {
+        return message.toLowerCase().contains(FORCE_REBUILD);
+    }
+
+    /**
+     * Looks for a build of the same tree with the same toolchain.
+     * @param db the build history
+     * @param treeHash git tree hash of the commit, null if it is unknown
+     * @param force true if the push asked for a rebuild
+     * @return the build whose results can be reused, null if the commit has to be built
+     */
+    public Build lookup(BuildHistory db, String treeHash, boolean force) {
+        if (!enabled || treeHash == null) {
+            return null;
+        }
+        if (force) {
+            forced.incrementAndGet();
+            return null;
+        }
+        Build source = db.findBuildByTree(treeHash, toolchainFingerprint());
+        (source == null ? misses : hits).incrementAndGet();
+        return source;
+    }
+
+    /**
+     * @param pipeline a pipeline that has run
+     * @return true if the results only depend on the commit, i.e. the checkout and install worked, all tests ran and no stage timed out or was cancelled
+     */
+    public static boolean isReusable(Pipeline pipeline) {
+        Map<String, String> statuses = pipeline.getStatuses();
+        if (!Integrator.STATUS_SUCCESS.equals(statuses.get(Integrator.STAGE_CHECKOUT))
+                || !Integrator.STATUS_SUCCESS.equals(statuses.get(Integrator.STATUS_INSTALL))) {
+            return false;
+        }
+        // a build that ran only some tests says nothing about the others
+        if (pipeline.getTestSelection() != null && !pipeline.getTestSelection().isFullRun()) {
+            return false;
+        }
+        for (PipelineStage stage : pipeline.getAllStages()) {
+            if (stage.getExitCode() == Pipeline.TIMED_OUT || stage.getExitCode() == Pipeline.CANCELLED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the build of a commit from the results of an earlier build of the same tree. The new build gets a
+     * build directory of its own, the logs and the jar of the earlier build are linked into it, or listed in its
+     * manifest if they are in the {@link ArtifactStore}.
+     * @param source the earlier build
+     * @param buildID id of the new build
+     * @param commitHash 7 character hash of the commit
+     * @param buildDate date of the new build
+     * @param branch branch of the commit
+     * @param savedLocally true if builds are saved in "localbuilds/"
+     * @return the new build, not added to the history yet
+     */
+    public Build reuse(Build source, int buildID, String commitHash, String buildDate, String branch, boolean savedLocally) {
+        Build build = new Build(buildID, commitHash, buildDate, branch,
+                source.getInstallResult(), source.getBuildResult(), source.getTestResult());
+        build.setStageTimings(source.getStageTimings());
+        build.setTreeHash(source.getTreeHash());
+        build.setToolchain(source.getToolchain());
+        build.setCachedFrom(source.getBuildID());
+        if (source.getLogDirectory() != null) {
+            File to = new File(Integrator.buildDirectory(savedLocally, commitHash, buildID));
+            File logs = new File(source.getLogDirectory());
+            for (String log : List.of(LogStore.INSTALL_LOG, LogStore.COMPILE_LOG, LogStore.TEST_LOG)) {
+                link(logs, log, to, log);
+            }
+            link(ArtifactStore.artifactDirectory(source), source.getCommitHash() + ".jar", to, commitHash + ".jar");
+            build.setLogDirectory(to.getPath() + "/");
+        }
+        return build;
+    }
+
+    /**
+     * Links a log or jar of an earlier build into the build directory of a new build, a file that the earlier
+     * build has in the artifact store is listed in the manifest of the new build.
+     */
+    private static void link(File from, String fromName, File to, String toName) {
+        Path file = from.toPath().resolve(fromName);
+        Path target = to.toPath().resolve(toName);
+        try {
+            Files.createDirectories(to.toPath());
+            if (!Files.exists(file)) {
+                ArtifactStore.of(from).link(from, fromName, to, toName);
+                return;
+            }
+            try {
+                Files.createLink(target, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(file, target);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the metrics of the cache as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        sb.append("result_cache_hits ").append(hits.get()).append('\n')
+                .append("result_cache_misses ").append(misses.get()).append('\n')
+                .append("result_cache_forced_rebuilds ").append(forced.get()).append('\n');
+    }
+
+    private static String sha256(String text) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
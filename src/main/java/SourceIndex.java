@@ -0,0 +1,132 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * The Java sources under src/ of a checked out commit, with the types every file declares and the names that
+ * occur in it. It is read from the sources, before anything is compiled: a file depends on every type whose
+ * name occurs in it. This finds more dependencies than there are, e.g. through a comment, but not fewer,
+ * except for classes that are only loaded by name.
+ */
+class SourceIndex {
+
+    final static String SOURCE_DIRECTORY = "src";
+
+    private final static Pattern TYPE_DECLARATION = Pattern.compile("\\b(?:class|interface|enum|record)\\s+([A-Za-z_$][A-Za-z0-9_$]*)");
+    private final static Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*");
+
+    // path relative to the repository to the types the file declares, and to the names that occur in it
+    private final Map<String, Set<String>> declared = new HashMap<>();
+    private final Map<String, Set<String>> referenced = new HashMap<>();
+
+    private SourceIndex() {
+    }
+
+    /**
+     * Reads the Java sources of a checked out commit.
+     * @param repository the checked out commit
+     * @return the index, empty if there is no src/ directory
+     */
+    static SourceIndex of(File repository) throws IOException {
+        SourceIndex index = new SourceIndex();
+        Path root = repository.toPath();
+        Path sources = root.resolve(SOURCE_DIRECTORY);
+        if (Files.isDirectory(sources)) {
+            try (Stream<Path> files = Files.walk(sources)) {
+                for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".java"))::iterator) {
+                    index.add(root.relativize(file).toString().replace(File.separatorChar, '/'),
+                            Files.readString(file, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Records the types a source file declares and the names that occur in it.
+     */
+    private void add(String path, String source) {
+        declared.put(path, declaredTypes(path, source));
+        Set<String> names = new HashSet<>();
+        Matcher identifier = IDENTIFIER.matcher(source);
+        while (identifier.find()) {
+            names.add(identifier.group());
+        }
+        referenced.put(path, names);
+    }
+
+    /**
+     * @param path path of a source file, relative to the repository
+     * @param source the content of the file
+     * @return the types the file declares, at least the one named like the file
+     */
+    static Set<String> declaredTypes(String path, String source) {
+        Set<String> types = new HashSet<>();
+        types.add(simpleName(path));
+        Matcher declaration = TYPE_DECLARATION.matcher(source);
+        while (declaration.find()) {
+            types.add(declaration.group(1));
+        }
+        return types;
+    }
+
+    /**
+     * @return the paths of the indexed files, relative to the repository
+     */
+    Set<String> getFiles() {
+        return declared.keySet();
+    }
+
+    /**
+     * @param path path of a source file, relative to the repository
+     * @return the types the file declares, or the type named like the file if it is not indexed, e.g. because it was deleted
+     */
+    Set<String> getDeclaredTypes(String path) {
+        return declared.getOrDefault(path, Set.of(simpleName(path)));
+    }
+
+    /**
+     * Finds the files that use some types, directly or through other files.
+     * @param types the names of the types
+     * @return the paths of the files that use the types, including the files that declare them
+     */
+    Set<String> dependents(Set<String> types) {
+        Set<String> affected = new HashSet<>(types);
+        Set<String> affectedFiles = new HashSet<>();
+        // every file that uses an affected type is affected too, until nothing more is added
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (Map.Entry<String, Set<String>> file : referenced.entrySet()) {
+                if (affectedFiles.contains(file.getKey())) {
+                    continue;
+                }
+                // a file always uses its own types
+                if (file.getValue().stream().anyMatch(affected::contains)) {
+                    affectedFiles.add(file.getKey());
+                    affected.addAll(declared.get(file.getKey()));
+                    grown = true;
+                }
+            }
+        }
+        return affectedFiles;
+    }
+
+    /**
+     * @param path path of a file
+     * @return the name of the file without directories and ".java"
+     */
+    static String simpleName(String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.endsWith(".java") ? name.substring(0, name.length() - ".java".length()) : name;
+    }
+}
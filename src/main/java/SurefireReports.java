@@ -0,0 +1,131 @@
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Reads the per-test results that Surefire writes to {@code target/surefire-reports/TEST-*.xml}.
+ * The reports are streamed, so the captured output of the tests that they may contain is never held in memory.
+ */
+public class SurefireReports {
+
+    public final static String REPORTS_DIRECTORY = "target/surefire-reports";
+
+    // longer failure messages are cut, the full message is in the test log
+    private final static int MAX_MESSAGE_LENGTH = 500;
+
+    private SurefireReports() {
+    }
+
+    /**
+     * @param reportsDirectory the directory with the TEST-*.xml reports
+     * @return the test cases of all reports, in the order of the report files, empty if there are no reports
+     */
+    public static List<testCaseResult> parse(File reportsDirectory) {
+        List<testCaseResult> cases = new ArrayList<>();
+        File[] reports = reportsDirectory.listFiles((dir, name) -> name.startsWith("TEST-") && name.endsWith(".xml"));
+        if (reports == null) {
+            return cases;
+        }
+        Arrays.sort(reports);
+        for (File report : reports) {
+            try (InputStream in = new FileInputStream(report)) {
+                parse(in, cases);
+            } catch (IOException | XMLStreamException e) {
+                // a report that is cut off still gives the test cases before the damage
+                System.err.println("Could not read surefire report " + report + ": " + e.getMessage());
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Reads the test cases of one report.
+     * @param report a TEST-*.xml report
+     * @param cases where the test cases are added
+     */
+    static void parse(InputStream report, List<testCaseResult> cases) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader xml = factory.createXMLStreamReader(report);
+        try {
+            testCaseResult current = null;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (xml.getLocalName()) {
+                        case "testcase":
+                            current = new testCaseResult(xml.getAttributeValue(null, "classname"),
+                                    xml.getAttributeValue(null, "name"), millis(xml.getAttributeValue(null, "time")),
+                                    testCaseResult.PASSED, null);
+                            cases.add(current);
+                            break;
+                        case "failure":
+                        case "error":
+                        case "skipped":
+                            if (current != null && !current.isFailed()) {
+                                current.setStatus(xml.getLocalName().equals("failure") ? testCaseResult.FAILED
+                                        : xml.getLocalName().equals("error") ? testCaseResult.ERROR : testCaseResult.SKIPPED);
+                                current.setMessage(message(xml.getAttributeValue(null, "message"), xml.getAttributeValue(null, "type")));
+                            }
+                            break;
+                        default:
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("testcase")) {
+                    current = null;
+                }
+            }
+        } finally {
+            xml.close();
+        }
+    }
+
+    /**
+     * @param cases the test cases of a build
+     * @param limit how many tests are returned at most
+     * @return the tests that took longest, slowest first
+     */
+    public static List<testCaseResult> slowest(List<testCaseResult> cases, int limit) {
+        return cases.stream()
+                .sorted(Comparator.comparingLong(testCaseResult::getDurationMillis).reversed())
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param time a duration in seconds as written by Surefire, e.g. "0.012" or "1,234.5"
+     * @return the duration in milliseconds, 0 if it can not be read
+     */
+    private static long millis(String time) {
+        if (time == null) {
+            return 0;
+        }
+        try {
+            return Math.round(Double.parseDouble(time.replace(",", "")) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String message(String message, String type) {
+        String text = message != null ? message : type;
+        if (text == null) {
+            return null;
+        }
+        text = text.trim();
+        int newline = text.indexOf('\n');
+        if (newline >= 0) {
+            text = text.substring(0, newline).trim();
+        }
+        return text.length() > MAX_MESSAGE_LENGTH ? text.substring(0, MAX_MESSAGE_LENGTH) + "..." : text;
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * How long every test class took in the last builds, kept next to the build history in
+ * src/main/resources/TestDurations.txt. Per class, an exponentially weighted moving average and the
+ * last durations are kept, from which percentiles are read. The time a test stage takes besides running
+ * the tests, e.g. starting Maven and the forked JVMs, is kept the same way.
+ *
+ * The averages predict how long the tests of a build take, and let parallel builds spread the test
+ * classes over the forks longest first, see {@link #pack(Map, int)}.
+ */
+public class TestDurationHistory {
+
+    public final static String DEFAULT_PATH = "src/main/resources/TestDurations.txt";
+
+    // durations kept per class for the percentiles
+    final static int SAMPLES = 16;
+    // weight of the newest duration in the moving average
+    private final static double ALPHA = 0.3;
+    // the entry of the time a test stage takes besides the tests, not a class name
+    private final static String OVERHEAD = "-overhead";
+
+    private final Path path;
+    // class name to its durations, sorted so that the file is stable
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Creates the history of the server, stored in src/main/resources/TestDurations.txt.
+     */
+    public TestDurationHistory() {
+        this(DEFAULT_PATH);
+    }
+
+    /**
+     * Creates a history and loads the durations that were stored before.
+     * @param path path of the file the durations are stored in
+     */
+    public TestDurationHistory(String path) {
+        this.path = Path.of(path);
+        load();
+    }
+
+    /**
+     * Adds the durations of the test classes of a build and of its test stage, and stores the history.
+     * @param cases the test cases of the build
+     * @param forks the number of JVMs the tests ran in
+     * @param stageMillis wall time of the test stage, 0 if it is unknown
+     */
+    public synchronized void record(List<testCaseResult> cases, int forks, long stageMillis) {
+        Map<String, Long> classes = classDurations(cases);
+        if (classes.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Long> c : classes.entrySet()) {
+            entries.computeIfAbsent(c.getKey(), k -> new Entry()).add(c.getValue());
+        }
+        if (stageMillis > 0) {
+            // the tests themselves took at least as long as the longest fork
+            long busy = makespan(pack(classes, forks), classes);
+            entries.computeIfAbsent(OVERHEAD, k -> new Entry()).add(Math.max(0, stageMillis - busy));
+        }
+        try {
+            store();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param className a test class
+     * @return the moving average of its duration in milliseconds, null if it has not run before
+     */
+    public synchronized Long estimate(String className) {
+        Entry entry = entries.get(className);
+        return entry == null ? null : Math.round(entry.average);
+    }
+
+    /**
+     * @return the moving average of the time a test stage takes besides running the tests, 0 if it is unknown
+     */
+    public synchronized long getOverheadMillis() {
+        Long overhead = estimate(OVERHEAD);
+        return overhead == null ? 0 : overhead;
+    }
+
+    /**
+     * @param className a test class
+     * @param percentile e.g. 95
+     * @return the duration of the class in milliseconds that was not exceeded by the given percent of its last runs,
+     * null if it has not run before
+     */
+    public synchronized Long percentile(String className, int percentile) {
+        Entry entry = entries.get(className);
+        if (entry == null) {
+            return null;
+        }
+        long[] sorted = Arrays.copyOf(entry.samples, entry.count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Estimates the durations of test classes. Classes that have not run before are assumed to take as long
+     * as the known classes take on average.
+     * @param classNames the test classes
+     * @return class name to estimated milliseconds, empty if none of the classes has run before
+     */
+    public synchronized Map<String, Long> estimates(Collection<String> classNames) {
+        Map<String, Long> known = new LinkedHashMap<>();
+        for (String name : classNames) {
+            Long estimate = estimate(name);
+            if (estimate != null) {
+                known.put(name, estimate);
+            }
+        }
+        if (known.isEmpty()) {
+            return known;
+        }
+        long unknown = Math.round(known.values().stream().mapToLong(Long::longValue).average().orElse(0));
+        Map<String, Long> estimates = new LinkedHashMap<>();
+        for (String name : classNames) {
+            estimates.put(name, known.getOrDefault(name, unknown));
+        }
+        return estimates;
+    }
+
+    /**
+     * Predicts the wall time of a test stage.
+     * @param classNames the test classes that run
+     * @param forks the number of JVMs they run in
+     * @return the predicted milliseconds, null if none of the classes has run before
+     */
+    public synchronized Long predict(Collection<String> classNames, int forks) {
+        Map<String, Long> estimates = estimates(classNames);
+        if (estimates.isEmpty()) {
+            return null;
+        }
+        return makespan(pack(estimates, forks), estimates) + getOverheadMillis();
+    }
+
+    /**
+     * Spreads test classes over forks longest first: every class goes to the fork that has the least work
+     * so far. The longest fork takes at most 4/3 of the shortest possible time.
+     * @param durations class name to its duration
+     * @param forks the number of forks
+     * @return the classes of every fork, forks without classes are left out
+     */
+    public static List<List<String>> pack(Map<String, Long> durations, int forks) {
+        List<Map.Entry<String, Long>> longestFirst = new ArrayList<>(durations.entrySet());
+        longestFirst.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        List<List<String>> bins = new ArrayList<>();
+        long[] load = new long[Math.max(1, forks)];
+        PriorityQueue<Integer> leastLoaded = new PriorityQueue<>(Comparator.<Integer>comparingLong(i -> load[i]).thenComparing(i -> i));
+        for (int i = 0; i < load.length; i++) {
+            bins.add(new ArrayList<>());
+            leastLoaded.add(i);
+        }
+        for (Map.Entry<String, Long> c : longestFirst) {
+            int bin = leastLoaded.poll();
+            bins.get(bin).add(c.getKey());
+            load[bin] += c.getValue();
+            leastLoaded.add(bin);
+        }
+        bins.removeIf(List::isEmpty);
+        return bins;
+    }
+
+    /**
+     * @param bins the classes of every fork
+     * @param durations class name to its duration
+     * @return the duration of the longest fork
+     */
+    public static long makespan(List<List<String>> bins, Map<String, Long> durations) {
+        long longest = 0;
+        for (List<String> bin : bins) {
+            longest = Math.max(longest, bin.stream().mapToLong(c -> durations.getOrDefault(c, 0L)).sum());
+        }
+        return longest;
+    }
+
+    /**
+     * @param cases test cases of a build
+     * @return the simple name of every test class to the time its tests took together
+     */
+    public static Map<String, Long> classDurations(List<testCaseResult> cases) {
+        Map<String, Long> classes = new LinkedHashMap<>();
+        if (cases != null) {
+            for (testCaseResult c : cases) {
+                if (c.getClassName() != null) {
+                    classes.merge(simpleName(c.getClassName()), c.getDurationMillis(), Long::sum);
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static String simpleName(String className) {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return the number of test classes with durations
+     */
+    public synchronized int size() {
+        return entries.containsKey(OVERHEAD) ? entries.size() - 1 : entries.size();
+    }
+
+    private void load() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length < 3) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry();
+                    entry.average = Double.parseDouble(parts[1]);
+                    for (String sample : parts[2].split(",")) {
+                        entry.samples[entry.next] = Long.parseLong(sample);
+                        entry.next = (entry.next + 1) % SAMPLES;
+                        entry.count = Math.min(entry.count + 1, SAMPLES);
+                    }
+                    entries.put(parts[0], entry);
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring malformed test duration: " + line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the history to a temporary file that replaces the stored history once it is on disk,
+     * one "class average oldest,...,newest" line per class.
+     */
+    private void store() throws IOException {
+        Path tmp = Path.of(path + ".tmp");
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + " " + Math.round(entry.getValue().average * 10) / 10.0 + " " + entry.getValue().samples() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the metrics of the history as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        sb.append("test_duration_classes ").append(size()).append('\n')
+                .append("test_stage_overhead_ms ").append(getOverheadMillis()).append('\n');
+    }
+
+    /**
+     * The durations of one test class, the last SAMPLES in a ring and their moving average.
+     */
+    private static class Entry {
+        final long[] samples = new long[SAMPLES];
+        int next = 0;
+        int count = 0;
+        double average;
+
+        void add(long millis) {
+            average = count == 0 ? millis : ALPHA * millis + (1 - ALPHA) * average;
+            samples[next] = millis;
+            next = (next + 1) % SAMPLES;
+            count = Math.min(count + 1, SAMPLES);
+        }
+
+        /**
+         * @return the durations, oldest first, separated by commas
+         */
+        String samples() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(samples[(next - count + i + SAMPLES) % SAMPLES]);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Chooses the tests of a build with DD2480_TEST_SELECTION=affected: the commit is compared with the last
+ * green build of its branch, and only the test classes that depend on a changed class, directly or through
+ * other classes, are run. All tests run when there is no green build to compare with, when a file that is
+ * not Java source changed, e.g. the pom, and on every DD2480_FULL_TEST_RUN_EVERY-th build of a branch.
+ *
+ * The dependencies are read from the sources of the checked out commit, since the tests are chosen before
+ * anything is compiled, see {@link SourceIndex}.
+ */
+public class TestSelector {
+
+    public final static String MODE_KEY = "DD2480_TEST_SELECTION";
+    public final static String FULL_RUN_KEY = "DD2480_FULL_TEST_RUN_EVERY";
+    public final static String SELECTION_ALL = "all";
+    public final static String SELECTION_AFFECTED = "affected";
+
+    private final static String TEST_SOURCES = "src/test/java/";
+    // files that can not change the outcome of the tests, outside src/ where the tests may read them as resources
+    private final static List<String> IGNORED_SUFFIXES = List.of(".md", ".txt", ".gitignore");
+    // the test classes Surefire runs by default
+    private final static Pattern TEST_CLASS = Pattern.compile("Test.*|.*Test|.*Tests|.*TestCase");
+
+    private TestSelector() {
+    }
+
+    /**
+     * @return true if DD2480_TEST_SELECTION is "affected"
+     */
+    public static boolean isEnabled() {
+        return SELECTION_AFFECTED.equals(Config.getString(MODE_KEY, SELECTION_ALL));
+    }
+
+    /**
+     * Chooses the tests of a commit.
+     * @param history the builds so far, null if they are unknown
+     * @param branch the branch of the commit
+     * @param revision the commit that is built
+     * @param repository the checked out commit
+     * @param mirror the mirror the commit was checked out from, used to compare it with the last green build
+     * @param log receives why the tests were chosen
+     * @return the selection, with the test classes to run or null tests if all tests are run
+     */
+    public static testSelection select(BuildHistory history, String branch, String revision, File repository,
+                                       GitMirror mirror, Pipeline.LineSink log) throws IOException {
+        if (history == null) {
+            return new testSelection(null, null, "No build history", 0);
+        }
+        List<Build> builds = history.findBuildsByBranch(branch);
+        Build base = lastGreenBuild(builds);
+        if (base == null) {
+            return new testSelection(null, null, "No green build of " + branch + " to compare with", 0);
+        }
+        int every = Config.getInt(FULL_RUN_KEY, 10);
+        if (selectedRunsSinceFullRun(builds) >= every - 1) {
+            return new testSelection(base.getCommitHash(), null, "Full run, all tests run on every " + every + "th build", 0);
+        }
+        List<String> changed = mirror.changedFiles(base.getCommitHash(), revision, log);
+        if (changed == null) {
+            return new testSelection(base.getCommitHash(), null, "Could not compare with " + base.getCommitHash(), 0);
+        }
+        Set<String> tests = affectedTests(repository, changed);
+        if (tests == null) {
+            return new testSelection(base.getCommitHash(), null, "Files other than Java sources changed", 0);
+        }
+        return new testSelection(base.getCommitHash(), new ArrayList<>(tests),
+                changed.size() + " changed files since " + base.getCommitHash(), savedMillis(builds, tests));
+    }
+
+    /**
+     * Finds the test classes that depend on changed files.
+     * @param repository the checked out commit
+     * @param changedFiles paths relative to the repository, of the files that changed since the last green build
+     * @return the simple names of the affected test classes, sorted, or null if all tests should run
+     */
+    static Set<String> affectedTests(File repository, Collection<String> changedFiles) throws IOException {
+        SourceIndex index = SourceIndex.of(repository);
+
+        // the names of the types in the changed files, and of the files that were deleted
+        Set<String> affected = new HashSet<>();
+        for (String path : changedFiles) {
+            if (!path.startsWith(SourceIndex.SOURCE_DIRECTORY + "/") && IGNORED_SUFFIXES.stream().anyMatch(path::endsWith)) {
+                continue;
+            }
+            if (!path.endsWith(".java") || !path.startsWith(SourceIndex.SOURCE_DIRECTORY + "/")) {
+                return null;
+            }
+            affected.addAll(index.getDeclaredTypes(path));
+        }
+
+        Set<String> tests = new TreeSet<>();
+        for (String file : index.dependents(affected)) {
+            String name = SourceIndex.simpleName(file);
+            if (file.startsWith(TEST_SOURCES) && TEST_CLASS.matcher(name).matches()) {
+                tests.add(name);
+            }
+        }
+        return tests;
+    }
+
+    /**
+     * @param repository a checked out commit
+     * @return the simple names of the test classes Surefire runs by default, sorted
+     */
+    public static List<String> testClasses(File repository) throws IOException {
+        Set<String> tests = new TreeSet<>();
+        Path sources = repository.toPath().resolve(TEST_SOURCES);
+        if (Files.isDirectory(sources)) {
+            try (Stream<Path> files = Files.walk(sources)) {
+                files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.endsWith(".java"))
+                        .map(SourceIndex::simpleName)
+                        .filter(name -> TEST_CLASS.matcher(name).matches())
+                        .forEach(tests::add);
+            }
+        }
+        return new ArrayList<>(tests);
+    }
+
+    /**
+     * @param builds the builds of a branch, oldest first
+     * @return the newest build whose tests passed, also if only on a rerun, null if there is none
+     */
+    private static Build lastGreenBuild(List<Build> builds) {
+        for (int i = builds.size() - 1; i >= 0; i--) {
+            String status = builds.get(i).getStatus();
+            if (Integrator.STATUS_SUCCESS.equals(status) || Integrator.STATUS_FLAKY.equals(status)) {
+                return builds.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param builds the builds of a branch, oldest first
+     * @return how many builds ran only some tests since all tests last ran, cancelled builds are not counted
+     */
+    static int selectedRunsSinceFullRun(List<Build> builds) {
+        int count = 0;
+        for (int i = builds.size() - 1; i >= 0; i--) {
+            Build build = builds.get(i);
+            if (Integrator.STATUS_CANCELLED.equals(build.getStatus())) {
+                continue;
+            }
+            if (build.getTestSelection() == null || build.getTestSelection().isFullRun()) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param builds the builds of a branch, oldest first
+     * @param tests the test classes that are run
+     * @return the time the other test classes took in the newest build that ran all tests and recorded them
+     */
+    static long savedMillis(List<Build> builds, Set<String> tests) {
+        for (int i = builds.size() - 1; i >= 0; i--) {
+            Build build = builds.get(i);
+            testResult result = build.getTestResult();
+            if (build.getTestSelection() != null && !build.getTestSelection().isFullRun()) {
+                continue;
+            }
+            if (result != null && result.getTestCases() != null && !result.getTestCases().isEmpty()) {
+                return result.getTestCases().stream()
+                        .filter(c -> c.getClassName() == null || !tests.contains(c.getClassName().substring(c.getClassName().lastIndexOf('.') + 1)))
+                        .mapToLong(testCaseResult::getDurationMillis)
+                        .sum();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param selection the chosen tests
+     * @return the Maven options that run only the chosen tests, empty for a full run
+     */
+    public static List<String> mavenOptions(testSelection selection) {
+        if (selection.isFullRun()) {
+            return List.of();
+        }
+        if (selection.getTests().isEmpty()) {
+            return List.of("-DskipTests");
+        }
+        return List.of("-Dtest=" + String.join(",", selection.getTests()), "-Dsurefire.failIfNoSpecifiedTests=false");
+    }
+}
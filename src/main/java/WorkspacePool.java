@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The workspaces of the builds. Every build gets a directory of its own under <b>{@code tmp_build/}</b>, named
+ * after its build id, so builds that run at the same time never share files, also not when they build the same
+ * commit. The directory is deleted when the build is done, but the worktree the commit was checked out into is
+ * kept in <b>{@code tmp_build/pool/}</b>, cleaned of everything the build wrote. The next build moves it into its
+ * own workspace and checks out its commit there, which only writes the files that differ.
+ *
+ * At most DD2480_WORKSPACE_POOL_SIZE worktrees are kept per mirror, the worktrees of builds beyond that are
+ * deleted with their workspace.
+ */
+public class WorkspacePool {
+
+    public final static String SIZE_KEY = "DD2480_WORKSPACE_POOL_SIZE";
+
+    private static WorkspacePool shared;
+
+    private final File root;
+    private final int size;
+    // idle worktrees by mirror directory, the most recently used first
+    private final Map<String, Deque<File>> idle = new HashMap<>();
+
+    // metrics
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    /**
+     * @param root directory holding the workspaces and the pool
+     * @param size number of idle worktrees kept per mirror
+     */
+    public WorkspacePool(File root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return the pool of the builds, in tmp_build/ keeping DD2480_WORKSPACE_POOL_SIZE (by default as many as
+     * there are build workers, DD2480_WORKERS) worktrees
+     */
+    public static synchronized WorkspacePool shared() {
+        if (shared == null) {
+            shared = new WorkspacePool(new File(Integrator.WORKSPACE_DIRECTORY),
+                    Config.getInt(SIZE_KEY, Config.getInt(BuildScheduler.WORKERS_KEY, 2)));
+        }
+        return shared;
+    }
+
+    /**
+     * @param key what the workspace belongs to, e.g. "build-42"
+     * @return the workspace directory of a build, not created yet
+     */
+    public File workspace(String key) {
+        return new File(root, key);
+    }
+
+    /**
+     * Checks out a commit into a worktree of the mirror, reusing an idle worktree of an earlier build if there is one.
+     * @param mirror the mirror of the repository
+     * @param revision the commit to check out
+     * @param worktree directory of the worktree, must not exist yet
+     * @param log receives the output of git
+     * @return true if the commit was checked out
+     */
+    public boolean checkout(GitMirror mirror, String revision, File worktree, Pipeline.LineSink log) throws IOException {
+        File pooled = take(mirror);
+        if (pooled != null) {
+            if (mirror.moveWorktree(pooled, worktree, log)) {
+                if (mirror.switchWorktree(revision, worktree, log)) {
+                    recycled.incrementAndGet();
+                    log.accept("Reused the worktree " + pooled.getName());
+                    return true;
+                }
+                Pipeline.deleteRecursively(worktree);
+            } else {
+                Pipeline.deleteRecursively(pooled);
+            }
+            log.accept("Could not reuse the worktree " + pooled.getName() + ", checking out a new one");
+            mirror.prune();
+        }
+        created.incrementAndGet();
+        return mirror.checkout(revision, worktree, log);
+    }
+
+    /**
+     * Keeps the worktree of a finished build for the next build, if there is room in the pool. The files the
+     * build wrote are deleted. A worktree that is not kept is deleted with the workspace.
+     * @param mirror the mirror the worktree belongs to
+     * @param worktree the worktree of the build
+     */
+    public void release(GitMirror mirror, File worktree) {
+        if (!new File(worktree, ".git").exists()) {
+            return;
+        }
+        File directory = poolDirectory(mirror);
+        synchronized (this) {
+            if (idle(mirror).size() >= size) {
+                return;
+            }
+        }
+        try {
+            File pooled = new File(directory, UUID.randomUUID().toString().substring(0, 8));
+            directory.mkdirs();
+            Pipeline.LineSink ignore = line -> {};
+            if (Pipeline.execute(List.of("git", "clean", "-ffdxq"), worktree, Map.of(), 600000, null, ignore) != 0
+                    || !mirror.moveWorktree(worktree, pooled, ignore)) {
+                return;
+            }
+            synchronized (this) {
+                // another build may have filled the pool meanwhile
+                if (idle(mirror).size() < size) {
+                    idle(mirror).push(pooled);
+                    return;
+                }
+            }
+            Pipeline.deleteRecursively(pooled);
+            mirror.prune();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return an idle worktree of the mirror, null if there is none
+     */
+    private synchronized File take(GitMirror mirror) {
+        return idle(mirror).poll();
+    }
+
+    /**
+     * @return the idle worktrees of a mirror, read from the pool directory the first time so that they survive a restart
+     */
+    private synchronized Deque<File> idle(GitMirror mirror) {
+        return idle.computeIfAbsent(mirror.getDirectory().getName(), k -> {
+            Deque<File> worktrees = new ArrayDeque<>();
+            File[] directories = poolDirectory(mirror).listFiles(f -> new File(f, ".git").exists());
+            if (directories != null) {
+                for (File worktree : directories) {
+                    worktrees.add(worktree);
+                }
+            }
+            return worktrees;
+        });
+    }
+
+    private File poolDirectory(GitMirror mirror) {
+        return new File(new File(root, "pool"), mirror.getDirectory().getName());
+    }
+
+    /**
+     * Writes the metrics of the pool as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        int idleWorktrees;
+        synchronized (this) {
+            idleWorktrees = idle.values().stream().mapToInt(Deque::size).sum();
+        }
+        sb.append("workspace_pool_idle ").append(idleWorktrees).append('\n')
+                .append("workspaces_recycled ").append(recycled.get()).append('\n')
+                .append("workspaces_created ").append(created.get()).append('\n');
+    }
+}
@@ -5,31 +5,44 @@ import com.google.gson.JsonParser;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 public class jsonHandler {
+    // used as keys for the settings of the build history log
+    public final static String COMPACT_RECORDS_KEY = "DD2480_WAL_COMPACT_RECORDS";
+    public final static String GROUP_COMMIT_KEY = "DD2480_WAL_GROUP_COMMIT_MS";
+
     private Gson gson;
     private String filePath;
+    private BuildHistoryLog log;
+    private int compactRecords;
     public static boolean local = true;
 
     /**
      * Default constructor with hardcoded file path to database file
      */
     public jsonHandler(){
-        gson = new Gson();
-        filePath = "src/main/resources/BuildHistoryDB.json";
+        this("src/main/resources/BuildHistoryDB.json");
     }
 
     /**
-     * Consturctor with the ability to provide a new filepath for databasefile
+     * Consturctor with the ability to provide a new filepath for databasefile.
+     * New builds are appended to a log next to it, e.g. BuildHistoryDB.wal, until the log is compacted.
      * @param filePath
      */
     public jsonHandler(String filePath){
         gson = new Gson();
         this.filePath = filePath;
+        String logPath = (filePath.endsWith(".json") ? filePath.substring(0, filePath.length() - 5) : filePath) + ".wal";
+        log = new BuildHistoryLog(logPath, Config.getLong(GROUP_COMMIT_KEY, 0));
+        compactRecords = Config.getInt(COMPACT_RECORDS_KEY, 100);
     }
 
     /**
-     * Reads the json database and initializes a buildHistory object containing the database
+     * Reads the json database and initializes a buildHistory object containing the database.
+     * Builds that were recorded in the log after the database was last written are added on top.
      * @return Object representation of json database
      */
     public BuildHistory readBuildHistory(){
@@ -43,22 +56,89 @@ public class jsonHandler {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (db == null) {
+            // missing or empty database file
+            db = new BuildHistory();
+        }
+        // Gson only fills in the list of builds, the lookup indexes are built from it
+        db.rebuildIndexes();
+        try {
+            for (String record : log.replay()) {
+                Build b = gson.fromJson(record, Build.class);
+                // a compaction that crashed before emptying the log leaves builds that are already in the db
+                if (db.findBuild(b.getBuildID()) == null) {
+                    db.addBuildToDB(b);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         return db;
     }
 
+    /**
+     * Makes a new build durable by appending it to the build history log, instead of writing the whole
+     * database. Builds that finish at the same time share one disk flush. Once enough builds are in the
+     * log, the database file is rewritten and the log emptied.
+     * @param db the build history, that the build has already been added to
+     * @param b the new build
+     */
+    public void recordBuild(BuildHistory db, Build b){
+        try {
+            long seq = log.append(gson.toJson(b));
+            log.sync(seq);
+            if (log.getRecordCount() >= compactRecords) {
+                log.compact(() -> writeSnapshot(db));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 
     /**
      * Stores the object version of our database to file, src/main/resources/BuildHistoryDB.json
      * @param db, the object representation of our json database
      */
     public void saveBuildHistory(BuildHistory db){
-        try (FileWriter writer = new FileWriter(filePath)) {
-            gson.toJson(db, writer);
+        try {
+            writeSnapshot(db);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes the database to a temporary file that replaces the database file once it is on disk,
+     * so that a crash while writing never leaves a half written database behind.
+     * @param db the object representation of our json database
+     * @throws IOException if the database could not be written
+     */
+    private void writeSnapshot(BuildHistory db) throws IOException {
+        Path target = Path.of(filePath);
+        Path tmp = Path.of(filePath + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"))) {
+            // builds may not be added while the list is serialized
+            synchronized (db) {
+                gson.toJson(db, writer);
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the metrics of the build history log as "name value" lines.
+     * @param sb where the lines are appended
+     */
+    public void appendMetrics(StringBuilder sb) {
+        sb.append("history_log_records ").append(log.getRecordCount()).append('\n')
+                .append("history_log_appends ").append(log.getAppendCount()).append('\n')
+                .append("history_log_syncs ").append(log.getSyncCount()).append('\n');
+    }
+
     /**
      * Saves the payload from a github request, stored in localbuilds/{commitHash}/.github_req.json
      * @param rawGithubRequest payload from github reqeust
@@ -73,4 +153,18 @@ public class jsonHandler {
         }
     }
 
+    /**
+     * Saves the payload from a github request as it was received, stored in {buildDirectory}/.github_req.json
+     * @param rawGithubRequest payload from github request
+     * @param buildDirectory the directory of the build of the request, e.g. localbuilds/{commitHash}-{buildID}/
+     */
+    public void saveGithubLogs(String rawGithubRequest, File buildDirectory){
+        try {
+            Files.createDirectories(buildDirectory.toPath());
+            Files.writeString(buildDirectory.toPath().resolve(".github_req.json"), rawGithubRequest);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
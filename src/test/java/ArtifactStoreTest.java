@@ -0,0 +1,184 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactStoreTest {
+
+    private static void writeJar(Path jar, String... namesAndContents) throws Exception {
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            out.putNextEntry(new JarEntry("pkg/"));
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                out.putNextEntry(new JarEntry(namesAndContents[i]));
+                out.write(namesAndContents[i + 1].getBytes());
+            }
+        }
+    }
+
+    private static Build buildIn(Path dir, int id, String branch, String test) {
+        Build b = new Build(id, dir.getFileName().toString(), "2021-02-05T15:00:11Z", branch,
+                Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, test, true);
+        b.setLogDirectory(dir.toString() + "/");
+        return b;
+    }
+
+    private static long files(Path dir) throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static void age(Path dir) throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                p.toFile().setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+            }
+        }
+    }
+
+    /**
+     * Tests that logs and jar entries that two builds share are stored once, that the logs are read
+     * through the store, also from a build directory they are linked into, and that a stored jar is sent with
+     * the entries it was stored with
+     */
+    @Test
+    public void storesArtifactsOnce() throws Exception {
+        Path root = Files.createTempDirectory("builds");
+        Path one = Files.createDirectories(root.resolve("aaaaaaa"));
+        Path two = Files.createDirectories(root.resolve("bbbbbbb"));
+        String log = "[INFO] BUILD SUCCESS\n".repeat(1000);
+        Files.writeString(one.resolve(LogStore.INSTALL_LOG), log);
+        Files.writeString(two.resolve(LogStore.INSTALL_LOG), log);
+        Files.writeString(two.resolve(LogStore.TEST_LOG), "Tests run: 3");
+        writeJar(one.resolve("aaaaaaa.jar"), "pkg/A.class", "same".repeat(100), "pkg/B.class", "first");
+        writeJar(two.resolve("bbbbbbb.jar"), "pkg/A.class", "same".repeat(100), "pkg/B.class", "second");
+
+        ArtifactStore store = ArtifactStore.of(one.toFile());
+        assertSame(store, ArtifactStore.of(two.toFile()));
+        store.store(one.toFile());
+        store.store(two.toFile());
+        assertFalse(Files.exists(two.resolve(LogStore.INSTALL_LOG)));
+        assertFalse(Files.exists(two.resolve("bbbbbbb.jar")));
+        // one install log, one test log, A once, B twice
+        assertEquals(5, files(root.resolve(ArtifactStore.STORE_DIRECTORY)));
+        StringBuilder metrics = new StringBuilder();
+        store.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("artifact_deduplicated_" + root.getFileName().toString().replaceAll("[^A-Za-z0-9]", "") + " 2"), metrics.toString());
+
+        LogStore logs = new LogStore(1024);
+        assertEquals(log, logs.getLog(buildIn(two, 2, "master", Integrator.STATUS_SUCCESS), LogStore.INSTALL_LOG));
+        assertEquals("Tests run: 3", logs.getLog(buildIn(two, 2, "master", Integrator.STATUS_SUCCESS), LogStore.TEST_LOG));
+        // a build that reuses the results of another lists its stored log
+        Path three = root.resolve("ccccccc");
+        assertTrue(store.link(two.toFile(), LogStore.TEST_LOG, three.toFile(), LogStore.TEST_LOG));
+        assertEquals("Tests run: 3", logs.getLog(buildIn(three, 3, "master", Integrator.STATUS_SUCCESS), LogStore.TEST_LOG));
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        assertTrue(store.transferJar(two.toFile(), "bbbbbbb.jar", Channels.newChannel(sent)));
+        assertEquals(store.jarSize(two.toFile(), "bbbbbbb.jar"), sent.size());
+        File jar = root.resolve("sent.jar").toFile();
+        try (OutputStream out = Files.newOutputStream(jar.toPath())) {
+            sent.writeTo(out);
+        }
+        try (JarFile read = new JarFile(jar)) {
+            assertTrue(read.getEntry("pkg/").isDirectory());
+            assertEquals("same".repeat(100), new String(read.getInputStream(read.getEntry("pkg/A.class")).readAllBytes()));
+            assertEquals("second", new String(read.getInputStream(read.getEntry("pkg/B.class")).readAllBytes()));
+            assertEquals(3, read.size());
+        }
+        assertFalse(store.transferJar(two.toFile(), "missing.jar", Channels.newChannel(sent)));
+    }
+
+    /**
+     * Tests that a jar is sent with the stored entries it was deduplicated against, also when they were compressed
+     * differently than they would be now, and that an entry shorter than its manifest says fails the download
+     */
+    @Test
+    public void sendsTheStoredEntries() throws Exception {
+        Path root = Files.createTempDirectory("builds");
+        Path one = Files.createDirectories(root.resolve("aaaaaaa"));
+        Path two = Files.createDirectories(root.resolve("bbbbbbb"));
+        String content = "same".repeat(100);
+        writeJar(one.resolve("aaaaaaa.jar"), "pkg/A.class", content);
+        writeJar(two.resolve("bbbbbbb.jar"), "pkg/A.class", content);
+        ArtifactStore store = ArtifactStore.of(one.toFile());
+        store.store(one.toFile());
+
+        // the stored entry as another zlib might have written it, here without compression
+        Path entry;
+        try (Stream<Path> paths = Files.walk(root.resolve(ArtifactStore.STORE_DIRECTORY).resolve("entries"))) {
+            entry = paths.filter(Files::isRegularFile).findFirst().orElseThrow();
+        }
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(stored, new Deflater(Deflater.NO_COMPRESSION, true))) {
+            out.write(content.getBytes());
+        }
+        Files.write(entry, stored.toByteArray());
+        store.store(two.toFile());
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        assertTrue(store.transferJar(two.toFile(), "bbbbbbb.jar", Channels.newChannel(sent)));
+        assertEquals(store.jarSize(two.toFile(), "bbbbbbb.jar"), sent.size());
+        File jar = root.resolve("sent.jar").toFile();
+        Files.write(jar.toPath(), sent.toByteArray());
+        try (JarFile read = new JarFile(jar)) {
+            assertEquals(content, new String(read.getInputStream(read.getEntry("pkg/A.class")).readAllBytes()));
+        }
+
+        Files.write(entry, new byte[3]);
+        assertThrows(IOException.class, () -> store.transferJar(two.toFile(), "bbbbbbb.jar", Channels.newChannel(new ByteArrayOutputStream())));
+    }
+
+    /**
+     * Tests that the directories of old builds are emptied, except for the newest passing build of a branch,
+     * and that the stored files only they referred to are deleted
+     */
+    @Test
+    public void collectsExpiredBuilds() throws Exception {
+        Path root = Files.createTempDirectory("builds");
+        Path passed = Files.createDirectories(root.resolve("aaaaaaa"));
+        Path failed = Files.createDirectories(root.resolve("bbbbbbb"));
+        Path newest = Files.createDirectories(root.resolve("ccccccc"));
+        Files.writeString(passed.resolve(LogStore.TEST_LOG), "passed");
+        Files.writeString(failed.resolve(LogStore.TEST_LOG), "failed");
+        Files.writeString(newest.resolve(LogStore.TEST_LOG), "newest");
+        ArtifactStore store = new ArtifactStore(root.toFile());
+        for (Path dir : List.of(passed, failed, newest)) {
+            store.store(dir.toFile());
+        }
+        List<Build> builds = List.of(buildIn(passed, 1, "feature", Integrator.STATUS_SUCCESS),
+                buildIn(failed, 2, "master", Integrator.STATUS_FAILURE),
+                buildIn(newest, 3, "master", Integrator.STATUS_FAILURE));
+
+        System.setProperty(ArtifactStore.KEEP_BUILDS_KEY, "1");
+        try {
+            // young builds may still be being stored
+            store.collectGarbage(builds);
+            assertTrue(Files.exists(failed.resolve(ArtifactStore.MANIFEST)));
+
+            age(root);
+            store.collectGarbage(builds);
+        } finally {
+            System.clearProperty(ArtifactStore.KEEP_BUILDS_KEY);
+        }
+        assertTrue(Files.exists(passed.resolve(ArtifactStore.MANIFEST)));
+        assertFalse(Files.exists(failed));
+        assertTrue(Files.exists(newest.resolve(ArtifactStore.MANIFEST)));
+        assertEquals(2, files(root.resolve(ArtifactStore.STORE_DIRECTORY)));
+        assertEquals("passed", new LogStore(1024).getLog(builds.get(0), LogStore.TEST_LOG));
+    }
+}
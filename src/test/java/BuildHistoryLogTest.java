@@ -0,0 +1,97 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BuildHistoryLogTest {
+
+    /**
+     * Tests that appended records are replayed in order and that a torn last record is dropped
+     */
+    @Test
+    public void replayDropsTornRecord() throws Exception {
+        Path dir = Files.createTempDirectory("wal");
+        String path = dir.resolve("db.wal").toString();
+        BuildHistoryLog log = new BuildHistoryLog(path, 0);
+        log.sync(log.append("first"));
+        log.sync(log.append("second"));
+        log.close();
+
+        // simulate a crash in the middle of writing a third record
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(file.length());
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write("thi".getBytes());
+        }
+
+        BuildHistoryLog reopened = new BuildHistoryLog(path, 0);
+        assertEquals(List.of("first", "second"), reopened.replay());
+        assertEquals(2, reopened.getRecordCount());
+        reopened.sync(reopened.append("third"));
+        assertEquals(List.of("first", "second", "third"), reopened.replay());
+    }
+
+    /**
+     * Tests that threads syncing at the same time share flushes
+     */
+    @Test
+    public void concurrentSyncsAreGrouped() throws Exception {
+        Path dir = Files.createTempDirectory("wal");
+        BuildHistoryLog log = new BuildHistoryLog(dir.resolve("db.wal").toString(), 5);
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    log.sync(log.append("record " + n));
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(16, log.getAppendCount());
+        assertTrue(log.getSyncCount() < 16);
+        assertEquals(16, log.replay().size());
+    }
+
+    /**
+     * Tests that builds recorded through the jsonHandler survive a restart, and that compaction
+     * moves them into the database file and empties the log
+     */
+    @Test
+    public void recordedBuildsAreReplayedAndCompacted() throws Exception {
+        Path dir = Files.createTempDirectory("wal");
+        String dbPath = dir.resolve("db.json").toString();
+        System.setProperty(jsonHandler.COMPACT_RECORDS_KEY, "3");
+        try {
+            jsonHandler handler = new jsonHandler(dbPath);
+            BuildHistory db = new BuildHistory();
+            handler.saveBuildHistory(db);
+            for (int id = 1; id <= 2; id++) {
+                Build b = new Build(id,"45a1d97","2021-02-05T15:00:11Z","master",new installResult(true,"i"),new buildResult(true,"b"), new testResult(true, "t"));
+                db.addBuildToDB(b);
+                handler.recordBuild(db, b);
+            }
+            BuildHistory restarted = new jsonHandler(dbPath).readBuildHistory();
+            assertEquals(2, restarted.getSnapshot().size());
+            assertEquals(db.findBuild(2), restarted.findBuild(2));
+
+            Build b3 = new Build(3,"117f7fb","2021-02-05T15:00:11Z","master",new installResult(true,"i"),new buildResult(true,"b"), new testResult(true, "t"));
+            db.addBuildToDB(b3);
+            handler.recordBuild(db, b3);
+            assertEquals(0, Files.size(dir.resolve("db.wal")));
+            assertEquals(3, new jsonHandler(dbPath).readBuildHistory().getSnapshot().size());
+        } finally {
+            System.clearProperty(jsonHandler.COMPACT_RECORDS_KEY);
+        }
+    }
+}
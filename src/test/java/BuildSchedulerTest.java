@@ -0,0 +1,190 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BuildSchedulerTest {
+
+    /**
+     * Fills the single worker and the queue and checks that the next job is rejected,
+     * and that the queued jobs are run once the worker is free again.
+     */
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        Path dir = Files.createTempDirectory("jobqueue");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        BuildScheduler scheduler = new BuildScheduler(1, 2, dir.toString(), payload -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+
+        assertTrue(scheduler.submit("1"));
+        // wait until the worker has taken the first job from the queue
+        while (scheduler.getRunningCount() < 1) {
+            Thread.sleep(5);
+        }
+        assertTrue(scheduler.submit("2"));
+        assertTrue(scheduler.submit("3"));
+        assertFalse(scheduler.submit("4"));
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(1, scheduler.getRejectedCount());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown(1000);
+        assertEquals(3, scheduler.getCompletedCount());
+        assertEquals(0, dir.toFile().listFiles().length);
+    }
+
+    /**
+     * Checks that a job that can not be persisted is rejected, so that GitHub delivers it again,
+     * instead of being queued where a restart would lose it
+     */
+    @Test
+    public void rejectsJobThatCanNotBePersisted() throws Exception {
+        Path dir = Files.createTempDirectory("jobqueue");
+        List<String> ran = new CopyOnWriteArrayList<>();
+        BuildScheduler scheduler = new BuildScheduler(1, 2, dir.toString(), ran::add);
+        Files.delete(dir);
+        Files.writeString(dir, "not a directory");
+
+        assertFalse(scheduler.submit("1"));
+        assertEquals(1, scheduler.getRejectedCount());
+        scheduler.shutdown(1000);
+        assertTrue(ran.isEmpty());
+    }
+
+    /**
+     * Checks that jobs left in the queue directory are run in submission order by a new scheduler.
+     */
+    @Test
+    public void recoversPersistedJobs() throws Exception {
+        Path dir = Files.createTempDirectory("jobqueue");
+        Files.writeString(dir.resolve("0000000000001-000001.json"), "first");
+        Files.writeString(dir.resolve("0000000000002-000002.json"), "second");
+
+        List<String> payloads = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        BuildScheduler scheduler = new BuildScheduler(1, 4, dir.toString(), payload -> {
+            payloads.add(payload);
+            done.countDown();
+        });
+        assertEquals(2, scheduler.recover());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown(1000);
+
+        assertEquals(List.of("first", "second"), payloads);
+        File[] left = dir.toFile().listFiles();
+        assertEquals(0, left.length);
+    }
+
+    /**
+     * Checks that a new job replaces the queued job with the same key, which is reported as superseded,
+     * and that the running job with the same key is cancelled when asked to.
+     */
+    @Test
+    public void coalescesJobsWithTheSameKey() throws Exception {
+        Path dir = Files.createTempDirectory("jobqueue");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch listening = new CountDownLatch(1);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        List<String> superseded = new CopyOnWriteArrayList<>();
+        List<String> cancelled = new CopyOnWriteArrayList<>();
+        BuildScheduler scheduler = new BuildScheduler(1, 4, dir.toString(), new BuildScheduler.JobRunner() {
+            @Override
+            public void run(String payload) {
+            }
+
+            @Override
+            public void run(String payload, Cancellation cancellation) {
+                cancellation.onCancel(() -> cancelled.add(payload));
+                listening.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran.add(payload);
+            }
+
+            @Override
+            public void superseded(String payload) {
+                superseded.add(payload);
+            }
+        }, payload -> payload.substring(0, 1), true);
+
+        assertTrue(scheduler.submit("a1"));
+        // a listener registered after the cancellation would run on the worker, after the assertions below
+        assertTrue(listening.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.submit("a2"));
+        assertTrue(scheduler.submit("b1"));
+        assertTrue(scheduler.submit("a3"));
+        assertEquals(List.of("a2"), superseded);
+        assertEquals(List.of("a1"), cancelled);
+        assertEquals(2, scheduler.getQueueDepth());
+
+        release.countDown();
+        while (ran.size() < 3) {
+            Thread.sleep(5);
+        }
+        scheduler.shutdown(5000);
+        assertEquals(List.of("a1", "b1", "a3"), ran);
+        assertEquals(1, scheduler.getSupersededCount());
+        assertEquals(1, scheduler.getCancelledCount());
+        assertEquals(0, dir.toFile().listFiles().length);
+    }
+
+    /**
+     * Checks that shutting down waits for the running build, leaves the queued jobs on disk and keeps the job
+     * of a build that had to be interrupted
+     */
+    @Test
+    public void keepsUnfinishedJobsOnShutdown() throws Exception {
+        Path dir = Files.createTempDirectory("jobqueue");
+        CountDownLatch running = new CountDownLatch(1);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        BuildScheduler scheduler = new BuildScheduler(1, 4, dir.toString(), payload -> {
+            running.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            ran.add(payload);
+        });
+        assertTrue(scheduler.submit("fast"));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.submit("queued"));
+        scheduler.shutdown(5000);
+        assertEquals(List.of("fast"), ran);
+        assertEquals(1, dir.toFile().listFiles().length);
+
+        Path other = Files.createTempDirectory("jobqueue");
+        CountDownLatch slow = new CountDownLatch(1);
+        scheduler = new BuildScheduler(1, 4, other.toString(), payload -> {
+            slow.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(scheduler.submit("slow"));
+        assertTrue(slow.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown(100);
+        assertEquals(1, other.toFile().listFiles().length);
+    }
+}
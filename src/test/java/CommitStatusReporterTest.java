@@ -0,0 +1,120 @@
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommitStatusReporterTest {
+
+    private Server server;
+    // "path state" of every status request the stub received
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    /**
+     * A stand-in for the GitHub API that answers status requests with the given codes, then with 201.
+     */
+    private CommitStatusReporter stub(CountDownLatch release, int... codes) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                String body = baseRequest.getReader().lines().collect(Collectors.joining());
+                String state = body.replaceAll(".*\"state\":\"([a-z]+)\".*", "$1");
+                received.add(target + " " + state);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                int index = requests.getAndIncrement();
+                int code = index < codes.length ? codes[index] : 201;
+                response.setStatus(code);
+                response.setContentType("application/json");
+                if (code == 403) {
+                    response.setHeader("X-RateLimit-Remaining", "0");
+                    response.setHeader("Retry-After", "1");
+                }
+                response.getWriter().write(code == 201 ? "{\"state\":\"" + state + "\"}" : "{\"message\":\"error " + code + "\"}");
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        return new CommitStatusReporter("http://localhost:" + server.getConnectors()[0].getLocalPort(), "token", 3, 50);
+    }
+
+    private static PushEvent push(String sha) {
+        return PushEvent.parse("{\"ref\": \"refs/heads/master\", \"after\": \"" + sha + "\","
+                + " \"repository\": {\"name\": \"ci\", \"full_name\": \"group/ci\", \"owner\": {\"name\": \"group\"}}}");
+    }
+
+    @AfterEach
+    void stopStub() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * Tests that a status that is still queued is replaced by a newer status of the same commit
+     */
+    @Test
+    public void coalescesQueuedStatuses() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CommitStatusReporter reporter = stub(release);
+        reporter.report(push("aaaaaaaaaa"), "pending", "Build started");
+        // wait until the first status is being sent, the next ones have to queue
+        while (received.isEmpty()) {
+            Thread.sleep(5);
+        }
+        reporter.report(push("bbbbbbbbbb"), "pending", "Build started");
+        reporter.report(push("bbbbbbbbbb"), "success", "All tests passed");
+        release.countDown();
+        assertTrue(reporter.flush(5000));
+
+        assertEquals(List.of("/api/v3/repos/group/ci/statuses/aaaaaaaaaa pending",
+                "/api/v3/repos/group/ci/statuses/bbbbbbbbbb success"), received);
+        StringBuilder metrics = new StringBuilder();
+        reporter.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("commit_status_sent 2"));
+        assertTrue(metrics.toString().contains("commit_status_coalesced 1"));
+    }
+
+    /**
+     * Tests that server errors are retried, that rejected statuses are not, and that a used up
+     * rate limit pauses sending until GitHub allows it again
+     */
+    @Test
+    public void retriesFailedStatuses() throws Exception {
+        CommitStatusReporter reporter = stub(new CountDownLatch(0), 502, 500, 403, 422);
+        long start = System.currentTimeMillis();
+        reporter.report(push("aaaaaaaaaa"), "success", "All tests passed");
+        assertTrue(reporter.flush(5000));
+        // two retries with backoff, then the rate limit pauses sending for the second GitHub asks for
+        assertTrue(System.currentTimeMillis() - start >= 900);
+        assertEquals(4, received.size());
+
+        reporter.report(push("bbbbbbbbbb"), "failure", "Build failed");
+        assertTrue(reporter.flush(5000));
+        assertEquals(5, received.size());
+
+        reporter.report(push("cccccccccc"), "pending", "Build started");
+        assertTrue(reporter.flush(5000));
+        assertEquals(6, received.size());
+
+        StringBuilder metrics = new StringBuilder();
+        reporter.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("commit_status_sent 2"));
+        assertTrue(metrics.toString().contains("commit_status_retried 2"));
+        assertTrue(metrics.toString().contains("commit_status_rate_limited 1"));
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompileCacheTest {
+
+    /**
+     * Creates a compiled project with A, B using A, and C, with made up classes
+     */
+    private static Path project(String a) throws Exception {
+        Path project = Files.createTempDirectory("project");
+        Files.writeString(project.resolve("pom.xml"), "<project>1</project>");
+        Path sources = Files.createDirectories(project.resolve("src/main/java/se"));
+        Files.writeString(sources.resolve("A.java"), a);
+        Files.writeString(sources.resolve("B.java"), "package se; class B { A a; }");
+        Files.writeString(sources.resolve("C.java"), "package se; class C { }");
+        Path classes = Files.createDirectories(project.resolve("target/classes/se"));
+        for (String c : List.of("A", "A$1", "B", "C")) {
+            Files.writeString(classes.resolve(c + ".class"), "compiled " + c);
+        }
+        return project;
+    }
+
+    /**
+     * Tests that only the classes of a changed source and of the sources that use it are compiled again
+     */
+    @Test
+    public void restoresClassesOfUnchangedSources() throws Exception {
+        CompileCache cache = new CompileCache(Files.createTempDirectory("compilecache").toFile(), 4);
+        cache.save("main", "aaaaaaa", project("package se; class A { }").toFile());
+
+        Path changed = project("package se; class A { int x; }");
+        CompileCache.deleteOutputs(changed.toFile());
+        List<String> log = new ArrayList<>();
+        incrementalCompile compile = cache.restore("main", changed.toFile(), log::add);
+        assertTrue(compile.isRestored(), String.join("\n", log));
+        assertEquals("aaaaaaa", compile.getBaseCommit());
+        assertEquals(3, compile.getSources());
+        assertEquals(2, compile.getRecompiled());
+        Path classes = changed.resolve("target/classes/se");
+        assertEquals("compiled C", Files.readString(classes.resolve("C.class")));
+        assertFalse(Files.exists(classes.resolve("A.class")));
+        assertFalse(Files.exists(classes.resolve("A$1.class")));
+        assertFalse(Files.exists(classes.resolve("B.class")));
+
+        // another branch has no classes, a changed pom does not use the classes
+        assertFalse(cache.restore("feature", changed.toFile(), line -> {}).isRestored());
+        Files.writeString(changed.resolve("pom.xml"), "<project>2</project>");
+        assertFalse(cache.restore("main", changed.toFile(), line -> {}).isRestored());
+    }
+
+    /**
+     * Tests that classes that do not match their hashes are thrown away and never restored
+     */
+    @Test
+    public void rejectsDamagedClasses() throws Exception {
+        File root = Files.createTempDirectory("compilecache").toFile();
+        CompileCache cache = new CompileCache(root, 4);
+        cache.save("main", "aaaaaaa", project("package se; class A { }").toFile());
+        File[] entries = root.listFiles();
+        assertEquals(1, entries.length);
+        Files.writeString(entries[0].toPath().resolve("target/classes/se/C.class"), "damaged");
+
+        Path project = project("package se; class A { }");
+        CompileCache.deleteOutputs(project.toFile());
+        incrementalCompile compile = cache.restore("main", project.toFile(), line -> {});
+        assertFalse(compile.isRestored());
+        assertEquals(3, compile.getRecompiled());
+        assertFalse(Files.exists(project.resolve("target/classes")));
+        assertEquals(0, root.listFiles().length);
+
+        StringBuilder metrics = new StringBuilder();
+        cache.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("compile_cache_rejected 1"));
+    }
+}
@@ -0,0 +1,300 @@
+import org.eclipse.jetty.server.Server;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContinuousIntegrationServerTest {
+
+    private static Server server;
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = new Server(0);
+        server.setHandler(new ContinuousIntegrationServer());
+        server.start();
+        port = server.getConnectors()[0].getLocalPort();
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        server.stop();
+    }
+
+    static HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    }
+
+    static String read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Tests that the logs of a build are streamed from its build directory, html escaped and with line breaks
+     */
+    @Test
+    public void buildPageStreamsLogs() throws Exception {
+        Path dir = Files.createTempDirectory("build");
+        Files.writeString(dir.resolve(LogStore.TEST_LOG), "Tests run: 1\n<error> & more\n".repeat(2000));
+        Build b = new Build(ContinuousIntegrationServer.db.allocateBuildID(), "45a1d97", "2021-02-05T15:00:11Z", "master",
+                Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, true);
+        b.setLogDirectory(dir.toString() + "/");
+        ContinuousIntegrationServer.db.addBuildToDB(b);
+
+        HttpURLConnection connection = open("/build/" + b.getBuildID());
+        assertEquals(200, connection.getResponseCode());
+        String page = read(connection);
+        assertTrue(page.startsWith("<html><head><title>Build " + b.getBuildID() + "</title>"));
+        assertTrue(page.contains("Tests run: 1<br>&lt;error&gt; &amp; more<br>Tests run: 1"));
+        assertTrue(page.endsWith("</html>"));
+    }
+
+    /**
+     * Tests that the build page lists the failed and the slowest tests of a build
+     */
+    @Test
+    public void buildPageShowsTestCases() throws Exception {
+        Build b = new Build(ContinuousIntegrationServer.db.allocateBuildID(), "45a1d97", "2021-02-05T15:00:11Z", "master",
+                Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, Integrator.STATUS_FAILURE, true);
+        b.getTestResult().setTestCases(List.of(
+                new testCaseResult("PipelineTest", "fast", 3, testCaseResult.PASSED, null),
+                new testCaseResult("PipelineTest", "slow", 2500, testCaseResult.PASSED, null),
+                new testCaseResult("LogStoreTest", "broken", 40, testCaseResult.FAILED, "expected: <1> but was: <2>")));
+        ContinuousIntegrationServer.db.addBuildToDB(b);
+
+        String page = read(open("/build/" + b.getBuildID()));
+        assertTrue(page.contains("3 tests, 1 failed, 0 skipped"));
+        assertTrue(page.contains("<td>LogStoreTest.broken</td><td>FAILED</td><td>expected: &lt;1&gt; but was: &lt;2&gt;</td>"));
+        assertTrue(page.indexOf("PipelineTest.slow") < page.indexOf("LogStoreTest.broken</td><td>40 ms"));
+    }
+
+    /**
+     * Tests that the output of a running build is streamed as Server-Sent Events until the build finishes
+     */
+    @Test
+    public void liveBuildIsStreamed() throws Exception {
+        int id = ContinuousIntegrationServer.db.allocateBuildID();
+        LiveLog log = LiveLog.start(id);
+        log.append("[INFO] Compiling 6 source files");
+        Thread build = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            log.append("Compile status: SUCCESS");
+            LiveLog.finish(id);
+        });
+        build.start();
+
+        HttpURLConnection connection = open("/build/" + id + "/live");
+        connection.setRequestProperty("Accept", "text/event-stream");
+        assertEquals(200, connection.getResponseCode());
+        String events = read(connection);
+        build.join();
+        assertEquals("data: [INFO] Compiling 6 source files\n\n" +
+                "data: Compile status: SUCCESS\n\n" +
+                "event: end\ndata: /build/" + id + "\n\n", events);
+    }
+
+    /**
+     * Tests that the history is paginated newest first and can be filtered by branch and test status
+     */
+    @Test
+    public void historyIsPaginatedAndFiltered() throws Exception {
+        String branch = "pagination-" + System.nanoTime();
+        int[] ids = new int[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ContinuousIntegrationServer.db.allocateBuildID();
+            ContinuousIntegrationServer.db.addBuildToDB(new Build(ids[i], "45a1d97", "2021-02-05T15:00:11Z", branch,
+                    Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, i == 1 ? Integrator.STATUS_FAILURE : Integrator.STATUS_SUCCESS, true));
+        }
+
+        String first = read(open("/allBuilds?branch=" + branch + "&size=2"));
+        assertTrue(first.contains("<a href=/build/" + ids[2] + ">"));
+        assertTrue(first.contains("<a href=/build/" + ids[1] + ">"));
+        assertFalse(first.contains("<a href=/build/" + ids[0] + ">"));
+        assertTrue(first.contains("page=2&size=2&branch=" + branch));
+
+        String second = read(open("/allBuilds?branch=" + branch + "&size=2&page=2"));
+        assertTrue(second.contains("<a href=/build/" + ids[0] + ">"));
+        assertFalse(second.contains("Older"));
+
+        String failed = read(open("/allBuilds?branch=" + branch + "&status=failure"));
+        assertTrue(failed.contains("<a href=/build/" + ids[1] + ">"));
+        assertFalse(failed.contains("<a href=/build/" + ids[0] + ">"));
+    }
+
+    /**
+     * Tests that a poller sending the ETag of the page gets 304 until a build is added
+     */
+    @Test
+    public void historyIsConditional() throws Exception {
+        HttpURLConnection connection = open("/allBuilds");
+        assertEquals(200, connection.getResponseCode());
+        String etag = connection.getHeaderField("ETag");
+        assertNotNull(etag);
+        assertNotNull(connection.getHeaderField("Last-Modified"));
+
+        HttpURLConnection poll = open("/allBuilds");
+        poll.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, poll.getResponseCode());
+
+        int id = ContinuousIntegrationServer.db.allocateBuildID();
+        ContinuousIntegrationServer.db.addBuildToDB(new Build(id, "45a1d97", "2021-02-05T15:00:11Z", "master",
+                Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, true));
+        HttpURLConnection after = open("/allBuilds");
+        after.setRequestProperty("If-None-Match", etag);
+        assertEquals(200, after.getResponseCode());
+        assertNotEquals(etag, after.getHeaderField("ETag"));
+        assertTrue(read(after).contains("<a href=/build/" + id + ">"));
+    }
+
+    /**
+     * Tests that unknown and malformed build ids give 404
+     */
+    @Test
+    public void unknownBuildIs404() throws Exception {
+        assertEquals(404, open("/build/999999").getResponseCode());
+        assertEquals(404, open("/build/abc").getResponseCode());
+        assertEquals(404, open("/build/999999/live").getResponseCode());
+    }
+
+    /**
+     * Tests that the metrics page lists the queue depth
+     */
+    @Test
+    public void metricsArePlainText() throws Exception {
+        HttpURLConnection connection = open("/metrics");
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(read(connection).contains("queue_depth 0"));
+    }
+
+    /**
+     * Posts a push payload to the webhook.
+     * @return the connection, with the response read
+     */
+    static HttpURLConnection deliver(String payload, String deliveryId) throws IOException {
+        HttpURLConnection connection = open("/");
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("X-Github-Event", "push");
+        if (deliveryId != null) {
+            connection.setRequestProperty("X-GitHub-Delivery", deliveryId);
+        }
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        connection.getResponseCode();
+        read(connection);
+        return connection;
+    }
+
+    /**
+     * Load test of the webhook: pushes are delivered from several threads at once and every delivery
+     * is acknowledged once its payload is queued. Prints the acknowledgement latency percentiles.
+     */
+    @Test
+    public void webhookAcknowledgesConcurrentDeliveries() throws Exception {
+        String payload = Files.readString(Path.of("src/test/java/testdatacommit.json"));
+        String sha = "117f7fbc91789cbb6a175eb9c70d58b5c7f4a9e4";
+        int threads = 8;
+        int deliveries = 50;
+        Path dir = Files.createTempDirectory("jobqueue");
+        List<String> received = new CopyOnWriteArrayList<>();
+        BuildScheduler original = ContinuousIntegrationServer.scheduler;
+        DeliveryIndex originalIndex = ContinuousIntegrationServer.deliveries;
+        ContinuousIntegrationServer.scheduler = new BuildScheduler(2, threads * deliveries, dir.toString(), received::add);
+        ContinuousIntegrationServer.deliveries = new DeliveryIndex(dir.resolve("deliveries.txt").toString(), 60000, 10000);
+        LatencyStats ack = new LatencyStats("webhook_ack_client");
+        try {
+            ExecutorService clients = Executors.newFixedThreadPool(threads);
+            List<Future<Integer>> failures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                failures.add(clients.submit(() -> {
+                    int failed = 0;
+                    for (int i = 0; i < deliveries; i++) {
+                        // every delivery pushes another commit
+                        String commit = String.format("%08x%04x", thread, i) + sha.substring(12);
+                        long start = System.nanoTime();
+                        if (deliver(payload.replace(sha, commit), null).getResponseCode() != 200) {
+                            failed++;
+                        }
+                        ack.recordSince(start);
+                    }
+                    return failed;
+                }));
+            }
+            for (Future<Integer> failed : failures) {
+                assertEquals(0, failed.get(60, TimeUnit.SECONDS));
+            }
+            clients.shutdown();
+            for (int i = 0; i < 1000 && received.size() < threads * deliveries; i++) {
+                Thread.sleep(10);
+            }
+            ContinuousIntegrationServer.scheduler.shutdown(5000);
+        } finally {
+            ContinuousIntegrationServer.scheduler = original;
+            ContinuousIntegrationServer.deliveries = originalIndex;
+        }
+        StringBuilder sb = new StringBuilder();
+        ack.appendMetrics(sb);
+
+        assertEquals(threads * deliveries, ack.getCount());
+        assertTrue(sb.toString().contains("webhook_ack_client_count " + threads * deliveries + "\n"), sb.toString());
+        assertEquals(threads * deliveries, received.size());
+        assertEquals(threads * deliveries, received.stream().map(job -> PushEvent.parse(job).getAfter()).distinct().count());
+        HttpURLConnection metrics = open("/metrics");
+        assertTrue(read(metrics).contains("webhook_ack_count"));
+    }
+
+    /**
+     * Tests that a retried delivery and a second delivery of the same push are acknowledged but not queued
+     */
+    @Test
+    public void duplicateDeliveriesAreNotQueued() throws Exception {
+        String payload = Files.readString(Path.of("src/test/java/testdatacommit.json"));
+        Path dir = Files.createTempDirectory("jobqueue");
+        List<String> received = new CopyOnWriteArrayList<>();
+        BuildScheduler original = ContinuousIntegrationServer.scheduler;
+        DeliveryIndex originalIndex = ContinuousIntegrationServer.deliveries;
+        ContinuousIntegrationServer.scheduler = new BuildScheduler(1, 4, dir.toString(), received::add);
+        ContinuousIntegrationServer.deliveries = new DeliveryIndex(dir.resolve("deliveries.txt").toString(), 60000, 100);
+        try {
+            assertEquals(200, deliver(payload, "delivery-1").getResponseCode());
+            assertEquals(200, deliver(payload, "delivery-1").getResponseCode());
+            assertEquals(200, deliver(payload, "delivery-2").getResponseCode());
+            assertEquals(1, ContinuousIntegrationServer.deliveries.getDuplicateDeliveries());
+            assertEquals(1, ContinuousIntegrationServer.deliveries.getDuplicateCommits());
+            assertTrue(read(open("/metrics")).contains("dedup_duplicate_deliveries 1"));
+            for (int i = 0; i < 500 && received.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            ContinuousIntegrationServer.scheduler.shutdown(5000);
+        } finally {
+            ContinuousIntegrationServer.scheduler = original;
+            ContinuousIntegrationServer.deliveries = originalIndex;
+        }
+        assertEquals(1, received.size());
+    }
+}
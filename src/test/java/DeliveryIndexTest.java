@@ -0,0 +1,69 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeliveryIndexTest {
+
+    /**
+     * Tests that deliveries and commits are only claimed once, and that released claims can be claimed again
+     */
+    @Test
+    public void claimsOnce() throws Exception {
+        Path dir = Files.createTempDirectory("deliveries");
+        DeliveryIndex index = new DeliveryIndex(dir.resolve("deliveries.txt").toString(), 60000, 100);
+
+        assertTrue(index.claim("d1", "repo:aaa:refs/heads/master"));
+        assertFalse(index.claim("d1", "repo:bbb:refs/heads/master"));
+        assertFalse(index.claim("d2", "repo:aaa:refs/heads/master"));
+        // the same commit on another branch is built
+        assertTrue(index.claim("d3", "repo:aaa:refs/heads/feature"));
+        assertEquals(1, index.getDuplicateDeliveries());
+        assertEquals(1, index.getDuplicateCommits());
+
+        index.release("d3", "repo:aaa:refs/heads/feature");
+        assertTrue(index.claim("d3", "repo:aaa:refs/heads/feature"));
+        assertTrue(index.claim(null, null));
+    }
+
+    /**
+     * Tests that the index is restored after a restart, also after the log has been compacted
+     */
+    @Test
+    public void survivesRestarts() throws Exception {
+        Path dir = Files.createTempDirectory("deliveries");
+        String path = dir.resolve("deliveries.txt").toString();
+        DeliveryIndex index = new DeliveryIndex(path, 60000, 3);
+        assertTrue(index.claim("d1", null));
+        assertTrue(index.claim("d2", null));
+        index.release("d2", null);
+        assertTrue(index.claim("d3", "c3"));
+        // the sixth record compacts the log, d1 is dropped as only three entries are kept
+        assertTrue(index.claim("d4", null));
+        assertTrue(Files.exists(dir.resolve("deliveries.txt")));
+        assertTrue(index.claim("d5", null));
+
+        DeliveryIndex restarted = new DeliveryIndex(path, 60000, 3);
+        assertEquals(3, restarted.size());
+        assertFalse(restarted.claim(null, "c3"));
+        assertFalse(restarted.claim("d4", null));
+        assertFalse(restarted.claim("d5", null));
+        assertTrue(restarted.claim("d1", null));
+        assertTrue(restarted.claim("d2", null));
+    }
+
+    /**
+     * Tests that entries are forgotten once they expire
+     */
+    @Test
+    public void expires() throws Exception {
+        Path dir = Files.createTempDirectory("deliveries");
+        DeliveryIndex index = new DeliveryIndex(dir.resolve("deliveries.txt").toString(), 50, 100);
+        assertTrue(index.claim("d1", "c1"));
+        Thread.sleep(100);
+        assertTrue(index.claim("d1", "c1"));
+        assertEquals(2, index.size());
+    }
+}
@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DependencyCacheTest {
+
+    /**
+     * Tests that the fingerprint only changes when a pom file changes
+     */
+    @Test
+    public void fingerprintFollowsPomFiles() throws Exception {
+        Path project = Files.createTempDirectory("project");
+        Files.writeString(project.resolve("pom.xml"), "<project>1</project>");
+        Files.createDirectories(project.resolve("src"));
+        Files.writeString(project.resolve("src").resolve("A.java"), "class A {}");
+        String first = DependencyCache.fingerprint(project.toFile());
+
+        Files.writeString(project.resolve("src").resolve("A.java"), "class A { int a; }");
+        assertEquals(first, DependencyCache.fingerprint(project.toFile()));
+
+        Files.writeString(project.resolve("pom.xml"), "<project>2</project>");
+        assertNotEquals(first, DependencyCache.fingerprint(project.toFile()));
+    }
+
+    /**
+     * Tests that builds of the same fingerprint that start together resolve the dependencies once,
+     * and that a new fingerprint is warmed up from the last one
+     */
+    @Test
+    public void resolvesOncePerFingerprint() throws Exception {
+        DependencyCache cache = new DependencyCache(Files.createTempDirectory("m2cache").toFile(), 8);
+        AtomicInteger resolves = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        DependencyCache.Resolver resolver = into -> {
+            resolves.incrementAndGet();
+            Files.createDirectories(into.toPath().resolve("junit"));
+            Files.writeString(into.toPath().resolve("junit").resolve("junit.jar"), "jar");
+            return true;
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Future<?>[] builds = new Future<?>[4];
+        for (int i = 0; i < builds.length; i++) {
+            builds[i] = pool.submit(() -> {
+                start.await();
+                return cache.prepare("aaaa", resolver, line -> {});
+            });
+        }
+        start.countDown();
+        int hits = 0;
+        for (Future<?> build : builds) {
+            hits += (Boolean) build.get() ? 1 : 0;
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, resolves.get());
+        assertEquals(3, hits);
+
+        // the new local repository starts with the dependencies of the old one
+        assertFalse(cache.prepare("bbbb", into -> new File(into, "junit/junit.jar").exists(), line -> {}));
+        StringBuilder metrics = new StringBuilder();
+        cache.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("dependency_cache_hits 3"));
+        assertTrue(metrics.toString().contains("dependency_cache_misses 2"));
+    }
+
+    /**
+     * Tests that the least recently used local repository is deleted once it is no longer used
+     */
+    @Test
+    public void evictsUnusedRepositories() throws Exception {
+        DependencyCache cache = new DependencyCache(Files.createTempDirectory("m2cache").toFile(), 1);
+        DependencyCache.Resolver resolver = into -> into.mkdirs() || into.isDirectory();
+        cache.prepare("aaaa", resolver, line -> {});
+        Thread.sleep(20);
+        // aaaa is still used by its build
+        cache.prepare("bbbb", resolver, line -> {});
+        assertTrue(cache.getLocalRepository("aaaa").exists());
+
+        cache.release("aaaa");
+        cache.release("bbbb");
+        Thread.sleep(20);
+        cache.prepare("cccc", resolver, line -> {});
+        assertFalse(cache.getLocalRepository("aaaa").exists());
+        assertFalse(cache.getLocalRepository("bbbb").exists());
+        assertTrue(cache.getLocalRepository("cccc").exists());
+    }
+
+    /**
+     * Tests that a failed resolve is not cached
+     */
+    @Test
+    public void failedResolveIsRetried() throws Exception {
+        DependencyCache cache = new DependencyCache(Files.createTempDirectory("m2cache").toFile(), 8);
+        assertThrows(java.io.IOException.class, () -> cache.prepare("aaaa", into -> false, line -> {}));
+        assertFalse(cache.prepare("aaaa", into -> into.mkdirs(), line -> {}));
+    }
+}
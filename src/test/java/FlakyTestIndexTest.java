@@ -0,0 +1,45 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlakyTestIndexTest {
+
+    /**
+     * Tests that runs and flaky runs are counted per test across builds and survive a restart
+     */
+    @Test
+    public void countsFlakyRuns() throws Exception {
+        Path dir = Files.createTempDirectory("flaky");
+        String path = dir.resolve("FlakyTests.txt").toString();
+        FlakyTestIndex index = new FlakyTestIndex(path);
+
+        index.record(1, List.of(new testCaseResult("ATest", "one", 5, testCaseResult.FLAKY, "expected: <1> but was: <2>"),
+                new testCaseResult("ATest", "two", 5, testCaseResult.PASSED, null),
+                new testCaseResult("BTest", "one", 5, testCaseResult.SKIPPED, null)));
+        index.record(2, List.of(new testCaseResult("ATest", "one", 5, testCaseResult.PASSED, null),
+                new testCaseResult("ATest", "two", 5, testCaseResult.FLAKY, "timeout"),
+                new testCaseResult("ATest", "three", 5, testCaseResult.FLAKY, "timeout")));
+        index.record(3, List.of(new testCaseResult("ATest", "two", 5, testCaseResult.FAILED, "timeout")));
+
+        FlakyTestIndex.Entry one = index.get("ATest#one");
+        assertEquals(2, one.getRuns());
+        assertEquals(1, one.getFlakes());
+        assertEquals(1, one.getLastFlakyBuild());
+        assertNull(index.get("BTest#one"));
+
+        List<FlakyTestIndex.Entry> flakiest = new FlakyTestIndex(path).flakiest(10);
+        assertEquals(List.of("ATest#three", "ATest#one", "ATest#two"), flakiest.stream().map(FlakyTestIndex.Entry::getTest).collect(Collectors.toList()));
+        assertEquals(3, flakiest.get(2).getRuns());
+        assertEquals(2, flakiest.get(2).getLastFlakyBuild());
+        assertEquals(1, index.flakiest(1).size());
+
+        StringBuilder metrics = new StringBuilder();
+        index.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("flaky_tests 3"));
+    }
+}
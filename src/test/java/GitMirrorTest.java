@@ -0,0 +1,116 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GitMirrorTest {
+
+    /**
+     * Runs git with a test identity, also used by the other tests that need a repository
+     * @return the trimmed output, the command must succeed
+     */
+    static String git(Path dir, String... args) throws Exception {
+        List<String> command = new ArrayList<>(List.of("git", "-c", "user.name=test", "-c", "user.email=test@example.com"));
+        command.addAll(List.of(args));
+        StringBuilder out = new StringBuilder();
+        int exit = Pipeline.execute(command, dir.toFile(), Map.of(), 30000, null, line -> out.append(line).append('\n'));
+        assertEquals(0, exit, out.toString());
+        return out.toString().trim();
+    }
+
+    /**
+     * Commits new content of file.txt in a clone and pushes it to the master branch of its origin
+     * @return the hash of the commit
+     */
+    static String commit(Path work, String content) throws Exception {
+        Files.writeString(work.resolve("file.txt"), content);
+        git(work, "add", "file.txt");
+        git(work, "commit", "-q", "-m", content);
+        git(work, "push", "-q", "origin", "HEAD:refs/heads/master");
+        return git(work, "rev-parse", "HEAD");
+    }
+
+    /**
+     * Tests that exact commits are checked out into worktrees of the mirror, and that the mirror
+     * is only fetched when it does not have the commit yet
+     */
+    @Test
+    public void checksOutExactCommits() throws Exception {
+        Path dir = Files.createTempDirectory("mirror");
+        Path remote = dir.resolve("remote.git");
+        Path work = dir.resolve("work");
+        git(dir, "init", "-q", "--bare", remote.toString());
+        git(dir, "clone", "-q", remote.toString(), work.toString());
+        String first = commit(work, "first");
+        String second = commit(work, "second");
+
+        GitMirror mirror = new GitMirror(remote.toString(), dir.resolve("mirrors").resolve("remote.git").toFile());
+        File tree = dir.resolve("build1").toFile();
+        assertTrue(mirror.checkout(first, tree, line -> {}));
+        assertEquals("first", Files.readString(tree.toPath().resolve("file.txt")));
+
+        // the mirror has the second commit already, no fetch
+        File tree2 = dir.resolve("build2").toFile();
+        assertTrue(mirror.checkout(second.substring(0, 7), tree2, line -> {}));
+        assertEquals("second", Files.readString(tree2.toPath().resolve("file.txt")));
+        StringBuilder metrics = new StringBuilder();
+        mirror.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("git_mirror_fetches 1"));
+
+        // a new commit is fetched
+        String third = commit(work, "third");
+        File tree3 = dir.resolve("build3").toFile();
+        assertTrue(mirror.checkout(third, tree3, line -> {}));
+        assertEquals("third", Files.readString(tree3.toPath().resolve("file.txt")));
+        assertFalse(mirror.checkout("0000000000000000000000000000000000000000", dir.resolve("build4").toFile(), line -> {}));
+
+        // commits are compared by their files
+        assertEquals(List.of("file.txt"), mirror.changedFiles(first.substring(0, 7), third, line -> {}));
+        assertEquals(List.of(), mirror.changedFiles(third, third, line -> {}));
+        assertNull(mirror.changedFiles("0000000000000000000000000000000000000000", third, line -> {}));
+
+        // deleted worktrees are forgotten
+        Pipeline.deleteRecursively(tree);
+        mirror.prune();
+        assertFalse(git(dir.resolve("mirrors").resolve("remote.git"), "worktree", "list").contains("build1"));
+    }
+
+    /**
+     * Tests that a mirror that can not be fetched is kept with its worktrees, and that only a broken mirror
+     * is cloned again
+     */
+    @Test
+    public void keepsMirrorWhenFetchFails() throws Exception {
+        Path dir = Files.createTempDirectory("mirror");
+        Path remote = dir.resolve("remote.git");
+        Path work = dir.resolve("work");
+        git(dir, "init", "-q", "--bare", remote.toString());
+        git(dir, "clone", "-q", remote.toString(), work.toString());
+        String first = commit(work, "first");
+        Path mirrorDirectory = dir.resolve("mirrors").resolve("remote.git");
+        GitMirror mirror = new GitMirror(remote.toString(), mirrorDirectory.toFile());
+        File tree = dir.resolve("build1").toFile();
+        assertTrue(mirror.checkout(first, tree, line -> {}));
+
+        // the remote is gone for a moment
+        Path away = dir.resolve("away.git");
+        Files.move(remote, away);
+        assertFalse(mirror.update(line -> {}));
+        assertEquals(first, git(tree.toPath(), "rev-parse", "HEAD"));
+        assertNotNull(mirror.treeOf(first, line -> {}));
+
+        // a mirror that lost its objects is cloned again once the remote is back
+        Files.move(away, remote);
+        Pipeline.deleteRecursively(mirrorDirectory.resolve("objects").toFile());
+        Files.createDirectories(mirrorDirectory.resolve("objects"));
+        String second = commit(work, "second");
+        assertTrue(mirror.update(line -> {}));
+        assertNotNull(mirror.treeOf(second, line -> {}));
+    }
+}
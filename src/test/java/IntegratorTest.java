@@ -2,6 +2,7 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 
 
@@ -9,7 +10,7 @@ public class IntegratorTest {
 
     /**
      * Tests that a commit/branch where the code is not compilable fails
-     * both in the compile stage and the test stage. It should also succeed in
+     * in the compile stage and skips the test stage. It should also succeed in
      * the installing of dependencies.
      */
     @Test
@@ -20,7 +21,7 @@ public class IntegratorTest {
         Map<String, String> statuses = Integrator.integrateBuild(commitedBranch, commitHash, saveLocally);
         assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STATUS_INSTALL));
         assertEquals(Integrator.STATUS_FAILURE, statuses.get(Integrator.STATUS_COMPILE));
-        assertEquals(Integrator.STATUS_FAILURE, statuses.get(Integrator.STATUS_TEST));
+        assertEquals(Integrator.STATUS_SKIPPED, statuses.get(Integrator.STATUS_TEST));
     }
 
     /**
@@ -63,4 +64,17 @@ public class IntegratorTest {
         assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STATUS_TEST));
     }
 
+    /**
+     * Tests that only the failed methods are run again, parameterized tests by their method
+     */
+    @Test
+    public void rerunsFailedMethods(){
+        List<testCaseResult> failed = List.of(
+                new testCaseResult("pkg.ATest", "one", 1, testCaseResult.FAILED, null),
+                new testCaseResult("pkg.ATest", "add(int)[1]", 1, testCaseResult.ERROR, null),
+                new testCaseResult("pkg.ATest", "add(int)[2]", 1, testCaseResult.FAILED, null),
+                new testCaseResult("BTest", "two", 1, testCaseResult.FAILED, null));
+        assertEquals("ATest#one+add,BTest#two", Integrator.rerunFilter(failed));
+    }
+
 }
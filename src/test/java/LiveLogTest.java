@@ -0,0 +1,68 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LiveLogTest {
+
+    /**
+     * Tests that two viewers read the same lines from the shared buffer independently
+     */
+    @Test
+    public void viewersKeepTheirOwnPosition() throws Exception {
+        LiveLog log = new LiveLog(10);
+        log.append("a");
+        log.append("b");
+
+        List<String> first = new ArrayList<>();
+        long firstPosition = log.read(0, first, 10);
+        log.append("c");
+        List<String> second = new ArrayList<>();
+        long secondPosition = log.read(0, second, 10);
+        first.clear();
+        firstPosition = log.read(firstPosition, first, 10);
+
+        assertEquals(List.of("c"), first);
+        assertEquals(List.of("a", "b", "c"), second);
+        assertEquals(firstPosition, secondPosition);
+        assertFalse(log.isFinished(firstPosition));
+        log.close();
+        assertTrue(log.isFinished(firstPosition));
+    }
+
+    /**
+     * Tests that a viewer that fell behind skips the overwritten lines
+     */
+    @Test
+    public void slowViewerSkipsOverwrittenLines() throws Exception {
+        LiveLog log = new LiveLog(3);
+        for (int i = 0; i < 5; i++) {
+            log.append("line " + i);
+        }
+        List<String> lines = new ArrayList<>();
+        log.read(0, lines, 10);
+        assertEquals(List.of("[2 lines skipped]", "line 2", "line 3", "line 4"), lines);
+    }
+
+    /**
+     * Tests that a waiting viewer is woken up by a new line
+     */
+    @Test
+    public void readWaitsForNewLines() throws Exception {
+        LiveLog log = new LiveLog(3);
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            log.append("late");
+        });
+        writer.start();
+        List<String> lines = new ArrayList<>();
+        log.read(0, lines, 5000);
+        writer.join();
+        assertEquals(List.of("late"), lines);
+    }
+}
@@ -0,0 +1,96 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogIndexTest {
+
+    private static Build buildWithLogs(Path root, int id, String install, String test) throws Exception {
+        Path dir = Files.createDirectories(root.resolve("build" + id));
+        Files.writeString(dir.resolve(LogStore.INSTALL_LOG), install);
+        Files.writeString(dir.resolve(LogStore.TEST_LOG), test);
+        Build b = new Build(id, "45a1d97", "2021-02-05T15:00:11Z", "master",
+                Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, Integrator.STATUS_FAILURE, true);
+        b.setLogDirectory(dir.toString() + "/");
+        return b;
+    }
+
+    /**
+     * Tests that the builds whose logs have all words of a search are found with the lines of the words,
+     * also after the index is opened again
+     */
+    @Test
+    public void findsBuildsByWords() throws Exception {
+        Path root = Files.createTempDirectory("logs");
+        LogStore logs = new LogStore(1024 * 1024);
+        LogIndex index = new LogIndex(root.resolve("index").toFile());
+        index.index(buildWithLogs(root, 1, "[INFO] BUILD SUCCESS",
+                "Running jsonHandlerTest\njava.lang.NullPointerException\n\tat jsonHandler.read(jsonHandler.java:42)"), logs);
+        index.index(buildWithLogs(root, 2, "[INFO] BUILD SUCCESS",
+                "Running jsonHandlerTest\nTests run: 3, Failures: 0"), logs);
+        index.index(buildWithLogs(root, 3, "java.lang.NullPointerException",
+                "Running PipelineTest"), logs);
+        // has the words of "java.lang.NullPointerException", but not on one line
+        index.index(buildWithLogs(root, 4, "Setting up java",
+                "Running PipelineTest\njava.lang.IllegalStateException\nNullPointerException"), logs);
+
+        LogIndex.Results results = index.search("NullPointerException jsonHandlerTest", 10);
+        assertEquals(1, results.getTotal());
+        assertEquals(1, results.getMatches().get(0).getBuildID());
+        assertEquals(Map.of(LogStore.TEST_LOG, List.of(1, 2)), results.getMatches().get(0).getLines());
+
+        // the words of "java.lang.NullPointerException" have to be on the same line
+        results = index.search("java.lang.NullPointerException", 10);
+        assertEquals(2, results.getTotal());
+        assertEquals(3, results.getMatches().get(0).getBuildID());
+        assertEquals(Map.of(LogStore.INSTALL_LOG, List.of(1)), results.getMatches().get(0).getLines());
+        assertEquals(List.of(2), results.getMatches().get(1).getLines().get(LogStore.TEST_LOG));
+        // the build without the term on a line is neither counted nor takes the place of one that has it
+        results = index.search("java.lang.NullPointerException", 1);
+        assertEquals(2, results.getTotal());
+        assertEquals(3, results.getMatches().get(0).getBuildID());
+
+        assertEquals(2, index.search("build success", 10).getTotal());
+        assertEquals(0, index.search("missing", 10).getTotal());
+        assertEquals(0, index.search("42 :", 10).getTotal());
+
+        LogIndex reopened = new LogIndex(root.resolve("index").toFile());
+        assertEquals(1, reopened.search("jsonhandlertest nullpointerexception", 10).getMatches().get(0).getBuildID());
+        // indexed builds are not indexed again
+        reopened.indexAll(List.of(buildWithLogs(root, 2, "other", "other")), logs);
+        assertEquals(0, reopened.search("other", 10).getTotal());
+    }
+
+    /**
+     * Tests that every ten segments of the same size are merged into one and that the merged segments
+     * find the same builds
+     */
+    @Test
+    public void mergesSegments() throws Exception {
+        Path root = Files.createTempDirectory("logs");
+        LogStore logs = new LogStore(1024 * 1024);
+        LogIndex index = new LogIndex(root.resolve("index").toFile());
+        for (int id = 1; id <= 25; id++) {
+            index.index(buildWithLogs(root, id, "[INFO] Building ci", "Running Test" + id + "\nfailed in test" + (id % 5)), logs);
+        }
+        StringBuilder metrics = new StringBuilder();
+        index.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("log_index_builds 25"), metrics.toString());
+        assertTrue(metrics.toString().contains("log_index_segments 7"), metrics.toString());
+        assertTrue(metrics.toString().contains("log_index_merges 2"), metrics.toString());
+
+        LogIndex.Results results = index.search("building", 3);
+        assertEquals(25, results.getTotal());
+        assertEquals(List.of(25, 24, 23), results.getMatches().stream().map(LogIndex.Match::getBuildID).collect(Collectors.toList()));
+        assertEquals(13, index.search("test13", 10).getMatches().get(0).getBuildID());
+        results = index.search("failed test3", 10);
+        assertEquals(5, results.getTotal());
+        assertEquals(Map.of(LogStore.TEST_LOG, List.of(2)), results.getMatches().get(0).getLines());
+        assertEquals(0, new LogIndex(root.resolve("index").toFile()).search("test26", 10).getTotal());
+    }
+}
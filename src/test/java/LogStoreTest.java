@@ -0,0 +1,77 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogStoreTest {
+
+    private static Build buildIn(Path dir, int id) {
+        Build b = new Build(id, "45a1d97", "2021-02-05T15:00:11Z", "master",
+                Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, Integrator.STATUS_FAILURE, true);
+        b.setLogDirectory(dir.toString() + "/");
+        return b;
+    }
+
+    /**
+     * Tests that the logs of a build are read from its build directory and that older builds
+     * with inline logs are still shown
+     */
+    @Test
+    public void readsLogsFromBuildDirectory() throws Exception {
+        Path dir = Files.createTempDirectory("build");
+        Files.writeString(dir.resolve(LogStore.COMPILE_LOG), "compile output");
+        LogStore store = new LogStore(1024);
+        Build b = buildIn(dir, 1);
+
+        assertEquals("compile output", store.getLog(b, LogStore.COMPILE_LOG));
+        assertEquals("", store.getLog(b, LogStore.TEST_LOG));
+        assertFalse(b.getTestResult().isTestSuccessfull());
+
+        Build old = new Build(2, "45a1d97", "2021-02-05T15:00:11Z", "master", new installResult(true, "inline install"),
+                new buildResult(true, "inline build"), new testResult(true, "inline test"));
+        assertEquals("inline build", store.getLog(old, LogStore.COMPILE_LOG));
+    }
+
+    /**
+     * Tests that the least recently viewed logs are evicted once the cache is over its byte limit,
+     * and that logs larger than an eighth of the limit are streamed without being cached
+     */
+    @Test
+    public void evictsLeastRecentlyViewed() throws Exception {
+        LogStore store = new LogStore(320);
+        Path[] dirs = new Path[9];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = Files.createTempDirectory("build");
+            Files.writeString(dirs[i].resolve(LogStore.TEST_LOG), String.valueOf(i).repeat(40));
+        }
+        for (int i = 0; i < 8; i++) {
+            store.getLog(buildIn(dirs[i], i), LogStore.TEST_LOG);
+        }
+        assertEquals(320, store.getCachedBytes());
+
+        // touch 0, so that 1 is the eldest entry and is evicted by 8
+        store.getLog(buildIn(dirs[0], 0), LogStore.TEST_LOG);
+        store.getLog(buildIn(dirs[8], 8), LogStore.TEST_LOG);
+        assertEquals(320, store.getCachedBytes());
+        Files.writeString(dirs[0].resolve(LogStore.TEST_LOG), "changed");
+        Files.writeString(dirs[1].resolve(LogStore.TEST_LOG), "changed");
+        assertEquals("0".repeat(40), store.getLog(buildIn(dirs[0], 0), LogStore.TEST_LOG));
+        assertEquals("changed", store.getLog(buildIn(dirs[1], 1), LogStore.TEST_LOG));
+
+        // a cached log is only read again after its directory is invalidated
+        store.invalidate(dirs[0].toString() + "/");
+        assertEquals("changed", store.getLog(buildIn(dirs[0], 0), LogStore.TEST_LOG));
+
+        Path large = Files.createTempDirectory("build");
+        Files.writeString(large.resolve(LogStore.TEST_LOG), "x".repeat(1000));
+        long before = store.getCachedBytes();
+        try (Reader reader = store.openLog(buildIn(large, 9), LogStore.TEST_LOG)) {
+            assertEquals(1000, reader.transferTo(Writer.nullWriter()));
+        }
+        assertEquals(before, store.getCachedBytes());
+    }
+}
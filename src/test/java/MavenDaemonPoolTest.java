@@ -0,0 +1,60 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MavenDaemonPoolTest {
+
+    /**
+     * Tests that the -D options of MAVEN_OPTS are passed to Maven and the other options start the daemon
+     */
+    @Test
+    public void splitsMavenOptions() {
+        Map<String, String> environment = Map.of("MAVEN_OPTS", " -Xmx512m -Dmaven.repo.local=/m2  -DskipTests",
+                "JAVA_TOOL_OPTIONS", "-XX:MaxRAM=512m");
+        assertEquals(List.of("-Xmx512m"), MavenDaemonPool.jvmOptions(environment));
+        assertEquals(List.of("-Dmaven.repo.local=/m2", "-DskipTests", "-B", "test"),
+                MavenDaemonPool.mavenArguments(List.of("mvn", "-B", "test"), environment));
+        // the local repository differs between builds, it does not need a daemon of its own
+        assertEquals(MavenDaemonPool.key(environment), MavenDaemonPool.key(Map.of("MAVEN_OPTS", "-Xmx512m -Dmaven.repo.local=/other",
+                "JAVA_TOOL_OPTIONS", "-XX:MaxRAM=512m")));
+        assertNotEquals(MavenDaemonPool.key(environment), MavenDaemonPool.key(Map.of("MAVEN_OPTS", "-Xmx1g",
+                "JAVA_TOOL_OPTIONS", "-XX:MaxRAM=512m")));
+    }
+
+    /**
+     * Tests that Maven commands run one after the other in the same daemon, which is replaced after its builds
+     */
+    @Test
+    public void runsMavenInWarmDaemons() throws Exception {
+        File mavenHome = MavenDaemonPool.findMavenHome();
+        if (mavenHome == null) {
+            return;
+        }
+        Path project = Files.createTempDirectory("project");
+        Files.writeString(project.resolve("pom.xml"), "<project><modelVersion>4.0.0</modelVersion><groupId>se.kth</groupId>"
+                + "<artifactId>daemon</artifactId><version>1</version><packaging>pom</packaging></project>");
+        MavenDaemonPool pool = new MavenDaemonPool(mavenHome, 1, 2);
+        assertTrue(pool.accepts(List.of("mvn", "-B", "validate")));
+        assertFalse(pool.accepts(List.of("git", "status")));
+
+        List<String> output = new ArrayList<>();
+        assertEquals(0, pool.execute(List.of("mvn", "-B", "-o", "validate"), project.toFile(), Map.of(), 120000, null, output::add));
+        assertTrue(output.contains("[INFO] BUILD SUCCESS"), String.join("\n", output));
+        output.clear();
+        assertEquals(1, pool.execute(List.of("mvn", "-B", "-o", "no-such-phase"), project.toFile(), Map.of(), 120000, null, output::add));
+        assertTrue(output.contains("[INFO] BUILD FAILURE"), String.join("\n", output));
+
+        StringBuilder metrics = new StringBuilder();
+        pool.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("maven_daemon_starts 1\n"), metrics.toString());
+        assertTrue(metrics.toString().contains("maven_daemon_recycled 1\n"), metrics.toString());
+        assertTrue(metrics.toString().contains("maven_runs_warm 2\n"), metrics.toString());
+    }
+}
@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MavenLogParserTest {
+
+    /**
+     * Tests that the compiler errors, failed tests, module results and failed goal are read from the output of a
+     * multi-module build, and that the errors Maven repeats when the goal fails are kept once
+     */
+    @Test
+    public void readsReactorBuild() throws Exception {
+        long[] now = {0};
+        MavenLogParser parser = new MavenLogParser("/repo", () -> now[0]);
+        for (String line : Files.readAllLines(Path.of("src/test/resources/mavenReactorOutput.log"))) {
+            parser.accept(line);
+            now[0] += 1000000;
+        }
+        parser.finish();
+        buildDiagnostics d = parser.getDiagnostics(null);
+
+        assertEquals(List.of(
+                new compilerError("b/src/main/java/B.java", 1, 18, "cannot find symbol (symbol: class Foo, location: class B)"),
+                new compilerError("b/src/main/java/B.java", 1, 33, "incompatible types: java.lang.String cannot be converted to int")),
+                d.getCompilerErrors());
+        assertEquals(List.of(
+                new testFailure("ATest", "throwsNpe", testCaseResult.ERROR, "java.lang.NullPointerException: Cannot invoke \"String.length()\" because \"s\" is null"),
+                new testFailure("ATest", "fails", testCaseResult.FAILED, "org.opentest4j.AssertionFailedError: expected: <2> but was: <1>")),
+                d.getTestFailures());
+        assertEquals(3, d.getTestsRun());
+        assertEquals(1, d.getTestsFailed());
+        assertEquals(1, d.getTestsWithErrors());
+        assertEquals(List.of(new moduleResult("parent", "SUCCESS", 9), new moduleResult("a", "FAILURE", 7484),
+                new moduleResult("b", "FAILURE", 168)), d.getReactor());
+        assertTrue(d.getFailedGoal().contains("maven-surefire-plugin:2.22.1:test (default-test) on project a"), d.getFailedGoal());
+        assertEquals(List.of(buildDiagnostics.COMPILATION, buildDiagnostics.TEST_FAILURE, buildDiagnostics.TEST_ERROR), d.getErrorTypes());
+
+        // the surefire goal of a ends where module b starts, 26 lines later
+        assertEquals(List.of("resources:resources @ a", "compiler:compile @ a", "resources:testResources @ a", "compiler:testCompile @ a",
+                "surefire:test @ a", "resources:resources @ b", "compiler:compile @ b"),
+                d.getPluginTimings().stream().map(t -> t.getGoal() + " @ " + t.getModule()).collect(Collectors.toList()));
+        assertEquals(26, d.getPluginTimings().get(4).getWallMillis());
+    }
+
+    /**
+     * Tests that a run without a reactor summary gets its module result from its outcome, that failures of tests
+     * that passed when they were run again are left out and that unresolved dependencies are recognised
+     */
+    @Test
+    public void readsSingleModuleRuns() {
+        long[] now = {0};
+        MavenLogParser parser = new MavenLogParser("/repo/", () -> now[0]);
+        String[] run = {
+                "[\u001B[1;34mINFO\u001B[m] Scanning for projects...",
+                "[INFO] ----------------------------< group:ci >----------------------------",
+                "[INFO] Building ci 1.0-SNAPSHOT",
+                "[INFO] --- surefire:2.22.1:test (default-test) @ ci ---",
+                "[INFO] Running PipelineTest",
+                "[ERROR] Tests run: 2, Failures: 1, Errors: 0, Skipped: 1, Time elapsed: 1.1 s <<< FAILURE! - in PipelineTest",
+                "[ERROR] PipelineTest.retries -- Time elapsed: 0.5 s <<< FAILURE!",
+                "org.opentest4j.AssertionFailedError: flaked",
+                "[ERROR] Tests run: 2, Failures: 1, Errors: 0, Skipped: 1",
+                "[INFO] BUILD FAILURE",
+                "[INFO] Total time:  01:02 min",
+                "[ERROR] Failed to execute goal on project ci: Could not resolve dependencies for project group:ci:jar:1.0-SNAPSHOT",
+        };
+        for (String line : run) {
+            parser.accept(line);
+            now[0] += 1000000;
+        }
+        buildDiagnostics d = parser.getDiagnostics(List.of(new testCaseResult("PipelineTest", "retries", 500, testCaseResult.FLAKY, "flaked")));
+
+        assertTrue(d.getTestFailures().isEmpty());
+        assertEquals(1, d.getTestsSkipped());
+        assertEquals(List.of(new moduleResult("ci", "FAILURE", 62000)), d.getReactor());
+        assertEquals(List.of(new pluginTiming("surefire:test", "ci", 6, 1)), d.getPluginTimings());
+        assertEquals(List.of(buildDiagnostics.DEPENDENCY), d.getErrorTypes());
+        assertTrue(d.getCompilerErrors().isEmpty());
+
+        assertEquals(-1, MavenLogParser.millis("soon"));
+        assertEquals(3720000, MavenLogParser.millis("01:02 h"));
+    }
+    /**
+     * Tests that the interleaved output of Maven runs that run at the same time is read run by run, with the
+     * results of the runs added up
+     */
+    @Test
+    public void readsInterleavedForks() {
+        long[] now = {0};
+        MavenLogParser parser = new MavenLogParser("/repo", () -> now[0]);
+        String zero = MavenLogParser.forkPrefix(0);
+        String one = MavenLogParser.forkPrefix(1);
+        String[] lines = {
+                "Fork 0 runs ATest (about 100 ms)",
+                zero + "[INFO] --- surefire:3.2.5:test (default-cli) @ ci ---",
+                one + "[INFO] --- surefire:3.2.5:test (default-cli) @ ci ---",
+                zero + "[INFO] Running ATest",
+                one + "[INFO] Running BTest",
+                zero + "[ERROR] Tests run: 2, Failures: 1, Errors: 0, Skipped: 0, Time elapsed: 0.1 s <<< FAILURE! -- in ATest",
+                one + "[ERROR] Tests run: 1, Failures: 0, Errors: 1, Skipped: 0, Time elapsed: 0.1 s <<< FAILURE! -- in BTest",
+                zero + "[ERROR] ATest.fails -- Time elapsed: 0.01 s <<< FAILURE!",
+                one + "[ERROR] BTest.throwsNpe -- Time elapsed: 0.01 s <<< ERROR!",
+                zero + "org.opentest4j.AssertionFailedError: expected: <2> but was: <1>",
+                one + "java.lang.NullPointerException",
+                zero + "[ERROR] Tests run: 2, Failures: 1, Errors: 0, Skipped: 0",
+                one + "[ERROR] Tests run: 1, Failures: 0, Errors: 1, Skipped: 0",
+                one + "[INFO] BUILD FAILURE",
+                zero + "[INFO] BUILD FAILURE",
+        };
+        for (String line : lines) {
+            parser.accept(line);
+            now[0] += 1000000;
+        }
+        parser.finish();
+        buildDiagnostics d = parser.getDiagnostics(null);
+
+        assertEquals(List.of(
+                new testFailure("ATest", "fails", testCaseResult.FAILED, "org.opentest4j.AssertionFailedError: expected: <2> but was: <1>"),
+                new testFailure("BTest", "throwsNpe", testCaseResult.ERROR, "java.lang.NullPointerException")),
+                d.getTestFailures());
+        assertEquals(3, d.getTestsRun());
+        assertEquals(List.of(buildDiagnostics.TEST_FAILURE, buildDiagnostics.TEST_ERROR), d.getErrorTypes());
+        // the goal of each fork ends with its own run, 13 lines later in fork 0 and 11 lines later in fork 1
+        assertEquals(List.of(new pluginTiming("surefire:test", "ci", 13 + 11, 2)), d.getPluginTimings());
+    }
+}
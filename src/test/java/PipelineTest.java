@@ -0,0 +1,213 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipelineTest {
+
+    private static Pipeline pipelineIn(Path dir) {
+        File workspace = dir.resolve("workspace").toFile();
+        return new Pipeline(workspace, new File(workspace, "repo"), dir.resolve("build").toFile(), null);
+    }
+
+    private static PipelineStage checkout() {
+        return new PipelineStage(Integrator.STAGE_CHECKOUT, ".git_checkout.log", 10000, false, List.of("mkdir", "repo"));
+    }
+
+    /**
+     * Tests that every stage gets its own log and timing, and that the stages after a failing stage are skipped
+     */
+    @Test
+    public void skipsStagesAfterFailure() throws Exception {
+        Path dir = Files.createTempDirectory("pipeline");
+        Pipeline pipeline = pipelineIn(dir)
+                .addStage(checkout())
+                .addStage(new PipelineStage(Integrator.STATUS_INSTALL, LogStore.INSTALL_LOG, 10000, "echo", "installed"))
+                .addStage(new PipelineStage(Integrator.STATUS_COMPILE, LogStore.COMPILE_LOG, 10000, "bash", "-c", "echo broken; exit 3"))
+                .addStage(new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 10000, "echo", "tested"));
+        Map<String, String> statuses = pipeline.run();
+
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STATUS_INSTALL));
+        assertEquals(Integrator.STATUS_FAILURE, statuses.get(Integrator.STATUS_COMPILE));
+        assertEquals(Integrator.STATUS_SKIPPED, statuses.get(Integrator.STATUS_TEST));
+        assertEquals("installed\n", Files.readString(dir.resolve("build").resolve(LogStore.INSTALL_LOG)));
+        assertEquals("broken\n", Files.readString(dir.resolve("build").resolve(LogStore.COMPILE_LOG)));
+        assertTrue(Files.readString(dir.resolve("build").resolve(LogStore.TEST_LOG)).startsWith("Skipped"));
+        PipelineStage compile = pipeline.getAllStages().get(2);
+        assertEquals(3, compile.getExitCode());
+        assertTrue(compile.getCpuMillis() >= 0);
+        // the workspace is removed when the pipeline is done
+        assertFalse(dir.resolve("workspace").toFile().exists());
+    }
+
+    /**
+     * Tests that a stage running for longer than its timeout is killed and fails
+     */
+    @Test
+    public void killsStageAfterTimeout() throws Exception {
+        Path dir = Files.createTempDirectory("pipeline");
+        Pipeline pipeline = pipelineIn(dir)
+                .addStage(checkout())
+                .addStage(new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 200, "sleep", "30"));
+        long start = System.nanoTime();
+        Map<String, String> statuses = pipeline.run();
+
+        assertEquals(Integrator.STATUS_FAILURE, statuses.get(Integrator.STATUS_TEST));
+        assertTrue(System.nanoTime() - start < 10_000_000_000L);
+        assertTrue(Files.readString(dir.resolve("build").resolve(LogStore.TEST_LOG)).contains("timed out"));
+    }
+
+    /**
+     * Tests that a task stage is held to its timeout too, whether it runs a command with a longer timeout of
+     * its own or waits in Java
+     */
+    @Test
+    public void killsTaskStageAfterTimeout() throws Exception {
+        Path dir = Files.createTempDirectory("pipeline");
+        Pipeline[] pipeline = {pipelineIn(dir)};
+        pipeline[0].addStage(checkout())
+                .addStage(new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 200,
+                        (stage, log) -> pipeline[0].execute(List.of("sleep", "30"), 60000, log) == 0));
+        long start = System.nanoTime();
+
+        assertEquals(Integrator.STATUS_FAILURE, pipeline[0].run().get(Integrator.STATUS_TEST));
+        assertTrue(System.nanoTime() - start < 10_000_000_000L);
+        assertTrue(Files.readString(dir.resolve("build").resolve(LogStore.TEST_LOG)).contains("timed out"));
+        assertEquals(Pipeline.TIMED_OUT, pipeline[0].getAllStages().get(1).getExitCode());
+
+        Path waiting = Files.createTempDirectory("pipeline");
+        Pipeline sleeper = pipelineIn(waiting)
+                .addStage(checkout())
+                .addStage(new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 200, (stage, log) -> {
+                    try {
+                        Thread.sleep(30000);
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                    return true;
+                }));
+        start = System.nanoTime();
+
+        assertEquals(Integrator.STATUS_FAILURE, sleeper.run().get(Integrator.STATUS_TEST));
+        assertTrue(System.nanoTime() - start < 10_000_000_000L);
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * Tests that the output of a collapsed stage is split into the logs of the stages it stands for
+     * by the Maven goal that is running, and that the stage owning the failed goal fails
+     */
+    @Test
+    public void splitsCollapsedOutput() throws Exception {
+        Path dir = Files.createTempDirectory("pipeline");
+        String maven = "echo '[INFO] --- dependency:3.6.0:resolve (default-cli) @ ci ---'; echo resolved;"
+                + "echo '[INFO] --- compiler:3.8.0:compile (default-compile) @ ci ---'; echo compiled;"
+                + "echo '[INFO] --- surefire:3.0.0:test (default-test) @ ci ---'; echo failing tests;"
+                + "echo '[ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:3.0.0:test (default-test) on project ci'; exit 1";
+        Pipeline pipeline = pipelineIn(dir)
+                .addStage(checkout())
+                .addStage(new PipelineStage(Integrator.STATUS_INSTALL, LogStore.INSTALL_LOG, 10000, "false"), "dependency:")
+                .addStage(new PipelineStage(Integrator.STATUS_COMPILE, LogStore.COMPILE_LOG, 10000, "false"), "compiler:compile")
+                .addStage(new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 10000, "false"), "surefire:")
+                .addStage(new PipelineStage(Integrator.STAGE_PACKAGE, ".mvn_jar.log", 10000, "false"), "jar:")
+                .collapse(Integrator.STAGE_MAVEN, List.of(Integrator.STATUS_INSTALL, Integrator.STATUS_COMPILE,
+                        Integrator.STATUS_TEST, Integrator.STAGE_PACKAGE), List.of("bash", "-c", maven));
+        Map<String, String> statuses = pipeline.run();
+
+        assertEquals(Integrator.STATUS_FAILURE, statuses.get(Integrator.STAGE_MAVEN));
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STATUS_INSTALL));
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STATUS_COMPILE));
+        assertEquals(Integrator.STATUS_FAILURE, statuses.get(Integrator.STATUS_TEST));
+        assertEquals(Integrator.STATUS_SKIPPED, statuses.get(Integrator.STAGE_PACKAGE));
+        Path build = dir.resolve("build");
+        assertTrue(Files.readString(build.resolve(LogStore.INSTALL_LOG)).contains("resolved"));
+        assertFalse(Files.readString(build.resolve(LogStore.INSTALL_LOG)).contains("compiled"));
+        assertTrue(Files.readString(build.resolve(LogStore.COMPILE_LOG)).contains("compiled"));
+        assertTrue(Files.readString(build.resolve(LogStore.TEST_LOG)).contains("failing tests"));
+        assertEquals("compiler:compile", Pipeline.runningGoal("[INFO] --- maven-compiler-plugin:3.8.0:compile (default-compile) @ ci ---"));
+    }
+
+    /**
+     * Tests that cancelling a pipeline kills the running stage and cancels the stages after it
+     */
+    @Test
+    public void cancelsRunningStage() throws Exception {
+        Path dir = Files.createTempDirectory("pipeline");
+        Cancellation cancellation = new Cancellation();
+        Pipeline pipeline = pipelineIn(dir)
+                .addStage(checkout())
+                .addStage(new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 60000, "sleep", "30"))
+                .addStage(new PipelineStage(Integrator.STAGE_PACKAGE, ".mvn_jar.log", 10000, "echo", "packaged"));
+        pipeline.setCancellation(cancellation);
+        new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                return;
+            }
+            cancellation.cancel("superseded by a newer push");
+        }).start();
+        long start = System.nanoTime();
+        Map<String, String> statuses = pipeline.run();
+
+        assertTrue(System.nanoTime() - start < 10_000_000_000L);
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STAGE_CHECKOUT));
+        assertEquals(Integrator.STATUS_CANCELLED, statuses.get(Integrator.STATUS_TEST));
+        assertEquals(Integrator.STATUS_CANCELLED, statuses.get(Integrator.STAGE_PACKAGE));
+        assertTrue(Files.readString(dir.resolve("build").resolve(".mvn_jar.log")).contains("superseded"));
+    }
+
+    /**
+     * Tests that a failed stage whose retry succeeds passes, also as part of a collapsed stage, where the
+     * parts Maven did not get to are run afterwards
+     */
+    @Test
+    public void retriesFailedStage() throws Exception {
+        Path dir = Files.createTempDirectory("pipeline");
+        PipelineStage test = new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 10000, "bash", "-c", "echo failing; exit 1");
+        test.setRetry((stage, log) -> {
+            log.accept("passed on rerun");
+            return true;
+        });
+        Map<String, String> statuses = pipelineIn(dir)
+                .addStage(checkout())
+                .addStage(test)
+                .addStage(new PipelineStage(Integrator.STAGE_PACKAGE, ".mvn_jar.log", 10000, "echo", "packaged"))
+                .run();
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STATUS_TEST));
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STAGE_PACKAGE));
+        assertEquals("failing\npassed on rerun\n", Files.readString(dir.resolve("build").resolve(LogStore.TEST_LOG)));
+
+        Path collapsedDir = Files.createTempDirectory("pipeline");
+        String maven = "echo '[INFO] --- surefire:2.22.1:test (default-test) @ ci ---'; echo failing;"
+                + "echo '[ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:2.22.1:test (default-test) on project ci'; exit 1";
+        PipelineStage collapsedTest = new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 10000, "false");
+        collapsedTest.setRetry((stage, log) -> {
+            log.accept("passed on rerun");
+            return true;
+        });
+        Pipeline collapsed = pipelineIn(collapsedDir)
+                .addStage(checkout())
+                .addStage(collapsedTest, "surefire:")
+                .addStage(new PipelineStage(Integrator.STAGE_PACKAGE, ".mvn_jar.log", 10000, "echo", "packaged"), "jar:")
+                .collapse(Integrator.STAGE_MAVEN, List.of(Integrator.STATUS_TEST, Integrator.STAGE_PACKAGE), List.of("bash", "-c", maven));
+        statuses = collapsed.run();
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STAGE_MAVEN));
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STATUS_TEST));
+        assertEquals(Integrator.STATUS_SUCCESS, statuses.get(Integrator.STAGE_PACKAGE));
+        assertTrue(Files.readString(collapsedDir.resolve("build").resolve(LogStore.TEST_LOG)).contains("passed on rerun"));
+        assertEquals("packaged\n", Files.readString(collapsedDir.resolve("build").resolve(".mvn_jar.log")));
+
+        // a retry that does not help leaves the stage failed
+        Path failedDir = Files.createTempDirectory("pipeline");
+        PipelineStage failing = new PipelineStage(Integrator.STATUS_TEST, LogStore.TEST_LOG, 10000, "false");
+        failing.setRetry((stage, log) -> false);
+        statuses = pipelineIn(failedDir).addStage(checkout()).addStage(failing).run();
+        assertEquals(Integrator.STATUS_FAILURE, statuses.get(Integrator.STATUS_TEST));
+    }
+}
@@ -0,0 +1,59 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PushEventTest {
+
+    /**
+     * Tests that the streaming parser reads the same fields as the Json tree of a real push payload
+     */
+    @Test
+    public void readsTheUsedFields() throws Exception {
+        String payload = Files.readString(Path.of("src/test/java/testdatacommit.json"));
+        JsonObject tree = new JsonParser().parse(payload).getAsJsonObject();
+        PushEvent push = PushEvent.parse(payload);
+
+        assertEquals(tree.get("ref").getAsString(), push.getRef());
+        assertEquals("TEST_total_success", push.getBranch());
+        assertEquals(tree.get("after").getAsString(), push.getAfter());
+        assertEquals(tree.get("after").getAsString().substring(0, 7), push.getCommit());
+        JsonObject repository = tree.getAsJsonObject("repository");
+        assertEquals(repository.getAsJsonObject("owner").get("name").getAsString(), push.getOwnerName());
+        assertEquals(repository.get("name").getAsString(), push.getRepositoryName());
+        assertEquals(repository.get("full_name").getAsString(), push.getFullName());
+        assertFalse(push.isDeleted());
+        assertFalse(push.isForceRebuild());
+    }
+
+    /**
+     * Tests the force rebuild marker, deleted branches and payloads that are not pushes
+     */
+    @Test
+    public void readsMarkersAndRejectsOtherPayloads() {
+        PushEvent push = PushEvent.parse("{\"ref\": \"refs/heads/main\", \"after\": \"0000000000000000000000000000000000000000\","
+                + " \"commits\": [{\"message\": \"Fix [Force Rebuild]\", \"added\": [\"a\"]}], \"repository\": null}");
+        assertTrue(push.isDeleted());
+        assertTrue(push.isForceRebuild());
+        assertEquals("", push.getFullName());
+
+        assertThrows(IllegalArgumentException.class, () -> PushEvent.parse("{\"zen\": \"Keep it simple\"}"));
+        assertThrows(IllegalArgumentException.class, () -> PushEvent.parse("[1, 2]"));
+        assertThrows(IllegalArgumentException.class, () -> PushEvent.parse("{\"ref\": "));
+    }
+
+    /**
+     * Tests that "[force rebuild]" is found in the head commit or any pushed commit, in any case
+     */
+    @Test
+    public void readsForceRebuildOfAnyCommit() {
+        String push = "{\"ref\": \"refs/heads/main\", \"after\": \"117f7fbc91789cbb6a175eb9c70d58b5c7f4a9e4\", ";
+        assertTrue(PushEvent.parse(push + "\"head_commit\": {\"message\": \"Fix flaky test [Force Rebuild]\"}}").isForceRebuild());
+        assertTrue(PushEvent.parse(push + "\"commits\": [{\"message\": \"[force rebuild]\"}, {\"message\": \"other\"}]}").isForceRebuild());
+        assertFalse(PushEvent.parse(push + "\"head_commit\": {\"message\": \"Fix flaky test\"}}").isForceRebuild());
+    }
+}
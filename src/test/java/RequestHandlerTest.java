@@ -34,6 +34,8 @@ public class RequestHandlerTest {
 			requestHandler.data = jsonObject.toString();
 			requestHandler.start();
 			requestHandler.join();
+			// the final status is sent in the background
+			CommitStatusReporter.shared().flush(30000);
 
 			status = RequestHandler.getCommitStatus(jsonObject);
 			if (!status.equals(CommitStatus.STATE_SUCCESS)){
@@ -67,6 +69,8 @@ public class RequestHandlerTest {
 			requestHandler.data = jsonObject.toString();
 			requestHandler.start();
 			requestHandler.join();
+			// the final status is sent in the background
+			CommitStatusReporter.shared().flush(30000);
 
 			status = RequestHandler.getCommitStatus(jsonObject);
 			if (!status.equals(CommitStatus.STATE_FAILURE)){
@@ -0,0 +1,75 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResultCacheTest {
+
+    private static Build built(int id, String hash, String tree, String toolchain) {
+        Build b = new Build(id, hash, "2021-02-05T15:00:11Z", "master",
+                Integrator.STATUS_SUCCESS, Integrator.STATUS_SUCCESS, Integrator.STATUS_FAILURE, true);
+        b.setTreeHash(tree);
+        b.setToolchain(toolchain);
+        return b;
+    }
+
+    /**
+     * Tests that a tree built with the current toolchain is found, and that builds that reused
+     * results, other toolchains and forced rebuilds are not
+     */
+    @Test
+    public void findsBuildsOfTheSameTree() {
+        BuildHistory db = new BuildHistory();
+        ResultCache cache = new ResultCache(true);
+        String toolchain = ResultCache.toolchainFingerprint();
+        db.addBuildToDB(built(1, "aaaaaaa", "tree1", toolchain));
+        db.addBuildToDB(built(2, "bbbbbbb", "tree2", "other toolchain"));
+        Build reused = built(3, "ccccccc", "tree3", toolchain);
+        reused.setCachedFrom(1);
+        db.addBuildToDB(reused);
+
+        assertEquals(1, cache.lookup(db, "tree1", false).getBuildID());
+        assertNull(cache.lookup(db, "tree2", false));
+        assertNull(cache.lookup(db, "tree3", false));
+        assertNull(cache.lookup(db, "tree1", true));
+        assertNull(cache.lookup(db, null, false));
+        assertNull(new ResultCache(false).lookup(db, "tree1", false));
+
+        // the index is rebuilt when the history is loaded
+        db.rebuildIndexes();
+        assertEquals(1, cache.lookup(db, "tree1", false).getBuildID());
+        StringBuilder metrics = new StringBuilder();
+        cache.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("result_cache_hits 2"));
+        assertTrue(metrics.toString().contains("result_cache_forced_rebuilds 1"));
+    }
+
+    /**
+     * Tests that a reused build shows the results and logs of the build it was taken from and gets its jar,
+     * in a build directory of its own
+     */
+    @Test
+    public void reusesResultsAndJar() throws Exception {
+        Path dir = Files.createTempDirectory("build");
+        Files.writeString(dir.resolve("aaaaaaa.jar"), "jar");
+        Files.writeString(dir.resolve(LogStore.TEST_LOG), "tested");
+        Build source = built(1, "aaaaaaa", "tree1", "toolchain");
+        source.setLogDirectory(dir.toString() + "/");
+
+        String hash = "r" + Long.toHexString(System.nanoTime()).substring(0, 6);
+        Build b = new ResultCache(true).reuse(source, 2, hash, "2021-02-06T15:00:11Z", "feature", true);
+        try {
+            assertEquals(Integer.valueOf(1), b.getCachedFrom());
+            assertEquals(Integrator.buildDirectory(true, hash, 2), b.getLogDirectory());
+            assertEquals("tested", new LogStore(1024).getLog(b, LogStore.TEST_LOG));
+            assertFalse(b.getTestResult().isTestSuccessfull());
+            assertEquals("jar", Files.readString(Path.of(Integrator.buildDirectory(true, hash, 2), hash + ".jar")));
+            assertEquals(new File(Integrator.buildDirectory(true, hash, 2)).getAbsoluteFile(), ArtifactStore.artifactDirectory(b));
+        } finally {
+            Pipeline.deleteRecursively(new File(Integrator.buildDirectory(true, hash, 2)));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SurefireReportsTest {
+
+    /**
+     * Tests that the test cases of all reports are read with their duration, status and first line of the message
+     */
+    @Test
+    public void readsTestCases() throws Exception {
+        Path dir = Files.createTempDirectory("surefire-reports");
+        Files.writeString(dir.resolve("TEST-PipelineTest.xml"), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuite name=\"PipelineTest\" time=\"1.2\" tests=\"3\" errors=\"1\" skipped=\"0\" failures=\"1\">\n"
+                + "  <properties><property name=\"java.version\" value=\"17\"/></properties>\n"
+                + "  <testcase name=\"skipsStagesAfterFailure\" classname=\"PipelineTest\" time=\"0.012\"/>\n"
+                + "  <testcase name=\"killsStageAfterTimeout\" classname=\"PipelineTest\" time=\"1,234.5\">\n"
+                + "    <failure message=\"expected: &lt;SUCCESS&gt; but was: &lt;FAILURE&gt;&#10;at line 3\" type=\"org.opentest4j.AssertionFailedError\">trace</failure>\n"
+                + "    <system-out>lots of output</system-out>\n"
+                + "  </testcase>\n"
+                + "  <testcase name=\"splitsCollapsedOutput\" classname=\"PipelineTest\" time=\"0.2\">\n"
+                + "    <error type=\"java.lang.NullPointerException\">trace</error>\n"
+                + "  </testcase>\n"
+                + "</testsuite>\n");
+        Files.writeString(dir.resolve("TEST-LogStoreTest.xml"), "<testsuite name=\"LogStoreTest\">"
+                + "<testcase name=\"cachesLogs\" classname=\"LogStoreTest\" time=\"0.05\"><skipped/></testcase></testsuite>");
+        Files.writeString(dir.resolve("PipelineTest.txt"), "not a report");
+
+        List<testCaseResult> cases = SurefireReports.parse(dir.toFile());
+
+        assertEquals(4, cases.size());
+        assertEquals(new testCaseResult("LogStoreTest", "cachesLogs", 50, testCaseResult.SKIPPED, null), cases.get(0));
+        assertEquals(new testCaseResult("PipelineTest", "skipsStagesAfterFailure", 12, testCaseResult.PASSED, null), cases.get(1));
+        assertEquals(new testCaseResult("PipelineTest", "killsStageAfterTimeout", 1234500, testCaseResult.FAILED,
+                "expected: <SUCCESS> but was: <FAILURE>"), cases.get(2));
+        assertEquals(new testCaseResult("PipelineTest", "splitsCollapsedOutput", 200, testCaseResult.ERROR,
+                "java.lang.NullPointerException"), cases.get(3));
+        assertEquals(List.of(cases.get(2), cases.get(3)), SurefireReports.slowest(cases, 2));
+        assertTrue(SurefireReports.parse(dir.resolve("missing").toFile()).isEmpty());
+    }
+}
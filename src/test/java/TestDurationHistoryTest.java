@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestDurationHistoryTest {
+
+    private static testCaseResult passed(String className, String name, long millis) {
+        return new testCaseResult(className, name, millis, testCaseResult.PASSED, null);
+    }
+
+    /**
+     * Tests that the longest classes are spread over the forks first, each to the fork with the least work
+     */
+    @Test
+    public void packsLongestFirst() {
+        Map<String, Long> durations = new LinkedHashMap<>();
+        durations.put("ATest", 20L);
+        durations.put("BTest", 70L);
+        durations.put("CTest", 30L);
+        durations.put("DTest", 40L);
+        durations.put("ETest", 50L);
+
+        List<List<String>> bins = TestDurationHistory.pack(durations, 2);
+        assertEquals(List.of(List.of("BTest", "CTest"), List.of("ETest", "DTest", "ATest")), bins);
+        assertEquals(110, TestDurationHistory.makespan(bins, durations));
+        // an unlucky order puts the two longest classes on the same fork
+        assertEquals(120, TestDurationHistory.makespan(List.of(List.of("BTest", "ETest"), List.of("ATest", "CTest", "DTest")), durations));
+
+        assertEquals(210, TestDurationHistory.makespan(TestDurationHistory.pack(durations, 1), durations));
+        assertEquals(3, TestDurationHistory.pack(Map.of("ATest", 1L, "BTest", 2L, "CTest", 3L), 8).size());
+    }
+
+    /**
+     * Tests the moving average, the percentiles and the predictions, and that the history survives restarts
+     */
+    @Test
+    public void recordsAndPredicts() throws Exception {
+        Path dir = Files.createTempDirectory("durations");
+        String path = dir.resolve("TestDurations.txt").toString();
+        TestDurationHistory history = new TestDurationHistory(path);
+        assertNull(history.predict(List.of("ATest"), 1));
+
+        history.record(List.of(passed("pkg.ATest", "one", 60), passed("pkg.ATest", "two", 40), passed("BTest", "one", 100)), 1, 1200);
+        assertEquals(100, history.estimate("ATest"));
+        assertEquals(2, history.size());
+        // the stage took 1000 ms more than its tests
+        assertEquals(1200, history.predict(List.of("ATest", "BTest"), 1));
+        assertEquals(1100, history.predict(List.of("ATest", "BTest"), 2));
+        // a class that has not run before is assumed to take as long as the others on average
+        assertEquals(Map.of("ATest", 100L, "NewTest", 100L), history.estimates(List.of("ATest", "NewTest")));
+
+        history.record(List.of(passed("ATest", "one", 200)), 1, 0);
+        assertEquals(130, history.estimate("ATest"));
+        List<Long> samples = new ArrayList<>();
+        for (int i = 0; i < TestDurationHistory.SAMPLES + 4; i++) {
+            samples.add((long) i);
+            history.record(List.of(passed("CTest", "one", i)), 1, 0);
+        }
+        // only the last SAMPLES durations are kept, 4 to 19
+        assertEquals(4, history.percentile("CTest", 0));
+        assertEquals(11, history.percentile("CTest", 50));
+        assertEquals(19, history.percentile("CTest", 95));
+
+        TestDurationHistory restarted = new TestDurationHistory(path);
+        assertEquals(history.estimate("ATest"), restarted.estimate("ATest"));
+        assertEquals(history.estimate("CTest"), restarted.estimate("CTest"));
+        assertEquals(11, restarted.percentile("CTest", 50));
+        assertEquals(history.predict(List.of("ATest", "BTest"), 2), restarted.predict(List.of("ATest", "BTest"), 2));
+        assertNull(restarted.estimate("DTest"));
+    }
+}
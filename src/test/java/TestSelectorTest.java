@@ -0,0 +1,82 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSelectorTest {
+
+    private static void write(Path root, String path, String source) throws Exception {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, source);
+    }
+
+    /**
+     * Tests that the test classes using a changed class, directly or through other classes, are chosen,
+     * and that all tests run when a file other than Java source changed
+     */
+    @Test
+    public void choosesTestsThatDependOnChangedClasses() throws Exception {
+        Path root = Files.createTempDirectory("selector");
+        write(root, "src/main/java/Util.java", "public class Util { static int one() { return 1; } }");
+        write(root, "src/main/java/jsonHandler.java", "public class jsonHandler { int size() { return Util.one(); } }");
+        write(root, "src/main/java/Build.java", "public class Build {}\nclass testResult { boolean ok; }");
+        write(root, "src/test/java/jsonHandlerTest.java", "public class jsonHandlerTest { jsonHandler handler; }");
+        write(root, "src/test/java/BuildTest.java", "public class BuildTest { testResult result; }");
+        write(root, "src/test/java/UtilTest.java", "public class UtilTest { int x = Util.one(); }");
+        write(root, "src/test/java/Fixtures.java", "public class Fixtures { jsonHandler handler; }");
+        File repository = root.toFile();
+
+        assertEquals(Set.of("jsonHandlerTest"), TestSelector.affectedTests(repository, List.of("src/main/java/jsonHandler.java")));
+        assertEquals(Set.of("UtilTest", "jsonHandlerTest"), TestSelector.affectedTests(repository, List.of("src/main/java/Util.java", "README.md")));
+        // a class declared next to another one in the same file
+        assertEquals(Set.of("BuildTest"), TestSelector.affectedTests(repository, List.of("src/main/java/Build.java")));
+        // changed tests run themselves, helpers are not run
+        assertEquals(Set.of("UtilTest"), TestSelector.affectedTests(repository, List.of("src/test/java/UtilTest.java", ".gitignore")));
+        assertEquals(Set.of(), TestSelector.affectedTests(repository, List.of("docs/notes.md")));
+        // the tests may read text files under src/, e.g. fixtures, so those run all tests
+        assertNull(TestSelector.affectedTests(repository, List.of("src/test/resources/expected.txt")));
+        assertNull(TestSelector.affectedTests(repository, List.of("src/main/resources/notes.md")));
+        assertNull(TestSelector.affectedTests(repository, List.of("src/main/java/Util.java", "pom.xml")));
+        assertNull(TestSelector.affectedTests(repository, List.of("src/test/resources/payload.json")));
+    }
+
+    /**
+     * Tests the periodic full runs, the estimate of the saved time and the Maven options of a selection
+     */
+    @Test
+    public void countsRunsAndSavedTime() {
+        List<Build> builds = new ArrayList<>();
+        Build full = new Build(1, "aaaaaaa", "2020-01-01 00:00:00", "main", "SUCCESS", "SUCCESS", "SUCCESS", true);
+        full.setTestSelection(new testSelection(null, null, "No green build of main to compare with", 0));
+        full.getTestResult().setTestCases(List.of(
+                new testCaseResult("UtilTest", "one", 100, testCaseResult.PASSED, null),
+                new testCaseResult("pkg.BuildTest", "ok", 250, testCaseResult.PASSED, null),
+                new testCaseResult("pkg.BuildTest", "fails", 50, testCaseResult.PASSED, null)));
+        builds.add(full);
+        assertEquals(0, TestSelector.selectedRunsSinceFullRun(builds));
+
+        Build selected = new Build(2, "bbbbbbb", "2020-01-01 00:01:00", "main", "SUCCESS", "SUCCESS", "SUCCESS", true);
+        selected.setTestSelection(new testSelection("aaaaaaa", List.of("UtilTest"), "1 changed files since aaaaaaa", 300));
+        selected.getTestResult().setTestCases(List.of(new testCaseResult("UtilTest", "one", 100, testCaseResult.PASSED, null)));
+        builds.add(selected);
+        Build cancelled = new Build(3, "ccccccc", "2020-01-01 00:02:00", "main", "SUCCESS", "SUCCESS", "SUCCESS", true);
+        cancelled.setStatus(Integrator.STATUS_CANCELLED);
+        builds.add(cancelled);
+        assertEquals(1, TestSelector.selectedRunsSinceFullRun(builds));
+
+        // estimated from the last build that ran all tests
+        assertEquals(300, TestSelector.savedMillis(builds, Set.of("UtilTest")));
+        assertEquals(100, TestSelector.savedMillis(builds, Set.of("BuildTest")));
+
+        assertEquals(List.of(), TestSelector.mavenOptions(full.getTestSelection()));
+        assertEquals(List.of("-Dtest=UtilTest", "-Dsurefire.failIfNoSpecifiedTests=false"), TestSelector.mavenOptions(selected.getTestSelection()));
+        assertEquals(List.of("-DskipTests"), TestSelector.mavenOptions(new testSelection("aaaaaaa", List.of(), "1 changed files since aaaaaaa", 400)));
+    }
+}
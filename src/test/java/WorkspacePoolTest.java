@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WorkspacePoolTest {
+
+    /**
+     * Tests that the worktree of a finished build is cleaned and checked out again by the next build,
+     * and that only as many worktrees as fit in the pool are kept
+     */
+    @Test
+    public void recyclesWorktrees() throws Exception {
+        Path dir = Files.createTempDirectory("workspaces");
+        Path remote = dir.resolve("remote.git");
+        Path work = dir.resolve("work");
+        GitMirrorTest.git(dir, "init", "-q", "--bare", remote.toString());
+        GitMirrorTest.git(dir, "clone", "-q", remote.toString(), work.toString());
+        String first = GitMirrorTest.commit(work, "first");
+        String second = GitMirrorTest.commit(work, "second");
+        GitMirror mirror = new GitMirror(remote.toString(), dir.resolve("mirrors").resolve("remote.git").toFile());
+        WorkspacePool pool = new WorkspacePool(dir.resolve("tmp_build").toFile(), 1);
+
+        File one = new File(pool.workspace("build-1"), "repo");
+        File two = new File(pool.workspace("build-2"), "repo");
+        one.getParentFile().mkdirs();
+        two.getParentFile().mkdirs();
+        assertTrue(pool.checkout(mirror, first, one, line -> {}));
+        assertTrue(pool.checkout(mirror, first, two, line -> {}));
+        Files.createDirectories(one.toPath().resolve("target"));
+        Files.writeString(one.toPath().resolve("target").resolve("ci.jar"), "jar");
+        pool.release(mirror, one);
+        pool.release(mirror, two);
+        assertFalse(one.exists());
+        // the pool is full, the second worktree is left to be deleted with its workspace
+        assertTrue(two.exists());
+        Pipeline.deleteRecursively(two.getParentFile());
+        mirror.prune();
+
+        File three = new File(pool.workspace("build-3"), "repo");
+        three.getParentFile().mkdirs();
+        List<String> log = new ArrayList<>();
+        assertTrue(pool.checkout(mirror, second, three, log::add));
+        assertEquals("second", Files.readString(three.toPath().resolve("file.txt")));
+        assertFalse(Files.exists(three.toPath().resolve("target")));
+        assertTrue(String.join("\n", log).contains("Reused the worktree"), String.join("\n", log));
+
+        StringBuilder metrics = new StringBuilder();
+        pool.appendMetrics(metrics);
+        assertTrue(metrics.toString().contains("workspaces_recycled 1"));
+        assertTrue(metrics.toString().contains("workspaces_created 2"));
+    }
+
+    /**
+     * Tests that the limits of a build apply to the commands of its stages
+     */
+    @Test
+    public void limitsCommands() throws Exception {
+        BuildSandbox sandbox = new BuildSandbox(512, 1.5, 30);
+        assertEquals("-XX:MaxRAM=512m -XX:ActiveProcessorCount=2",
+                sandbox.environment().get("JAVA_TOOL_OPTIONS").replace(System.getenv().getOrDefault("JAVA_TOOL_OPTIONS", ""), "").trim());
+        assertEquals("30 s CPU time per process; JVMs sized for 512 MB memory and 2 CPUs, not enforced", sandbox.describe());
+        assertEquals("JVMs sized for 512 MB memory, not enforced", new BuildSandbox(512, 0, 0).describe());
+        assertNull(new BuildSandbox(0, 0, 0).describe());
+
+        Path dir = Files.createTempDirectory("sandbox");
+        Pipeline pipeline = new Pipeline(dir.toFile(), dir.toFile(), dir.resolve("build").toFile(), null);
+        pipeline.setSandbox(sandbox);
+        List<String> out = new ArrayList<>();
+        assertEquals(0, pipeline.execute(List.of("bash", "-c", "ulimit -t"), 10000, out::add));
+        assertEquals(List.of("30"), out);
+    }
+}
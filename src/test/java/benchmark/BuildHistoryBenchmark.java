@@ -0,0 +1,128 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup and insert latency of BuildHistory with 10k to 1M builds.
+ * JMH does not accept benchmarks in the default package where the server classes live,
+ * so the history is reached through method handles, which the JIT inlines like direct calls.
+ *
+ * Run with:
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt -Dmdep.includeScope=test
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main BuildHistoryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildHistoryBenchmark {
+
+    private static final MethodHandle NEW_HISTORY;
+    private static final MethodHandle NEW_BUILD;
+    private static final MethodHandle ADD_BUILD;
+    private static final MethodHandle FIND_BUILD;
+    private static final MethodHandle FIND_BY_COMMIT;
+    private static final MethodHandle ALLOCATE_ID;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> history = Class.forName("BuildHistory");
+            Class<?> build = Class.forName("Build");
+            Class<?>[] params = null;
+            for (Constructor<?> c : build.getConstructors()) {
+                // the constructor taking the install/build/test results
+                if (c.getParameterCount() == 7) {
+                    params = c.getParameterTypes();
+                }
+            }
+            NEW_HISTORY = lookup.findConstructor(history, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            NEW_BUILD = lookup.findConstructor(build, MethodType.methodType(void.class, params))
+                    .asType(MethodType.methodType(Object.class, int.class, String.class, String.class, String.class,
+                            Object.class, Object.class, Object.class));
+            ADD_BUILD = lookup.findVirtual(history, "addBuildToDB", MethodType.methodType(void.class, build))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            FIND_BUILD = lookup.findVirtual(history, "findBuild", MethodType.methodType(build, int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            FIND_BY_COMMIT = lookup.findVirtual(history, "findBuildsByCommit",
+                    MethodType.methodType(List.class, String.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, String.class));
+            ALLOCATE_ID = lookup.findVirtual(history, "allocateBuildID", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private Object history;
+
+    @Setup(Level.Trial)
+    public void fill() throws Throwable {
+        history = (Object) NEW_HISTORY.invokeExact();
+        for (int i = 1; i <= size; i++) {
+            ADD_BUILD.invokeExact(history, newBuild(i));
+        }
+    }
+
+    private static Object newBuild(int id) throws Throwable {
+        // the results are not looked at by the history, so they are left out
+        return (Object) NEW_BUILD.invokeExact(id, commitOf(id), "2021-02-05T15:00:11Z", "branch-" + (id % 64),
+                (Object) null, (Object) null, (Object) null);
+    }
+
+    private static String commitOf(int id) {
+        return String.format("%07x", id);
+    }
+
+    @Benchmark
+    public Object findBuild() throws Throwable {
+        int id = ThreadLocalRandom.current().nextInt(size) + 1;
+        return (Object) FIND_BUILD.invokeExact(history, id);
+    }
+
+    @Benchmark
+    public Object findBuildsByCommit() throws Throwable {
+        int id = ThreadLocalRandom.current().nextInt(size) + 1;
+        return (Object) FIND_BY_COMMIT.invokeExact(history, commitOf(id));
+    }
+
+    /**
+     * Allocates an id and inserts a build, the history grows by one build per operation.
+     */
+    @Benchmark
+    public void insert() throws Throwable {
+        int id = (int) ALLOCATE_ID.invokeExact(history);
+        ADD_BUILD.invokeExact(history, newBuild(id));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(BuildHistoryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -9,6 +9,9 @@ import java.io.IOException;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -59,6 +62,52 @@ public class jsonHandlerTest {
         assertEquals(b.equals(bRes),false);
     }
 
+    /**
+     * Tests that builds can be found by commit hash and by branch, in the order they were added
+     */
+    @Test
+    public void findBuildsByCommitAndBranchTest(){
+        BuildHistory db = new BuildHistory();
+        Build b1 = new Build(1,"45a1d97","2021-02-05T15:00:11Z","master",new installResult(true,"i"),new buildResult(true,"b"), new testResult(true, "t"));
+        Build b2 = new Build(2,"45a1d97","2021-02-05T15:01:11Z","feature",new installResult(true,"i"),new buildResult(true,"b"), new testResult(true, "t"));
+        Build b3 = new Build(3,"117f7fb","2021-02-05T15:02:11Z","master",new installResult(true,"i"),new buildResult(true,"b"), new testResult(true, "t"));
+        db.addBuildToDB(b1);
+        db.addBuildToDB(b2);
+        db.addBuildToDB(b3);
+
+        assertEquals(List.of(b1, b2), db.findBuildsByCommit("45a1d97"));
+        assertEquals(List.of(b1, b3), db.findBuildsByBranch("master"));
+        assertEquals(0, db.findBuildsByBranch("unknown").size());
+        assertEquals(List.of(b1, b2, b3), db.getSnapshot());
+        assertEquals(4, db.getNextBuildID());
+    }
+
+    /**
+     * Tests that concurrent threads never get the same build id
+     */
+    @Test
+    public void allocateBuildIDConcurrentTest() throws InterruptedException {
+        BuildHistory db = new BuildHistory();
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    int id = db.allocateBuildID();
+                    ids.add(id);
+                    db.addBuildToDB(new Build(id,"45a1d97","2021-02-05T15:00:11Z","master",new installResult(true,"i"),new buildResult(true,"b"), new testResult(true, "t")));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8000, ids.size());
+        assertEquals(8000, db.getSnapshot().size());
+        assertEquals(8000, db.findBuildsByBranch("master").size());
+    }
+
 
     /**
      * Test that two known build objects are loaded in correctly